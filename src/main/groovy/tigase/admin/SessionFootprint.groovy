@@ -0,0 +1,73 @@
+/**
+ * Tigase XMPP Server - The instant messaging server
+ * Copyright (C) 2004 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+/*
+ Estimates memory used by user sessions, broken down by keys of session data
+ AS:Description: Get user sessions memory footprint
+ AS:CommandId: session-footprint
+ AS:Component: sess-man
+ AS:Group: Statistics
+ */
+
+package tigase.admin
+
+import tigase.server.Command
+import tigase.server.Packet
+import tigase.server.xmppsession.SessionFootprint
+
+def SAMPLE_SIZE = "sample-size"
+
+def p = (Packet) packet
+
+def sampleSize = Command.getFieldValue(packet, SAMPLE_SIZE)
+
+if (sampleSize == null) {
+	def result = p.commandResult(Command.DataType.form);
+
+	Command.addTitle(result, "Get user sessions memory footprint")
+	Command.addInstructions(result, "Fill out this form to estimate memory used by user sessions.")
+
+	Command.addFieldValue(result, "FORM_TYPE", "http://jabber.org/protocol/admin",
+						  "hidden")
+	Command.addFieldValue(result, SAMPLE_SIZE, "1000", "text-single",
+						  "Number of sessions to sample")
+
+	return result
+}
+
+def user_sessions = (Map) userSessions
+
+def footprint = SessionFootprint.calculate(user_sessions.values(), sampleSize.toInteger())
+
+def result = p.commandResult(Command.DataType.result)
+Command.addFieldValue(result, "Sessions", String.valueOf(footprint.getSessions()))
+Command.addFieldValue(result, "Sampled sessions", String.valueOf(footprint.getSampledSessions()))
+Command.addFieldValue(result, "Connections per session",
+					  String.format("%.2f", footprint.getConnectionsPerSession()))
+Command.addFieldValue(result, "Estimated total memory [B]", String.valueOf(footprint.getTotalSize()))
+Command.addFieldValue(result, "Estimated memory per session [B]",
+					  String.valueOf(footprint.getAverageSessionSize()))
+Command.addFieldValue(result, "Sessions and connections objects [B]",
+					  String.valueOf(footprint.getAverageStructuresSize()))
+
+def keys_list = [ ]
+footprint.getKeys().each { String key ->
+	keys_list += key + ": " + footprint.getAverageSize(key) + " B per session, used by " +
+			String.format("%.1f", footprint.getUsage(key)) + "%"
+}
+Command.addFieldMultiValue(result, "Session data", keys_list)
+return result
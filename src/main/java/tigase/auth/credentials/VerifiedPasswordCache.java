@@ -0,0 +1,151 @@
+/*
+ * Tigase XMPP Server - The instant messaging server
+ * Copyright (C) 2004 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.auth.credentials;
+
+import tigase.util.common.TinyLFUCache;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.InvalidKeyException;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Short-lived cache of successful verifications of plain passwords against salted (ie. SCRAM) credentials.
+ * <br>
+ * Calculation of a salted password requires thousands of iterations of HMAC, so when many clients reconnect at once
+ * (ie. after restart of a node) verification of passwords sent with <code>PLAIN</code> mechanism may saturate CPU.
+ * Entries are identified by HMAC-SHA256 (with a random key generated at startup) of the stored credential and of the
+ * verified password, so neither the password nor a value which could be used to authenticate is kept in memory. Only
+ * successful verifications are cached and an entry is valid only for the same stored credential, so change of the
+ * password invalidates it.
+ */
+public class VerifiedPasswordCache {
+
+	public static final int DEF_LIMIT = 10000;
+	public static final long DEF_TTL = 5 * 60 * 1000;
+
+	private static final VerifiedPasswordCache instance = new VerifiedPasswordCache();
+
+	private final SecretKeySpec keySecret;
+	private final LongAdder hits = new LongAdder();
+	private final LongAdder misses = new LongAdder();
+	private volatile TinyLFUCache<ByteBuffer, Long> cache = new TinyLFUCache<>(DEF_LIMIT);
+	private volatile long ttl = DEF_TTL;
+
+	public static VerifiedPasswordCache getInstance() {
+		return instance;
+	}
+
+	private VerifiedPasswordCache() {
+		byte[] secret = new byte[32];
+		new SecureRandom().nextBytes(secret);
+		keySecret = new SecretKeySpec(secret, "HmacSHA256");
+	}
+
+	/**
+	 * Checks if the password was recently verified against the credential.
+	 */
+	public boolean isVerified(String algorithm, byte[] salt, int iterations, byte[] saltedPassword, String password) {
+		if (ttl <= 0) {
+			return false;
+		}
+		ByteBuffer key = key(algorithm, salt, iterations, saltedPassword, password);
+		Long expiresAt = cache.get(key);
+		if (expiresAt != null && expiresAt > System.currentTimeMillis()) {
+			hits.increment();
+			return true;
+		}
+		if (expiresAt != null) {
+			cache.remove(key);
+		}
+		misses.increment();
+		return false;
+	}
+
+	/**
+	 * Marks the password as successfully verified against the credential.
+	 */
+	public void verified(String algorithm, byte[] salt, int iterations, byte[] saltedPassword, String password) {
+		if (ttl <= 0) {
+			return;
+		}
+		cache.put(key(algorithm, salt, iterations, saltedPassword, password), System.currentTimeMillis() + ttl);
+	}
+
+	public void clear() {
+		cache.clear();
+	}
+
+	public long getHits() {
+		return hits.sum();
+	}
+
+	public long getMisses() {
+		return misses.sum();
+	}
+
+	public int getSize() {
+		return cache.size();
+	}
+
+	public int getLimit() {
+		return cache.limit();
+	}
+
+	public void setLimit(int limit) {
+		if (limit != cache.limit()) {
+			cache = new TinyLFUCache<>(Math.max(1, limit));
+		}
+	}
+
+	public long getTtl() {
+		return ttl;
+	}
+
+	/**
+	 * Sets time (in milliseconds) for which successful verification is remembered. Value <code>0</code> disables
+	 * the cache.
+	 */
+	public void setTtl(long ttl) {
+		this.ttl = ttl;
+		if (ttl <= 0) {
+			cache.clear();
+		}
+	}
+
+	private ByteBuffer key(String algorithm, byte[] salt, int iterations, byte[] saltedPassword, String password) {
+		try {
+			Mac mac = Mac.getInstance("HmacSHA256");
+			mac.init(keySecret);
+			mac.update(algorithm.getBytes(StandardCharsets.UTF_8));
+			mac.update((byte) 0);
+			mac.update(ByteBuffer.allocate(4).putInt(0, iterations));
+			mac.update(salt);
+			mac.update(saltedPassword);
+			mac.update(password.getBytes(StandardCharsets.UTF_8));
+			return ByteBuffer.wrap(mac.doFinal());
+		} catch (NoSuchAlgorithmException | InvalidKeyException e) {
+			throw new RuntimeException("HmacSHA256 is not supported", e);
+		}
+	}
+
+}
@@ -18,6 +18,7 @@
 package tigase.auth.credentials.entries;
 
 import tigase.auth.credentials.Credentials;
+import tigase.auth.credentials.VerifiedPasswordCache;
 import tigase.auth.mechanisms.AbstractSaslSCRAM;
 import tigase.kernel.beans.config.ConfigField;
 import tigase.util.Base64;
@@ -75,10 +76,18 @@ public class ScramCredentialsEntry
 
 	@Override
 	public boolean verifyPlainPassword(String password) {
+		VerifiedPasswordCache cache = VerifiedPasswordCache.getInstance();
+		if (cache.isVerified(algorithm, salt, iterations, saltedPassword, password)) {
+			return true;
+		}
 		try {
 			byte[] expSaltedPassword = AbstractSaslSCRAM.hi(algorithm, AbstractSaslSCRAM.normalize(password), salt,
 															iterations);
-			return Arrays.equals(this.saltedPassword, expSaltedPassword);
+			if (Arrays.equals(this.saltedPassword, expSaltedPassword)) {
+				cache.verified(algorithm, salt, iterations, saltedPassword, password);
+				return true;
+			}
+			return false;
 		} catch (InvalidKeyException | NoSuchAlgorithmException ex) {
 			log.log(Level.FINE, "Password comparison failed", ex);
 		}
@@ -21,6 +21,7 @@ import tigase.annotations.TigaseDeprecated;
 import tigase.auth.AuthRepositoryAware;
 import tigase.auth.DomainAware;
 import tigase.auth.callbacks.VerifyPasswordCallback;
+import tigase.auth.credentials.VerifiedPasswordCache;
 import tigase.auth.mechanisms.AbstractSasl;
 import tigase.auth.mechanisms.AbstractSaslSCRAM;
 import tigase.db.AuthRepository;
@@ -155,9 +156,17 @@ public class PlainSPCallbackHandler
 			System.arraycopy(buffer, 0, salt, 0, salt.length);
 			System.arraycopy(buffer, salt.length, saltedPassword, 0, saltedPassword.length);
 
-			byte[] np = AbstractSaslSCRAM.hi("SHA1", AbstractSaslSCRAM.normalize(password), salt, 4096);
+			VerifiedPasswordCache cache = VerifiedPasswordCache.getInstance();
+			if (cache.isVerified("SHA1", salt, 4096, saltedPassword, password)) {
+				pc.setVerified(true);
+			} else {
+				byte[] np = AbstractSaslSCRAM.hi("SHA1", AbstractSaslSCRAM.normalize(password), salt, 4096);
 
-			pc.setVerified(Arrays.equals(saltedPassword, np));
+				pc.setVerified(Arrays.equals(saltedPassword, np));
+				if (pc.isVerified()) {
+					cache.verified("SHA1", salt, 4096, saltedPassword, password);
+				}
+			}
 			if (log.isLoggable(Level.FINEST)) {
 				log.log(Level.FINEST, "VerifyPasswordCallback: {0}", "******");
 			}
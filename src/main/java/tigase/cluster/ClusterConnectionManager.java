@@ -37,6 +37,7 @@ import tigase.kernel.beans.selector.ClusterModeRequired;
 import tigase.kernel.beans.selector.ConfigType;
 import tigase.kernel.beans.selector.ConfigTypeEnum;
 import tigase.kernel.core.Kernel;
+import tigase.map.ClusterMapFactory;
 import tigase.net.ConnectionType;
 import tigase.net.SocketType;
 import tigase.server.ConnectionManager;
@@ -97,6 +98,14 @@ public class ClusterConnectionManager
 
 	public static final String CONNECT_ALL_PROP_KEY = "connect-all";
 
+	public static final String DEDICATED_LINK_THREADS_PROP_KEY = "dedicated-link-threads";
+
+	public static final boolean DEDICATED_LINK_THREADS_PROP_VAL = false;
+
+	public static final String LINK_WRITE_BATCH_SIZE_PROP_KEY = "link-write-batch-size";
+
+	public static final int LINK_WRITE_BATCH_SIZE_PROP_VAL = 64 * 1024;
+
 	public static final String NON_CLUSTER_TRAFFIC_ALLOWED_PROP_KEY = "non-cluster-traffic-allowed";
 	public static final boolean NON_CLUSTER_TRAFFIC_ALLOWED_PROP_VAL = true;
 	public static final String IDENTITY_TYPE_KEY = "identity-type";
@@ -129,6 +138,10 @@ public class ClusterConnectionManager
 	private boolean compress_stream = COMPRESS_STREAM_PROP_VAL;
 	@ConfigField(desc = "Connect to all nodes", alias = CONNECT_ALL_PROP_KEY)
 	private boolean connect_all = CONNECT_ALL_PROP_VAL;
+	@ConfigField(desc = "Handle I/O of cluster connections by dedicated threads", alias = DEDICATED_LINK_THREADS_PROP_KEY)
+	private boolean dedicatedLinkThreads = DEDICATED_LINK_THREADS_PROP_VAL;
+	@ConfigField(desc = "Size of batch of packets written at once to cluster connection [chars]", alias = LINK_WRITE_BATCH_SIZE_PROP_KEY)
+	private int linkWriteBatchSize = LINK_WRITE_BATCH_SIZE_PROP_VAL;
 	// private long packetsSent = 0;
 	// private long packetsReceived = 0;
 	@Inject
@@ -324,11 +337,24 @@ public class ClusterConnectionManager
 	@Override
 	public void nodeConnected(String node) {
 		super.nodeConnected(node);
+		ClusterMapFactory.get().nodeConnected(node);
 
 		maxNodes.add(getNodesConnectedWithLocal().size());
 		maxNodesWithinLastWeek = maxNodes.getMaxValueInRange(7).orElse(-1);
 	}
 
+	@Override
+	public synchronized void everySecond() {
+		super.everySecond();
+		if (dedicatedLinkThreads) {
+			doForAllServices(service -> {
+				if (service instanceof ClusterLinkIOService) {
+					((ClusterLinkIOService<Object>) service).sampleLinkStatistics();
+				}
+			});
+		}
+	}
+
 	@Override
 	public synchronized void everyHour() {
 		super.everyHour();
@@ -340,6 +366,7 @@ public class ClusterConnectionManager
 	@Override
 	public void nodeDisconnected(String node) {
 		super.nodeDisconnected(node);
+		ClusterMapFactory.get().nodeDisconnected(node);
 
 		maxNodes.add(getNodesConnectedWithLocal().size());
 		maxNodesWithinLastWeek = maxNodes.getMaxValueInRange(7).orElse(-1);
@@ -690,6 +717,13 @@ public class ClusterConnectionManager
 		list.add(getName(), "Average compression ratio", ioStatsGetter.getAverageCompressionRatio(), Level.FINE);
 		list.add(getName(), "Average decompression ratio", ioStatsGetter.getAverageDecompressionRatio(), Level.FINE);
 		list.add(getName(), "Waiting to send", ioStatsGetter.getWaitingToSend(), Level.FINE);
+		if (dedicatedLinkThreads && list.checkLevel(Level.FINER)) {
+			doForAllServices(service -> {
+				if (service instanceof ClusterLinkIOService) {
+					((ClusterLinkIOService<Object>) service).getLinkStatistics(getName(), list);
+				}
+			});
+		}
 
 		list.add(getName(), "Max daily cluster nodes count in last month", maxNodes, Level.INFO);
 		list.add(getName(), "Max nodes count within last week", maxNodesWithinLastWeek, Level.INFO);
@@ -854,9 +888,21 @@ public class ClusterConnectionManager
 
 	@Override
 	protected XMPPIOService<Object> getXMPPIOServiceInstance() {
+		if (dedicatedLinkThreads) {
+			return new ClusterLinkIOService<>(linkWriteBatchSize);
+		}
 		return new XMPPIOService<>();
 	}
 
+	@Override
+	protected void addSocketService(XMPPIOService<Object> serv) {
+		if (serv instanceof ClusterLinkIOService) {
+			((ClusterLinkIOService<Object>) serv).startLinkThreads();
+		} else {
+			super.addSocketService(serv);
+		}
+	}
+
 	@Override
 	protected boolean isHighThroughput() {
 		return true;
@@ -0,0 +1,209 @@
+/*
+ * Tigase XMPP Server - The instant messaging server
+ * Copyright (C) 2004 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.cluster;
+
+import tigase.stats.StatisticsList;
+import tigase.util.common.LatencyHistogram;
+import tigase.xmpp.XMPPIOService;
+
+import java.io.IOException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Cluster connection which socket I/O is handled by dedicated threads instead of the shared
+ * <code>SocketThread</code> selectors.
+ * <br>
+ * Reader thread keeps socket channel registered in its own selector for the whole life of the connection and
+ * processes incoming data as soon as it is available, so there is no cancelling and registering of the selection
+ * key after each read and no hand-off of the service to the executor. Writer thread takes packets queued for the
+ * connection and writes them joined in large batches. Socket stays in non-blocking mode as it is required by TLS and
+ * compression layers of the connection.
+ */
+public class ClusterLinkIOService<RefObject>
+		extends XMPPIOService<RefObject> {
+
+	private static final Logger log = Logger.getLogger(ClusterLinkIOService.class.getName());
+
+	private static final long IDLE_TIMEOUT = 1000;
+
+	private final int batchSize;
+	private final LatencyHistogram readTime = new LatencyHistogram();
+	private final LatencyHistogram writeLatency = new LatencyHistogram();
+	private long lastBytesReceived = 0;
+	private long lastBytesSent = 0;
+	private long lastPacketsReceived = 0;
+	private long lastPacketsSent = 0;
+	private long lastSampleTime = System.currentTimeMillis();
+	private volatile long[] rates = new long[4];
+	private volatile long pendingSince = 0;
+	private Thread reader = null;
+	private volatile Selector selector = null;
+	private volatile Thread writer = null;
+
+	public ClusterLinkIOService(int batchSize) {
+		super();
+		this.batchSize = batchSize;
+	}
+
+	/**
+	 * Starts threads handling socket I/O of the connection. It should be called after the connection is established
+	 * and all layers of the connection (ie. compression) are started.
+	 */
+	public synchronized void startLinkThreads() {
+		if (reader != null) {
+			return;
+		}
+		reader = new Thread(this::readLoop, "cluster-link-reader-" + getUniqueId());
+		reader.setDaemon(true);
+		Thread writer = new Thread(this::writeLoop, "cluster-link-writer-" + getUniqueId());
+		writer.setDaemon(true);
+		this.writer = writer;
+		reader.start();
+		writer.start();
+	}
+
+	@Override
+	public void processWaitingPackets() throws IOException {
+		Thread writer = this.writer;
+		if (writer == null) {
+			super.processWaitingPackets();
+			return;
+		}
+		if (pendingSince == 0) {
+			pendingSince = System.nanoTime();
+		}
+		LockSupport.unpark(writer);
+	}
+
+	/**
+	 * Calculates rates of data transferred over the connection since the previous call. It is called periodically by
+	 * the component, so rates reported by {@link #getLinkStatistics(String, StatisticsList)} do not depend on how
+	 * often and by how many readers statistics are retrieved.
+	 */
+	public void sampleLinkStatistics() {
+		sampleLinkStatistics(System.currentTimeMillis());
+	}
+
+	public void getLinkStatistics(String name, StatisticsList list) {
+		long[] rates = this.rates;
+		String prefix = "Link " + getUniqueId();
+		list.add(name, prefix + " received [B/s]", rates[0], Level.FINER);
+		list.add(name, prefix + " sent [B/s]", rates[1], Level.FINER);
+		list.add(name, prefix + " received packets/sec", rates[2], Level.FINER);
+		list.add(name, prefix + " sent packets/sec", rates[3], Level.FINER);
+		list.add(name, prefix + " write latency 50th percentile [us]",
+				 TimeUnit.NANOSECONDS.toMicros(writeLatency.getPercentile(50)), Level.FINER);
+		list.add(name, prefix + " write latency 99th percentile [us]",
+				 TimeUnit.NANOSECONDS.toMicros(writeLatency.getPercentile(99)), Level.FINER);
+		list.add(name, prefix + " read processing 99th percentile [us]",
+				 TimeUnit.NANOSECONDS.toMicros(readTime.getPercentile(99)), Level.FINER);
+	}
+
+	synchronized void sampleLinkStatistics(long now) {
+		long bytesReceived = getTotalBytesReceived();
+		long bytesSent = getTotalBytesSent();
+		long packetsReceived = getTotalPacketsReceived();
+		long packetsSent = getTotalPacketsSent();
+		double seconds = Math.max(1, now - lastSampleTime) / 1000d;
+		rates = new long[]{(long) ((bytesReceived - lastBytesReceived) / seconds),
+						   (long) ((bytesSent - lastBytesSent) / seconds),
+						   (long) ((packetsReceived - lastPacketsReceived) / seconds),
+						   (long) ((packetsSent - lastPacketsSent) / seconds)};
+		lastBytesReceived = bytesReceived;
+		lastBytesSent = bytesSent;
+		lastPacketsReceived = packetsReceived;
+		lastPacketsSent = packetsSent;
+		lastSampleTime = now;
+	}
+
+	private void readLoop() {
+		try (Selector selector = Selector.open()) {
+			SelectionKey key = getSocketChannel().register(selector, SelectionKey.OP_READ);
+			this.selector = selector;
+			while (isConnected()) {
+				int ops = waitingToSend() ? (SelectionKey.OP_READ | SelectionKey.OP_WRITE) : SelectionKey.OP_READ;
+				if (key.interestOps() != ops) {
+					key.interestOps(ops);
+				}
+				if (selector.select(IDLE_TIMEOUT) == 0) {
+					continue;
+				}
+				selector.selectedKeys().clear();
+
+				long start = System.nanoTime();
+				call();
+				readTime.record(System.nanoTime() - start);
+			}
+		} catch (Exception ex) {
+			if (log.isLoggable(Level.FINE)) {
+				log.log(Level.FINE, toString() + ", exception in cluster link reader thread", ex);
+			}
+			forceStop();
+		} finally {
+			this.selector = null;
+			Thread writer = this.writer;
+			if (writer != null) {
+				LockSupport.unpark(writer);
+			}
+		}
+	}
+
+	private void writeLoop() {
+		try {
+			while (isConnected()) {
+				if (getWaitingPacketsSize() == 0) {
+					LockSupport.parkNanos(this, TimeUnit.MILLISECONDS.toNanos(IDLE_TIMEOUT));
+					continue;
+				}
+
+				// packets queued while this batch is written will set it again
+				long since = pendingSince;
+				pendingSince = 0;
+
+				int written;
+				writeInProgress.lock();
+				try {
+					written = processWaitingPackets(batchSize);
+				} finally {
+					writeInProgress.unlock();
+				}
+				if (written > 0 && since > 0) {
+					writeLatency.record(System.nanoTime() - since);
+				}
+
+				// rest of data will be written by reader thread when socket is ready for writing
+				Selector selector = this.selector;
+				if (selector != null && waitingToSend()) {
+					selector.wakeup();
+				}
+			}
+		} catch (Exception ex) {
+			if (log.isLoggable(Level.FINE)) {
+				log.log(Level.FINE, toString() + ", exception in cluster link writer thread", ex);
+			}
+			forceStop();
+		} finally {
+			writer = null;
+		}
+	}
+}
@@ -34,7 +34,7 @@ public class DataSourceHelper {
 
 	public static <T extends Class<?>> Set<T> getAnnotatedClasses(T cls) {
 		Set<T> classes = new HashSet<>();
-		for (Class<?> clazz : ClassUtilBean.getInstance().getAllClasses()) {
+		for (Class<?> clazz : ClassUtilBean.getInstance().getBeanClasses()) {
 			Repository.Meta annotation = clazz.getAnnotation(Repository.Meta.class);
 			if (annotation == null) {
 				continue;
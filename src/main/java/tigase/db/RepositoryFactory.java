@@ -388,7 +388,7 @@ public abstract class RepositoryFactory {
 	 */
 	private static <T extends Class<? extends Repository>> Set<T> getRepoInternalClasses(T cls) {
 		HashSet<T> result = new HashSet<T>();
-		for (Class<?> clazz : ClassUtilBean.getInstance().getAllClasses()) {
+		for (Class<?> clazz : ClassUtilBean.getInstance().getBeanClasses()) {
 			if (cls.isAssignableFrom(clazz)) {
 				result.add((T) clazz);
 			}
@@ -20,6 +20,7 @@ package tigase.db;
 import tigase.annotations.TigaseDeprecated;
 import tigase.xmpp.jid.BareJID;
 
+import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
@@ -185,6 +186,60 @@ public interface UserRepository
 		return Collections.emptyMap();
 	}
 
+	/**
+	 * <code>getDataMaps</code> method returns a values associated with each key for user repository in each of given
+	 * subnodes. Implementations should retrieve all values with as few requests to the database backend as possible,
+	 * so it is suitable for preloading data required by many processors at once.
+	 *
+	 * @param user a <code>BareJID</code> value of user ID for which data must be stored. User ID consists of user name
+	 * and domain name.
+	 * @param subnodes a <code>Collection</code> of node paths (<code>null</code> is a default repository node).
+	 *
+	 * @return a <code>Map</code> with a <code>Map</code> of values for each of requested subnodes (empty if subnode
+	 * does not exist)
+	 *
+	 * @throws UserNotFoundException if user id hasn't been found in repository.
+	 * @throws TigaseDBException if database backend error occurs.
+	 */
+	default Map<String, Map<String, String>> getDataMaps(BareJID user, Collection<String> subnodes)
+			throws UserNotFoundException, TigaseDBException {
+		Map<String, Map<String, String>> data = new HashMap<>();
+		for (String subnode : subnodes) {
+			Map<String, String> values = getDataMap(user, subnode);
+			data.put(subnode, values == null ? Collections.emptyMap() : values);
+		}
+		return data;
+	}
+
+	/**
+	 * <code>getDataTree</code> method returns a values associated with each key for user repository in given subnode
+	 * and in all of its subnodes (recursively).
+	 *
+	 * @param user a <code>BareJID</code> value of user ID for which data must be stored. User ID consists of user name
+	 * and domain name.
+	 * @param subnode a <code>String</code> value is a node path where data is stored (<code>null</code> is a default
+	 * repository node).
+	 *
+	 * @return a <code>Map</code> with a <code>Map</code> of values for each of found node paths (given subnode and
+	 * node paths of all of its subnodes, ie. <code>subnode/subnode1/subnode2</code>)
+	 *
+	 * @throws UserNotFoundException if user id hasn't been found in repository.
+	 * @throws TigaseDBException if database backend error occurs.
+	 */
+	default Map<String, Map<String, String>> getDataTree(BareJID user, String subnode)
+			throws UserNotFoundException, TigaseDBException {
+		Map<String, Map<String, String>> data = new HashMap<>();
+		Map<String, String> values = getDataMap(user, subnode);
+		data.put(subnode, values == null ? Collections.emptyMap() : values);
+		String[] children = getSubnodes(user, subnode);
+		if (children != null) {
+			for (String child : children) {
+				data.putAll(getDataTree(user, subnode == null ? child : (subnode + "/" + child)));
+			}
+		}
+		return data;
+	}
+
 	/**
 	 * <code>getDataList</code> method returns array of values associated with given key or <code>null</code> if given
 	 * key does not exist for given user ID in given node path.
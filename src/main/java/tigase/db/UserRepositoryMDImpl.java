@@ -18,11 +18,14 @@
 package tigase.db;
 
 import tigase.db.beans.MDPoolBeanWithStatistics;
+import tigase.db.beans.UserDataCache;
 import tigase.db.beans.UserRepositoryMDPoolBean;
 import tigase.eventbus.EventBus;
 import tigase.kernel.beans.Inject;
+import tigase.stats.StatisticsList;
 import tigase.xmpp.jid.BareJID;
 
+import java.util.Collection;
 import java.util.List;
 import java.util.Map;
 import java.util.function.Function;
@@ -43,6 +46,8 @@ public abstract class UserRepositoryMDImpl
 
 	@Inject
 	private EventBus eventBus;
+	@Inject(nullAllowed = true)
+	private UserDataCache userDataCache;
 
 	public UserRepositoryMDImpl() {
 		super(UserRepository.class);
@@ -55,6 +60,9 @@ public abstract class UserRepositoryMDImpl
 
 		if (repo != null) {
 			repo.addDataList(user, subnode, key, list);
+			if (userDataCache != null) {
+				userDataCache.invalidate(user, subnode, key);
+			}
 		} else {
 			log.log(Level.WARNING,
 					"Couldn't obtain user repository for domain: " + user.getDomain() + ", not even default one!");
@@ -79,7 +87,8 @@ public abstract class UserRepositoryMDImpl
 		UserRepository repo = getRepo(user.getDomain());
 
 		if (repo != null) {
-			return repo.getData(user, subnode, key, def);
+			String value = getCachedData(repo, user, subnode, key);
+			return value == null ? def : value;
 		} else {
 			log.log(Level.WARNING,
 					"Couldn't obtain user repository for domain: " + user.getDomain() + ", not even default one!");
@@ -93,7 +102,7 @@ public abstract class UserRepositoryMDImpl
 		UserRepository repo = getRepo(user.getDomain());
 
 		if (repo != null) {
-			return repo.getData(user, subnode, key);
+			return getCachedData(repo, user, subnode, key);
 		} else {
 			log.log(Level.WARNING,
 					"Couldn't obtain user repository for domain: " + user.getDomain() + ", not even default one!");
@@ -107,7 +116,7 @@ public abstract class UserRepositoryMDImpl
 		UserRepository repo = getRepo(user.getDomain());
 
 		if (repo != null) {
-			return repo.getData(user, key);
+			return getCachedData(repo, user, null, key);
 		} else {
 			log.log(Level.WARNING,
 					"Couldn't obtain user repository for domain: " + user.getDomain() + ", not even default one!");
@@ -146,6 +155,36 @@ public abstract class UserRepositoryMDImpl
 		return null;
 	}
 
+	@Override
+	public Map<String, Map<String, String>> getDataMaps(BareJID user, Collection<String> subnodes)
+			throws UserNotFoundException, TigaseDBException {
+		UserRepository repo = getRepo(user.getDomain());
+
+		if (repo != null) {
+			return repo.getDataMaps(user, subnodes);
+		} else {
+			log.log(Level.WARNING,
+					"Couldn't obtain user repository for domain: " + user.getDomain() + ", not even default one!");
+		}
+
+		return null;
+	}
+
+	@Override
+	public Map<String, Map<String, String>> getDataTree(BareJID user, String subnode)
+			throws UserNotFoundException, TigaseDBException {
+		UserRepository repo = getRepo(user.getDomain());
+
+		if (repo != null) {
+			return repo.getDataTree(user, subnode);
+		} else {
+			log.log(Level.WARNING,
+					"Couldn't obtain user repository for domain: " + user.getDomain() + ", not even default one!");
+		}
+
+		return null;
+	}
+
 	@Override
 	public String[] getDataList(BareJID user, String subnode, String key)
 			throws UserNotFoundException, TigaseDBException {
@@ -285,6 +324,9 @@ public abstract class UserRepositoryMDImpl
 
 		if (repo != null) {
 			repo.removeData(user, subnode, key);
+			if (userDataCache != null) {
+				userDataCache.invalidate(user, subnode, key);
+			}
 		} else {
 			log.log(Level.WARNING,
 					"Couldn't obtain user repository for domain: " + user.getDomain() + ", not even default one!");
@@ -297,6 +339,9 @@ public abstract class UserRepositoryMDImpl
 
 		if (repo != null) {
 			repo.removeData(user, key);
+			if (userDataCache != null) {
+				userDataCache.invalidate(user, null, key);
+			}
 		} else {
 			log.log(Level.WARNING,
 					"Couldn't obtain user repository for domain: " + user.getDomain() + ", not even default one!");
@@ -309,6 +354,9 @@ public abstract class UserRepositoryMDImpl
 
 		if (repo != null) {
 			repo.removeSubnode(user, subnode);
+			if (userDataCache != null) {
+				userDataCache.invalidate(user, subnode);
+			}
 		} else {
 			log.log(Level.WARNING,
 					"Couldn't obtain user repository for domain: " + user.getDomain() + ", not even default one!");
@@ -321,6 +369,9 @@ public abstract class UserRepositoryMDImpl
 
 		if (repo != null) {
 			repo.removeUser(user);
+			if (userDataCache != null) {
+				userDataCache.invalidate(user);
+			}
 
 			eventBus.fire(new UserRemovedEvent(user));
 		} else {
@@ -336,6 +387,9 @@ public abstract class UserRepositoryMDImpl
 
 		if (repo != null) {
 			repo.setData(user, subnode, key, value);
+			if (userDataCache != null) {
+				userDataCache.invalidate(user, subnode, key);
+			}
 		} else {
 			log.log(Level.WARNING,
 					"Couldn't obtain user repository for domain: " + user.getDomain() + ", not even default one!");
@@ -348,6 +402,9 @@ public abstract class UserRepositoryMDImpl
 
 		if (repo != null) {
 			repo.setData(user, key, value);
+			if (userDataCache != null) {
+				userDataCache.invalidate(user, null, key);
+			}
 		} else {
 			log.log(Level.WARNING,
 					"Couldn't obtain user repository for domain: " + user.getDomain() + ", not even default one!");
@@ -361,12 +418,23 @@ public abstract class UserRepositoryMDImpl
 
 		if (repo != null) {
 			repo.setDataList(user, subnode, key, list);
+			if (userDataCache != null) {
+				userDataCache.invalidate(user, subnode, key);
+			}
 		} else {
 			log.log(Level.WARNING,
 					"Couldn't obtain user repository for domain: " + user.getDomain() + ", not even default one!");
 		}
 	}
 
+	@Override
+	public void getStatistics(String compName, StatisticsList list) {
+		super.getStatistics(compName, list);
+		if (userDataCache != null) {
+			userDataCache.getStatistics(compName, list);
+		}
+	}
+
 	@Override
 	public boolean userExists(BareJID user) {
 		UserRepository repo = getRepo(user.getDomain());
@@ -380,4 +448,13 @@ public abstract class UserRepositoryMDImpl
 
 		return false;
 	}
+
+	private String getCachedData(UserRepository repo, BareJID user, String subnode, String key)
+			throws TigaseDBException {
+		if (userDataCache == null) {
+			return subnode == null ? repo.getData(user, key) : repo.getData(user, subnode, key);
+		}
+		return userDataCache.get(user, subnode, key,
+								 () -> subnode == null ? repo.getData(user, key) : repo.getData(user, subnode, key));
+	}
 }
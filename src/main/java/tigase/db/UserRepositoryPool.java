@@ -20,6 +20,7 @@ package tigase.db;
 import tigase.util.cache.SimpleCache;
 import tigase.xmpp.jid.BareJID;
 
+import java.util.Collection;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
@@ -184,6 +185,40 @@ public class UserRepositoryPool
 		return null;
 	}
 
+	@Override
+	public Map<String, Map<String, String>> getDataMaps(BareJID user, Collection<String> subnodes)
+			throws UserNotFoundException, TigaseDBException {
+		UserRepository repo = takeRepo();
+
+		if (repo != null) {
+			try {
+				return repo.getDataMaps(user, subnodes);
+			} finally {
+				addRepo(repo);
+			}
+		} else {
+			log.log(Level.WARNING, "repo is NULL, pool empty? - {0}", repoPool.size());
+		}
+		return null;
+	}
+
+	@Override
+	public Map<String, Map<String, String>> getDataTree(BareJID user, String subnode)
+			throws UserNotFoundException, TigaseDBException {
+		UserRepository repo = takeRepo();
+
+		if (repo != null) {
+			try {
+				return repo.getDataTree(user, subnode);
+			} finally {
+				addRepo(repo);
+			}
+		} else {
+			log.log(Level.WARNING, "repo is NULL, pool empty? - {0}", repoPool.size());
+		}
+		return null;
+	}
+
 	@Override
 	public String[] getDataList(BareJID user, String subnode, String key)
 			throws UserNotFoundException, TigaseDBException {
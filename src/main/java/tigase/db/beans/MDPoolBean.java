@@ -17,6 +17,7 @@
  */
 package tigase.db.beans;
 
+import tigase.kernel.beans.Initializable;
 import tigase.kernel.beans.Inject;
 import tigase.kernel.beans.RegistrarBeanWithDefaultBeanClass;
 import tigase.kernel.beans.config.ConfigField;
@@ -25,10 +26,13 @@ import tigase.kernel.core.Kernel;
 /**
  * Abstract class providing base part for implementation of pool for multiple domains.
  * <br>
+ * Repository instances of all domains configured during initialization of this bean are initialized in parallel and
+ * awaited in {@link #initialize()}, so subclasses overriding this method need to call it.
+ * <br>
  * Created by andrzej on 08.03.2016.
  */
 public abstract class MDPoolBean<S, T extends MDPoolConfigBean<S, T>>
-		implements RegistrarBeanWithDefaultBeanClass {
+		implements RegistrarBeanWithDefaultBeanClass, Initializable {
 
 	public static final String REPO_URI = "repo-uri";
 	public static final String REPO_CLASS = "repo-class";
@@ -39,6 +43,7 @@ public abstract class MDPoolBean<S, T extends MDPoolConfigBean<S, T>>
 	private Kernel kernel;
 	@ConfigField(desc = "Bean name")
 	private String name;
+	private final PendingInitializations pendingInitializations = new PendingInitializations();
 
 	public String getName() {
 		return name;
@@ -57,6 +62,24 @@ public abstract class MDPoolBean<S, T extends MDPoolConfigBean<S, T>>
 		this.kernel = null;
 	}
 
+	@Override
+	public void initialize() {
+		pendingInitializations.awaitAll(getName());
+	}
+
+	/**
+	 * Method called by config beans to defer completion of initialization of repository instances until this bean
+	 * is initialized, so that instances for all domains may be initialized in parallel.
+	 *
+	 * @param domain name of domain
+	 * @param task task awaiting initialization of instances
+	 *
+	 * @return <code>false</code> if this bean is already initialized and task should be executed by the caller
+	 */
+	protected boolean deferInitialization(String domain, Runnable task) {
+		return pendingInitializations.defer(domain, task);
+	}
+
 	/**
 	 * Default alias used if for provided domain then is no repo instance.
 	 *
@@ -158,7 +158,7 @@ public abstract class MDPoolConfigBean<A, B extends MDPoolConfigBean<A, B>>
 		if (!toInitialize.isEmpty()) {
 			Queue<ForkJoinTask<A>> tasks = new ArrayDeque<>();
 			final ForkJoinPool pool = DBInitForkJoinPoolCache
-			.shared.pool(repository == null ? "dbinit" : "dbinit-" + repository.hashCode(), Math.min(toInitialize.size(), 128));//new ForkJoinPool(Math.min(toInitialize.size(), 128));
+			.shared.pool(repository == null ? "dbinit-" + name : "dbinit-" + repository.hashCode(), Math.min(toInitialize.size(), 128));//new ForkJoinPool(Math.min(toInitialize.size(), 128));
 			for (A repo : toInitialize) {
 				tasks.offer(pool.submit(() -> {
 					try {
@@ -183,12 +183,19 @@ public abstract class MDPoolConfigBean<A, B extends MDPoolConfigBean<A, B>>
 					return repo;
 				}));
 			}
-			ForkJoinTask<A> task;
-			while ((task = tasks.poll()) != null) {
-				A repo = task.join();
-				if (repository instanceof RepositoryPool && !(repo instanceof RepositoryPool)) {
-					((RepositoryPool<A>) repository).addRepo(repo);
+			final A repositoryPool = repository;
+			Runnable awaitTask = () -> {
+				ForkJoinTask<A> task;
+				while ((task = tasks.poll()) != null) {
+					A repo = task.join();
+					if (repositoryPool instanceof RepositoryPool && !(repo instanceof RepositoryPool)) {
+						((RepositoryPool<A>) repositoryPool).addRepo(repo);
+					}
 				}
+			};
+			// if pool is not initialized yet, it will await initialization of instances for all domains at once
+			if (mdPool == null || !mdPool.deferInitialization(name, awaitTask)) {
+				awaitTask.run();
 			}
 			//pool.shutdown();
 		}
@@ -21,6 +21,7 @@ import tigase.component.exceptions.RepositoryException;
 import tigase.db.DBInitException;
 import tigase.db.DataSource;
 import tigase.db.DataSourceAware;
+import tigase.db.util.DBInitForkJoinPoolCache;
 import tigase.eventbus.EventBus;
 import tigase.eventbus.HandleEvent;
 import tigase.kernel.beans.*;
@@ -31,6 +32,7 @@ import tigase.osgi.ModulesManagerImpl;
 
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinTask;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.stream.Stream;
@@ -41,12 +43,16 @@ import static tigase.db.beans.MDPoolBean.REPO_CLASS;
  * Abstract class implementing bean to which should be used to create name aware repository pool. This class is
  * responsible for creation of correct repository instances for every DataSource configured.
  * <br>
+ * Repository instances of all domains configured during initialization of this bean are initialized in parallel and
+ * awaited in {@link #initialize()}, so subclasses overriding this method need to call it.
+ * <br>
  * Created by andrzej on 15.03.2016.
  */
 public abstract class MDRepositoryBean<T extends DataSourceAware>
 		implements Initializable, UnregisterAware, RegistrarBeanWithDefaultBeanClass {
 
 	private static final Logger log = Logger.getLogger(MDRepositoryBean.class.getCanonicalName());
+	private static final int DB_INIT_CONCURRENCY = 16;
 
 	/**
 	 * Determines behaviour of MDRepositoryBean.
@@ -79,6 +85,7 @@ public abstract class MDRepositoryBean<T extends DataSourceAware>
 	private Kernel kernel;
 	@ConfigField(desc = "Bean name")
 	private String name;
+	private final PendingInitializations pendingInitializations = new PendingInitializations();
 
 	/**
 	 * Returns name of a bean
@@ -145,6 +152,7 @@ public abstract class MDRepositoryBean<T extends DataSourceAware>
 
 	public void initialize() {
 		eventBus.registerAll(this);
+		pendingInitializations.awaitAll(getName());
 	}
 
 	@Override
@@ -289,16 +297,33 @@ public abstract class MDRepositoryBean<T extends DataSourceAware>
 				return;
 			}
 
+			final MDRepositoryBean<A> mdRepositoryBean = this.mdRepositoryBean;
+			final String name = this.name;
+			final A oldDataSourceAware = this.dataSourceAware;
 			if (dataSourceAware != null) {
-				this.mdRepositoryBean.initializeRepository(name, dataSourceAware);
-				try {
-					dataSource.checkSchemaVersion(dataSourceAware, true);
-					dataSourceAware.setDataSource(dataSource);
-				} catch (RepositoryException ex) {
-					throw new RuntimeException("Failed to initialize repository", ex);
+				final DataSource dataSource = this.dataSource;
+				ForkJoinTask<?> task = DBInitForkJoinPoolCache.shared.pool("dbinit-" + mdRepositoryBean.getName(),
+																		   DB_INIT_CONCURRENCY).submit(() -> {
+					mdRepositoryBean.initializeRepository(name, dataSourceAware);
+					try {
+						dataSource.checkSchemaVersion(dataSourceAware, true);
+						dataSourceAware.setDataSource(dataSource);
+					} catch (RepositoryException ex) {
+						throw new RuntimeException("Failed to initialize repository", ex);
+					}
+				});
+				// repository instance is available for the domain only after it is initialized
+				Runnable publishTask = () -> {
+					task.join();
+					mdRepositoryBean.updateDataSourceAware(name, dataSourceAware, oldDataSourceAware);
+				};
+				// if repository bean is not initialized yet, it will await initialization of all domains at once
+				if (!mdRepositoryBean.pendingInitializations.defer(name, publishTask)) {
+					publishTask.run();
 				}
+			} else {
+				mdRepositoryBean.updateDataSourceAware(name, null, oldDataSourceAware);
 			}
-			mdRepositoryBean.updateDataSourceAware(name, dataSourceAware, this.dataSourceAware);
 			this.dataSourceAware = dataSourceAware;
 		}
 
@@ -0,0 +1,98 @@
+/*
+ * Tigase XMPP Server - The instant messaging server
+ * Copyright (C) 2004 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.db.beans;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Keeps tasks awaiting initialization of repository instances started in parallel for many domains, until the bean
+ * managing those domains is initialized.
+ */
+class PendingInitializations {
+
+	private static final Logger log = Logger.getLogger(PendingInitializations.class.getCanonicalName());
+
+	private final List<Item> items = new ArrayList<>();
+	private boolean completed = false;
+
+	/**
+	 * Adds task awaiting initialization of instances for domain.
+	 *
+	 * @return <code>false</code> if pending initializations were already awaited and task should be executed by the
+	 * caller
+	 */
+	boolean defer(String domain, Runnable task) {
+		synchronized (items) {
+			if (completed) {
+				return false;
+			}
+			items.add(new Item(domain, task));
+			return true;
+		}
+	}
+
+	/**
+	 * Executes all awaiting tasks. Errors are reported in order of domain names, not in order of completion, so the
+	 * first reported error is always the same for the same configuration.
+	 */
+	void awaitAll(String beanName) {
+		List<Item> pending;
+		synchronized (items) {
+			completed = true;
+			pending = new ArrayList<>(items);
+			items.clear();
+		}
+		pending.sort(Comparator.comparing(item -> item.domain, Comparator.nullsFirst(Comparator.naturalOrder())));
+
+		RuntimeException failure = null;
+		for (Item item : pending) {
+			long start = System.currentTimeMillis();
+			try {
+				item.task.run();
+			} catch (RuntimeException ex) {
+				if (failure == null) {
+					failure = ex;
+				} else {
+					failure.addSuppressed(ex);
+				}
+			}
+			if (log.isLoggable(Level.FINEST)) {
+				log.log(Level.FINEST, "[{0}] awaited initialization of repositories for {1} for {2}ms",
+						new Object[]{beanName, item.domain, System.currentTimeMillis() - start});
+			}
+		}
+		if (failure != null) {
+			throw failure;
+		}
+	}
+
+	private static class Item {
+
+		private final String domain;
+		private final Runnable task;
+
+		Item(String domain, Runnable task) {
+			this.domain = domain;
+			this.task = task;
+		}
+	}
+}
@@ -0,0 +1,400 @@
+/*
+ * Tigase XMPP Server - The instant messaging server
+ * Copyright (C) 2004 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.db.beans;
+
+import tigase.db.TigaseDBException;
+import tigase.eventbus.EventBus;
+import tigase.eventbus.HandleEvent;
+import tigase.kernel.beans.Bean;
+import tigase.kernel.beans.Initializable;
+import tigase.kernel.beans.Inject;
+import tigase.kernel.beans.UnregisterAware;
+import tigase.kernel.beans.config.ConfigField;
+import tigase.stats.StatisticsList;
+import tigase.util.common.TinyLFUCache;
+import tigase.xmpp.jid.BareJID;
+
+import java.io.Serializable;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Predicate;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Read-through cache of values stored in the user repository, used by {@link UserRepositoryMDPoolBean} for all
+ * configured repositories.
+ * <br>
+ * Cache admits new entries only if they are requested more often than entries which would be evicted (see
+ * {@link TinyLFUCache}). Missing values are cached as well. Entries are invalidated on every modification of the
+ * data done through the pool and other cluster nodes are notified with <code>UserDataChangedEvent</code>.
+ * <br>
+ * Value loaded from the repository is not cached if its key was invalidated while it was loaded, as it may be
+ * already outdated. Modifications of other keys do not affect caching of the value.
+ * <br>
+ * Cached values expire after <code>ttl</code> milliseconds, so data modified without going through the pool (ie.
+ * directly in the database or by a node which did not deliver its event) is not served forever.
+ */
+@Bean(name = UserDataCache.ID, parent = UserRepositoryMDPoolBean.class, active = true)
+public class UserDataCache
+		implements Initializable, UnregisterAware {
+
+	public static final String ID = "userDataCache";
+
+	private static final Logger log = Logger.getLogger(UserDataCache.class.getName());
+
+	private static final int MAX_SUBNODES_IN_STATS = 100;
+	private static final String OTHER_SUBNODES = "other";
+	private static final String ROOT_SUBNODE = "/";
+
+	private final LongAdder expirations = new LongAdder();
+	private final LongAdder invalidations = new LongAdder();
+	private final ConcurrentHashMap<Key, Load> loads = new ConcurrentHashMap<>();
+	private final Map<String, SubnodeStats> subnodeStats = new ConcurrentHashMap<>();
+	@ConfigField(desc = "Cache size", alias = "size")
+	private int cacheSize = 10000;
+	private TinyLFUCache<Key, CachedValue> cache = new TinyLFUCache<>(cacheSize);
+	@ConfigField(desc = "Cache enabled", alias = "enabled")
+	private boolean enabled = true;
+	@Inject
+	private EventBus eventBus;
+	@ConfigField(desc = "Time in milliseconds after which cached value expires (0 - never)", alias = "ttl")
+	private long ttl = 60 * 1000;
+
+	@Override
+	public void initialize() {
+		eventBus.registerAll(this);
+	}
+
+	@Override
+	public void beforeUnregister() {
+		eventBus.unregisterAll(this);
+	}
+
+	public void setCacheSize(int cacheSize) {
+		this.cacheSize = cacheSize;
+		if (cache.limit() != cacheSize) {
+			cache = new TinyLFUCache<>(cacheSize);
+		}
+	}
+
+	public void setEnabled(boolean enabled) {
+		this.enabled = enabled;
+		if (!enabled) {
+			cache.clear();
+		}
+	}
+
+	/**
+	 * Returns value cached for the key or loads it with passed loader if there is no entry in the cache.
+	 */
+	public String get(BareJID user, String subnode, String key, Loader loader) throws TigaseDBException {
+		if (!enabled) {
+			return loader.load();
+		}
+
+		String node = normalizeSubnode(subnode);
+		Key cacheKey = new Key(user, node, key);
+		SubnodeStats stats = getSubnodeStats(node);
+		CachedValue cached = cache.get(cacheKey);
+		if (cached != null) {
+			if (cached.expiresAt == 0 || cached.expiresAt > System.currentTimeMillis()) {
+				stats.hits.increment();
+				return cached.value;
+			}
+			expirations.increment();
+			cache.remove(cacheKey);
+		}
+
+		stats.misses.increment();
+		Load load = loads.compute(cacheKey, (k, l) -> {
+			if (l == null) {
+				l = new Load();
+			}
+			l.loaders++;
+			return l;
+		});
+		String value;
+		try {
+			value = loader.load();
+			// value loaded concurrently with modification of data may be already outdated
+			synchronized (load) {
+				if (!load.invalidated) {
+					cache.put(cacheKey, new CachedValue(value, ttl > 0 ? System.currentTimeMillis() + ttl : 0));
+				}
+			}
+		} finally {
+			loads.computeIfPresent(cacheKey, (k, l) -> (l == load && --l.loaders == 0) ? null : l);
+		}
+		return value;
+	}
+
+	/**
+	 * Invalidates cached value of a single key and notifies other cluster nodes.
+	 */
+	public void invalidate(BareJID user, String subnode, String key) {
+		if (!enabled) {
+			return;
+		}
+		invalidateLocally(user, subnode, key);
+		fireChanged(user, normalizeSubnode(subnode), key);
+	}
+
+	/**
+	 * Invalidates cached values of all keys of the subnode (including its subnodes) and notifies other cluster nodes.
+	 */
+	public void invalidate(BareJID user, String subnode) {
+		if (!enabled) {
+			return;
+		}
+		invalidateLocally(user, subnode, null);
+		fireChanged(user, normalizeSubnode(subnode), null);
+	}
+
+	/**
+	 * Invalidates all cached values of the user and notifies other cluster nodes.
+	 */
+	public void invalidate(BareJID user) {
+		if (!enabled) {
+			return;
+		}
+		invalidateLocally(user, null, null);
+		fireChanged(user, null, null);
+	}
+
+	public void getStatistics(String compName, StatisticsList list) {
+		list.add(compName, "User data cache size", cache.size(), Level.FINE);
+		list.add(compName, "User data cache rejected", cache.getRejected(), Level.FINER);
+		list.add(compName, "User data cache invalidations", invalidations.sum(), Level.FINER);
+		list.add(compName, "User data cache expirations", expirations.sum(), Level.FINER);
+
+		long hits = 0;
+		long misses = 0;
+		for (Map.Entry<String, SubnodeStats> e : subnodeStats.entrySet()) {
+			long subnodeHits = e.getValue().hits.sum();
+			long subnodeMisses = e.getValue().misses.sum();
+			hits += subnodeHits;
+			misses += subnodeMisses;
+			if (list.checkLevel(Level.FINEST)) {
+				list.add(compName, "User data cache hit ratio for " + e.getKey(),
+						 ratio(subnodeHits, subnodeMisses), Level.FINEST);
+			}
+		}
+		list.add(compName, "User data cache hits", hits, Level.FINE);
+		list.add(compName, "User data cache misses", misses, Level.FINE);
+		list.add(compName, "User data cache hit ratio", ratio(hits, misses), Level.FINE);
+	}
+
+	@HandleEvent(filter = HandleEvent.Type.remote)
+	protected void onUserDataChanged(UserDataChangedEvent event) {
+		if (!enabled) {
+			return;
+		}
+		if (log.isLoggable(Level.FINEST)) {
+			log.log(Level.FINEST, "User data changed on other node for JID: {0}, subnode: {1}, key: {2}",
+					new Object[]{event.getUser(), event.getSubnode(), event.getKey()});
+		}
+		invalidateLocally(event.getUser(), event.getSubnode(), event.getKey());
+	}
+
+	protected void invalidateLocally(BareJID user, String subnode, String key) {
+		invalidations.increment();
+		if (user == null) {
+			return;
+		}
+		// values being loaded are marked as outdated before cached values are removed, so they will not be cached
+		if (key != null) {
+			Key cacheKey = new Key(user, normalizeSubnode(subnode), key);
+			Load load = loads.remove(cacheKey);
+			if (load != null) {
+				load.invalidate();
+			}
+			cache.remove(cacheKey);
+		} else {
+			Predicate<Key> matches;
+			if (subnode != null) {
+				String node = normalizeSubnode(subnode);
+				String prefix = node + "/";
+				matches = k -> user.equals(k.user) &&
+						(node.isEmpty() || k.node.equals(node) || k.node.startsWith(prefix));
+			} else {
+				matches = k -> user.equals(k.user);
+			}
+			for (Iterator<Map.Entry<Key, Load>> it = loads.entrySet().iterator(); it.hasNext(); ) {
+				Map.Entry<Key, Load> e = it.next();
+				if (matches.test(e.getKey())) {
+					e.getValue().invalidate();
+					it.remove();
+				}
+			}
+			cache.removeIf(matches);
+		}
+	}
+
+	private void fireChanged(BareJID user, String subnode, String key) {
+		eventBus.fire(new UserDataChangedEvent(user, subnode, key));
+	}
+
+	private SubnodeStats getSubnodeStats(String node) {
+		String name;
+		if (node.isEmpty()) {
+			name = ROOT_SUBNODE;
+		} else {
+			int idx = node.indexOf('/');
+			name = idx < 0 ? node : node.substring(0, idx);
+		}
+		SubnodeStats stats = subnodeStats.get(name);
+		if (stats == null) {
+			if (subnodeStats.size() >= MAX_SUBNODES_IN_STATS) {
+				name = OTHER_SUBNODES;
+			}
+			stats = subnodeStats.computeIfAbsent(name, n -> new SubnodeStats());
+		}
+		return stats;
+	}
+
+	private static String normalizeSubnode(String subnode) {
+		if (subnode == null) {
+			return "";
+		}
+		int start = 0;
+		int end = subnode.length();
+		while (start < end && subnode.charAt(start) == '/') {
+			start++;
+		}
+		while (end > start && subnode.charAt(end - 1) == '/') {
+			end--;
+		}
+		return subnode.substring(start, end);
+	}
+
+	private static float ratio(long hits, long misses) {
+		long total = hits + misses;
+		return total == 0 ? 0f : ((float) hits) / total;
+	}
+
+	public interface Loader {
+
+		String load() throws TigaseDBException;
+
+	}
+
+	/**
+	 * Event fired when user data was modified on this cluster node. If <code>key</code> is <code>null</code> then
+	 * whole subnode was modified and if <code>subnode</code> is <code>null</code> as well then all data of the user.
+	 */
+	public static class UserDataChangedEvent
+			implements Serializable {
+
+		private String key;
+		private String subnode;
+		private BareJID user;
+
+		public UserDataChangedEvent() {
+		}
+
+		public UserDataChangedEvent(BareJID user, String subnode, String key) {
+			this.user = user;
+			this.subnode = subnode;
+			this.key = key;
+		}
+
+		public String getKey() {
+			return key;
+		}
+
+		public String getSubnode() {
+			return subnode;
+		}
+
+		public BareJID getUser() {
+			return user;
+		}
+
+	}
+
+	private static class CachedValue {
+
+		// 0 if value never expires
+		private final long expiresAt;
+		// null if there is no value in the repository
+		private final String value;
+
+		private CachedValue(String value, long expiresAt) {
+			this.value = value;
+			this.expiresAt = expiresAt;
+		}
+	}
+
+	private static class Key {
+
+		private final int hash;
+		private final String key;
+		private final String node;
+		private final BareJID user;
+
+		private Key(BareJID user, String node, String key) {
+			this.user = user;
+			this.node = node;
+			this.key = key;
+			this.hash = Objects.hash(user, node, key);
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (this == o) {
+				return true;
+			}
+			if (!(o instanceof Key)) {
+				return false;
+			}
+			Key other = (Key) o;
+			return hash == other.hash && user.equals(other.user) && node.equals(other.node) &&
+					Objects.equals(key, other.key);
+		}
+
+		@Override
+		public int hashCode() {
+			return hash;
+		}
+	}
+
+	/**
+	 * Loading of value of a key, shared by all threads loading it at the same time.
+	 */
+	private static class Load {
+
+		private boolean invalidated = false;
+		// modified only within compute() of loads map
+		private int loaders = 0;
+
+		private synchronized void invalidate() {
+			invalidated = true;
+		}
+	}
+
+	private static class SubnodeStats {
+
+		private final LongAdder hits = new LongAdder();
+		private final LongAdder misses = new LongAdder();
+
+	}
+}
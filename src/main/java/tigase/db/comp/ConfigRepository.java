@@ -223,7 +223,7 @@ public abstract class ConfigRepository<Item extends RepositoryItem>
 				Item item = getItemInstance();
 
 				item.initFromPropertyString(it);
-				if (!items.containsKey(item.getKey())) {
+				if (!contains(item.getKey())) {
 					addItem(item);
 					log.log(Level.CONFIG, "Loaded config item: {0}", item);
 				} else {
@@ -328,6 +328,10 @@ public abstract class ConfigRepository<Item extends RepositoryItem>
 		}
 	}
 
+	protected RepositoryChangeListenerIfc<Item> getRepoChangeListener() {
+		return repoChangeList;
+	}
+
 	protected boolean isInitialized() {
 		return initialized;
 	}
@@ -108,6 +108,10 @@ public abstract class UserRepoRepository<Item extends RepositoryItem>
 		}
 	}
 
+	protected UserRepository getRepo() {
+		return repo;
+	}
+
 	public void setRepo(UserRepository userRepository) {
 		this.repo = userRepository;
 		try {
@@ -87,6 +87,8 @@ public class JDBCRepository
 			"select pval from " + DEF_PAIRS_TBL + " where (nid = ?) AND (pkey = ?)";
 	private static final String KEYS_DATA_FOR_NODE_QUERY =
 			"select pkey, pval from " + DEF_PAIRS_TBL + " where (nid = ?)";
+	private static final String NODES_FOR_USER_QUERY =
+			"select nid, parent_nid, node from " + DEF_NODES_TBL + " where (uid = ?)";
 
 	private static final String UPDATE_LAST_LOGIN_QUERY =
 			"update " + DEF_USERS_TBL + " set last_login=? where user_id=?";
@@ -238,6 +240,60 @@ public class JDBCRepository
 		}
 	}
 
+	@Override
+	public Map<String, Map<String, String>> getDataMaps(BareJID user_id, Collection<String> subnodes)
+			throws UserNotFoundException, TigaseDBException {
+		try {
+			Map<String, Long> nodes = getNodePaths(user_id);
+			Map<String, Map<String, String>> results = new HashMap<>();
+			Map<Long, Map<String, String>> requested = new HashMap<>();
+
+			for (String subnode : subnodes) {
+				Long nid = nodes.get(normalizeNodePath(subnode));
+				Map<String, String> values = (nid == null) ? null : requested.get(nid);
+				if (values == null) {
+					values = new HashMap<>();
+					if (nid != null) {
+						requested.put(nid, values);
+						cache.put(user_id + "/" + subnode, nid);
+					}
+				}
+				results.put(subnode, values);
+			}
+			loadPairs(user_id, requested);
+
+			return results;
+		} catch (SQLException e) {
+			throw new TigaseDBException("Error getting data maps for: " + user_id + "/" + subnodes, e);
+		}
+	}
+
+	@Override
+	public Map<String, Map<String, String>> getDataTree(BareJID user_id, String subnode)
+			throws UserNotFoundException, TigaseDBException {
+		try {
+			Map<String, Long> nodes = getNodePaths(user_id);
+			String prefix = normalizeNodePath(subnode);
+			Map<String, Map<String, String>> results = new HashMap<>();
+			Map<Long, Map<String, String>> requested = new HashMap<>();
+
+			results.put(subnode, new HashMap<>());
+			for (Map.Entry<String, Long> node : nodes.entrySet()) {
+				String path = node.getKey();
+				if (path.equals(prefix) || prefix.isEmpty() || path.startsWith(prefix + "/")) {
+					Map<String, String> values = new HashMap<>();
+					requested.put(node.getValue(), values);
+					results.put(path.equals(prefix) ? subnode : path, values);
+				}
+			}
+			loadPairs(user_id, requested);
+
+			return results;
+		} catch (SQLException e) {
+			throw new TigaseDBException("Error getting data tree for: " + user_id + "/" + subnode, e);
+		}
+	}
+
 	@Override
 	public String[] getDataList(BareJID user_id, final String subnode, final String key)
 			throws UserNotFoundException, TigaseDBException {
@@ -497,6 +553,7 @@ public class JDBCRepository
 			data_repo.initPreparedStatement(DATA_FOR_NODE_QUERY, DATA_FOR_NODE_QUERY);
 			data_repo.initPreparedStatement(KEYS_FOR_NODE_QUERY, KEYS_FOR_NODE_QUERY);
 			data_repo.initPreparedStatement(KEYS_DATA_FOR_NODE_QUERY, KEYS_DATA_FOR_NODE_QUERY);
+			data_repo.initPreparedStatement(NODES_FOR_USER_QUERY, NODES_FOR_USER_QUERY);
 			data_repo.initPreparedStatement(NODES_FOR_NODE_QUERY, NODES_FOR_NODE_QUERY);
 			data_repo.initPreparedStatement(INSERT_KEY_VAL_QUERY, INSERT_KEY_VAL_QUERY);
 			data_repo.initPreparedStatement(REMOVE_KEY_DATA_QUERY, REMOVE_KEY_DATA_QUERY);
@@ -1062,6 +1119,131 @@ public class JDBCRepository
 		}
 	}
 
+	/**
+	 * Loads all nodes of the user with a single query.
+	 *
+	 * @return map of node paths (without leading and trailing slashes, root node has an empty path) to their ids
+	 */
+	private Map<String, Long> getNodePaths(BareJID user_id) throws SQLException, UserNotFoundException {
+		long uid = getUserUID(null, user_id, autoCreateUser);
+		Map<Long, Long> parents = new HashMap<>();
+		Map<Long, String> names = new HashMap<>();
+		ResultSet rs = null;
+
+		PreparedStatement nodes_for_user_st = data_repo.getPreparedStatement(user_id, NODES_FOR_USER_QUERY);
+
+		synchronized (nodes_for_user_st) {
+			try {
+				nodes_for_user_st.setLong(1, uid);
+				rs = nodes_for_user_st.executeQuery();
+				while (rs.next()) {
+					long nid = rs.getLong(1);
+					long parent_nid = rs.getLong(2);
+					if (rs.wasNull()) {
+						parent_nid = -1;
+					}
+					parents.put(nid, parent_nid);
+					names.put(nid, rs.getString(3));
+				}
+			} finally {
+				data_repo.release(null, rs);
+			}
+		}
+
+		Map<Long, String> paths = new HashMap<>();
+		Map<String, Long> results = new HashMap<>();
+		for (Long nid : parents.keySet()) {
+			String path = buildNodePath(nid, parents, names, paths, 0);
+			if (path != null) {
+				results.put(path, nid);
+			}
+		}
+		if (log.isLoggable(Level.FINEST)) {
+			log.log(Level.FINEST, "Loaded nodes for user: {0}, nodes: {1}", new Object[]{user_id, results});
+		}
+		return results;
+	}
+
+	private String buildNodePath(Long nid, Map<Long, Long> parents, Map<Long, String> names, Map<Long, String> paths,
+								 int depth) {
+		String path = paths.get(nid);
+		if (path != null) {
+			return path;
+		}
+		Long parent_nid = parents.get(nid);
+		if (parent_nid == null || depth > parents.size()) {
+			// orphaned node or a cycle
+			return null;
+		}
+		if (parent_nid < 0) {
+			path = DEF_ROOT_NODE.equals(names.get(nid)) ? "" : null;
+		} else {
+			String parent_path = buildNodePath(parent_nid, parents, names, paths, depth + 1);
+			if (parent_path != null) {
+				path = parent_path.isEmpty() ? names.get(nid) : (parent_path + "/" + names.get(nid));
+			}
+		}
+		if (path != null) {
+			paths.put(nid, path);
+		}
+		return path;
+	}
+
+	/**
+	 * Loads all pairs stored in passed nodes with a single query.
+	 */
+	private void loadPairs(BareJID user_id, Map<Long, Map<String, String>> nodes) throws SQLException {
+		if (nodes.isEmpty()) {
+			return;
+		}
+
+		StringBuilder query = new StringBuilder("select nid, pkey, pval from " + DEF_PAIRS_TBL + " where nid in (");
+		boolean first = true;
+		for (Long nid : nodes.keySet()) {
+			if (!first) {
+				query.append(", ");
+			}
+			query.append(nid.longValue());
+			first = false;
+		}
+		query.append(")");
+
+		if (log.isLoggable(Level.FINEST)) {
+			log.finest(query.toString());
+		}
+
+		Statement stmt = null;
+		ResultSet rs = null;
+
+		try {
+			stmt = data_repo.createStatement(user_id);
+			rs = stmt.executeQuery(query.toString());
+			while (rs.next()) {
+				Map<String, String> values = nodes.get(rs.getLong(1));
+				if (values != null) {
+					values.put(rs.getString(2), rs.getString(3));
+				}
+			}
+		} finally {
+			data_repo.release(stmt, rs);
+		}
+	}
+
+	private String normalizeNodePath(String node_path) {
+		if (node_path == null) {
+			return "";
+		}
+		StringBuilder sb = new StringBuilder();
+		StringTokenizer strtok = new StringTokenizer(node_path, "/", false);
+		while (strtok.hasMoreTokens()) {
+			if (sb.length() > 0) {
+				sb.append('/');
+			}
+			sb.append(strtok.nextToken());
+		}
+		return sb.toString();
+	}
+
 	private long getNodeNID(DataRepository repo, long uid, String node_path)
 			throws SQLException, UserNotFoundException {
 		String query = buildNodeQuery(uid, node_path);
@@ -24,6 +24,7 @@ import tigase.db.util.RepositoryVersionAware;
 import tigase.kernel.beans.config.ConfigField;
 import tigase.util.Algorithms;
 import tigase.util.Base64;
+import tigase.util.common.TinyLFUCache;
 import tigase.util.stringprep.TigaseStringprepException;
 import tigase.xmpp.jid.BareJID;
 
@@ -234,6 +235,11 @@ public class TigaseCustomAuth
 	private String accountstatus_query = DEF_ACCOUNTSTATUS_QUERY;
 	@ConfigField(desc = "Query adding a new user to the database", alias = DEF_ADDUSER_KEY)
 	private String adduser_query = DEF_ADDUSER_QUERY;
+	private TinyLFUCache<String, CachedCredentials> credentialsCache = new TinyLFUCache<>(10000);
+	@ConfigField(desc = "Maximal number of cached credentials", alias = "credentials-cache-size")
+	private int credentialsCacheSize = 10000;
+	@ConfigField(desc = "Time [ms] of caching credentials read from database", alias = "credentials-cache-ttl")
+	private long credentialsCacheTtl = 10000;
 	private DataRepository data_repo = null;
 	@ConfigField(desc = "Removes a user from the database", alias = DEF_DELUSER_KEY)
 	private String deluser_query = DEF_DELUSER_QUERY;
@@ -383,6 +389,13 @@ public class TigaseCustomAuth
 				}
 			});
 		}
+		String cacheKey = credentialsCacheKey(user, username);
+		if (credentialsCacheTtl > 0) {
+			CachedCredentials cached = credentialsCache.get(cacheKey);
+			if (cached != null && cached.expiresAt > System.currentTimeMillis()) {
+				return cached.credentials;
+			}
+		}
 		try {
 			PreparedStatement get_credentials = data_repo.getPreparedStatement(user, getaccountcredentials_query);
 
@@ -410,13 +423,27 @@ public class TigaseCustomAuth
 			if (accountStatus == null && entries.isEmpty()) {
 				throw new UserNotFoundException("No credentials found for the user");
 			}
-			return new DefaultCredentials(user, accountStatus, entries, getCredentialsDecoder());
+			Credentials credentials = new DefaultCredentials(user, accountStatus, entries, getCredentialsDecoder());
+			if (credentialsCacheTtl > 0) {
+				credentialsCache.put(cacheKey,
+									 new CachedCredentials(credentials, System.currentTimeMillis() + credentialsCacheTtl));
+			}
+			return credentials;
 		} catch (SQLException e) {
 			throw new TigaseDBException(
 					"Problem with retrieving credentials for account " + user + " and username " + username, e);
 		}
 	}
 
+	public int getCredentialsCacheSize() {
+		return credentialsCacheSize;
+	}
+
+	public void setCredentialsCacheSize(int credentialsCacheSize) {
+		this.credentialsCacheSize = credentialsCacheSize;
+		this.credentialsCache = new TinyLFUCache<>(Math.max(1, credentialsCacheSize));
+	}
+
 	protected String getParamWithDef(Map<String, String> params, String key, String def) {
 		if (params == null) {
 			return def;
@@ -733,6 +760,8 @@ public class TigaseCustomAuth
 			}
 		} catch (SQLException e) {
 			throw new TigaseDBException("Problem accessing repository.", e);
+		} finally {
+			credentialsCache.remove(credentialsCacheKey(user, username));
 		}
 	}
 
@@ -751,6 +780,8 @@ public class TigaseCustomAuth
 			}
 		} catch (SQLException e) {
 			throw new TigaseDBException("Problem accessing repository.", e);
+		} finally {
+			invalidateCredentialsCache(user);
 		}
 	}
 
@@ -844,6 +875,8 @@ public class TigaseCustomAuth
 		} catch (SQLException e) {
 			log.log(Level.FINEST, "problem with changing user account state", e);
 			throw new TigaseDBException("Problem with changing user account state", e);
+		} finally {
+			invalidateCredentialsCache(user);
 		}
 	}
 
@@ -930,6 +963,8 @@ public class TigaseCustomAuth
 			}
 		} catch (SQLException ex) {
 			throw new TigaseDBException("Problem accessing repository.", ex);
+		} finally {
+			credentialsCache.remove(credentialsCacheKey(user, username));
 		}
 	}
 
@@ -938,6 +973,15 @@ public class TigaseCustomAuth
 		updateCredential(user, "default", password);
 	}
 
+	private static String credentialsCacheKey(BareJID user, String username) {
+		return user.toString() + '/' + username;
+	}
+
+	private void invalidateCredentialsCache(BareJID user) {
+		String prefix = user.toString() + '/';
+		credentialsCache.removeIf(key -> key.startsWith(prefix));
+	}
+
 	private boolean userLoginAuth(BareJID user, final String password)
 			throws TigaseDBException, AuthorizationException {
 		if (userlogin_query == null) {
@@ -998,6 +1042,17 @@ public class TigaseCustomAuth
 		} // end of catch
 	}
 
+	private static class CachedCredentials {
+
+		private final Credentials credentials;
+		private final long expiresAt;
+
+		private CachedCredentials(Credentials credentials, long expiresAt) {
+			this.credentials = credentials;
+			this.expiresAt = expiresAt;
+		}
+	}
+
 	@Deprecated
 	@TigaseDeprecated(since = "8.0.0")
 	private class SaslCallbackHandler
@@ -0,0 +1,138 @@
+/*
+ * Tigase XMPP Server - The instant messaging server
+ * Copyright (C) 2004 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.db.log;
+
+import tigase.component.exceptions.RepositoryException;
+import tigase.db.DBInitException;
+import tigase.db.DataSource;
+import tigase.db.Repository;
+import tigase.sys.ShutdownHook;
+import tigase.sys.TigaseRuntime;
+import tigase.util.Version;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Data source for {@link LogRepository} keeping user data in an append-only log stored in a local directory.
+ * <br>
+ * URI has following format:
+ * <code>log:///path/to/directory?segmentSize=67108864&amp;compactionThreshold=0.5&amp;syncInterval=1000</code> where
+ * all parameters are optional.
+ */
+@Repository.Meta(supportedUris = {"log://.*"})
+public class LogDataSource
+		implements DataSource {
+
+	public static final String COMPACTION_THRESHOLD_KEY = "compactionThreshold";
+	public static final String SEGMENT_SIZE_KEY = "segmentSize";
+	public static final String SYNC_INTERVAL_KEY = "syncInterval";
+
+	private static final Logger log = Logger.getLogger(LogDataSource.class.getCanonicalName());
+
+	private static final String URI_PREFIX = "log://";
+
+	private String resource_uri;
+	private LogStoreShutdownHook shutdownHook;
+	private LogStore store;
+
+	@Override
+	public Optional<Version> getSchemaVersion(String component) {
+		return Optional.empty();
+	}
+
+	@Override
+	public String getResourceUri() {
+		return resource_uri;
+	}
+
+	@Override
+	public void initialize(String uri) throws RepositoryException {
+		initRepository(uri, new HashMap<>());
+	}
+
+	@Override
+	@Deprecated
+	public void initRepository(String uri, Map<String, String> params) throws DBInitException {
+		log.log(Level.FINEST, "Initializing repository, uri: {0}, params: {1}", new Object[]{uri, params});
+		this.resource_uri = uri;
+
+		String path = uri.startsWith(URI_PREFIX) ? uri.substring(URI_PREFIX.length()) : uri;
+		Map<String, String> uriParams = new HashMap<>(params);
+		int idx = path.indexOf('?');
+		if (idx >= 0) {
+			for (String param : path.substring(idx + 1).split("&")) {
+				int eq = param.indexOf('=');
+				if (eq > 0) {
+					uriParams.put(param.substring(0, eq), param.substring(eq + 1));
+				}
+			}
+			path = path.substring(0, idx);
+		}
+
+		try {
+			int segmentSize = Integer.parseInt(uriParams.getOrDefault(SEGMENT_SIZE_KEY, "67108864"));
+			double compactionThreshold = Double.parseDouble(uriParams.getOrDefault(COMPACTION_THRESHOLD_KEY, "0.5"));
+			long syncInterval = Long.parseLong(uriParams.getOrDefault(SYNC_INTERVAL_KEY, "1000"));
+
+			if (store != null) {
+				store.close();
+			}
+			store = new LogStore(new File(path), segmentSize, compactionThreshold, syncInterval);
+			store.open();
+		} catch (IOException | IllegalArgumentException ex) {
+			throw new DBInitException("Could not open user data log " + path, ex);
+		}
+
+		if (shutdownHook != null) {
+			TigaseRuntime.getTigaseRuntime().removeShutdownHook(shutdownHook);
+		}
+		shutdownHook = new LogStoreShutdownHook(store);
+		TigaseRuntime.getTigaseRuntime().addShutdownHook(shutdownHook);
+	}
+
+	public LogStore getStore() {
+		return store;
+	}
+
+	private static class LogStoreShutdownHook
+			implements ShutdownHook {
+
+		private final LogStore store;
+
+		private LogStoreShutdownHook(LogStore store) {
+			this.store = store;
+		}
+
+		@Override
+		public String getName() {
+			return "log-store-shutdown";
+		}
+
+		@Override
+		public String shutdown() {
+			store.close();
+			return null;
+		}
+	}
+}
@@ -0,0 +1,326 @@
+/*
+ * Tigase XMPP Server - The instant messaging server
+ * Copyright (C) 2004 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.db.log;
+
+import tigase.db.*;
+import tigase.xmpp.jid.BareJID;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Implementation of <code>UserRepository</code> and <code>AuthRepository</code> keeping data in {@link LogStore}, an
+ * append-only memory-mapped log with in-memory index. It does not require any external database and, unlike
+ * <code>XMLRepository</code>, reads do not require any lock and only writes are serialized.
+ */
+@Repository.Meta(supportedUris = {"log://.*"})
+public class LogRepository
+		implements Repository, DataSourceAware<LogDataSource>, AuthRepository, UserRepository {
+
+	private static final String USER_STR = "User: ";
+	private static final String NOT_FOUND_STR = " has not been found in repository.";
+	private static final Logger log = Logger.getLogger(LogRepository.class.getName());
+
+	private AuthRepository auth = null;
+	private boolean autoCreateUser = false;
+	private String resourceUri;
+	private LogStore store;
+
+	@Override
+	public void addDataList(BareJID user, String subnode, String key, String[] list)
+			throws UserNotFoundException, TigaseDBException {
+		if (log.isLoggable(Level.FINEST)) {
+			log.log(Level.FINEST, "Adding data list, user: {0}, subnode: {1}, key: {2}, list: {3}",
+					new Object[]{user, subnode, key, Arrays.asList(list)});
+		}
+
+		// two concurrent appends to the same list are unlikely, so there is no lock for the whole operation
+		String[] oldData = getDataList(user, subnode, key);
+		String[] all = list;
+		if (oldData != null) {
+			all = new String[oldData.length + list.length];
+			System.arraycopy(oldData, 0, all, 0, oldData.length);
+			System.arraycopy(list, 0, all, oldData.length, list.length);
+		}
+		setDataList(user, subnode, key, all);
+	}
+
+	@Override
+	public void addUser(BareJID user) throws UserExistsException, TigaseDBException {
+		log.log(Level.FINEST, "adding new user, user: {0}", user);
+		try {
+			if (!store.addUser(user)) {
+				throw new UserExistsException(USER_STR + user + " already exists.");
+			}
+		} catch (IOException ex) {
+			throw new TigaseDBException("Could not add user " + user, ex);
+		}
+	}
+
+	@Override
+	public void addUser(BareJID user, String password) throws UserExistsException, TigaseDBException {
+		auth.addUser(user, password);
+	}
+
+	@Override
+	public String getData(BareJID user, String subnode, String key, String def)
+			throws UserNotFoundException, TigaseDBException {
+		String[] values = getDataList(user, subnode, key);
+		return (values == null || values.length == 0 || values[0] == null) ? def : values[0];
+	}
+
+	@Override
+	public String getData(BareJID user, String subnode, String key) throws UserNotFoundException, TigaseDBException {
+		return getData(user, subnode, key, null);
+	}
+
+	@Override
+	public String getData(BareJID user, String key) throws UserNotFoundException, TigaseDBException {
+		return getData(user, null, key, null);
+	}
+
+	@Override
+	public String[] getDataList(BareJID user, String subnode, String key)
+			throws UserNotFoundException, TigaseDBException {
+		String[] values = store.getData(user, subnode, key);
+		if (values == null) {
+			checkUser(user);
+		}
+		return values;
+	}
+
+	@Override
+	public String[] getKeys(BareJID user, String subnode) throws UserNotFoundException, TigaseDBException {
+		String[] keys = store.getKeys(user, subnode);
+		if (keys == null) {
+			checkUser(user);
+		}
+		return keys;
+	}
+
+	@Override
+	public String[] getKeys(BareJID user) throws UserNotFoundException, TigaseDBException {
+		return getKeys(user, null);
+	}
+
+	@Override
+	public String getResourceUri() {
+		return resourceUri;
+	}
+
+	@Override
+	public String[] getSubnodes(BareJID user, String subnode) throws UserNotFoundException, TigaseDBException {
+		String[] subnodes = store.getSubnodes(user, subnode);
+		if (subnodes == null) {
+			checkUser(user);
+		}
+		return subnodes;
+	}
+
+	@Override
+	public String[] getSubnodes(BareJID user) throws UserNotFoundException, TigaseDBException {
+		return getSubnodes(user, null);
+	}
+
+	@Override
+	public long getUserUID(BareJID user) throws TigaseDBException {
+		return Math.abs(user.hashCode());
+	}
+
+	@Override
+	public List<BareJID> getUsers() {
+		return store.getUsers();
+	}
+
+	@Override
+	public long getUsersCount() {
+		return store.getUsersCount();
+	}
+
+	@Override
+	public long getUsersCount(String domain) {
+		return store.getUsersCount(domain);
+	}
+
+	@Override
+	@Deprecated
+	public void initRepository(String uri, Map<String, String> params) throws DBInitException {
+		if (store == null) {
+			LogDataSource dataSource = new LogDataSource();
+			dataSource.initRepository(uri, params);
+			setDataSource(dataSource);
+		}
+	}
+
+	@Override
+	public void logout(BareJID user) throws UserNotFoundException, TigaseDBException {
+		auth.logout(user);
+	}
+
+	@Override
+	public void loggedIn(BareJID user) throws TigaseDBException {
+		auth.loggedIn(user);
+	}
+
+	@Override
+	public boolean otherAuth(Map<String, Object> props)
+			throws UserNotFoundException, TigaseDBException, AuthorizationException {
+		return auth.otherAuth(props);
+	}
+
+	@Override
+	public void queryAuth(Map<String, Object> authProps) {
+		auth.queryAuth(authProps);
+	}
+
+	@Override
+	public void removeData(BareJID user, String subnode, String key) throws UserNotFoundException, TigaseDBException {
+		log.log(Level.FINEST, "Removing data, user: {0}, subnode: {1}, key: {2}", new Object[]{user, subnode, key});
+		try {
+			if (!store.removeData(user, subnode, key) && !autoCreateUser) {
+				throw new UserNotFoundException(USER_STR + user + NOT_FOUND_STR);
+			}
+		} catch (IOException ex) {
+			throw new TigaseDBException("Could not remove data of user " + user, ex);
+		}
+	}
+
+	@Override
+	public void removeData(BareJID user, String key) throws UserNotFoundException, TigaseDBException {
+		removeData(user, null, key);
+	}
+
+	@Override
+	public void removeSubnode(BareJID user, String subnode) throws UserNotFoundException, TigaseDBException {
+		log.log(Level.FINEST, "Removing subnode, user: {0}, subnode: {1}", new Object[]{user, subnode});
+		try {
+			if (!store.removeNode(user, subnode) && !autoCreateUser) {
+				throw new UserNotFoundException(USER_STR + user + NOT_FOUND_STR);
+			}
+		} catch (IOException ex) {
+			throw new TigaseDBException("Could not remove subnode of user " + user, ex);
+		}
+	}
+
+	@Override
+	public void removeUser(BareJID user) throws UserNotFoundException, TigaseDBException {
+		log.log(Level.FINEST, "Removing user: {0}", user);
+		try {
+			if (!store.removeUser(user)) {
+				throw new UserNotFoundException(USER_STR + user + NOT_FOUND_STR);
+			}
+		} catch (IOException ex) {
+			throw new TigaseDBException("Could not remove user " + user, ex);
+		}
+	}
+
+	@Override
+	public void setData(BareJID user, String subnode, String key, String value)
+			throws UserNotFoundException, TigaseDBException {
+		setDataList(user, subnode, key, new String[]{value});
+	}
+
+	@Override
+	public void setData(BareJID user, String key, String value) throws UserNotFoundException, TigaseDBException {
+		setData(user, null, key, value);
+	}
+
+	@Override
+	public void setDataList(BareJID user, String subnode, String key, String[] list)
+			throws UserNotFoundException, TigaseDBException {
+		if (log.isLoggable(Level.FINEST)) {
+			log.log(Level.FINEST, "Setting data list, user: {0}, subnode: {1}, key: {2}, value: {3}",
+					new Object[]{user, subnode, key, Arrays.asList(list)});
+		}
+		try {
+			if (!store.setData(user, subnode, key, list)) {
+				if (!autoCreateUser) {
+					throw new UserNotFoundException(USER_STR + user + NOT_FOUND_STR);
+				}
+				store.addUser(user);
+				store.setData(user, subnode, key, list);
+			}
+		} catch (IOException ex) {
+			throw new TigaseDBException("Could not store data of user " + user, ex);
+		}
+	}
+
+	@Override
+	public void updatePassword(BareJID user, String password) throws UserExistsException, TigaseDBException {
+		auth.updatePassword(user, password);
+	}
+
+	@Override
+	public boolean userExists(BareJID user) {
+		return store.userExists(user);
+	}
+
+	@Override
+	public String getPassword(BareJID user) throws UserNotFoundException, TigaseDBException {
+		return auth.getPassword(user);
+	}
+
+	@Override
+	public boolean isUserDisabled(BareJID user) throws UserNotFoundException, TigaseDBException {
+		final String disabled = getData(user, "disabled");
+		return disabled != null && Boolean.parseBoolean(disabled);
+	}
+
+	@Override
+	public void setUserDisabled(BareJID user, Boolean value) throws UserNotFoundException, TigaseDBException {
+		setData(user, "disabled", value.toString());
+	}
+
+	@Override
+	public void setAccountStatus(BareJID user, AccountStatus status) throws TigaseDBException {
+		setData(user, "accountStatus", status.toString());
+	}
+
+	@Override
+	public AccountStatus getAccountStatus(BareJID user) throws TigaseDBException {
+		final String accountStatus = getData(user, "accountStatus");
+		return accountStatus != null ? AccountStatus.valueOf(accountStatus) : AccountStatus.active;
+	}
+
+	@Override
+	public void setDataSource(LogDataSource dataSource) {
+		resourceUri = dataSource.getResourceUri();
+		if (resourceUri.contains("autoCreateUser=true")) {
+			autoCreateUser = true;
+		}
+		store = dataSource.getStore();
+		auth = new AuthRepositoryImpl(this);
+	}
+
+	private void checkUser(BareJID user) throws UserNotFoundException, TigaseDBException {
+		if (!store.userExists(user)) {
+			if (!autoCreateUser) {
+				throw new UserNotFoundException(USER_STR + user + NOT_FOUND_STR);
+			}
+			try {
+				store.addUser(user);
+			} catch (IOException ex) {
+				throw new TigaseDBException("Could not add user " + user, ex);
+			}
+		}
+	}
+}
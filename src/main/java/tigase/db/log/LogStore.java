@@ -0,0 +1,786 @@
+/*
+ * Tigase XMPP Server - The instant messaging server
+ * Copyright (C) 2004 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.db.log;
+
+import tigase.xmpp.jid.BareJID;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+/**
+ * Storage of user data in an append-only log split into memory-mapped segment files.
+ * <br>
+ * Every modification is appended to the active segment as a single record (protected with CRC32 checksum) and the
+ * in-memory index of users, nodes and keys is updated to point to the location of the value in the mapped segment,
+ * so reads do not require any lock or system call. Writes are serialized with a single lock.
+ * <br>
+ * On startup all segments are replayed to rebuild the index. Replay stops at the first incomplete or corrupted record
+ * of a segment, so a record torn by a crash is ignored and overwritten by the next write.
+ * <br>
+ * Records which were overwritten or removed are garbage. When ratio of garbage in sealed segments exceeds the
+ * compaction threshold, the oldest segment is compacted in background: records which are still live are appended again
+ * to the active segment and the segment file is deleted. As only the oldest segment is ever removed, records removing
+ * data may be dropped with it safely.
+ */
+public class LogStore {
+
+	private static final Logger log = Logger.getLogger(LogStore.class.getName());
+
+	private static final byte ADD_USER = 1;
+	private static final byte REMOVE_USER = 2;
+	private static final byte SET_DATA = 3;
+	private static final byte REMOVE_DATA = 4;
+	private static final byte REMOVE_NODE = 5;
+
+	private static final int HEADER_SIZE = 8;
+	private static final String SEGMENT_PREFIX = "segment-";
+	private static final String SEGMENT_SUFFIX = ".log";
+
+	private final AtomicLong compactedSegments = new AtomicLong();
+	private final double compactionThreshold;
+	private final File directory;
+	private final int segmentSize;
+	private final NavigableMap<Long, Segment> segments = new ConcurrentSkipListMap<>();
+	private final long syncInterval;
+	private final ConcurrentHashMap<BareJID, UserEntry> users = new ConcurrentHashMap<>();
+	private final ReentrantLock writeLock = new ReentrantLock();
+	private Segment active;
+	private volatile boolean closed = false;
+	private ScheduledExecutorService maintenance;
+
+	/**
+	 * Creates new instance of the store.
+	 *
+	 * @param directory directory with segment files
+	 * @param segmentSize size of a single segment file in bytes
+	 * @param compactionThreshold ratio of garbage in sealed segments above which segments are compacted
+	 * @param syncInterval interval in milliseconds at which active segment is synced to disk (if 0 then it is synced
+	 * after every write)
+	 */
+	public LogStore(File directory, int segmentSize, double compactionThreshold, long syncInterval) {
+		if (segmentSize <= HEADER_SIZE) {
+			throw new IllegalArgumentException("Segment size is too small: " + segmentSize);
+		}
+		this.directory = directory;
+		this.segmentSize = segmentSize;
+		this.compactionThreshold = compactionThreshold;
+		this.syncInterval = syncInterval;
+	}
+
+	/**
+	 * Opens segment files, rebuilds the index and starts background thread responsible for syncing and compaction.
+	 */
+	public void open() throws IOException {
+		writeLock.lock();
+		try {
+			if (!directory.isDirectory() && !directory.mkdirs()) {
+				throw new IOException("Could not create directory " + directory);
+			}
+
+			long start = System.currentTimeMillis();
+			File[] files = directory.listFiles(
+					(dir, name) -> name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX));
+			if (files != null) {
+				for (File file : files) {
+					String name = file.getName();
+					long id = Long.parseLong(
+							name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+					segments.put(id, new Segment(id, file, (int) Math.max(file.length(), segmentSize)));
+				}
+			}
+			for (Segment segment : segments.values()) {
+				recover(segment, segment == segments.lastEntry().getValue());
+			}
+			// removing data of users which were not added (should not happen unless segment was corrupted)
+			users.values().removeIf(entry -> {
+				if (entry.location == null) {
+					entry.markDead();
+					return true;
+				}
+				return false;
+			});
+			if (segments.isEmpty()) {
+				active = createSegment(1);
+			} else {
+				active = segments.lastEntry().getValue();
+			}
+
+			log.log(Level.INFO, "Opened user data log {0} with {1} segments and {2} users in {3}ms",
+					new Object[]{directory, segments.size(), users.size(), System.currentTimeMillis() - start});
+		} finally {
+			writeLock.unlock();
+		}
+
+		maintenance = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread thread = new Thread(r, "log-store-" + directory.getName());
+			thread.setDaemon(true);
+			return thread;
+		});
+		if (syncInterval > 0) {
+			maintenance.scheduleWithFixedDelay(this::sync, syncInterval, syncInterval, TimeUnit.MILLISECONDS);
+		}
+		maintenance.scheduleWithFixedDelay(this::compact, 1, 1, TimeUnit.MINUTES);
+	}
+
+	/**
+	 * Stops background thread and syncs active segment to disk. Running compaction is stopped before the next record
+	 * is moved and segment files are not modified after this method returns.
+	 */
+	public void close() {
+		writeLock.lock();
+		try {
+			closed = true;
+		} finally {
+			writeLock.unlock();
+		}
+		if (maintenance != null) {
+			maintenance.shutdownNow();
+			try {
+				if (!maintenance.awaitTermination(30, TimeUnit.SECONDS)) {
+					log.log(Level.WARNING, "Background thread of user data log {0} did not stop", directory);
+				}
+			} catch (InterruptedException ex) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		writeLock.lock();
+		try {
+			for (Segment segment : segments.values()) {
+				segment.close();
+			}
+		} finally {
+			writeLock.unlock();
+		}
+	}
+
+	public boolean userExists(BareJID user) {
+		return users.containsKey(user);
+	}
+
+	public List<BareJID> getUsers() {
+		return new ArrayList<>(users.keySet());
+	}
+
+	public long getUsersCount() {
+		return users.size();
+	}
+
+	public long getUsersCount(String domain) {
+		return users.keySet().stream().filter(jid -> jid.getDomain().equals(domain)).count();
+	}
+
+	/**
+	 * Returns values stored for the key or <code>null</code> if there is no such user, node or key.
+	 */
+	public String[] getData(BareJID user, String node, String key) {
+		UserEntry entry = users.get(user);
+		if (entry == null) {
+			return null;
+		}
+		Map<String, Location> data = entry.nodes.get(normalizeNode(node));
+		if (data == null) {
+			return null;
+		}
+		Location location = data.get(key);
+		return location == null ? null : location.readValues();
+	}
+
+	public String[] getKeys(BareJID user, String node) {
+		UserEntry entry = users.get(user);
+		if (entry == null) {
+			return null;
+		}
+		Map<String, Location> data = entry.nodes.get(normalizeNode(node));
+		if (data == null || data.isEmpty()) {
+			return null;
+		}
+		return data.keySet().toArray(new String[0]);
+	}
+
+	/**
+	 * Returns names of direct subnodes of the node.
+	 */
+	public String[] getSubnodes(BareJID user, String node) {
+		UserEntry entry = users.get(user);
+		if (entry == null) {
+			return null;
+		}
+		String normalized = normalizeNode(node);
+		String prefix = normalized.isEmpty() ? "" : normalized + "/";
+		Set<String> result = new LinkedHashSet<>();
+		for (String path : entry.nodes.keySet()) {
+			if (path.length() > prefix.length() && path.startsWith(prefix)) {
+				int idx = path.indexOf('/', prefix.length());
+				result.add(idx < 0 ? path.substring(prefix.length()) : path.substring(prefix.length(), idx));
+			}
+		}
+		return result.isEmpty() ? null : result.toArray(new String[0]);
+	}
+
+	/**
+	 * @return <code>false</code> if user already exists
+	 */
+	public boolean addUser(BareJID user) throws IOException {
+		writeLock.lock();
+		try {
+			if (users.containsKey(user)) {
+				return false;
+			}
+			write(ADD_USER, user, null, null, null);
+			return true;
+		} finally {
+			writeLock.unlock();
+		}
+	}
+
+	/**
+	 * @return <code>false</code> if user does not exist
+	 */
+	public boolean removeUser(BareJID user) throws IOException {
+		writeLock.lock();
+		try {
+			if (!users.containsKey(user)) {
+				return false;
+			}
+			write(REMOVE_USER, user, null, null, null);
+			return true;
+		} finally {
+			writeLock.unlock();
+		}
+	}
+
+	/**
+	 * @return <code>false</code> if user does not exist
+	 */
+	public boolean setData(BareJID user, String node, String key, String[] values) throws IOException {
+		writeLock.lock();
+		try {
+			if (!users.containsKey(user)) {
+				return false;
+			}
+			write(SET_DATA, user, normalizeNode(node), key, values);
+			return true;
+		} finally {
+			writeLock.unlock();
+		}
+	}
+
+	/**
+	 * @return <code>false</code> if user does not exist
+	 */
+	public boolean removeData(BareJID user, String node, String key) throws IOException {
+		writeLock.lock();
+		try {
+			UserEntry entry = users.get(user);
+			if (entry == null) {
+				return false;
+			}
+			Map<String, Location> data = entry.nodes.get(normalizeNode(node));
+			if (data != null && data.containsKey(key)) {
+				write(REMOVE_DATA, user, normalizeNode(node), key, null);
+			}
+			return true;
+		} finally {
+			writeLock.unlock();
+		}
+	}
+
+	/**
+	 * Removes node with all its subnodes.
+	 *
+	 * @return <code>false</code> if user does not exist
+	 */
+	public boolean removeNode(BareJID user, String node) throws IOException {
+		writeLock.lock();
+		try {
+			if (!users.containsKey(user)) {
+				return false;
+			}
+			write(REMOVE_NODE, user, normalizeNode(node), null, null);
+			return true;
+		} finally {
+			writeLock.unlock();
+		}
+	}
+
+	public int getSegmentsCount() {
+		return segments.size();
+	}
+
+	public long getCompactedSegmentsCount() {
+		return compactedSegments.get();
+	}
+
+	/**
+	 * Returns ratio of garbage in all segments.
+	 */
+	public double getGarbageRatio() {
+		long total = 0;
+		long live = 0;
+		for (Segment segment : segments.values()) {
+			total += segment.position;
+			live += segment.liveBytes;
+		}
+		return total == 0 ? 0 : ((double) (total - live)) / total;
+	}
+
+	/**
+	 * Compacts the oldest sealed segments as long as ratio of garbage in sealed segments exceeds the threshold.
+	 */
+	public void compact() {
+		try {
+			int limit = segments.size();
+			for (int i = 0; i < limit; i++) {
+				Segment oldest;
+				writeLock.lock();
+				try {
+					if (closed) {
+						return;
+					}
+					long total = 0;
+					long live = 0;
+					for (Segment segment : segments.values()) {
+						if (segment != active) {
+							total += segment.position;
+							live += segment.liveBytes;
+						}
+					}
+					if (total == 0 || ((double) (total - live)) / total < compactionThreshold) {
+						return;
+					}
+					oldest = segments.firstEntry().getValue();
+				} finally {
+					writeLock.unlock();
+				}
+				compact(oldest);
+			}
+		} catch (Throwable ex) {
+			log.log(Level.WARNING, "Compaction of user data log " + directory + " failed", ex);
+		}
+	}
+
+	/**
+	 * Syncs active segment to disk.
+	 */
+	public void sync() {
+		Segment segment = active;
+		if (segment != null && !closed) {
+			segment.buffer.force();
+		}
+	}
+
+	private void compact(Segment segment) throws IOException {
+		long start = System.currentTimeMillis();
+		int offset = 0;
+		int moved = 0;
+		while (offset < segment.position) {
+			Record record = segment.readRecord(offset);
+			if (record == null) {
+				break;
+			}
+			writeLock.lock();
+			try {
+				if (closed) {
+					return;
+				}
+				Location current = getLiveLocation(record);
+				if (current != null && current.segment == segment && current.offset == offset) {
+					apply(record, append(record.payload, record.valueOffset));
+					moved++;
+				}
+			} finally {
+				writeLock.unlock();
+			}
+			offset += record.size;
+		}
+
+		writeLock.lock();
+		try {
+			if (closed) {
+				return;
+			}
+			// moved records have to be on disk before the only other copy of them is deleted
+			active.buffer.force();
+			segments.remove(segment.id);
+			segment.close();
+			if (!segment.file.delete()) {
+				log.log(Level.WARNING, "Could not delete compacted segment {0}", segment.file);
+			}
+		} finally {
+			writeLock.unlock();
+		}
+		compactedSegments.incrementAndGet();
+		if (log.isLoggable(Level.FINE)) {
+			log.log(Level.FINE, "Compacted segment {0}, moved {1} live records in {2}ms",
+					new Object[]{segment.file, moved, System.currentTimeMillis() - start});
+		}
+	}
+
+	private Location getLiveLocation(Record record) {
+		UserEntry entry = users.get(record.user);
+		if (entry == null) {
+			return null;
+		}
+		switch (record.type) {
+			case ADD_USER:
+				return entry.location;
+			case SET_DATA:
+				Map<String, Location> data = entry.nodes.get(record.node);
+				return data == null ? null : data.get(record.key);
+			default:
+				return null;
+		}
+	}
+
+	private void write(byte type, BareJID user, String node, String key, String[] values) throws IOException {
+		ByteArrayOutputStream baos = new ByteArrayOutputStream(64);
+		DataOutputStream out = new DataOutputStream(baos);
+		out.writeByte(type);
+		writeString(out, user.toString());
+		writeString(out, node);
+		writeString(out, key);
+		int valueOffset = baos.size();
+		if (values == null) {
+			out.writeInt(-1);
+		} else {
+			out.writeInt(values.length);
+			for (String value : values) {
+				writeString(out, value);
+			}
+		}
+		out.flush();
+
+		byte[] payload = baos.toByteArray();
+		Location location = append(payload, valueOffset);
+		apply(new Record(type, user, node, key, payload, valueOffset), location);
+		if (syncInterval == 0) {
+			active.buffer.force();
+		}
+	}
+
+	private Location append(byte[] payload, int valueOffset) throws IOException {
+		int size = HEADER_SIZE + payload.length;
+		if (size > active.capacity - active.position) {
+			if (size > segmentSize) {
+				throw new IOException("Record of " + size + " bytes is larger than segment size " + segmentSize);
+			}
+			active.buffer.force();
+			active = createSegment(active.id + 1);
+		}
+
+		CRC32 crc = new CRC32();
+		crc.update(payload, 0, payload.length);
+
+		int offset = active.position;
+		ByteBuffer writer = active.writer;
+		writer.position(offset + HEADER_SIZE);
+		writer.put(payload);
+		writer.putInt(offset + 4, (int) crc.getValue());
+		// length is written last, so incomplete record will not be replayed
+		writer.putInt(offset, payload.length);
+		active.position += size;
+		active.liveBytes += size;
+		return new Location(active, offset, size, offset + HEADER_SIZE + valueOffset);
+	}
+
+	private void apply(Record record, Location location) {
+		UserEntry entry = users.get(record.user);
+		switch (record.type) {
+			case ADD_USER:
+				if (entry != null) {
+					if (entry.location != null) {
+						entry.location.markDead();
+					}
+					entry.location = location;
+				} else {
+					users.put(record.user, new UserEntry(location));
+				}
+				break;
+			case REMOVE_USER:
+				location.markDead();
+				if (entry != null) {
+					users.remove(record.user);
+					entry.markDead();
+				}
+				break;
+			case SET_DATA:
+				if (entry == null) {
+					// during recovery record adding the user may follow its data if it was moved by compaction
+					entry = new UserEntry(null);
+					users.put(record.user, entry);
+				}
+				Location old = entry.nodes.computeIfAbsent(record.node, n -> new ConcurrentHashMap<>())
+						.put(record.key, location);
+				if (old != null) {
+					old.markDead();
+				}
+				break;
+			case REMOVE_DATA:
+				location.markDead();
+				if (entry != null) {
+					Map<String, Location> data = entry.nodes.get(record.node);
+					Location removed = data == null ? null : data.remove(record.key);
+					if (removed != null) {
+						removed.markDead();
+					}
+				}
+				break;
+			case REMOVE_NODE:
+				location.markDead();
+				if (entry != null) {
+					String prefix = record.node + "/";
+					Iterator<Map.Entry<String, Map<String, Location>>> it = entry.nodes.entrySet().iterator();
+					while (it.hasNext()) {
+						Map.Entry<String, Map<String, Location>> e = it.next();
+						if (record.node.isEmpty() || e.getKey().equals(record.node) || e.getKey().startsWith(prefix)) {
+							it.remove();
+							e.getValue().values().forEach(Location::markDead);
+						}
+					}
+				}
+				break;
+			default:
+				location.markDead();
+				break;
+		}
+	}
+
+	private void recover(Segment segment, boolean last) {
+		int offset = 0;
+		while (offset < segment.capacity) {
+			Record record = segment.readRecord(offset);
+			if (record == null) {
+				break;
+			}
+			segment.liveBytes += record.size;
+			apply(record, new Location(segment, offset, record.size, offset + HEADER_SIZE + record.valueOffset));
+			offset += record.size;
+		}
+		segment.position = offset;
+
+		if (offset + 4 <= segment.capacity && segment.buffer.getInt(offset) != 0) {
+			log.log(Level.WARNING, "Found incomplete or corrupted record in segment {0} at offset {1}",
+					new Object[]{segment.file, offset});
+			if (last) {
+				// clearing remains of the record, so it would not be mistaken for a valid one after new writes
+				for (int i = offset; i < segment.capacity; i++) {
+					segment.writer.put(i, (byte) 0);
+				}
+				segment.buffer.force();
+			}
+		}
+	}
+
+	private Segment createSegment(long id) throws IOException {
+		File file = new File(directory, SEGMENT_PREFIX + String.format("%020d", id) + SEGMENT_SUFFIX);
+		Segment segment = new Segment(id, file, segmentSize);
+		segments.put(id, segment);
+		return segment;
+	}
+
+	private static String normalizeNode(String node) {
+		if (node == null) {
+			return "";
+		}
+		int start = 0;
+		int end = node.length();
+		while (start < end && node.charAt(start) == '/') {
+			start++;
+		}
+		while (end > start && node.charAt(end - 1) == '/') {
+			end--;
+		}
+		return node.substring(start, end);
+	}
+
+	private static void writeString(DataOutputStream out, String value) throws IOException {
+		if (value == null) {
+			out.writeInt(-1);
+		} else {
+			byte[] data = value.getBytes(StandardCharsets.UTF_8);
+			out.writeInt(data.length);
+			out.write(data);
+		}
+	}
+
+	private static String readString(ByteBuffer buf) {
+		int length = buf.getInt();
+		if (length < 0) {
+			return null;
+		}
+		byte[] data = new byte[length];
+		buf.get(data);
+		return new String(data, StandardCharsets.UTF_8);
+	}
+
+	private static class Location {
+
+		private final int offset;
+		private final Segment segment;
+		private final int size;
+		private final int valueOffset;
+
+		private Location(Segment segment, int offset, int size, int valueOffset) {
+			this.segment = segment;
+			this.offset = offset;
+			this.size = size;
+			this.valueOffset = valueOffset;
+		}
+
+		private void markDead() {
+			segment.liveBytes -= size;
+		}
+
+		private String[] readValues() {
+			ByteBuffer buf = segment.buffer.duplicate();
+			buf.position(valueOffset);
+			int count = buf.getInt();
+			if (count < 0) {
+				return null;
+			}
+			String[] values = new String[count];
+			for (int i = 0; i < count; i++) {
+				values[i] = readString(buf);
+			}
+			return values;
+		}
+	}
+
+	private static class Record {
+
+		private final String key;
+		private final String node;
+		private final byte[] payload;
+		private final byte type;
+		private final BareJID user;
+		private final int valueOffset;
+		private final int size;
+
+		private Record(byte type, BareJID user, String node, String key, byte[] payload, int valueOffset) {
+			this.type = type;
+			this.user = user;
+			this.node = node;
+			this.key = key;
+			this.payload = payload;
+			this.valueOffset = valueOffset;
+			this.size = HEADER_SIZE + payload.length;
+		}
+	}
+
+	private static class Segment {
+
+		private final MappedByteBuffer buffer;
+		private final int capacity;
+		private final FileChannel channel;
+		private final File file;
+		private final long id;
+		private final ByteBuffer writer;
+		private volatile long liveBytes = 0;
+		private volatile int position = 0;
+
+		private Segment(long id, File file, int capacity) throws IOException {
+			this.id = id;
+			this.file = file;
+			this.capacity = capacity;
+			this.channel = new RandomAccessFile(file, "rw").getChannel();
+			this.buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+			this.writer = buffer.duplicate();
+		}
+
+		/**
+		 * Reads and validates record at the offset.
+		 *
+		 * @return record or <code>null</code> if there is no complete and valid record
+		 */
+		private Record readRecord(int offset) {
+			if (offset + HEADER_SIZE > capacity) {
+				return null;
+			}
+			ByteBuffer buf = buffer.duplicate();
+			buf.position(offset);
+			int length = buf.getInt();
+			int checksum = buf.getInt();
+			if (length <= 0 || length > capacity - offset - HEADER_SIZE) {
+				return null;
+			}
+			byte[] payload = new byte[length];
+			buf.get(payload);
+			CRC32 crc = new CRC32();
+			crc.update(payload, 0, length);
+			if ((int) crc.getValue() != checksum) {
+				return null;
+			}
+
+			try {
+				ByteBuffer data = ByteBuffer.wrap(payload);
+				byte type = data.get();
+				BareJID user = BareJID.bareJIDInstanceNS(readString(data));
+				String node = readString(data);
+				String key = readString(data);
+				return new Record(type, user, node, key, payload, data.position());
+			} catch (RuntimeException ex) {
+				log.log(Level.WARNING, "Could not decode record in segment " + file + " at offset " + offset, ex);
+				return null;
+			}
+		}
+
+		private void close() {
+			try {
+				buffer.force();
+				channel.close();
+			} catch (IOException ex) {
+				log.log(Level.WARNING, "Could not close segment " + file, ex);
+			}
+		}
+	}
+
+	private static class UserEntry {
+
+		private final Map<String, Map<String, Location>> nodes = new ConcurrentHashMap<>();
+		private volatile Location location;
+
+		private UserEntry(Location location) {
+			this.location = location;
+		}
+
+		private void markDead() {
+			if (location != null) {
+				location.markDead();
+			}
+			nodes.values().forEach(data -> data.values().forEach(Location::markDead));
+		}
+	}
+}
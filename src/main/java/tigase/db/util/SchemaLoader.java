@@ -95,7 +95,7 @@ public abstract class SchemaLoader<P extends SchemaLoader.Parameters> {
 
 	private static Stream<Class<?>> getSchemaLoaderClasses() {
 		return ClassUtilBean.getInstance()
-				.getAllClasses()
+				.getBeanClasses()
 				.stream()
 				.filter(SchemaLoader.class::isAssignableFrom)
 				.filter(clazz -> !Modifier.isAbstract(clazz.getModifiers()));
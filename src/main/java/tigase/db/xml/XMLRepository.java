@@ -25,6 +25,7 @@ import tigase.xmpp.jid.BareJID;
 
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.List;
 import java.util.Map;
 import java.util.logging.Level;
@@ -122,6 +123,19 @@ public class XMLRepository
 		return getData(user, null, key, null);
 	}
 
+	@Override
+	public synchronized Map<String, Map<String, String>> getDataMaps(BareJID user, Collection<String> subnodes)
+			throws UserNotFoundException, TigaseDBException {
+		// all data is kept in memory, so it is enough to read it while holding the lock only once
+		return UserRepository.super.getDataMaps(user, subnodes);
+	}
+
+	@Override
+	public synchronized Map<String, Map<String, String>> getDataTree(BareJID user, String subnode)
+			throws UserNotFoundException, TigaseDBException {
+		return UserRepository.super.getDataTree(user, subnode);
+	}
+
 	@Override
 	public synchronized String[] getDataList(BareJID user, final String subnode, final String key)
 			throws UserNotFoundException, TigaseDBException {
@@ -59,7 +59,7 @@ public abstract class AbstractBeanConfigurator
 	 * @return map of bean classes in for of "bean name" - "class"
 	 */
 	public static Map<String, Class<?>> getBeanClassesFromAnnotations(Kernel kernel, Class<?> requiredClass) {
-		Set<Class<?>> classes = ClassUtilBean.getInstance().getAllClasses();
+		Set<Class<?>> classes = ClassUtilBean.getInstance().getBeanClasses();
 		List<Class<?>> toRegister = registerBeansForBeanOfClassGetBeansToRegister(kernel, requiredClass, classes);
 
 		Map<String, Class<?>> result = new HashMap<>();
@@ -144,7 +144,7 @@ public abstract class AbstractBeanConfigurator
 	 * the class passed as parameter.
 	 */
 	public static void registerBeansForBeanOfClass(Kernel kernel, Class<?> cls) {
-		Set<Class<?>> classes = ClassUtilBean.getInstance().getAllClasses();
+		Set<Class<?>> classes = ClassUtilBean.getInstance().getBeanClasses();
 		registerBeansForBeanOfClass(kernel, cls, classes);
 	}
 
@@ -509,7 +509,7 @@ public abstract class AbstractBeanConfigurator
 					}
 				}
 
-				if (!tigase.util.reflection.ClassUtilBean.getInstance().getAllClasses().contains(clazz)) {
+				if (!tigase.util.reflection.ClassUtilBean.getInstance().isKnownClass(clazz)) {
 					continue;
 				}
 
@@ -689,17 +689,17 @@ public abstract class AbstractBeanConfigurator
 	}
 
 	protected void refreshConfiguration_removeUndefinedBeans(Kernel kernel) {
-		Set<Class<?>> classes = tigase.util.reflection.ClassUtilBean.getInstance().getAllClasses();
+		tigase.util.reflection.ClassUtilBean classUtil = tigase.util.reflection.ClassUtilBean.getInstance();
 		Set<BeanConfig> toRemove = kernel.getDependencyManager()
 				.getBeanConfigs()
 				.stream()
 				.filter(bc -> bc.getSource() != BeanConfig.Source.hardcoded)
-				.filter(bc -> !classes.contains(bc.getClazz()))
 				.filter(bc -> {
 					String name = bc.getClazz().getCanonicalName();
 					return (!name.startsWith("java.")) && (!name.startsWith("javax.")) &&
 							(!name.startsWith("com.sun."));
 				})
+				.filter(bc -> !classUtil.isKnownClass(bc.getClazz()))
 				.collect(Collectors.toSet());
 		toRemove.forEach(bc -> kernel.unregister(bc.getBeanName()));
 
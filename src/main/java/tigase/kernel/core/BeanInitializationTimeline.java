@@ -0,0 +1,177 @@
+/*
+ * Tigase XMPP Server - The instant messaging server
+ * Copyright (C) 2004 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.kernel.core;
+
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+/**
+ * Records time spent on initialization of every bean by the kernel (and its subkernels). For each bean total time
+ * and self time (total time without time spent on initialization of beans initialized as its dependencies) is kept.
+ */
+public class BeanInitializationTimeline {
+
+	private static final int MAX_ENTRIES = 10000;
+
+	private static final ThreadLocal<Deque<long[]>> NESTED = ThreadLocal.withInitial(ArrayDeque::new);
+
+	private final List<Entry> entries = new ArrayList<>();
+	private final long startTime = System.nanoTime();
+
+	/**
+	 * Method called when initialization of a bean is started by the current thread.
+	 *
+	 * @return time of start of initialization
+	 */
+	public long started() {
+		NESTED.get().push(new long[]{0});
+		return System.nanoTime();
+	}
+
+	/**
+	 * Method called when initialization of a bean started by the current thread is finished (successfully or not).
+	 *
+	 * @param beanConfig configuration of a bean or <code>null</code> if initialization failed
+	 * @param start time of start of initialization returned by {@link #started()}
+	 */
+	public void finished(BeanConfig beanConfig, long start) {
+		long total = System.nanoTime() - start;
+		Deque<long[]> nested = NESTED.get();
+		long[] children = nested.pop();
+		long[] parent = nested.peek();
+		if (parent != null) {
+			parent[0] += total;
+		}
+		if (beanConfig == null) {
+			return;
+		}
+
+		synchronized (entries) {
+			if (entries.size() < MAX_ENTRIES) {
+				entries.add(new Entry(beanConfig.getKernel().getName(), beanConfig.getBeanName(),
+									  beanConfig.getClazz().getName(), Thread.currentThread().getName(),
+									  start - startTime, total, total - children[0]));
+			}
+		}
+	}
+
+	/**
+	 * Returns recorded entries in order of start of initialization
+	 *
+	 * @return list of entries
+	 */
+	public List<Entry> getEntries() {
+		synchronized (entries) {
+			return entries.stream()
+					.sorted(Comparator.comparingLong(Entry::getStartOffset))
+					.collect(Collectors.toList());
+		}
+	}
+
+	/**
+	 * Returns entries of beans with the longest self time of initialization
+	 *
+	 * @param limit number of entries to return
+	 *
+	 * @return list of entries
+	 */
+	public List<Entry> getSlowest(int limit) {
+		synchronized (entries) {
+			return entries.stream()
+					.sorted(Comparator.comparingLong(Entry::getSelfTime).reversed())
+					.limit(limit)
+					.collect(Collectors.toList());
+		}
+	}
+
+	public String toPrintable(List<Entry> entries) {
+		StringBuilder sb = new StringBuilder();
+		for (Entry entry : entries) {
+			sb.append('\n').append(entry);
+		}
+		return sb.toString();
+	}
+
+	public static class Entry {
+
+		private final String beanName;
+		private final String className;
+		private final String kernelName;
+		private final long selfTime;
+		private final long startOffset;
+		private final String threadName;
+		private final long totalTime;
+
+		Entry(String kernelName, String beanName, String className, String threadName, long startOffset,
+			  long totalTime, long selfTime) {
+			this.kernelName = kernelName;
+			this.beanName = beanName;
+			this.className = className;
+			this.threadName = threadName;
+			this.startOffset = startOffset;
+			this.totalTime = totalTime;
+			this.selfTime = selfTime;
+		}
+
+		public String getBeanName() {
+			return beanName;
+		}
+
+		public String getClassName() {
+			return className;
+		}
+
+		public String getKernelName() {
+			return kernelName;
+		}
+
+		/**
+		 * Time of initialization of the bean without time spent on initialization of its dependencies (in
+		 * nanoseconds)
+		 */
+		public long getSelfTime() {
+			return selfTime;
+		}
+
+		/**
+		 * Offset of the start of initialization from creation of the timeline (in nanoseconds)
+		 */
+		public long getStartOffset() {
+			return startOffset;
+		}
+
+		public String getThreadName() {
+			return threadName;
+		}
+
+		/**
+		 * Total time of initialization of the bean (in nanoseconds)
+		 */
+		public long getTotalTime() {
+			return totalTime;
+		}
+
+		@Override
+		public String toString() {
+			return "+" + TimeUnit.NANOSECONDS.toMillis(startOffset) + "ms " + kernelName + "/" + beanName + " (" +
+					className + ") self: " + TimeUnit.NANOSECONDS.toMillis(selfTime) + "ms, total: " +
+					TimeUnit.NANOSECONDS.toMillis(totalTime) + "ms, thread: " + threadName;
+		}
+	}
+}
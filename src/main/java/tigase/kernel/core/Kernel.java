@@ -49,6 +49,8 @@ public class Kernel {
 
 	private final DependencyManager dependencyManager = new DependencyManager();
 
+	private BeanInitializationTimeline beanInitializationTimeline;
+
 	BeanConfigBuilder currentlyUsedConfigBuilder;
 
 	private boolean forceAllowNull;
@@ -74,6 +76,19 @@ public class Kernel {
 			return;
 		}
 
+		final BeanInitializationTimeline timeline = getBeanInitializationTimeline();
+		final long start = timeline.started();
+		boolean initialized = false;
+		try {
+			doInitBean(tmpBC, beanConfig, createdBeansConfig, deep);
+			initialized = true;
+		} finally {
+			timeline.finished(initialized ? beanConfig : null, start);
+		}
+	}
+
+	private void doInitBean(BeanConfig tmpBC, final BeanConfig beanConfig, Set<BeanConfig> createdBeansConfig, int deep)
+			throws IllegalAccessException, IllegalArgumentException, InvocationTargetException, InstantiationException {
 		DelayedDependencyInjectionQueue queue = beanConfig.getKernel().beginDependencyDelayedInjection();
 
 		try {
@@ -246,6 +261,23 @@ public class Kernel {
 				});
 	}
 
+	/**
+	 * Returns timeline of initialization of beans shared by this Kernel and all its subkernels.
+	 *
+	 * @return timeline of beans initialization.
+	 */
+	public BeanInitializationTimeline getBeanInitializationTimeline() {
+		if (parent != null) {
+			return parent.getBeanInitializationTimeline();
+		}
+		synchronized (this) {
+			if (beanInitializationTimeline == null) {
+				beanInitializationTimeline = new BeanInitializationTimeline();
+			}
+			return beanInitializationTimeline;
+		}
+	}
+
 	/**
 	 * Returns {@link DependencyManager} used in Kernel.
 	 *
@@ -20,58 +20,103 @@ package tigase.map;
 import tigase.eventbus.EventBus;
 import tigase.eventbus.EventBusFactory;
 import tigase.eventbus.HandleEvent;
+import tigase.eventbus.RouteEvent;
+import tigase.eventbus.component.stores.Subscription;
 import tigase.eventbus.impl.EventName;
 import tigase.kernel.DefaultTypesConverter;
 import tigase.kernel.TypesConverter;
+import tigase.util.dns.DNSResolverFactory;
+import tigase.xml.Element;
+import tigase.xml.XMLUtils;
 
 import java.io.Serializable;
-import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
+/**
+ * Factory of maps replicated over the event bus to all cluster nodes.
+ * <br>
+ * Changes of a map are not sent immediately. They are coalesced per key for {@link #DEFAULT_BATCH_DELAY} ms (only the
+ * latest change of a key is sent) and sent to other nodes as a single <code>ElementsChangedEvent</code>.
+ * <br>
+ * When a map is created on a node which joined the cluster, nodes which already have this map compare digest of their
+ * content with digest of content of the new map. A single node selected by consistent hashing of the map name sends
+ * snapshot of the map in chunks only to the node which created the map or, if digests are equal, confirms that
+ * content is in sync. If there is no response within {@link #DEFAULT_REQUEST_TIMEOUT} ms, the snapshot is requested
+ * again from the next node on the ring. Content of the map is replaced with the snapshot after the last chunk is
+ * received, except keys which were changed on this node or by other nodes after the snapshot was requested.
+ * <br>
+ * Maps created with {@link #createPartitionedMap(String, Class, Class, int, String...)} are not replicated. Each key
+ * is stored only on the node owning the key and on nodes keeping its backups, selected by consistent hashing over
+ * nodes passed to {@link #nodeConnected(String)}. Other nodes send reads and writes of the key to its owner using
+ * events routed only to this node. When the list of nodes changes, entries are moved to their new owners.
+ */
 public class ClusterMapFactory {
 
+	public static final long DEFAULT_BATCH_DELAY = 100;
+	public static final int DEFAULT_NEAR_CACHE_SIZE = 1000;
+	public static final long DEFAULT_REQUEST_TIMEOUT = 5000;
+	public static final int MAX_BATCH_SIZE = 1000;
+
 	private final static EventName NEWMAP_EVENT_NAME = new EventName(NewMapCreatedEvent.class);
+	private static final String KEY_ATTR = "k";
+	private static final int MAX_REDIRECTS = 2;
+	private static final String OP_GET = "get";
+	private static final String OP_PUT = "put";
+	private static final String OP_REMOVE = "remove";
+	private static final String PUT_ELEM = "put";
+	private static final String REMOVE_ELEM = "remove";
+	private static final String VALUE_ATTR = "v";
 	private static ClusterMapFactory instance;
 	private final Logger log = Logger.getLogger(this.getClass().getName());
+	private final Set<String> clusterNodes = new TreeSet<>();
 	private final ConcurrentHashMap<String, DMap> maps = new ConcurrentHashMap<>();
+	private final ConcurrentHashMap<String, PartitionedDMap> partitionedMaps = new ConcurrentHashMap<>();
+	private final ConcurrentHashMap<String, PendingChanges> pendingChanges = new ConcurrentHashMap<>();
+	private final ConcurrentHashMap<String, PendingChanges> pendingInvalidations = new ConcurrentHashMap<>();
+	private final ConcurrentHashMap<Long, CompletableFuture<PartitionResponseEvent>> pendingRequests = new ConcurrentHashMap<>();
+	private final ConcurrentHashMap<String, IncomingSnapshot> incomingSnapshots = new ConcurrentHashMap<>();
+	private final ConcurrentHashMap<String, SnapshotRequest> pendingSnapshots = new ConcurrentHashMap<>();
+	private final ConcurrentHashMap<String, PendingChanges> pendingTransfers = new ConcurrentHashMap<>();
+	private final AtomicLong requestIds = new AtomicLong();
+	private final ScheduledExecutorService scheduler;
 	private final TypesConverter typesConverter = new DefaultTypesConverter();
+	private long batchDelay = DEFAULT_BATCH_DELAY;
 	private EventBus eventBus;
+	private String localNode;
+	private int nearCacheSize = DEFAULT_NEAR_CACHE_SIZE;
+	private long requestTimeout = DEFAULT_REQUEST_TIMEOUT;
+	private volatile ConsistentHashRing ring;
 	private final DMap.DMapListener mapListener = new DMap.DMapListener() {
 		@Override
 		public void onClear(DMap map) {
-			MapClearEvent event = new MapClearEvent();
-			event.setUid(map.getUid());
-			eventBus.fire(event);
+			markCleared(map);
+			fireClear(getPendingChanges(map), map.getUid());
 		}
 
 		@Override
 		public void onPut(DMap map, Object key, Object value) {
-			ElementAddEvent event = new ElementAddEvent();
-			event.setUid(map.getUid());
-			event.setKey(typesConverter.toString(key));
-			event.setValue(typesConverter.toString(value));
-			eventBus.fire(event);
+			markChanged(map, key);
+			addChange(getPendingChanges(map), typesConverter.toString(key), typesConverter.toString(value));
 		}
 
 		@Override
 		public void onPutAll(DMap map, Map<?, ?> m) {
+			PendingChanges pending = getPendingChanges(map);
 			for (Map.Entry<?, ?> en : m.entrySet()) {
-				ElementAddEvent event = new ElementAddEvent();
-				event.setUid(map.getUid());
-				event.setKey(typesConverter.toString(en.getKey()));
-				event.setValue(typesConverter.toString(en.getValue()));
-				eventBus.fire(event);
+				markChanged(map, en.getKey());
+				addChange(pending, typesConverter.toString(en.getKey()), typesConverter.toString(en.getValue()));
 			}
 		}
 
 		@Override
 		public void onRemove(DMap map, Object key) {
-			ElementRemoveEvent event = new ElementRemoveEvent();
-			event.setUid(map.getUid());
-			event.setKey(typesConverter.toString(key));
-			eventBus.fire(event);
+			markChanged(map, key);
+			addChange(getPendingChanges(map), typesConverter.toString(key), null);
 		}
 	};
 
@@ -83,8 +128,16 @@ public class ClusterMapFactory {
 	}
 
 	ClusterMapFactory() {
+		ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1, r -> {
+			Thread thread = new Thread(r, "cluster-map-replication");
+			thread.setDaemon(true);
+			return thread;
+		});
+		executor.setRemoveOnCancelPolicy(true);
+		this.scheduler = executor;
 		this.eventBus = EventBusFactory.getInstance();
 		this.eventBus.registerAll(this);
+		setLocalNode(DNSResolverFactory.getInstance().getDefaultHost());
 	}
 
 	public <K, V> Map<K, V> createMap(final String uid, final Class<K> keyClass, final Class<V> valueClass,
@@ -95,23 +148,125 @@ public class ClusterMapFactory {
 		event.setKeyClass(keyClass);
 		event.setValueClass(valueClass);
 		event.setParams(params);
+		event.setSourceNode(localNode);
+		DMap existing = maps.get(uid);
+		if (existing != null) {
+			event.setSize(existing.size());
+			event.setDigest(calculateDigest(existing));
+		}
+		SnapshotRequest request = new SnapshotRequest(event);
+		pendingSnapshots.put(uid, request);
 		eventBus.fire(event);
+		scheduleSnapshotTimeout(uid, request);
 
 		DMap<K, V> map = maps.computeIfAbsent(uid, (u) -> new DMap<K, V>(uid, this.mapListener, keyClass, valueClass));
 
 		return map;
 	}
 
+	/**
+	 * Creates map partitioned between cluster nodes. Every key is stored on its owner and on <code>backups</code>
+	 * other nodes.
+	 */
+	public <K, V> Map<K, V> createPartitionedMap(final String uid, final Class<K> keyClass,
+												 final Class<V> valueClass, final int backups,
+												 final String... params) {
+		NewMapCreatedEvent event = new NewMapCreatedEvent();
+		event.setUid(uid);
+		event.setKeyClass(keyClass);
+		event.setValueClass(valueClass);
+		event.setParams(params);
+		event.setBackups(backups);
+		eventBus.fire(event);
+
+		PartitionedDMap<K, V> map = partitionedMaps.computeIfAbsent(uid, (u) -> new PartitionedDMap<K, V>(uid, this,
+																										 keyClass,
+																										 valueClass,
+																										 backups,
+																										 nearCacheSize));
+
+		return map;
+	}
+
 	public void destroyMap(Map map) {
+		if (map instanceof PartitionedDMap) {
+			MapDestroyEvent event = new MapDestroyEvent();
+			event.setUid(((PartitionedDMap) map).getUid());
+
+			eventBus.fire(event);
+			this.partitionedMaps.remove(((PartitionedDMap) map).getUid(), map);
+			this.pendingInvalidations.remove(((PartitionedDMap) map).getUid());
+		}
 		if (map instanceof DMap) {
 			MapDestroyEvent event = new MapDestroyEvent();
 			event.setUid(((DMap) map).getUid());
 
 			eventBus.fire(event);
 			this.maps.remove(((DMap) map).getUid(), map);
+			this.pendingChanges.remove(((DMap) map).getUid());
+			this.pendingSnapshots.remove(((DMap) map).getUid());
 		}
 	}
 
+	public long getBatchDelay() {
+		return batchDelay;
+	}
+
+	/**
+	 * Sets time in milliseconds for which changes are coalesced before they are sent to other cluster nodes.
+	 */
+	public void setBatchDelay(long batchDelay) {
+		this.batchDelay = batchDelay;
+	}
+
+	public String getLocalNode() {
+		return localNode;
+	}
+
+	/**
+	 * Sets name of this cluster node. It is always used as one of the nodes partitioned maps are spread over.
+	 */
+	public void setLocalNode(String localNode) {
+		synchronized (clusterNodes) {
+			if (this.localNode != null) {
+				clusterNodes.remove(this.localNode);
+			}
+			this.localNode = localNode;
+			clusterNodes.add(localNode);
+			ring = new ConsistentHashRing(clusterNodes);
+		}
+	}
+
+	/**
+	 * Sets size of the cache of values of partitioned maps read from other nodes. Applies to maps created later.
+	 */
+	public void setNearCacheSize(int nearCacheSize) {
+		this.nearCacheSize = nearCacheSize;
+	}
+
+	/**
+	 * Sets time in milliseconds for which this node waits for the owner of a key of a partitioned map or for the
+	 * sender of a snapshot of a map to respond.
+	 */
+	public void setRequestTimeout(long requestTimeout) {
+		this.requestTimeout = requestTimeout;
+	}
+
+	/**
+	 * Adds cluster node to the list of nodes between which keys of partitioned maps are spread.
+	 */
+	public void nodeConnected(String node) {
+		updateClusterNodes(node, true);
+	}
+
+	/**
+	 * Removes cluster node from the list of nodes between which keys of partitioned maps are spread. Entries which
+	 * were kept only on this node are lost.
+	 */
+	public void nodeDisconnected(String node) {
+		updateClusterNodes(node, false);
+	}
+
 	private void fireOnMapCreated(Map map, String uid, String... parameters) {
 		MapCreatedEvent event = new MapCreatedEvent(map, uid, parameters);
 		eventBus.fire(event);
@@ -131,27 +286,40 @@ public class ClusterMapFactory {
 	}
 
 	public <K, V> Map<K, V> getMap(String uid) {
-		return this.maps.get(uid);
+		Map<K, V> map = this.maps.get(uid);
+		return map != null ? map : this.partitionedMaps.get(uid);
 	}
 
 	@HandleEvent(filter = HandleEvent.Type.remote)
 	void onMapClear(MapClearEvent event) {
 		final String uid = event.getUid();
 		DMap map = this.maps.get(uid);
-		if (map == null) {
+		if (map != null) {
+			markCleared(map);
+			map.clearNoEvent();
+			return;
+		}
+		PartitionedDMap partitionedMap = this.partitionedMaps.get(uid);
+		if (partitionedMap == null) {
 			log.log(Level.FINE, "No map '" + uid + "' created on this node! Ignoring MapClear event.");
 			return;
 		}
-		map.clearNoEvent();
+		partitionedMap.clearNoEvent();
 	}
 
 	@HandleEvent(filter = HandleEvent.Type.remote)
 	void onMapDestroyed(MapDestroyEvent event) {
 		final String uid = event.getUid();
 		DMap map = this.maps.remove(uid);
+		pendingChanges.remove(uid);
+		pendingSnapshots.remove(uid);
 		if (map != null) {
 			fireOnMapDestroyed(map, map.uid);
 		}
+		PartitionedDMap partitionedMap = this.partitionedMaps.remove(uid);
+		if (partitionedMap != null) {
+			fireOnMapDestroyed(partitionedMap, partitionedMap.uid);
+		}
 	}
 
 	@HandleEvent(filter = HandleEvent.Type.remote)
@@ -170,6 +338,7 @@ public class ClusterMapFactory {
 		Object key = typesConverter.convert(k, map.keyClass);
 		Object value = typesConverter.convert(v, map.valueClass);
 
+		markChanged(map, key);
 		map.putNoEvent(key, value);
 	}
 
@@ -185,13 +354,22 @@ public class ClusterMapFactory {
 
 		String k = event.getKey();
 		Object key = typesConverter.convert(k, map.keyClass);
+		markChanged(map, key);
 		map.removeNoEvent(key);
 	}
 
 	@HandleEvent(filter = HandleEvent.Type.remote)
 	void onNewMapCreated(final NewMapCreatedEvent event) {
 		final String uid = event.getUid();
-		if (!maps.containsKey(uid)) {
+		if (event.getBackups() >= 0) {
+			if (!partitionedMaps.containsKey(uid)) {
+				PartitionedDMap map = new PartitionedDMap(uid, this, event.getKeyClass(), event.getValueClass(),
+														  event.getBackups(), nearCacheSize);
+				if (partitionedMaps.putIfAbsent(uid, map) == null) {
+					fireOnMapCreated(map, uid, event.getParams());
+				}
+			}
+		} else if (!maps.containsKey(uid)) {
 			final Class keyClass = event.getKeyClass();
 			final Class valueClass = event.getValueClass();
 
@@ -202,7 +380,710 @@ public class ClusterMapFactory {
 			fireOnMapCreated(map, uid, parameters);
 		} else {
 			DMap map = this.maps.get(uid);
-			mapListener.onPutAll(map, map);
+			// content of the map on this node is not complete if it is still waiting for a snapshot itself
+			if (!pendingSnapshots.containsKey(uid) &&
+					isSnapshotSender(uid, event.getSourceNode(), event.getAttempt())) {
+				String targetNode = event.getSourceNode();
+				if (event.getSize() != map.size() || event.getDigest() != calculateDigest(map)) {
+					scheduler.execute(() -> sendSnapshot(map, targetNode));
+				} else {
+					fireInSync(map, targetNode);
+				}
+			}
+		}
+	}
+
+	@HandleEvent(filter = HandleEvent.Type.remote)
+	void onElementsChanged(ElementsChangedEvent event) {
+		final String uid = event.getUid();
+		final DMap map = this.maps.get(uid);
+
+		if (map == null) {
+			log.log(Level.FINE, "No map '" + uid + "' created on this node! Ignoring ElementsChanged event.");
+			return;
+		}
+
+		applyChanges(map, event.getChanges());
+	}
+
+	@HandleEvent(filter = HandleEvent.Type.remote)
+	void onMapSnapshot(MapSnapshotEvent event) {
+		final String uid = event.getUid();
+		final DMap map = this.maps.get(uid);
+
+		if (map == null) {
+			log.log(Level.FINE, "No map '" + uid + "' created on this node! Ignoring MapSnapshot event.");
+			return;
+		}
+		final SnapshotRequest request = pendingSnapshots.get(uid);
+		if (request == null) {
+			log.log(Level.FINE, "Snapshot of map '" + uid + "' from " + event.getSourceNode() +
+					" was not requested! Ignoring MapSnapshot event.");
+			return;
+		}
+		request.receiving = true;
+		if (event.isInSync()) {
+			pendingSnapshots.remove(uid, request);
+			return;
+		}
+
+		IncomingSnapshot snapshot;
+		if (event.getChunk() == 0) {
+			snapshot = new IncomingSnapshot(event.getSourceNode());
+			incomingSnapshots.put(uid, snapshot);
+		} else {
+			snapshot = incomingSnapshots.get(uid);
+			if (snapshot == null || !snapshot.sourceNode.equals(event.getSourceNode())) {
+				log.log(Level.FINE, "Chunk " + event.getChunk() + " of snapshot of map '" + uid + "' from " +
+						event.getSourceNode() + " is not expected! Ignoring MapSnapshot event.");
+				return;
+			}
+		}
+
+		List<Element> children = event.getItems() == null ? null : event.getItems().getChildren();
+		if (children != null) {
+			for (Element item : children) {
+				Object key = typesConverter.convert(XMLUtils.unescape(item.getAttributeStaticStr(KEY_ATTR)),
+													map.keyClass);
+				Object value = typesConverter.convert(XMLUtils.unescape(item.getAttributeStaticStr(VALUE_ATTR)),
+													  map.valueClass);
+				snapshot.entries.put(key, value);
+			}
+		}
+
+		if (event.isLast() && incomingSnapshots.remove(uid, snapshot)) {
+			replaceContent(map, snapshot.entries, request);
+			// removed after content is replaced, so changes made in the meantime are still recorded in the request
+			pendingSnapshots.remove(uid, request);
+		}
+	}
+
+	@RouteEvent
+	protected Collection<Subscription> routePartitionEvent(PartitionEvent event,
+														   Collection<Subscription> subscriptions) {
+		Iterator<Subscription> it = subscriptions.iterator();
+		while (it.hasNext()) {
+			Subscription s = it.next();
+			if (!s.isInClusterSubscription() || !s.getJid().getDomain().equals(event.getTargetNode())) {
+				it.remove();
+			}
+		}
+		return subscriptions;
+	}
+
+	@HandleEvent(filter = HandleEvent.Type.remote)
+	void onPartitionRequest(PartitionRequestEvent event) {
+		final String uid = event.getUid();
+		final PartitionedDMap map = this.partitionedMaps.get(uid);
+
+		PartitionResponseEvent response;
+		if (map == null) {
+			log.log(Level.FINE, "No map '" + uid + "' created on this node! Ignoring PartitionRequest event.");
+			response = new PartitionResponseEvent();
+			response.setError(true);
+		} else {
+			response = processRequest(map, event.getOp(), event.getKey(), event.getValue(), true);
+		}
+		response.setUid(uid);
+		response.setTargetNode(event.getSourceNode());
+		response.setRequestId(event.getRequestId());
+		eventBus.fire(response);
+	}
+
+	@HandleEvent(filter = HandleEvent.Type.remote)
+	void onPartitionResponse(PartitionResponseEvent event) {
+		CompletableFuture<PartitionResponseEvent> future = pendingRequests.remove(event.getRequestId());
+		if (future != null) {
+			future.complete(event);
+		}
+	}
+
+	@HandleEvent(filter = HandleEvent.Type.remote)
+	void onPartitionTransfer(PartitionTransferEvent event) {
+		final String uid = event.getUid();
+		final PartitionedDMap map = this.partitionedMaps.get(uid);
+
+		if (map == null) {
+			log.log(Level.FINE, "No map '" + uid + "' created on this node! Ignoring PartitionTransfer event.");
+			return;
+		}
+
+		List<Element> children = event.getItems() == null ? null : event.getItems().getChildren();
+		if (children == null) {
+			return;
+		}
+		for (Element item : children) {
+			Object key = typesConverter.convert(XMLUtils.unescape(item.getAttributeStaticStr(KEY_ATTR)), map.keyClass);
+			if (REMOVE_ELEM.equals(item.getName())) {
+				map.removeNoEvent(key);
+			} else {
+				Object value = typesConverter.convert(XMLUtils.unescape(item.getAttributeStaticStr(VALUE_ATTR)),
+													  map.valueClass);
+				map.putNoEvent(key, value);
+			}
+		}
+	}
+
+	@HandleEvent(filter = HandleEvent.Type.remote)
+	void onNearCacheInvalidate(NearCacheInvalidateEvent event) {
+		final PartitionedDMap map = this.partitionedMaps.get(event.getUid());
+		List<Element> children = (map == null || event.getKeys() == null) ? null : event.getKeys().getChildren();
+		if (children == null) {
+			return;
+		}
+		for (Element item : children) {
+			map.invalidateNearCache(
+					typesConverter.convert(XMLUtils.unescape(item.getAttributeStaticStr(KEY_ATTR)), map.keyClass));
+		}
+	}
+
+	String keyToString(Object key) {
+		return typesConverter.toString(key);
+	}
+
+	String valueToString(Object value) {
+		return value == null ? null : typesConverter.toString(value);
+	}
+
+	<V> V convertValue(PartitionedDMap<?, V> map, String value) {
+		return value == null ? null : typesConverter.convert(value, map.valueClass);
+	}
+
+	/**
+	 * Returns nodes responsible for the key. First one is the owner of the key.
+	 */
+	List<String> getOwners(String key, int count) {
+		return ring.getOwners(key, count);
+	}
+
+	void fireClear(PartitionedDMap map) {
+		for (PendingChanges pending : pendingTransfers.values()) {
+			if (pending.uid.equals(map.getUid())) {
+				synchronized (pending) {
+					pending.changes.clear();
+				}
+			}
+		}
+		fireClear(getPendingInvalidations(map), map.getUid());
+	}
+
+	/**
+	 * Called on the owner of the key after its value was changed to update backups and near-caches of other nodes.
+	 */
+	void ownedKeyChanged(PartitionedDMap map, List<String> owners, String key, String value) {
+		for (int i = 1; i < owners.size(); i++) {
+			if (!localNode.equals(owners.get(i))) {
+				addChange(getPendingTransfer(map, owners.get(i)), key, value);
+			}
+		}
+		addChange(getPendingInvalidations(map), key, null);
+	}
+
+	/**
+	 * Reads value of the key from the first of its owners which responds.
+	 */
+	String remoteGet(PartitionedDMap map, List<String> owners, String key) {
+		for (String node : owners) {
+			PartitionResponseEvent response = sendRequestToOwner(map, node, OP_GET, key, null);
+			if (response != null) {
+				return response.getValue();
+			}
+		}
+		throw new IllegalStateException("Could not read key '" + key + "' of map '" + map.getUid() + "' from " + owners);
+	}
+
+	/**
+	 * Puts value of the key (or removes it if value is <code>null</code>) on the owner of the key and returns the
+	 * previous value.
+	 */
+	String remoteUpdate(PartitionedDMap map, String owner, String key, String value) {
+		PartitionResponseEvent response = sendRequestToOwner(map, owner, value == null ? OP_REMOVE : OP_PUT, key,
+															 value);
+		if (response == null) {
+			throw new IllegalStateException(
+					"Could not update key '" + key + "' of map '" + map.getUid() + "' on " + owner);
+		}
+		return response.getValue();
+	}
+
+	/**
+	 * Executes operation on the key if this node is its owner (or one of owners in case of read). Otherwise, if
+	 * <code>checkOwner</code> is set, returns response redirecting sender to the owner of the key.
+	 */
+	private PartitionResponseEvent processRequest(PartitionedDMap map, String op, String key, String value,
+												  boolean checkOwner) {
+		PartitionResponseEvent response = new PartitionResponseEvent();
+		List<String> owners = getOwners(key, map.backups + 1);
+		boolean write = OP_PUT.equals(op) || OP_REMOVE.equals(op);
+		// sender found owners using a ring different from ring of this node, ie. when node joined or left the cluster
+		// and the request was sent before both nodes noticed it
+		if (checkOwner && !owners.isEmpty() &&
+				(write ? !localNode.equals(owners.get(0)) : !owners.contains(localNode))) {
+			response.setOwner(owners.get(0));
+			return response;
+		}
+
+		Object k = typesConverter.convert(key, map.keyClass);
+		Object old;
+		switch (op) {
+			case OP_PUT:
+				old = map.map.get(k);
+				map.putNoEvent(k, typesConverter.convert(value, map.valueClass));
+				ownedKeyChanged(map, owners, key, value);
+				break;
+			case OP_REMOVE:
+				old = map.removeNoEvent(k);
+				ownedKeyChanged(map, owners, key, null);
+				break;
+			default:
+				old = map.map.get(k);
+				break;
+		}
+		response.setValue(old == null ? null : typesConverter.toString(old));
+		return response;
+	}
+
+	/**
+	 * Sends request to the node and follows redirects to the current owner of the key. Returns <code>null</code> if
+	 * there was no valid response.
+	 */
+	private PartitionResponseEvent sendRequestToOwner(PartitionedDMap map, String node, String op, String key,
+													  String value) {
+		for (int i = 0; i <= MAX_REDIRECTS; i++) {
+			if (localNode.equals(node)) {
+				// rings are not updated on all nodes at the same time, so node may be redirected back to itself
+				return processRequest(map, op, key, value, false);
+			}
+			PartitionResponseEvent response = sendRequest(map, node, op, key, value);
+			if (response == null || response.getOwner() == null) {
+				return response;
+			}
+			if (log.isLoggable(Level.FINEST)) {
+				log.log(Level.FINEST, "Node " + node + " is not owner of key '" + key + "' of map '" + map.getUid() +
+						"', redirecting " + op + " to " + response.getOwner());
+			}
+			node = response.getOwner();
+		}
+		log.log(Level.FINE, "Too many redirects for " + op + " of key '" + key + "' of map '" + map.getUid() + "'");
+		return null;
+	}
+
+	private PartitionResponseEvent sendRequest(PartitionedDMap map, String node, String op, String key,
+											   String value) {
+		long requestId = requestIds.incrementAndGet();
+		CompletableFuture<PartitionResponseEvent> future = new CompletableFuture<>();
+		pendingRequests.put(requestId, future);
+		try {
+			PartitionRequestEvent event = new PartitionRequestEvent();
+			event.setUid(map.getUid());
+			event.setTargetNode(node);
+			event.setSourceNode(localNode);
+			event.setRequestId(requestId);
+			event.setOp(op);
+			event.setKey(key);
+			event.setValue(value);
+			eventBus.fire(event);
+
+			PartitionResponseEvent response = future.get(requestTimeout, TimeUnit.MILLISECONDS);
+			return response.isError() ? null : response;
+		} catch (TimeoutException | ExecutionException ex) {
+			log.log(Level.FINE, "No response from node " + node + " for " + op + " of key '" + key + "' of map '" +
+					map.getUid() + "'", ex);
+			return null;
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+			return null;
+		} finally {
+			pendingRequests.remove(requestId);
+		}
+	}
+
+	private void updateClusterNodes(String node, boolean connected) {
+		final ConsistentHashRing oldRing;
+		final ConsistentHashRing newRing;
+		synchronized (clusterNodes) {
+			if (node.equals(localNode) || !(connected ? clusterNodes.add(node) : clusterNodes.remove(node))) {
+				return;
+			}
+			oldRing = ring;
+			newRing = new ConsistentHashRing(clusterNodes);
+			ring = newRing;
+		}
+		log.log(Level.FINE, "Partitioned maps are spread over nodes: " + newRing.getNodes());
+		if (!partitionedMaps.isEmpty()) {
+			scheduler.execute(() -> rebalance(oldRing, newRing));
+		}
+	}
+
+	/**
+	 * Sends entries stored on this node to nodes which became responsible for them and removes entries for which this
+	 * node is not responsible any more. Entry is sent by the first of its previous owners which is still connected.
+	 */
+	private void rebalance(ConsistentHashRing oldRing, ConsistentHashRing newRing) {
+		for (PartitionedDMap<?, ?> map : partitionedMaps.values()) {
+			try {
+				int moved = 0;
+				int count = map.backups + 1;
+				Iterator<? extends Map.Entry<?, ?>> it = map.map.entrySet().iterator();
+				while (it.hasNext()) {
+					Map.Entry<?, ?> e = it.next();
+					String key = typesConverter.toString(e.getKey());
+					List<String> oldOwners = oldRing.getOwners(key, count);
+					List<String> newOwners = newRing.getOwners(key, count);
+					if (oldOwners.equals(newOwners)) {
+						continue;
+					}
+					String sender = localNode;
+					for (String node : oldOwners) {
+						if (newRing.contains(node)) {
+							sender = node;
+							break;
+						}
+					}
+					if (localNode.equals(sender)) {
+						String value = typesConverter.toString(e.getValue());
+						for (String node : newOwners) {
+							if (!oldOwners.contains(node) && !localNode.equals(node)) {
+								addChange(getPendingTransfer(map, node), key, value);
+								moved++;
+							}
+						}
+					}
+					if (!newOwners.contains(localNode)) {
+						it.remove();
+					}
+				}
+				map.invalidateNearCache();
+				if (log.isLoggable(Level.FINE)) {
+					log.log(Level.FINE, "Sent " + moved + " entries of map '" + map.getUid() + "' to new owners");
+				}
+			} catch (Throwable ex) {
+				log.log(Level.WARNING, "Could not move entries of map '" + map.getUid() + "' to new owners", ex);
+			}
+		}
+	}
+
+	private PendingChanges getPendingChanges(DMap map) {
+		return pendingChanges.computeIfAbsent(map.getUid(), uid -> new PendingChanges(uid, changes -> {
+			ElementsChangedEvent event = new ElementsChangedEvent();
+			event.setUid(uid);
+			event.setChanges(changes);
+			return event;
+		}));
+	}
+
+	private PendingChanges getPendingInvalidations(PartitionedDMap map) {
+		return pendingInvalidations.computeIfAbsent(map.getUid(), uid -> new PendingChanges(uid, keys -> {
+			NearCacheInvalidateEvent event = new NearCacheInvalidateEvent();
+			event.setUid(uid);
+			event.setKeys(keys);
+			return event;
+		}));
+	}
+
+	private PendingChanges getPendingTransfer(PartitionedDMap map, String node) {
+		return pendingTransfers.computeIfAbsent(node + "/" + map.getUid(),
+												id -> new PendingChanges(map.getUid(), items -> {
+													PartitionTransferEvent event = new PartitionTransferEvent();
+													event.setUid(map.getUid());
+													event.setTargetNode(node);
+													event.setItems(items);
+													return event;
+												}));
+	}
+
+	private void fireClear(PendingChanges pending, String uid) {
+		synchronized (pending) {
+			// changes made before clear are not relevant any more
+			pending.changes.clear();
+			MapClearEvent event = new MapClearEvent();
+			event.setUid(uid);
+			eventBus.fire(event);
+		}
+	}
+
+	private void addChange(PendingChanges pending, String key, String value) {
+		boolean schedule;
+		boolean flush;
+		synchronized (pending) {
+			pending.changes.put(key, value);
+			flush = pending.changes.size() >= MAX_BATCH_SIZE;
+			schedule = !pending.scheduled && !flush;
+			pending.scheduled |= schedule;
+		}
+		if (flush) {
+			flushChanges(pending);
+		} else if (schedule) {
+			scheduler.schedule(() -> flushChanges(pending), batchDelay, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	private void flushChanges(PendingChanges pending) {
+		try {
+			synchronized (pending) {
+				pending.scheduled = false;
+				if (pending.changes.isEmpty()) {
+					return;
+				}
+				Element changes = new Element("changes");
+				for (Map.Entry<String, String> e : pending.changes.entrySet()) {
+					changes.addChild(createItem(e.getKey(), e.getValue()));
+				}
+				pending.changes.clear();
+
+				// firing while holding the lock to keep order of changes and clear of the map
+				eventBus.fire(pending.eventFactory.apply(changes));
+			}
+		} catch (Throwable ex) {
+			log.log(Level.WARNING, "Could not send changes of map '" + pending.uid + "'", ex);
+		}
+	}
+
+	/**
+	 * Checks if this node should send snapshot of the map to the node which created it. Snapshot is sent by the node
+	 * at position <code>attempt</code> on the list of nodes responsible for the name of the map, excluding the
+	 * requesting one, so every time the snapshot is requested again it is requested from another node.
+	 */
+	private boolean isSnapshotSender(String uid, String sourceNode, int attempt) {
+		if (sourceNode == null) {
+			return false;
+		}
+		List<String> senders = getSnapshotSenders(uid, sourceNode);
+		return !senders.isEmpty() && senders.get(attempt % senders.size()).equals(localNode);
+	}
+
+	private List<String> getSnapshotSenders(String uid, String sourceNode) {
+		ConsistentHashRing ring = this.ring;
+		List<String> senders = new ArrayList<>(ring.getOwners(uid, ring.getNodes().size()));
+		senders.remove(sourceNode);
+		return senders;
+	}
+
+	private void scheduleSnapshotTimeout(String uid, SnapshotRequest request) {
+		scheduler.schedule(() -> onSnapshotTimeout(uid, request), requestTimeout, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Requests snapshot of the map from the next node if there was no response to the previous request. Gives up
+	 * after all other nodes were asked.
+	 */
+	private void onSnapshotTimeout(String uid, SnapshotRequest request) {
+		try {
+			DMap map = maps.get(uid);
+			if (map == null || pendingSnapshots.get(uid) != request) {
+				return;
+			}
+			if (request.receiving) {
+				// snapshot is being received, waiting for next chunks
+				request.receiving = false;
+				scheduleSnapshotTimeout(uid, request);
+				return;
+			}
+			int attempt = ++request.attempt;
+			if (attempt >= getSnapshotSenders(uid, localNode).size()) {
+				log.log(Level.FINE, "No snapshot of map '" + uid + "' received after " + attempt + " attempts");
+				pendingSnapshots.remove(uid, request);
+				return;
+			}
+			incomingSnapshots.remove(uid);
+			NewMapCreatedEvent event = new NewMapCreatedEvent();
+			event.setUid(uid);
+			event.setKeyClass(request.event.getKeyClass());
+			event.setValueClass(request.event.getValueClass());
+			event.setParams(request.event.getParams());
+			event.setSourceNode(localNode);
+			event.setAttempt(attempt);
+			event.setSize(map.size());
+			event.setDigest(calculateDigest(map));
+			if (log.isLoggable(Level.FINE)) {
+				log.log(Level.FINE, "No snapshot of map '" + uid + "' received, requesting it again");
+			}
+			eventBus.fire(event);
+			scheduleSnapshotTimeout(uid, request);
+		} catch (Throwable ex) {
+			log.log(Level.WARNING, "Could not request snapshot of map '" + uid + "'", ex);
+		}
+	}
+
+	/**
+	 * Records that the key of the map was changed after its snapshot was requested.
+	 */
+	private void markChanged(DMap map, Object key) {
+		SnapshotRequest request = pendingSnapshots.get(map.getUid());
+		if (request != null) {
+			synchronized (request) {
+				request.changedKeys.add(key);
+			}
+		}
+	}
+
+	private void markCleared(DMap map) {
+		SnapshotRequest request = pendingSnapshots.get(map.getUid());
+		if (request != null) {
+			synchronized (request) {
+				request.changedKeys.clear();
+				request.cleared = true;
+			}
+		}
+	}
+
+	private void fireInSync(DMap map, String targetNode) {
+		MapSnapshotEvent event = new MapSnapshotEvent();
+		event.setUid(map.getUid());
+		event.setTargetNode(targetNode);
+		event.setSourceNode(localNode);
+		event.setLast(true);
+		event.setInSync(true);
+		eventBus.fire(event);
+	}
+
+	private void sendSnapshot(DMap<?, ?> map, String targetNode) {
+		try {
+			int size = map.size();
+			long digest = calculateDigest(map);
+			int chunk = 0;
+			List<Element> items = new ArrayList<>();
+			for (Map.Entry<?, ?> e : map.map.entrySet()) {
+				items.add(createItem(typesConverter.toString(e.getKey()), typesConverter.toString(e.getValue())));
+				if (items.size() >= MAX_BATCH_SIZE) {
+					fireSnapshotChunk(map, targetNode, size, digest, chunk++, items, false);
+					items = new ArrayList<>();
+				}
+			}
+			fireSnapshotChunk(map, targetNode, size, digest, chunk, items, true);
+			if (log.isLoggable(Level.FINE)) {
+				log.log(Level.FINE, "Sent snapshot of map '" + map.getUid() + "' with " + size + " entries to " +
+						targetNode);
+			}
+		} catch (Throwable ex) {
+			log.log(Level.WARNING, "Could not send snapshot of map '" + map.getUid() + "'", ex);
+		}
+	}
+
+	private void fireSnapshotChunk(DMap map, String targetNode, int size, long digest, int chunk,
+								   List<Element> items, boolean last) {
+		Element itemsEl = new Element("items");
+		itemsEl.addChildren(items);
+		MapSnapshotEvent event = new MapSnapshotEvent();
+		event.setUid(map.getUid());
+		event.setTargetNode(targetNode);
+		event.setSourceNode(localNode);
+		event.setSize(size);
+		event.setDigest(digest);
+		event.setChunk(chunk);
+		event.setLast(last);
+		event.setItems(itemsEl);
+		eventBus.fire(event);
+	}
+
+	/**
+	 * Replaces content of the map with entries received in a snapshot. Keys changed after the snapshot was requested
+	 * are kept as they are, as the snapshot may be older than the change. Snapshot is ignored if the map was cleared
+	 * in the meantime.
+	 */
+	private void replaceContent(DMap map, Map<Object, Object> entries, SnapshotRequest request) {
+		// changes are recorded before they are applied, so holding the lock makes a change either skipped here or
+		// applied after the snapshot
+		synchronized (request) {
+			if (request.cleared) {
+				log.log(Level.FINE, "Map '" + map.getUid() + "' was cleared, ignoring its snapshot");
+				return;
+			}
+			for (Object key : new ArrayList<>(map.map.keySet())) {
+				if (!entries.containsKey(key) && !request.changedKeys.contains(key)) {
+					map.removeNoEvent(key);
+				}
+			}
+			for (Map.Entry<Object, Object> e : entries.entrySet()) {
+				if (!request.changedKeys.contains(e.getKey())) {
+					map.putNoEvent(e.getKey(), e.getValue());
+				}
+			}
+		}
+	}
+
+	private void applyChanges(DMap map, Element changes) {
+		List<Element> children = changes == null ? null : changes.getChildren();
+		if (children == null) {
+			return;
+		}
+		for (Element item : children) {
+			Object key = typesConverter.convert(XMLUtils.unescape(item.getAttributeStaticStr(KEY_ATTR)), map.keyClass);
+			markChanged(map, key);
+			if (REMOVE_ELEM.equals(item.getName())) {
+				map.removeNoEvent(key);
+			} else {
+				Object value = typesConverter.convert(XMLUtils.unescape(item.getAttributeStaticStr(VALUE_ATTR)),
+													  map.valueClass);
+				map.putNoEvent(key, value);
+			}
+		}
+	}
+
+	private Element createItem(String key, String value) {
+		if (value == null) {
+			return new Element(REMOVE_ELEM, new String[]{KEY_ATTR}, new String[]{XMLUtils.escape(key)});
+		}
+		return new Element(PUT_ELEM, new String[]{KEY_ATTR, VALUE_ATTR},
+						   new String[]{XMLUtils.escape(key), XMLUtils.escape(value)});
+	}
+
+	/**
+	 * Calculates digest of the content of the map which does not depend on the order of entries.
+	 */
+	long calculateDigest(DMap<?, ?> map) {
+		long digest = 0;
+		for (Map.Entry<?, ?> e : map.map.entrySet()) {
+			long h = typesConverter.toString(e.getKey()).hashCode() * 0x9E3779B97F4A7C15L +
+					typesConverter.toString(e.getValue()).hashCode();
+			h ^= h >>> 33;
+			h *= 0xff51afd7ed558ccdL;
+			h ^= h >>> 33;
+			digest += h;
+		}
+		return digest;
+	}
+
+	/**
+	 * Chunks of snapshot of the map received so far from a single node.
+	 */
+	private static class IncomingSnapshot {
+
+		private final Map<Object, Object> entries = new HashMap<>();
+		private final String sourceNode;
+
+		private IncomingSnapshot(String sourceNode) {
+			this.sourceNode = sourceNode;
+		}
+	}
+
+	/**
+	 * Snapshot of the map requested by this node and keys of the map changed since the request.
+	 */
+	private static class SnapshotRequest {
+
+		private final Set<Object> changedKeys = new HashSet<>();
+		private final NewMapCreatedEvent event;
+		private int attempt = 0;
+		private boolean cleared = false;
+		private volatile boolean receiving = false;
+
+		private SnapshotRequest(NewMapCreatedEvent event) {
+			this.event = event;
+		}
+	}
+
+	private static class PendingChanges {
+
+		// value null means removal of a key
+		private final Map<String, String> changes = new LinkedHashMap<>();
+		private final Function<Element, Object> eventFactory;
+		private final String uid;
+		private boolean scheduled = false;
+
+		private PendingChanges(String uid, Function<Element, Object> eventFactory) {
+			this.uid = uid;
+			this.eventFactory = eventFactory;
 		}
 	}
 
@@ -238,6 +1119,204 @@ public class ClusterMapFactory {
 		}
 	}
 
+	/**
+	 * Event with changes of the map made on other node. Contains <code>put</code> and <code>remove</code> elements
+	 * with only the latest change of every key.
+	 */
+	public static class ElementsChangedEvent
+			implements Serializable {
+
+		private Element changes;
+		private String uid;
+
+		public Element getChanges() {
+			return changes;
+		}
+
+		public void setChanges(Element changes) {
+			this.changes = changes;
+		}
+
+		public String getUid() {
+			return uid;
+		}
+
+		public void setUid(String uid) {
+			this.uid = uid;
+		}
+	}
+
+	/**
+	 * Event with keys of a partitioned map changed on the owner of these keys, which should be removed from
+	 * near-caches.
+	 */
+	public static class NearCacheInvalidateEvent
+			implements Serializable {
+
+		private Element keys;
+		private String uid;
+
+		public Element getKeys() {
+			return keys;
+		}
+
+		public void setKeys(Element keys) {
+			this.keys = keys;
+		}
+
+		public String getUid() {
+			return uid;
+		}
+
+		public void setUid(String uid) {
+			this.uid = uid;
+		}
+	}
+
+	/**
+	 * Base class of events which are sent only to a single cluster node.
+	 */
+	public static abstract class PartitionEvent
+			implements Serializable {
+
+		private String targetNode;
+		private String uid;
+
+		public String getTargetNode() {
+			return targetNode;
+		}
+
+		public void setTargetNode(String targetNode) {
+			this.targetNode = targetNode;
+		}
+
+		public String getUid() {
+			return uid;
+		}
+
+		public void setUid(String uid) {
+			this.uid = uid;
+		}
+	}
+
+	/**
+	 * Event with read or write of the key of a partitioned map sent to the owner of the key.
+	 */
+	public static class PartitionRequestEvent
+			extends PartitionEvent {
+
+		private String key;
+		private String op;
+		private long requestId;
+		private String sourceNode;
+		private String value;
+
+		public String getKey() {
+			return key;
+		}
+
+		public void setKey(String key) {
+			this.key = key;
+		}
+
+		public String getOp() {
+			return op;
+		}
+
+		public void setOp(String op) {
+			this.op = op;
+		}
+
+		public long getRequestId() {
+			return requestId;
+		}
+
+		public void setRequestId(long requestId) {
+			this.requestId = requestId;
+		}
+
+		public String getSourceNode() {
+			return sourceNode;
+		}
+
+		public void setSourceNode(String sourceNode) {
+			this.sourceNode = sourceNode;
+		}
+
+		public String getValue() {
+			return value;
+		}
+
+		public void setValue(String value) {
+			this.value = value;
+		}
+	}
+
+	/**
+	 * Response of the owner of the key of a partitioned map with the value of the key (previous value in case of
+	 * write).
+	 */
+	public static class PartitionResponseEvent
+			extends PartitionEvent {
+
+		private boolean error;
+		private String owner;
+		private long requestId;
+		private String value;
+
+		public boolean isError() {
+			return error;
+		}
+
+		public void setError(boolean error) {
+			this.error = error;
+		}
+
+		/**
+		 * Returns owner of the key if request was sent to a node which is not its owner.
+		 */
+		public String getOwner() {
+			return owner;
+		}
+
+		public void setOwner(String owner) {
+			this.owner = owner;
+		}
+
+		public long getRequestId() {
+			return requestId;
+		}
+
+		public void setRequestId(long requestId) {
+			this.requestId = requestId;
+		}
+
+		public String getValue() {
+			return value;
+		}
+
+		public void setValue(String value) {
+			this.value = value;
+		}
+	}
+
+	/**
+	 * Event with entries of a partitioned map sent to node keeping their backup or to their new owner.
+	 */
+	public static class PartitionTransferEvent
+			extends PartitionEvent {
+
+		private Element items;
+
+		public Element getItems() {
+			return items;
+		}
+
+		public void setItems(Element items) {
+			this.items = items;
+		}
+	}
+
 	public static class ElementRemoveEvent
 			implements Serializable {
 
@@ -289,14 +1368,139 @@ public class ClusterMapFactory {
 		}
 	}
 
+	/**
+	 * Event with a chunk of snapshot of the map sent only to node which created the map. Size and digest are of the
+	 * whole map.
+	 */
+	public static class MapSnapshotEvent
+			extends PartitionEvent {
+
+		private int chunk;
+		private long digest;
+		private boolean inSync;
+		private Element items;
+		private boolean last;
+		private int size;
+		private String sourceNode;
+
+		public int getChunk() {
+			return chunk;
+		}
+
+		public void setChunk(int chunk) {
+			this.chunk = chunk;
+		}
+
+		public long getDigest() {
+			return digest;
+		}
+
+		public void setDigest(long digest) {
+			this.digest = digest;
+		}
+
+		/**
+		 * Checks if content of the map on the sender is the same as on the node which created it and no chunks
+		 * follow.
+		 */
+		public boolean isInSync() {
+			return inSync;
+		}
+
+		public void setInSync(boolean inSync) {
+			this.inSync = inSync;
+		}
+
+		public Element getItems() {
+			return items;
+		}
+
+		public void setItems(Element items) {
+			this.items = items;
+		}
+
+		/**
+		 * Checks if this is the last chunk of the snapshot.
+		 */
+		public boolean isLast() {
+			return last;
+		}
+
+		public void setLast(boolean last) {
+			this.last = last;
+		}
+
+		public int getSize() {
+			return size;
+		}
+
+		public void setSize(int size) {
+			this.size = size;
+		}
+
+		public String getSourceNode() {
+			return sourceNode;
+		}
+
+		public void setSourceNode(String sourceNode) {
+			this.sourceNode = sourceNode;
+		}
+	}
+
 	public static class NewMapCreatedEvent
 			implements Serializable {
 
+		private int attempt;
+		private int backups = -1;
+		private long digest;
 		private Class keyClass;
 		private String[] params;
+		private int size;
+		private String sourceNode;
 		private String uid;
 		private Class valueClass;
 
+		/**
+		 * Number of previous requests for snapshot of the map which were not answered.
+		 */
+		public int getAttempt() {
+			return attempt;
+		}
+
+		public void setAttempt(int attempt) {
+			this.attempt = attempt;
+		}
+
+		/**
+		 * Number of backups of keys of a partitioned map or <code>-1</code> if map is replicated to all nodes.
+		 */
+		public int getBackups() {
+			return backups;
+		}
+
+		public void setBackups(int backups) {
+			this.backups = backups;
+		}
+
+		/**
+		 * Digest of the content of the map on the node which created it.
+		 */
+		public long getDigest() {
+			return digest;
+		}
+
+		public void setDigest(long digest) {
+			this.digest = digest;
+		}
+
+		public int getSize() {
+			return size;
+		}
+
+		public void setSize(int size) {
+			this.size = size;
+		}
+
 		public Class getKeyClass() {
 			return keyClass;
 		}
@@ -313,6 +1517,17 @@ public class ClusterMapFactory {
 			this.params = params;
 		}
 
+		/**
+		 * Name of the node which created the map.
+		 */
+		public String getSourceNode() {
+			return sourceNode;
+		}
+
+		public void setSourceNode(String sourceNode) {
+			this.sourceNode = sourceNode;
+		}
+
 		public String getUid() {
 			return uid;
 		}
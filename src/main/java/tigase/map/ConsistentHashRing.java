@@ -0,0 +1,89 @@
+/*
+ * Tigase XMPP Server - The instant messaging server
+ * Copyright (C) 2004 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.map;
+
+import tigase.util.common.HashUtils;
+
+import java.util.*;
+
+/**
+ * Immutable consistent hashing ring of cluster nodes used to find owners of keys of partitioned maps.
+ * <br>
+ * Every node is placed on the ring {@link #VIRTUAL_NODES} times, so keys are spread evenly and, when a node joins or
+ * leaves the cluster, only keys owned by this node change their owners.
+ */
+class ConsistentHashRing {
+
+	static final int VIRTUAL_NODES = 128;
+
+	private final long[] hashes;
+	private final Set<String> nodes;
+	private final String[] owners;
+
+	ConsistentHashRing(Collection<String> nodes) {
+		this.nodes = Collections.unmodifiableSet(new TreeSet<>(nodes));
+		int size = this.nodes.size() * VIRTUAL_NODES;
+		long[][] points = new long[size][];
+		String[] names = this.nodes.toArray(new String[0]);
+		int i = 0;
+		for (int n = 0; n < names.length; n++) {
+			for (int v = 0; v < VIRTUAL_NODES; v++) {
+				points[i++] = new long[]{HashUtils.hash64(names[n] + "#" + v), n};
+			}
+		}
+		Arrays.sort(points, (p1, p2) -> Long.compare(p1[0], p2[0]));
+		this.hashes = new long[size];
+		this.owners = new String[size];
+		for (i = 0; i < size; i++) {
+			hashes[i] = points[i][0];
+			owners[i] = names[(int) points[i][1]];
+		}
+	}
+
+	boolean contains(String node) {
+		return nodes.contains(node);
+	}
+
+	Set<String> getNodes() {
+		return nodes;
+	}
+
+	/**
+	 * Returns up to <code>count</code> distinct nodes responsible for the key. First node is the owner of the key and
+	 * next are nodes keeping backups.
+	 */
+	List<String> getOwners(String key, int count) {
+		count = Math.min(count, nodes.size());
+		if (count <= 0) {
+			return Collections.emptyList();
+		}
+		int idx = Arrays.binarySearch(hashes, HashUtils.hash64(key));
+		if (idx < 0) {
+			idx = -idx - 1;
+		}
+		List<String> result = new ArrayList<>(count);
+		for (int i = 0; i < owners.length && result.size() < count; i++) {
+			String node = owners[(idx + i) % owners.length];
+			if (!result.contains(node)) {
+				result.add(node);
+			}
+		}
+		return result;
+	}
+
+}
@@ -0,0 +1,197 @@
+/*
+ * Tigase XMPP Server - The instant messaging server
+ * Copyright (C) 2004 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.map;
+
+import tigase.util.common.TinyLFUCache;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Map partitioned between cluster nodes. Every key is owned by a single node (and backed up on <code>backups</code>
+ * next nodes) selected by {@link ConsistentHashRing}, so every node keeps only its share of entries.
+ * <br>
+ * Reads and writes of keys not owned by this node are sent to the owner and values read from other nodes are kept in
+ * a near-cache which admits only frequently read keys. Entries of the near-cache are invalidated by the owner after
+ * every change of the key.
+ * <br>
+ * Methods <code>size()</code>, <code>keySet()</code>, <code>values()</code> and <code>entrySet()</code> return only
+ * entries stored on this node. Methods of this map may block waiting for the response of other node, so they should
+ * not be called from event handlers.
+ */
+class PartitionedDMap<K, V>
+		implements Map<K, V> {
+
+	private static final Object NULL_VALUE = new Object();
+
+	final int backups;
+	final Class<K> keyClass;
+	final ConcurrentHashMap<K, V> map = new ConcurrentHashMap<K, V>();
+	final String uid;
+	final Class<V> valueClass;
+	private final ClusterMapFactory factory;
+	private final AtomicLong invalidations = new AtomicLong();
+	private final TinyLFUCache<Object, Object> nearCache;
+
+	PartitionedDMap(String uid, ClusterMapFactory factory, Class<K> keyClass, Class<V> valueClass, int backups,
+					int nearCacheSize) {
+		this.uid = uid;
+		this.factory = factory;
+		this.keyClass = keyClass;
+		this.valueClass = valueClass;
+		this.backups = backups;
+		this.nearCache = new TinyLFUCache<>(nearCacheSize);
+	}
+
+	@Override
+	public void clear() {
+		factory.fireClear(this);
+		clearNoEvent();
+	}
+
+	public void clearNoEvent() {
+		map.clear();
+		invalidateNearCache();
+	}
+
+	@Override
+	public boolean containsKey(Object key) {
+		return get(key) != null;
+	}
+
+	@Override
+	public boolean containsValue(Object value) {
+		return map.containsValue(value);
+	}
+
+	@Override
+	public Set<Entry<K, V>> entrySet() {
+		return new SetWrapper<>(map.entrySet());
+	}
+
+	@Override
+	@SuppressWarnings("unchecked")
+	public V get(Object key) {
+		String k = factory.keyToString(key);
+		List<String> owners = factory.getOwners(k, backups + 1);
+		if (owners.isEmpty() || owners.contains(factory.getLocalNode())) {
+			return map.get(key);
+		}
+
+		Object cached = nearCache.get(key);
+		if (cached != null) {
+			return cached == NULL_VALUE ? null : (V) cached;
+		}
+
+		long invalidationsBefore = invalidations.get();
+		V value = factory.convertValue(this, factory.remoteGet(this, owners, k));
+		// value read concurrently with modification of the key may be already outdated
+		if (invalidationsBefore == invalidations.get()) {
+			nearCache.put(key, value == null ? NULL_VALUE : value);
+		}
+		return value;
+	}
+
+	public String getUid() {
+		return uid;
+	}
+
+	@Override
+	public boolean isEmpty() {
+		return map.isEmpty();
+	}
+
+	@Override
+	public Set<K> keySet() {
+		return new SetWrapper<>(map.keySet());
+	}
+
+	@Override
+	public V put(K key, V value) {
+		return update(key, factory.valueToString(value), value);
+	}
+
+	@Override
+	public void putAll(Map<? extends K, ? extends V> m) {
+		for (Entry<? extends K, ? extends V> e : m.entrySet()) {
+			put(e.getKey(), e.getValue());
+		}
+	}
+
+	public void putNoEvent(K key, V value) {
+		map.put(key, value);
+		invalidateNearCache(key);
+	}
+
+	@Override
+	@SuppressWarnings("unchecked")
+	public V remove(Object key) {
+		return update((K) key, null, null);
+	}
+
+	public V removeNoEvent(Object key) {
+		invalidateNearCache(key);
+		return map.remove(key);
+	}
+
+	@Override
+	public int size() {
+		return map.size();
+	}
+
+	@Override
+	public String toString() {
+		return map.toString();
+	}
+
+	@Override
+	public Collection<V> values() {
+		return new CollectionWrapper<>(map.values());
+	}
+
+	void invalidateNearCache(Object key) {
+		invalidations.incrementAndGet();
+		nearCache.remove(key);
+	}
+
+	void invalidateNearCache() {
+		invalidations.incrementAndGet();
+		nearCache.clear();
+	}
+
+	/**
+	 * Puts (or removes if value is <code>null</code>) entry on the owner of the key.
+	 */
+	private V update(K key, String v, V value) {
+		String k = factory.keyToString(key);
+		List<String> owners = factory.getOwners(k, backups + 1);
+		if (owners.isEmpty() || owners.get(0).equals(factory.getLocalNode())) {
+			V old = value == null ? map.remove(key) : map.put(key, value);
+			factory.ownedKeyChanged(this, owners, k, v);
+			return old;
+		}
+
+		invalidateNearCache(key);
+		return factory.convertValue(this, factory.remoteUpdate(this, owners.get(0), k, v));
+	}
+
+}
@@ -69,6 +69,27 @@ public interface ConnectionOpenListener {
 		return ConnectionOpenThread.def_5222_throttling;
 	}
 
+	/**
+	 * Returns name of a group of listeners sharing acceptor threads or <code>null</code> to use the default group.
+	 */
+	default String getAcceptorGroup() {
+		return null;
+	}
+
+	/**
+	 * Returns number of threads accepting connections on the port.
+	 */
+	default int getAcceptorThreads() {
+		return 1;
+	}
+
+	/**
+	 * Checks if every acceptor thread should have its own socket bound with <code>SO_REUSEPORT</code> option.
+	 */
+	default boolean isReusePort() {
+		return false;
+	}
+
 	default void release() {}
 }    // ConnectionOpenListener
 
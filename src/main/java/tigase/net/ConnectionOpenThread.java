@@ -17,20 +17,37 @@
  */
 package tigase.net;
 
+import tigase.stats.StatisticsList;
+import tigase.util.common.LatencyHistogram;
+
 import java.io.IOException;
 import java.net.InetSocketAddress;
 import java.net.NoRouteToHostException;
 import java.net.SocketException;
+import java.net.SocketOption;
+import java.net.StandardSocketOptions;
 import java.nio.channels.*;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 /**
  * Describe class ConnectionOpenThread here.
  * <br>
+ * Listeners are grouped (ie. by connection manager) and every group has its own acceptor threads, each with its own
+ * selector, so flood of new client connections does not delay accepting connections on ports of other groups. Port
+ * may be served by many acceptor threads of its group - they share the same server socket or, if
+ * <code>SO_REUSEPORT</code> is requested and supported, every thread has its own socket and connections are spread
+ * between them by the operating system.
+ * <br>
+ * Rate of new connections on every port is limited by a token bucket, so connections exceeding the limit are closed
+ * right after they are accepted, before any resources are allocated for them.
+ * <br>
  * Created: Wed Jan 25 23:51:28 2006
  *
  * @author <a href="mailto:artur.hefczyc@tigase.org">Artur Hefczyc</a>
@@ -38,6 +55,8 @@ import java.util.logging.Logger;
 public class ConnectionOpenThread
 		implements Runnable {
 
+	public static final String DEF_ACCEPTOR_GROUP = "default";
+
 	public static final long def_5222_throttling = 200;
 
 	public static final long def_5223_throttling = 50;
@@ -45,15 +64,17 @@ public class ConnectionOpenThread
 	public static final long def_5269_throttling = 100;
 
 	public static final long def_5280_throttling = 1000;
+	private static final int MAX_ACCEPTS_PER_SELECT = 64;
 	private static final Logger log = Logger.getLogger(ConnectionOpenThread.class.getName());
+	private static final SocketOption<Boolean> SO_REUSEPORT = findReusePortOption();
 	public static Map<Integer, PortThrottlingData> throttling = new ConcurrentHashMap<Integer, PortThrottlingData>(10);
 	private static ConnectionOpenThread acceptThread = null;
 
 	protected long accept_counter = 0;
-	private Selector selector = null;
-	private boolean stopping = false;
-	private Timer timer = null;
-	private ConcurrentLinkedQueue<Task> waiting = new ConcurrentLinkedQueue<>();
+	private final Map<ConnectionOpenListener, List<ServerSocketChannel>> channels = new ConcurrentHashMap<>();
+	private final Map<String, List<Acceptor>> groups = new ConcurrentHashMap<>();
+	private volatile boolean started = false;
+	private volatile boolean stopping = false;
 
 	public static ConnectionOpenThread getInstance() {
 
@@ -64,11 +85,7 @@ public class ConnectionOpenThread
 //  }
 		if (acceptThread == null) {
 			acceptThread = new ConnectionOpenThread();
-
-			Thread thrd = new Thread(acceptThread);
-
-			thrd.setName("ConnectionOpenThread");
-			thrd.start();
+			acceptThread.start();
 			if (log.isLoggable(Level.FINER)) {
 				log.finer("ConnectionOpenThread started.");
 			}
@@ -77,290 +94,459 @@ public class ConnectionOpenThread
 		return acceptThread;
 	}
 
-	private ConnectionOpenThread() {
-		timer = new Timer("Connections open timer", true);
-		timer.scheduleAtFixedRate(new TimerTask() {
-			@Override
-			public void run() {
-				for (PortThrottlingData portData : throttling.values()) {
-					portData.lastSecondConnections = 0;
-				}
-			}
-		}, 1000, 1000);
+	@SuppressWarnings("unchecked")
+	private static SocketOption<Boolean> findReusePortOption() {
+		// option is available since Java 9
 		try {
-			selector = Selector.open();
-		} catch (Exception e) {
-			log.log(Level.SEVERE, "Server I/O error, can''t continue my work.", e);
-			stopping = true;
-		}    // end of try-catch
+			return (SocketOption<Boolean>) StandardSocketOptions.class.getField("SO_REUSEPORT").get(null);
+		} catch (ReflectiveOperationException e) {
+			return null;
+		}
+	}
+
+	private static String getGroup(ConnectionOpenListener al) {
+		String group = al.getAcceptorGroup();
+		return group == null ? DEF_ACCEPTOR_GROUP : group;
+	}
+
+	private ConnectionOpenThread() {
+		getAcceptors(DEF_ACCEPTOR_GROUP, 1);
 	}
 
 	public void addConnectionOpenListener(ConnectionOpenListener al) {
-		waiting.offer(new Task(al, Task.Action.Add));
-		selector.wakeup();
+		getAcceptors(getGroup(al), 1).get(0).addTask(new Task(al, Task.Action.Add, null));
 	}
 
 	public void removeConnectionOpenListener(ConnectionOpenListener al) {
-		waiting.offer(new Task(al, Task.Action.Remove));
-		selector.wakeup();
+		getAcceptors(getGroup(al), 1).get(0).addTask(new Task(al, Task.Action.Remove, null));
+	}
+
+	/**
+	 * Adds statistics of accepting new connections on the port.
+	 */
+	public void getStatistics(String compName, int port, StatisticsList list) {
+		PortThrottlingData portData = throttling.get(port);
+		if (portData == null) {
+			return;
+		}
+		list.add(compName, "Port " + port + " accepted connections", portData.accepted.sum(), Level.FINE);
+		list.add(compName, "Port " + port + " rejected connections", portData.rejected.sum(), Level.FINE);
+		list.add(compName, "Port " + port + " accept time 50th percentile [us]",
+				 TimeUnit.NANOSECONDS.toMicros(portData.acceptTime.getPercentile(50)), Level.FINER);
+		list.add(compName, "Port " + port + " accept time 99th percentile [us]",
+				 TimeUnit.NANOSECONDS.toMicros(portData.acceptTime.getPercentile(99)), Level.FINER);
 	}
 
 	@Override
 	public void run() {
-		while (!stopping) {
-			try {
-				int select = selector.select();
-
-				if (log.isLoggable(Level.FINEST)) {
-					log.log(Level.FINEST, "Selected: " + select + " from selector: " + selector);
-				}
-
-				for (Iterator i = selector.selectedKeys().iterator(); i.hasNext(); ) {
-					SelectionKey sk = (SelectionKey) i.next();
+		getAcceptors(DEF_ACCEPTOR_GROUP, 1).get(0).run();
+	}
 
-					i.remove();
+	public void start() {
+		started = true;
+		for (List<Acceptor> acceptors : groups.values()) {
+			for (Acceptor acceptor : acceptors) {
+				acceptor.start();
+			}
+		}
+	}
 
-					SocketChannel sc = null;
-					boolean throttled = false;
-					int port_no = 0;
+	public void stop() {
+		stopping = true;
+		for (List<Acceptor> acceptors : groups.values()) {
+			for (Acceptor acceptor : acceptors) {
+				acceptor.selector.wakeup();
+			}
+		}
+	}
 
-					if ((sk.readyOps() & SelectionKey.OP_ACCEPT) != 0) {
-						ServerSocketChannel nextReady = (ServerSocketChannel) sk.channel();
+	private List<Acceptor> getAcceptors(String group, int count) {
+		List<Acceptor> acceptors = groups.computeIfAbsent(group, name -> new CopyOnWriteArrayList<>());
+		synchronized (acceptors) {
+			while (acceptors.size() < count) {
+				Acceptor acceptor = new Acceptor(group, acceptors.size());
+				acceptors.add(acceptor);
+				if (started) {
+					acceptor.start();
+				}
+			}
+		}
+		return acceptors;
+	}
 
-						port_no = nextReady.socket().getLocalPort();
-						sc = nextReady.accept();
-						if (log.isLoggable(Level.FINEST)) {
-							log.finest("OP_ACCEPT");
-						}
+	private static class Task {
 
-						PortThrottlingData port_throttling = throttling.get(port_no);
+		private final Action action;
+		private final ServerSocketChannel channel;
+		private final ConnectionOpenListener openListener;
 
-						if (port_throttling != null) {
-							++port_throttling.lastSecondConnections;
-							if (port_throttling.lastSecondConnections > port_throttling.throttling) {
-								if (log.isLoggable(Level.INFO)) {
-									log.log(Level.INFO, "New connections throttling level {0} exceeded, closing: {0}",
-											new Object[]{port_throttling.lastSecondConnections, sc});
-								}
-								sc.close();
-								sc = null;
-								throttled = true;
-							}
-						} else {
+		private Task(ConnectionOpenListener openListener, Action action, ServerSocketChannel channel) {
+			this.action = action;
+			this.openListener = openListener;
+			this.channel = channel;
+		}
 
-							// Hm, this should not happen actually
-							log.log(Level.WARNING, "Throttling not configured for port: {0}", port_no);
-						}
-					}    // end of if (sk.readyOps() & SelectionKey.OP_ACCEPT)
-					if ((sk.readyOps() & SelectionKey.OP_CONNECT) != 0) {
-						sk.cancel();
-						sc = (SocketChannel) sk.channel();
-						if (log.isLoggable(Level.FINEST)) {
-							log.finest("OP_CONNECT");
-						}
-					}    // end of if (sk.readyOps() & SelectionKey.OP_ACCEPT)
-					if (sc != null) {
+		private enum Action {
+			Add,
+			Register,
+			Remove
+		}
+	}
 
-						// We have to catch exception here as sometimes socket is closed
-						// or connection is broken before we start configuring it here
-						// then whatever we do on the socket it throws an exception
-						try {
-							sc.configureBlocking(false);
-							sc.socket().setSoLinger(false, 0);
-							sc.socket().setReuseAddress(true);
-							if (log.isLoggable(Level.FINER)) {
-								log.log(Level.FINER, "Registered new client socket: {0}", sc);
-							}
+	static class PortThrottlingData {
 
-							ConnectionOpenListener al = (ConnectionOpenListener) sk.attachment();
+		private final LatencyHistogram acceptTime = new LatencyHistogram();
+		private final LongAdder accepted = new LongAdder();
+		private final LongAdder rejected = new LongAdder();
+		private long lastRefill;
+		private long throttling;
+		private double tokens;
 
-							sc.socket().setTrafficClass(al.getTrafficClass());
-							sc.socket().setReceiveBufferSize(al.getReceiveBufferSize());
-							al.accept(sc);
-						} catch (java.net.SocketException e) {
-							log.log(Level.INFO, "Socket closed instantly after it had been opened?", e);
+		PortThrottlingData(long throttling_prop) {
+			this(throttling_prop, System.nanoTime());
+		}
 
-							ConnectionOpenListener al = (ConnectionOpenListener) sk.attachment();
+		PortThrottlingData(long throttling_prop, long now) {
+			throttling = throttling_prop;
+			tokens = throttling_prop;
+			lastRefill = now;
+		}
 
-							al.accept(sc);
-						}
-					} else {
-						log.log(Level.INFO,
-								"Can not obtain socket channel from selection key, throttling activated = {0}, for port: {1}",
-								new Object[]{throttled, port_no});
-					}    // end of if (sc != null) else
-					++accept_counter;
-				}
-				processWaiting();
-			} catch (IOException e) {
-				log.log(Level.SEVERE, "Server I/O error.", e);
+		synchronized void setThrottling(long throttling_prop) {
+			throttling = throttling_prop;
+			tokens = Math.min(tokens, throttling_prop);
+		}
 
-				// stopping = true;
-			}        // end of catch
-			catch (Exception e) {
-				log.log(Level.SEVERE, "Other service exception.", e);
+		boolean tryAcquire() {
+			return tryAcquire(System.nanoTime());
+		}
 
-				// stopping = true;
-			}        // end of catch
+		/**
+		 * Takes a token from the bucket refilled with <code>throttling</code> tokens per second.
+		 *
+		 * @param now current value of {@link System#nanoTime()}
+		 */
+		synchronized boolean tryAcquire(long now) {
+			tokens = Math.min(throttling, tokens + (now - lastRefill) * throttling / 1e9);
+			lastRefill = now;
+			if (tokens < 1) {
+				return false;
+			}
+			tokens -= 1;
+			return true;
 		}
 	}
 
-	public void start() {
-		Thread t = new Thread(this);
+	private class Acceptor
+			implements Runnable {
 
-		t.setName("ConnectionOpenThread");
-		t.start();
-	}
+		private final String name;
+		private final Selector selector;
+		private final ConcurrentLinkedQueue<Task> waiting = new ConcurrentLinkedQueue<>();
+		private Thread thread = null;
 
-	public void stop() {
-		stopping = true;
-		selector.wakeup();
-	}
+		private Acceptor(String group, int idx) {
+			if (DEF_ACCEPTOR_GROUP.equals(group) && idx == 0) {
+				name = "ConnectionOpenThread";
+			} else {
+				name = "ConnectionOpenThread-" + group + "-" + idx;
+			}
+			try {
+				selector = Selector.open();
+			} catch (IOException e) {
+				log.log(Level.SEVERE, "Server I/O error, can''t continue my work.", e);
+				throw new IllegalStateException("Could not open selector for " + name, e);
+			}    // end of try-catch
+		}
 
-	private void processWaiting() throws IOException {
-		Task task = null;
-
-		while ((task = waiting.poll()) != null) {
-			ConnectionOpenListener al = task.openListener;
-
-			switch (task.action) {
-				case Add:
-					try {
-						addPort(al);
-					} catch (Exception e) {
-						if (((e instanceof SocketException && e.getMessage() != null &&
-								e.getMessage().contains("Network is unreachable")) ||
-								(e instanceof NoRouteToHostException && e.getMessage() != null &&
-										e.getMessage().equals("No route to host"))) &&
-								al.getConnectionType() == ConnectionType.connect && al.getIfcs() != null &&
-								Arrays.stream(al.getIfcs()).filter(ifc -> ifc.contains(":")).findFirst().isPresent()) {
-							log.log(Level.FINEST, "Error: creating IPv6 connection (" + e + ") for: " + al);
-						} else {
-							log.log(Level.WARNING, "Error: creating connection for: " + al, e);
-
-							// check for existing bindings
-							for (SelectionKey key : selector.keys()) {
-								ConnectionOpenListener al1 = (ConnectionOpenListener) key.attachment();
-								if (al != null) {
-									if (al.getPort() == al1.getPort()) {
-										log.log(Level.FINEST, "port " + al.getPort() + " still bound!!");
-									}
-								}
-							}
-						}
-						al.accept(null);
-					}    // end of try-catch
-					break;
-				case Remove:
-					for (SelectionKey key : selector.keys()) {
+		@Override
+		public void run() {
+			while (!stopping) {
+				try {
+					int select = selector.select();
 
-						if (al == key.attachment()) {
-							try {
-								SelectableChannel channel = key.channel();
-								if (log.isLoggable(Level.FINEST)) {
-									log.log(Level.FINEST, "removing binding for port:" + al.getPort());
-								}
-								channel.close();
-								key.cancel();
-								selector.selectNow();
-							} catch (Exception e) {
-								log.log(Level.WARNING, "Exception during removing connection listener.", e);
-							}
+					if (log.isLoggable(Level.FINEST)) {
+						log.log(Level.FINEST, "Selected: " + select + " from selector: " + selector);
+					}
+
+					for (Iterator<SelectionKey> i = selector.selectedKeys().iterator(); i.hasNext(); ) {
+						SelectionKey sk = i.next();
 
-							break;
+						i.remove();
+
+						if (!sk.isValid()) {
+							continue;
 						}
+						if ((sk.readyOps() & SelectionKey.OP_ACCEPT) != 0) {
+							if (log.isLoggable(Level.FINEST)) {
+								log.finest("OP_ACCEPT");
+							}
+							acceptConnections(sk);
+						}    // end of if (sk.readyOps() & SelectionKey.OP_ACCEPT)
+						if ((sk.readyOps() & SelectionKey.OP_CONNECT) != 0) {
+							sk.cancel();
+							if (log.isLoggable(Level.FINEST)) {
+								log.finest("OP_CONNECT");
+							}
+							openConnection((SocketChannel) sk.channel(), (ConnectionOpenListener) sk.attachment());
+						}    // end of if (sk.readyOps() & SelectionKey.OP_CONNECT)
 					}
-					break;
+					processWaiting();
+				} catch (IOException e) {
+					log.log(Level.SEVERE, "Server I/O error.", e);
+
+					// stopping = true;
+				}        // end of catch
+				catch (Exception e) {
+					log.log(Level.SEVERE, "Other service exception.", e);
+
+					// stopping = true;
+				}        // end of catch
 			}
 		}
-	}
-	
-	private void addISA(InetSocketAddress isa, ConnectionOpenListener al) throws IOException {
-		switch (al.getConnectionType()) {
-			case accept:
-				long port_throttling = al.getNewConnectionsThrottling();
-
-				throttling.put(isa.getPort(), new PortThrottlingData(port_throttling));
-				if (log.isLoggable(Level.FINEST)) {
-					log.log(Level.FINEST,
-							"Setting up throttling for the port {0} to {1} connections per second. isa: {2}",
-							new Object[]{isa.getPort(), port_throttling, isa});
+
+		private void acceptConnections(SelectionKey sk) throws IOException {
+			ServerSocketChannel nextReady = (ServerSocketChannel) sk.channel();
+			int port_no = nextReady.socket().getLocalPort();
+			PortThrottlingData port_throttling = throttling.get(port_no);
+
+			if (port_throttling == null) {
+
+				// Hm, this should not happen actually
+				log.log(Level.WARNING, "Throttling not configured for port: {0}", port_no);
+			}
+			for (int n = 0; n < MAX_ACCEPTS_PER_SELECT; n++) {
+				SocketChannel sc = nextReady.accept();
+
+				// there is nothing more to accept or connection was accepted by another thread
+				if (sc == null) {
+					break;
 				}
-				if (log.isLoggable(Level.FINEST)) {
-					log.finest("Setting up 'accept' channel...");
+				++accept_counter;
+
+				long start = System.nanoTime();
+				if (port_throttling != null && !port_throttling.tryAcquire()) {
+					port_throttling.rejected.increment();
+					if (log.isLoggable(Level.FINE)) {
+						log.log(Level.FINE, "New connections throttling level {0} exceeded, closing: {1}",
+								new Object[]{port_throttling.throttling, sc});
+					}
+					sc.close();
+					continue;
+				}
+				openConnection(sc, (ConnectionOpenListener) sk.attachment());
+				if (port_throttling != null) {
+					port_throttling.accepted.increment();
+					port_throttling.acceptTime.record(System.nanoTime() - start);
 				}
+			}
+		}
 
-				ServerSocketChannel ssc = ServerSocketChannel.open();
+		private void openConnection(SocketChannel sc, ConnectionOpenListener al) throws IOException {
 
-				ssc.socket().setReceiveBufferSize(al.getReceiveBufferSize());
-				ssc.configureBlocking(false);
-				ssc.bind(isa, (int) (port_throttling));
-				ssc.register(selector, SelectionKey.OP_ACCEPT, al);
+			// We have to catch exception here as sometimes socket is closed
+			// or connection is broken before we start configuring it here
+			// then whatever we do on the socket it throws an exception
+			try {
+				sc.configureBlocking(false);
+				sc.socket().setSoLinger(false, 0);
+				sc.socket().setReuseAddress(true);
+				if (log.isLoggable(Level.FINER)) {
+					log.log(Level.FINER, "Registered new client socket: {0}", sc);
+				}
+				sc.socket().setTrafficClass(al.getTrafficClass());
+				sc.socket().setReceiveBufferSize(al.getReceiveBufferSize());
+				al.accept(sc);
+			} catch (SocketException e) {
+				log.log(Level.INFO, "Socket closed instantly after it had been opened?", e);
+				al.accept(sc);
+			}
+		}
 
-				break;
+		private void addTask(Task task) {
+			waiting.offer(task);
+			selector.wakeup();
+		}
 
-			case connect:
-				if (log.isLoggable(Level.FINEST)) {
-					log.log(Level.FINEST, "Setting up ''connect'' channel for: {0}/{1}",
-							new Object[]{isa.getAddress(), isa.getPort()});
+		private void start() {
+			synchronized (this) {
+				if (thread != null) {
+					return;
 				}
+				thread = new Thread(this);
+			}
+			thread.setName(name);
+			thread.start();
+		}
 
-				SocketChannel sc = SocketChannel.open();
+		private void processWaiting() throws IOException {
+			Task task = null;
 
-				sc.socket().setReceiveBufferSize(al.getReceiveBufferSize());
-				sc.socket().setTrafficClass(al.getTrafficClass());
-				sc.configureBlocking(false);
-				sc.connect(isa);
-				sc.register(selector, SelectionKey.OP_CONNECT, al);
+			while ((task = waiting.poll()) != null) {
+				ConnectionOpenListener al = task.openListener;
 
-				break;
+				switch (task.action) {
+					case Add:
+						try {
+							addPort(al);
+						} catch (Exception e) {
+							if (((e instanceof SocketException && e.getMessage() != null &&
+									e.getMessage().contains("Network is unreachable")) ||
+									(e instanceof NoRouteToHostException && e.getMessage() != null &&
+											e.getMessage().equals("No route to host"))) &&
+									al.getConnectionType() == ConnectionType.connect && al.getIfcs() != null &&
+									Arrays.stream(al.getIfcs()).filter(ifc -> ifc.contains(":")).findFirst().isPresent()) {
+								log.log(Level.FINEST, "Error: creating IPv6 connection (" + e + ") for: " + al);
+							} else {
+								log.log(Level.WARNING, "Error: creating connection for: " + al, e);
+
+								// check for existing bindings
+								for (SelectionKey key : selector.keys()) {
+									ConnectionOpenListener al1 = (ConnectionOpenListener) key.attachment();
+									if (al != null) {
+										if (al.getPort() == al1.getPort()) {
+											log.log(Level.FINEST, "port " + al.getPort() + " still bound!!");
+										}
+									}
+								}
+							}
+							closeChannels(al);
+							al.accept(null);
+						}    // end of try-catch
+						break;
+					case Register:
+						// listener could be removed before this task was processed
+						if (task.channel.isOpen()) {
+							try {
+								task.channel.register(selector, SelectionKey.OP_ACCEPT, al);
+							} catch (ClosedChannelException e) {
+								log.log(Level.FINEST, "channel closed before registration for port: " + al.getPort());
+							}
+						}
+						break;
+					case Remove:
+						for (SelectionKey key : selector.keys()) {
+
+							if (al == key.attachment()) {
+								try {
+									SelectableChannel channel = key.channel();
+									if (log.isLoggable(Level.FINEST)) {
+										log.log(Level.FINEST, "removing binding for port:" + al.getPort());
+									}
+									channel.close();
+									key.cancel();
+								} catch (Exception e) {
+									log.log(Level.WARNING, "Exception during removing connection listener.", e);
+								}
+							}
+						}
+						closeChannels(al);
+						selector.selectNow();
+						break;
+				}
+			}
+		}
 
-			default:
-				log.log(Level.WARNING, "Unknown connection type: {0}", al.getConnectionType());
+		private void closeChannels(ConnectionOpenListener al) {
+			List<ServerSocketChannel> listenerChannels = channels.remove(al);
+			if (listenerChannels == null) {
+				return;
+			}
+			for (ServerSocketChannel channel : listenerChannels) {
+				try {
+					channel.close();
+				} catch (IOException e) {
+					log.log(Level.WARNING, "Exception during removing connection listener.", e);
+				}
+			}
+			// other acceptors need to process cancelled keys to release the port
+			for (Acceptor acceptor : getAcceptors(getGroup(al), 1)) {
+				if (acceptor != this) {
+					acceptor.selector.wakeup();
+				}
+			}
+		}
 
-				break;
-		}    // end of switch (al.getConnectionType())
-	}
+		private void addISA(InetSocketAddress isa, ConnectionOpenListener al) throws IOException {
+			switch (al.getConnectionType()) {
+				case accept:
+					long port_throttling = al.getNewConnectionsThrottling();
+
+					throttling.computeIfAbsent(isa.getPort(), port -> new PortThrottlingData(port_throttling))
+							.setThrottling(port_throttling);
+					if (log.isLoggable(Level.FINEST)) {
+						log.log(Level.FINEST,
+								"Setting up throttling for the port {0} to {1} connections per second. isa: {2}",
+								new Object[]{isa.getPort(), port_throttling, isa});
+					}
+					if (log.isLoggable(Level.FINEST)) {
+						log.finest("Setting up 'accept' channel...");
+					}
 
-	private void addPort(ConnectionOpenListener al) throws IOException {
-		if ((al.getConnectionType() == ConnectionType.connect) && (al.getRemoteAddress() != null)) {
-			addISA(al.getRemoteAddress(), al);
-		} else if ((al.getIfcs() == null) || (al.getIfcs().length == 0) || al.getIfcs()[0].equals("ifc") ||
-				al.getIfcs()[0].equals("*")) {
-			addISA(new InetSocketAddress(al.getPort()), al);
-		} else {
-			for (String ifc : al.getIfcs()) {
-				addISA(new InetSocketAddress(ifc, al.getPort()), al);
-			}    // end of for ()
-		}      // end of if (ip == null || ip.equals("")) else
-	}
+					int threads = Math.max(1, al.getAcceptorThreads());
+					List<Acceptor> acceptors = getAcceptors(getGroup(al), threads);
+					boolean reusePort = threads > 1 && al.isReusePort();
+					if (reusePort && SO_REUSEPORT == null) {
+						log.log(Level.WARNING, "SO_REUSEPORT is not supported, acceptor threads for port {0} will " +
+								"share a single socket", isa.getPort());
+						reusePort = false;
+					}
 
-	private static class Task {
+					ServerSocketChannel ssc = null;
+					for (int i = 0; i < threads; i++) {
+						if (ssc == null || reusePort) {
+							ssc = ServerSocketChannel.open();
+							channels.computeIfAbsent(al, listener -> new CopyOnWriteArrayList<>()).add(ssc);
+							ssc.socket().setReceiveBufferSize(al.getReceiveBufferSize());
+							ssc.configureBlocking(false);
+							if (reusePort) {
+								ssc.setOption(SO_REUSEPORT, true);
+							}
+							ssc.bind(isa, (int) (port_throttling));
+						}
+						if (i == 0) {
+							ssc.register(selector, SelectionKey.OP_ACCEPT, al);
+						} else {
+							acceptors.get(i).addTask(new Task(al, Task.Action.Register, ssc));
+						}
+					}
 
-		private final ConnectionOpenListener openListener;
-		private final Action action;
+					break;
 
-		private Task(ConnectionOpenListener openListener, Action action) {
-			this.action = action;
-			this.openListener = openListener;
-		}
+				case connect:
+					if (log.isLoggable(Level.FINEST)) {
+						log.log(Level.FINEST, "Setting up ''connect'' channel for: {0}/{1}",
+								new Object[]{isa.getAddress(), isa.getPort()});
+					}
 
-		private enum Action {
-			Add,
-			Remove
-		}
-	}
+					SocketChannel sc = SocketChannel.open();
 
-	private class PortThrottlingData {
+					sc.socket().setReceiveBufferSize(al.getReceiveBufferSize());
+					sc.socket().setTrafficClass(al.getTrafficClass());
+					sc.configureBlocking(false);
+					sc.connect(isa);
+					sc.register(selector, SelectionKey.OP_CONNECT, al);
 
-			protected long lastSecondConnections = 0;
+					break;
 
-			protected long throttling;
+				default:
+					log.log(Level.WARNING, "Unknown connection type: {0}", al.getConnectionType());
 
+					break;
+			}    // end of switch (al.getConnectionType())
+		}
 
-		private PortThrottlingData(long throttling_prop) {
-			throttling = throttling_prop;
+		private void addPort(ConnectionOpenListener al) throws IOException {
+			if ((al.getConnectionType() == ConnectionType.connect) && (al.getRemoteAddress() != null)) {
+				addISA(al.getRemoteAddress(), al);
+			} else if ((al.getIfcs() == null) || (al.getIfcs().length == 0) || al.getIfcs()[0].equals("ifc") ||
+					al.getIfcs()[0].equals("*")) {
+				addISA(new InetSocketAddress(al.getPort()), al);
+			} else {
+				for (String ifc : al.getIfcs()) {
+					addISA(new InetSocketAddress(ifc, al.getPort()), al);
+				}    // end of for ()
+			}      // end of if (ip == null || ip.equals("")) else
 		}
 	}
 }    // ConnectionOpenThread
-
@@ -40,4 +40,9 @@ public class ClassUtilBean
 		classes.addAll(modulesManager.getClasses());
 		return classes;
 	}
+
+	@Override
+	public Set<Class<?>> getBeanClasses() {
+		return getAllClasses();
+	}
 }
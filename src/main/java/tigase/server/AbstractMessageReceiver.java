@@ -29,6 +29,7 @@ import tigase.util.Algorithms;
 import tigase.util.routing.PatternComparator;
 import tigase.util.stringprep.TigaseStringprepException;
 import tigase.util.workqueue.PriorityQueueAbstract;
+import tigase.util.workqueue.PriorityQueueFair;
 import tigase.util.workqueue.PriorityQueueRelaxed;
 import tigase.xmpp.jid.JID;
 
@@ -171,6 +172,10 @@ public abstract class AbstractMessageReceiver
 	private int pptIdx = 0;
 	@ConfigField(desc = "Priority queue class", alias = "priority-queue-implementation")
 	private Class<? extends PriorityQueueAbstract> priorityQueueClass = PriorityQueueRelaxed.class;
+	@ConfigField(desc = "Maximum percentage of a queue which may be used by packets of a single sender (fair queue only)", alias = "fair-queue-max-sender-share")
+	private int fairQueueMaxSenderShare = 10;
+	@ConfigField(desc = "Number of the top queue consumers listed in statistics (fair queue only)", alias = "fair-queue-top-consumers")
+	private int fairQueueTopConsumers = 10;
 	// ~--- fields ---------------------------------------------------------------
 	// private static final TigaseTracer tracer =
 	// TigaseTracer.getTracer("abstract");
@@ -782,6 +787,24 @@ public abstract class AbstractMessageReceiver
 		list.add(getName(), StatisticType.IN_QUEUE_OVERFLOW.getDescription(), statReceivedPacketsEr, Level.INFO);
 		list.add(getName(), StatisticType.OUT_QUEUE_OVERFLOW.getDescription(), statSentPacketsEr, Level.INFO);
 		list.add(getName(), "Total queues overflow", (statReceivedPacketsEr + statSentPacketsEr), Level.INFO);
+		if (in_queues.get(0) instanceof PriorityQueueFair) {
+			long rejected = 0;
+			Map<Object, Integer> consumers = new HashMap<>();
+
+			for (PriorityQueueAbstract<Packet> queue : in_queues) {
+				PriorityQueueFair<Packet> fairQueue = (PriorityQueueFair<Packet>) queue;
+
+				rejected += fairQueue.getRejected();
+				if (list.checkLevel(Level.FINER)) {
+					fairQueue.getTopFlows(fairQueueTopConsumers).forEach((k, v) -> consumers.merge(k, v, Integer::sum));
+				}
+			}
+			list.add(getName(), "In queue overflow per sender", rejected, Level.FINE);
+			if (list.checkLevel(Level.FINER)) {
+				list.add(getName(), "Top In queue consumers",
+						 PriorityQueueFair.top(consumers, fairQueueTopConsumers).toString(), Level.FINER);
+			}
+		}
 
 		long res = 0;
 
@@ -870,6 +893,7 @@ public abstract class AbstractMessageReceiver
 		if (recreate) {
 			recreateProcessingQueues(maxQueueSize);
 		}
+		configureFairQueues();
 	}
 
 	@Override
@@ -1016,6 +1040,35 @@ public abstract class AbstractMessageReceiver
 		return def;
 	}
 
+	/**
+	 * Returns key of the sender of the packet used by the fair queue to schedule packets of different senders. By
+	 * default it is bare JID of the stanza sender or, for packets without stanza sender (ie. sent by client before
+	 * they are processed by the session manager), the full address of the connection which delivered the packet.
+	 */
+	protected Object getPacketSender(Packet packet) {
+		if (packet.getStanzaFrom() != null) {
+			return packet.getStanzaFrom().getBareJID();
+		}
+
+		return packet.getPacketFrom();
+	}
+
+	private void configureFairQueues() {
+		configureFairQueues(in_queues, maxInQueueSize);
+		configureFairQueues(out_queues, maxOutQueueSize);
+	}
+
+	private void configureFairQueues(List<PriorityQueueAbstract<Packet>> queues, int maxSize) {
+		for (PriorityQueueAbstract<Packet> queue : queues) {
+			if (queue instanceof PriorityQueueFair) {
+				PriorityQueueFair<Packet> fairQueue = (PriorityQueueFair<Packet>) queue;
+
+				fairQueue.setFlowKey(this::getPacketSender);
+				fairQueue.setMaxFlowSize((int) ((long) maxSize * fairQueueMaxSenderShare / 100));
+			}
+		}
+	}
+
 	private void recreateProcessingQueues(int maxQueueSize) {
 		// Processing threads number is split to incoming and outgoing queues...
 		// So real processing threads number of in_queues is processingThreads()/2
@@ -32,6 +32,7 @@ import tigase.kernel.beans.Autostart;
 import tigase.kernel.beans.selector.ConfigTypeEnum;
 import tigase.kernel.beans.selector.ServerBeanSelector;
 import tigase.kernel.core.BeanConfig;
+import tigase.kernel.core.BeanInitializationTimeline;
 import tigase.kernel.core.DependencyGrapher;
 import tigase.kernel.core.Kernel;
 import tigase.net.ConnectionOpenThread;
@@ -278,6 +279,7 @@ public class Bootstrap {
 			}
 		}
 
+		long phaseStart = System.currentTimeMillis();
 		try {
 			ClassUtilBean classUtilBean = null;
 			if (XMPPServer.isOSGi()) {
@@ -291,6 +293,7 @@ public class Bootstrap {
 		} catch (ClassNotFoundException | InstantiationException | IllegalAccessException e) {
 			throw new RuntimeException(e);
 		}
+		phaseStart = logStartupPhase("classes discovery", phaseStart);
 
 		// register default types converter and properties bean configurator
 		kernel.registerBean(DefaultTypesConverter.class).exportable().exec();
@@ -311,6 +314,7 @@ public class Bootstrap {
 
 		// if null then we register global subbeans
 		configurator.registerBeans(null, null, config.getProperties());
+		phaseStart = logStartupPhase("beans registration", phaseStart);
 
 		DependencyGrapher dg = new DependencyGrapher();
 		dg.setKernel(kernel);
@@ -324,9 +328,11 @@ public class Bootstrap {
 				throw new KernelException("Failed to initialize data sources!");
 			}
 		}
+		phaseStart = logStartupPhase("data sources initialization", phaseStart);
 		MessageRouter mr = kernel.getInstance("message-router");
 		log.info("Starting MessageRouter");
 		mr.start();
+		phaseStart = logStartupPhase("message router startup", phaseStart);
 
 //		StringBuilder sb = new StringBuilder("\n======");
 //		sb.append("\n");
@@ -359,6 +365,21 @@ public class Bootstrap {
 		MonitorRuntime.getMonitorRuntime().addShutdownHook(shutdownHook);
 
 		initializeAutostartBeans(kernel);
+		logStartupPhase("autostart beans initialization", phaseStart);
+
+		BeanInitializationTimeline timeline = kernel.getBeanInitializationTimeline();
+		if (log.isLoggable(Level.FINE)) {
+			log.log(Level.FINE, "Beans initialization timeline:{0}", timeline.toPrintable(timeline.getEntries()));
+		}
+		if (log.isLoggable(Level.CONFIG)) {
+			log.log(Level.CONFIG, "Slowest beans initialization:{0}", timeline.toPrintable(timeline.getSlowest(20)));
+		}
+	}
+
+	private long logStartupPhase(String phase, long phaseStart) {
+		long now = System.currentTimeMillis();
+		log.log(Level.CONFIG, "Startup phase {0} finished in {1}ms", new Object[]{phase, now - phaseStart});
+		return now;
 	}
 
 	public void stop() {
@@ -29,6 +29,7 @@ import tigase.net.*;
 import tigase.server.script.CommandIfc;
 import tigase.server.xmppclient.XMPPIOProcessor;
 import tigase.stats.StatisticsList;
+import tigase.util.common.HashedTimingWheel;
 import tigase.util.common.TimerTask;
 import tigase.util.repository.DataTypes;
 import tigase.xml.Element;
@@ -91,6 +92,7 @@ public abstract class ConnectionManager<IO extends XMPPIOService<?>>
 	public static final int NET_BUFFER_LIMIT_HT_PROP_VAL = 20 * 1024 * 1024;
 	public static final String NET_BUFFER_LIMIT_PROP_KEY = "net-buffer-limit";
 	public static final int NET_BUFFER_LIMIT_ST_PROP_VAL = 2 * 1024 * 1024;
+	public static final String PORT_ACCEPTOR_THREADS_KEY = "acceptor-threads";
 	public static final String PORT_CLASS_PROP_KEY = "class";
 	public static final String PORT_IFC_PROP_KEY = "ifc";
 	public static final String PORT_LISTENING_DELAY_KEY = "port-delay-listening";
@@ -99,6 +101,7 @@ public abstract class ConnectionManager<IO extends XMPPIOService<?>>
 	public static final String PORT_NEW_CONNECTIONS_THROTTLING_KEY = "new-connections-throttling";
 	public static final String PORT_REMOTE_HOST_PROP_KEY = "remote-host";
 	public static final String PORT_REMOTE_HOST_PROP_VAL = "localhost";
+	public static final String PORT_REUSE_PORT_KEY = "reuse-port";
 	public static final String PORT_SOCKET_PROP_KEY = "socket";
 	public static final String PORT_TYPE_PROP_KEY = "type";
 	public static final String PROP_KEY = "connections/";
@@ -112,6 +115,8 @@ public abstract class ConnectionManager<IO extends XMPPIOService<?>>
 	public static final String WATCHDOG_DELAY = "watchdog_delay";
 	public static final String WATCHDOG_TIMEOUT = "watchdog_timeout";
 	public static final String WATCHDOG_PING_TYPE_KEY = "watchdog_ping_type";
+	protected static final long WATCHDOG_TICK = SECOND;
+	protected static final int WATCHDOG_TICKS_PER_WHEEL = 512;
 
 	protected static final Element pingElement = new Element("iq", new Element[]{
 			new Element("ping", new String[]{"xmlns"}, new String[]{"urn:xmpp:ping"})}, new String[]{"type", "id"},
@@ -449,6 +454,9 @@ public abstract class ConnectionManager<IO extends XMPPIOService<?>>
 			ServiceConnectedTimer startTimer = new ServiceConnectedTimer(service);
 			addTimerTask(startTimer, serviceConnectedTimeout, TimeUnit.SECONDS);
 		}
+		if (watchdog != null) {
+			watchdog.watch(service);
+		}
 		// }
 	}
 
@@ -464,6 +472,9 @@ public abstract class ConnectionManager<IO extends XMPPIOService<?>>
 		}
 
 		ServiceConnectedTimer.cancel(service);
+		if (watchdog != null) {
+			watchdog.unwatch(service);
+		}
 
 		// synchronized(service) {
 		String id = getUniqueId(service);
@@ -506,6 +517,9 @@ public abstract class ConnectionManager<IO extends XMPPIOService<?>>
 		sslContextContainer.start();
 		super.start();
 
+		// watchdog needs to be ready before first connection is accepted
+		setupWatchdogThread();
+
 		started = true;
 		if (!delayPortListening) {
 			connectWaitingTasks();
@@ -513,7 +527,6 @@ public abstract class ConnectionManager<IO extends XMPPIOService<?>>
 			log.log(Level.WARNING, "Delaying opening ports of component: {0}", getName());
 		}
 
-		setupWatchdogThread();
 		if (null != watchdog) {
 			watchdog.start();
 		}
@@ -558,7 +571,7 @@ public abstract class ConnectionManager<IO extends XMPPIOService<?>>
 				}      // end of for ()
 				try {
 					serv.processWaitingPackets();
-					SocketThread.addSocketService(serv);
+					addSocketService(serv);
 				} catch (Exception e) {
 					log.log(Level.WARNING, serv + "Exception during writing packets: ", e);
 					try {
@@ -593,7 +606,7 @@ public abstract class ConnectionManager<IO extends XMPPIOService<?>>
 			if (ios.writeInProgress.tryLock()) {
 				try {
 					ios.processWaitingPackets();
-					SocketThread.addSocketService(ios);
+					addSocketService(ios);
 				} catch (IOException e) {
 					// if there was IOException we need to forceStop this service!
 					log.log(Level.WARNING, ios + "Exception during writing packets: ", e);
@@ -650,13 +663,32 @@ public abstract class ConnectionManager<IO extends XMPPIOService<?>>
 		list.add(getName(), "Bytes received", bytesReceived, Level.FINE);
 		list.add(getName(), "Socket overflow", socketOverflow, Level.FINE);
 		list.add(getName(), "Watchdog runs", watchdogRuns, Level.FINER);
+		if (watchdog != null) {
+			list.add(getName(), "Watchdog scheduled checks", watchdog.getScheduledChecks(), Level.FINER);
+		}
 		list.add(getName(), "Watchdog tests", watchdogTests, Level.FINE);
 		list.add(getName(), "Watchdog stopped", watchdogStopped, Level.FINE);
+		Set<Integer> ports = new TreeSet<>();
+		synchronized (pending_open) {
+			for (ConnectionListenerImpl cli : pending_open) {
+				ports.add(cli.getPort());
+			}
+		}
+		for (Integer port : ports) {
+			connectThread.getStatistics(getName(), port, list);
+		}
 		for (XMPPIOProcessor proc : processors) {
 			proc.getStatistics(list);
 		}
 	}
 
+	/**
+	 * Returns number of open connections handled by this connection manager.
+	 */
+	public int getOpenConnections() {
+		return services_size;
+	}
+
 	public IO getXMPPIOService(String serviceId) {
 		return services.get(serviceId);
 	}
@@ -770,7 +802,7 @@ public abstract class ConnectionManager<IO extends XMPPIOService<?>>
 			reconnectService(params, connectionDelay);
 		}
 		waitingTasks.clear();
-		if (null != watchdog && Thread.State.NEW.equals(watchdog.getState())) {
+		if (null != watchdog && !watchdog.isStarted()) {
 			watchdog.start();
 		}
 		delayPortListening = false;
@@ -779,8 +811,6 @@ public abstract class ConnectionManager<IO extends XMPPIOService<?>>
 
 	protected void setupWatchdogThread() {
 		watchdog = newWatchdog();
-		watchdog.setName("Watchdog - " + getName());
-		watchdog.setDaemon(true);
 	}
 
 	protected Watchdog newWatchdog() {
@@ -877,7 +907,7 @@ public abstract class ConnectionManager<IO extends XMPPIOService<?>>
 	protected void writeRawData(IO ios, String data) {
 		try {
 			ios.writeRawData(data);
-			SocketThread.addSocketService(ios);
+			addSocketService(ios);
 		} catch (Exception e) {
 			log.log(Level.WARNING, ios + "Exception during writing data: " + data, e);
 			try {
@@ -936,6 +966,14 @@ public abstract class ConnectionManager<IO extends XMPPIOService<?>>
 
 	protected abstract IO getXMPPIOServiceInstance();
 
+	/**
+	 * Passes service to the <code>SocketThread</code> which will call it when its socket is ready for reading or
+	 * writing. Implementations which handle socket I/O of the service on their own may override this method.
+	 */
+	protected void addSocketService(IO serv) {
+		SocketThread.addSocketService(serv);
+	}
+
 	protected boolean isHighThroughput() {
 		return false;
 	}
@@ -1004,10 +1042,14 @@ public abstract class ConnectionManager<IO extends XMPPIOService<?>>
 	public static class PortConfigBean
 			implements ConfigurationChangedAware, Initializable, UnregisterAware {
 
+		@ConfigField(desc = "Number of threads accepting connections", alias = PORT_ACCEPTOR_THREADS_KEY)
+		protected int acceptorThreads = 1;
 		@ConfigField(desc = "Interface to listen on")
 		protected String[] ifc = null;
 		@ConfigField(desc = "New connections throttling", alias = "new-connections-throttling")
 		protected long newConnectionsThrottling = -1;
+		@ConfigField(desc = "Separate socket for every acceptor thread (SO_REUSEPORT)", alias = PORT_REUSE_PORT_KEY)
+		protected boolean reusePort = false;
 		@ConfigField(desc = "Socket type")
 		protected SocketType socket = SocketType.plain;
 		@ConfigField(desc = "Port type")
@@ -1097,6 +1139,8 @@ public abstract class ConnectionManager<IO extends XMPPIOService<?>>
 			}
 			props.put(PORT_REMOTE_HOST_PROP_KEY, PORT_REMOTE_HOST_PROP_VAL);
 			props.put(PORT_NEW_CONNECTIONS_THROTTLING_KEY, newConnectionsThrottling);
+			props.put(PORT_ACCEPTOR_THREADS_KEY, acceptorThreads);
+			props.put(PORT_REUSE_PORT_KEY, reusePort);
 //			props.put(TLS_REQUIRED_PROP_KEY, TLS_REQUIRED_PROP_VAL);
 			return props;
 		}
@@ -1213,7 +1257,7 @@ public abstract class ConnectionManager<IO extends XMPPIOService<?>>
 					serv.startSSL(false, false, false);
 				}    // end of if (socket == SocketType.ssl)
 				serviceStarted(serv);
-				SocketThread.addSocketService(serv);
+				addSocketService(serv);
 			} catch (Exception e) {
 				if (getConnectionType() == ConnectionType.connect) {
 
@@ -1328,6 +1372,21 @@ public abstract class ConnectionManager<IO extends XMPPIOService<?>>
 												  ConnectionOpenThread.def_5222_throttling);
 		}
 
+		@Override
+		public String getAcceptorGroup() {
+			return getName();
+		}
+
+		@Override
+		public int getAcceptorThreads() {
+			return (Integer) port_props.getOrDefault(PORT_ACCEPTOR_THREADS_KEY, 1);
+		}
+
+		@Override
+		public boolean isReusePort() {
+			return (Boolean) port_props.getOrDefault(PORT_REUSE_PORT_KEY, false);
+		}
+
 		@Override
 		public void release() {
 			port_props.remove(MAX_RECONNECTS_PROP_KEY);
@@ -1355,33 +1414,50 @@ public abstract class ConnectionManager<IO extends XMPPIOService<?>>
 	}
 
 	/**
-	 * Class looks in all established connections and checks whether any of them is dead by performing either whitspace
-	 * or XMPP ping. If client fails to respond within defined time then the service is stopped.
+	 * Class checks whether established connections are dead by performing either whitspace or XMPP ping. If client
+	 * fails to respond within defined time then the service is stopped.
+	 * <br>
+	 * Instead of walking through all connections periodically, every connection has its own check scheduled in
+	 * a hashed timing wheel. Read and write activity only updates time of the last transfer of a connection and when
+	 * the check expires it is rescheduled according to this time, so only connections which are inactive long enough
+	 * are tested.
 	 */
-	protected class Watchdog
-			extends Thread {
+	protected class Watchdog {
 
-		Packet pingPacket;
-		private boolean shutdown = false;
+		private final HashedTimingWheel wheel;
 
-		@Override
-		public void run() {
-			while (!shutdown) {
-				try {
-
-					// Sleep...
-					Thread.sleep(watchdogDelay);
-					++watchdogRuns;
+		public Watchdog() {
+			wheel = new HashedTimingWheel("Watchdog - " + getName(), WATCHDOG_TICK, TimeUnit.MILLISECONDS,
+										  WATCHDOG_TICKS_PER_WHEEL);
+		}
 
-					executeWatchdog();
-				} catch (InterruptedException e) {    /* Do nothing here */
-				}
-			}
+		public void start() {
+			wheel.start();
+		}
 
+		public boolean isStarted() {
+			return wheel.isStarted();
 		}
 
 		public void shutdown() {
-			shutdown = true;
+			wheel.stop();
+		}
+
+		public long getScheduledChecks() {
+			return wheel.getScheduledCount();
+		}
+
+		public void watch(final IO service) {
+			WatchdogTask task = new WatchdogTask(service);
+			service.getSessionData().put(WatchdogTask.KEY, task);
+			wheel.schedule(task, getNextCheckDelay(0, false));
+		}
+
+		public void unwatch(final IO service) {
+			WatchdogTask task = (WatchdogTask) service.getSessionData().remove(WatchdogTask.KEY);
+			if (task != null) {
+				task.cancel();
+			}
 		}
 
 		protected long getDurationSinceLastTransfer(final XMPPIOService service) {
@@ -1399,86 +1475,113 @@ public abstract class ConnectionManager<IO extends XMPPIOService<?>>
 			return curr_time - lastTransfer;
 		}
 
-		private void executeWatchdog() {
-			/** Walk through all connections and check whether they are really
-			 * alive. Depending on the configuration send either whitespace or
-			 * XMPP ping if the service is inactive for the configured period of
-			 * time
-			 */
-			doForAllServices(new ServiceChecker<IO>() {
-				@Override
-				public void check(final XMPPIOService service) {
-					try {
-						if (null != service) {
-							long sinceLastTransfer = getDurationSinceLastTransfer(service);
-							if (log.isLoggable(Level.FINEST)) {
-								log.log(Level.FINEST,
-										"Testing service: {0}, sinceLastTransfer: {1}, maxInactivityTime: {2}, watchdogTimeout: {3}, watchdogDelay: {4}, watchdogPingType: {5} ",
-										new Object[]{service, sinceLastTransfer, maxInactivityTime,
-													 watchdogTimeout, watchdogDelay, watchdogPingType});
-							}
-							if (sinceLastTransfer >= maxInactivityTime) {
-
-								// Stop the service if max keep-alive time is exceeded
-								// for non-active connections.
-								if (log.isLoggable(Level.INFO)) {
-									log.log(Level.INFO,
-											"{0}: Max inactive time exceeded, stopping: {1} ( sinceLastTransfer: {2}, maxInactivityTime: {3}, watchdogTimeout: {4}, watchdogDelay: {5}, watchdogPingType: {6} )",
-											new Object[]{getName(), service, sinceLastTransfer,
-														 maxInactivityTime, watchdogTimeout, watchdogDelay,
-														 watchdogPingType});
-								}
-								++watchdogStopped;
-								service.forceStop();
-							} else {
-								if (sinceLastTransfer >= (watchdogTimeout)) {
-
-									/** At least once every configured timings check if the
-									 * connection is still alive with the use of configured
-									 * ping type. */
-									switch (watchdogPingType) {
-										case XMPP:
-											pingPacket = Iq.packetInstance(pingElement.clone(), JID.jidInstanceNS(
-													(String) service.getSessionData().get(XMPPIOService.HOSTNAME_KEY)),
-																		   JID.jidInstanceNS(service.getUserJid()));
-											if (log.isLoggable(Level.FINEST)) {
-												log.log(Level.FINEST, "{0}, sending XMPP ping {1}",
-														new Object[]{service, pingPacket});
-											}
-											if (!writePacketToSocket((IO) service, pingPacket)) {
-												// writing failed, stopp service
-												++watchdogStopped;
-												service.forceStop();
-											}
-											break;
-
-										case WHITESPACE:
-											if (log.isLoggable(Level.FINEST)) {
-												log.log(Level.FINEST, "Sending whitespace ping for service {0}",
-														new Object[]{service});
-											}
-											service.writeRawData(" ");
-											break;
-									}
-									++watchdogTests;
-								}
-							}
+		/**
+		 * Method returns delay after which connection should be checked again.
+		 *
+		 * @param sinceLastTransfer time elapsed since the last transfer
+		 * @param pinged <code>true</code> if connection was just pinged
+		 */
+		protected long getNextCheckDelay(long sinceLastTransfer, boolean pinged) {
+			long delay = (pinged || sinceLastTransfer >= watchdogTimeout)
+						 ? watchdogDelay
+						 : (watchdogTimeout - sinceLastTransfer);
+			return Math.max(WATCHDOG_TICK, Math.min(delay, maxInactivityTime - sinceLastTransfer));
+		}
+
+		/**
+		 * Method checks whether connection is still alive and depending on the configuration sends either whitespace
+		 * or XMPP ping if the service is inactive for the configured period of time.
+		 *
+		 * @return delay after which connection should be checked again or <code>-1</code> if connection was stopped
+		 */
+		protected long check(final IO service) {
+			++watchdogRuns;
+			try {
+				long sinceLastTransfer = getDurationSinceLastTransfer(service);
+				if (log.isLoggable(Level.FINEST)) {
+					log.log(Level.FINEST,
+							"Testing service: {0}, sinceLastTransfer: {1}, maxInactivityTime: {2}, watchdogTimeout: {3}, watchdogDelay: {4}, watchdogPingType: {5} ",
+							new Object[]{service, sinceLastTransfer, maxInactivityTime, watchdogTimeout,
+										 watchdogDelay, watchdogPingType});
+				}
+				if (sinceLastTransfer >= maxInactivityTime) {
+
+					// Stop the service if max keep-alive time is exceeded
+					// for non-active connections.
+					if (log.isLoggable(Level.INFO)) {
+						log.log(Level.INFO,
+								"{0}: Max inactive time exceeded, stopping: {1} ( sinceLastTransfer: {2}, maxInactivityTime: {3}, watchdogTimeout: {4}, watchdogDelay: {5}, watchdogPingType: {6} )",
+								new Object[]{getName(), service, sinceLastTransfer, maxInactivityTime,
+											 watchdogTimeout, watchdogDelay, watchdogPingType});
+					}
+					++watchdogStopped;
+					service.forceStop();
+					return -1;
+				}
+				if (sinceLastTransfer < watchdogTimeout) {
+					return getNextCheckDelay(sinceLastTransfer, false);
+				}
+
+				/** At least once every configured timings check if the
+				 * connection is still alive with the use of configured
+				 * ping type. */
+				switch (watchdogPingType) {
+					case XMPP:
+						Packet pingPacket = Iq.packetInstance(pingElement.clone(), JID.jidInstanceNS(
+								(String) service.getSessionData().get(XMPPIOService.HOSTNAME_KEY)),
+															  JID.jidInstanceNS(service.getUserJid()));
+						if (log.isLoggable(Level.FINEST)) {
+							log.log(Level.FINEST, "{0}, sending XMPP ping {1}", new Object[]{service, pingPacket});
 						}
-					} catch (IOException e) {
-
-						// Close the service
-						try {
-							if (service != null) {
-								log.info(getName() + "Found dead connection, stopping: " + service);
-								++watchdogStopped;
-								service.forceStop();
-							}
-						} catch (Exception ignore) {
-							// Do nothing here as we expect Exception to be thrown here...
+						if (!writePacketToSocket(service, pingPacket)) {
+							// writing failed, stopp service
+							++watchdogStopped;
+							service.forceStop();
+							return -1;
 						}
-					}
+						break;
+
+					case WHITESPACE:
+						if (log.isLoggable(Level.FINEST)) {
+							log.log(Level.FINEST, "Sending whitespace ping for service {0}", new Object[]{service});
+						}
+						service.writeRawData(" ");
+						break;
+				}
+				++watchdogTests;
+				return getNextCheckDelay(sinceLastTransfer, true);
+			} catch (IOException e) {
+
+				// Close the service
+				try {
+					log.info(getName() + "Found dead connection, stopping: " + service);
+					++watchdogStopped;
+					service.forceStop();
+				} catch (Exception ignore) {
+					// Do nothing here as we expect Exception to be thrown here...
 				}
-			});
+				return -1;
+			}
+		}
+
+		private class WatchdogTask
+				extends TimerTask {
+
+			private static final String KEY = "WatchdogTask";
+
+			private final IO service;
+
+			private WatchdogTask(IO service) {
+				this.service = service;
+			}
+
+			@Override
+			public void run() {
+				long delay = check(service);
+				if (delay > 0 && !isCancelled()) {
+					wheel.schedule(this, delay);
+				}
+			}
 		}
 	}
 
@@ -33,6 +33,7 @@ import tigase.sys.NativeMemoryTracking;
 import tigase.sys.TigaseRuntime;
 import tigase.util.stringprep.TigaseStringprepException;
 import tigase.util.updater.UpdatesChecker;
+import tigase.vhosts.VHostItem;
 import tigase.xml.Element;
 import tigase.xmpp.Authorization;
 import tigase.xmpp.PacketErrorTypeException;
@@ -50,6 +51,7 @@ import java.text.NumberFormat;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -85,6 +87,8 @@ public class MessageRouter
 	@Inject
 	private Set<ServerComponent> componentsAll;
 	private Map<JID, ServerComponent> components_byId = new ConcurrentHashMap<>();
+	private final Map<String, CachedDiscoInfo> discoInfoCache = new ConcurrentHashMap<>();
+	private final AtomicLong discoInfoCacheInvalidations = new AtomicLong();
 	private ConfiguratorAbstract config = null;
 	private Set<String> connectionManagerNames = new ConcurrentSkipListSet<>();
 	// private static final long startupTime = System.currentTimeMillis();
@@ -170,6 +174,7 @@ public class MessageRouter
 		components_byId.put(component.getComponentId(), component);
 		if (component instanceof XMPPService) {
 			xmppServices.put(component.getName(), (XMPPService) component);
+			invalidateDiscoInfoCache();
 		}
 		for (ComponentRegistrator registr : registrators.values()) {
 			if (registr != component) {
@@ -498,6 +503,7 @@ public class MessageRouter
 		components_byId.remove(component.getComponentId());
 		if (component instanceof XMPPService) {
 			xmppServices.remove(component.getName());
+			invalidateDiscoInfoCache();
 		}
 	}
 
@@ -683,7 +689,9 @@ public class MessageRouter
 
 	@Override
 	public Optional<Element> getServiceEntityCaps(JID fromJid) {
-		if (fromJid != null) {
+		if (fromJid != null && isLocalDomain(fromJid.getDomain())) {
+			return Optional.of(getCachedDiscoInfo(fromJid.getDomain(), fromJid).caps.clone());
+		} else if (fromJid != null) {
 			final Element discoInfo = getDiscoInfo(JID.jidInstanceNS(fromJid.getDomain()), fromJid, null);
 			final String caps = PresenceCapabilitiesManager.generateVerificationStringFromDiscoInfo(discoInfo);
 			final String capsNode = CAPS_NODE + "#" + caps;
@@ -698,6 +706,23 @@ public class MessageRouter
 	}
 
 	public Element getDiscoInfo(JID toJid, JID fromJid, String node) {
+		if (node == null && toJid.getLocalpart() == null && toJid.getResource() == null &&
+				isLocalDomain(toJid.getDomain())) {
+			return getCachedDiscoInfo(toJid.getDomain(), fromJid).discoInfo.clone();
+		}
+		return createDiscoInfo(toJid, fromJid, node);
+	}
+
+	/**
+	 * Drops disco#info and entity capabilities of local domains cached for new streams and disco queries. It needs to
+	 * be called when features provided by any component change.
+	 */
+	public void invalidateDiscoInfoCache() {
+		discoInfoCacheInvalidations.incrementAndGet();
+		discoInfoCache.clear();
+	}
+
+	private Element createDiscoInfo(JID toJid, JID fromJid, String node) {
 		Element discoInfoResult = new Element("query");
 		discoInfoResult.setXMLNS("http://jabber.org/protocol/disco#info");
 		if (isLocalDomain(toJid.toString()) && (node == null)) {
@@ -749,6 +774,35 @@ public class MessageRouter
 		return discoInfoResult;
 	}
 
+	/**
+	 * Returns disco#info of the local domain which is the same for all non-admin users (admins may see additional
+	 * commands) and is cached until components change. Cached value is also dropped when the vhost item of the domain
+	 * is replaced after change of its configuration.
+	 */
+	private CachedDiscoInfo getCachedDiscoInfo(String domain, JID fromJid) {
+		boolean admin = fromJid != null && isAdmin(fromJid);
+		String key = admin ? domain + "#admin" : domain;
+		VHostItem vhost = vHostManager == null ? null : vHostManager.getVHostItem(domain);
+		CachedDiscoInfo cached = discoInfoCache.get(key);
+		if (cached != null && cached.vhost == vhost) {
+			return cached;
+		}
+
+		long invalidationsBefore = discoInfoCacheInvalidations.get();
+		final Element discoInfo = createDiscoInfo(JID.jidInstanceNS(domain), fromJid, null);
+		final String caps = PresenceCapabilitiesManager.generateVerificationStringFromDiscoInfo(discoInfo);
+		final String capsNode = CAPS_NODE + "#" + caps;
+		String[] features = PresenceCapabilitiesManager.getFeaturesFromDiscoInfo(discoInfo);
+		PresenceCapabilitiesManager.setNodeFeatures(capsNode, features);
+
+		cached = new CachedDiscoInfo(vhost, discoInfo, PresenceCapabilitiesManager.getCapsElement(caps));
+		// disco#info calculated concurrently with change of components may be already outdated
+		if (invalidationsBefore == discoInfoCacheInvalidations.get()) {
+			discoInfoCache.put(key, cached);
+		}
+		return cached;
+	}
+
 	@Override
 	protected Integer getMaxQueueSize(int def) {
 		return def * 10;
@@ -947,5 +1001,18 @@ public class MessageRouter
 //  .toString()))) {
 		return result;
 	}
+
+	private static class CachedDiscoInfo {
+
+		private final Element caps;
+		private final Element discoInfo;
+		private final VHostItem vhost;
+
+		private CachedDiscoInfo(VHostItem vhost, Element discoInfo, Element caps) {
+			this.vhost = vhost;
+			this.discoInfo = discoInfo;
+			this.caps = caps;
+		}
+	}
 }
 
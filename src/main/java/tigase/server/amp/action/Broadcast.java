@@ -34,6 +34,7 @@ import tigase.xmpp.jid.JID;
 
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
+import java.util.Collection;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.Map;
@@ -178,9 +179,14 @@ public class Broadcast
 
 	public void sendBroadcastMessage(JID jid) {
 		if (repo != null) {
-			for (Object o : repo.getBroadcastMessages()) {
-				MsgBroadcastRepository.BroadcastMsg msg = (MsgBroadcastRepository.BroadcastMsg) o;
-				if (msg.getDelay(TimeUnit.MILLISECONDS) > 0 && msg.needToSend(jid)) {
+			Collection<MsgBroadcastRepository.BroadcastMsg> messages = repo.getBroadcastMessages();
+			if (messages.isEmpty()) {
+				return;
+			}
+			// UID is retrieved once and used to check all messages
+			long uid = repo.getRecipientUID(jid.getBareJID());
+			for (MsgBroadcastRepository.BroadcastMsg msg : messages) {
+				if (msg.getDelay(TimeUnit.MILLISECONDS) > 0 && msg.needToSend(jid, uid)) {
 					try {
 						sendBroadcastMessage(jid, msg);
 					} catch (TigaseStringprepException ex) {
@@ -30,8 +30,10 @@ import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Timestamp;
+import java.util.ArrayList;
 import java.util.Date;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Queue;
 import java.util.Set;
 import java.util.logging.Level;
@@ -127,19 +129,23 @@ public class JDBCMsgBroadcastRepository
 
 			for (String id : broadcastMessages.keySet()) {
 				BroadcastMsg bmsg = broadcastMessages.get(id);
+				List<BareJID> recipients = new ArrayList<>();
 				stmt = data_repo.getPreparedStatement(null, BROADCAST_GET_MESSAGE_RECIPIENTS);
 				synchronized (stmt) {
 					try {
 						stmt.setString(1, id);
 						rs = stmt.executeQuery();
 						while (rs.next()) {
-							BareJID jid = BareJID.bareJIDInstanceNS(rs.getString(1));
-							bmsg.addRecipient(jid);
+							recipients.add(BareJID.bareJIDInstanceNS(rs.getString(1)));
 						}
 					} finally {
 						data_repo.release(null, rs);
 					}
 				}
+				// UIDs are resolved after the statement is released, as it may require queries to the database
+				for (BareJID jid : recipients) {
+					bmsg.addRecipient(jid);
+				}
 			}
 		} catch (SQLException ex) {
 			log.log(Level.WARNING, "Problem with retrieving broadcast messages", ex);
@@ -175,4 +181,26 @@ public class JDBCMsgBroadcastRepository
 		}
 	}
 
+	@Override
+	protected void ensureBroadcastMessageRecipients(String id, List<BareJID> recipients) {
+		if (recipients.size() == 1) {
+			ensureBroadcastMessageRecipient(id, recipients.get(0));
+			return;
+		}
+		try {
+			PreparedStatement stmt = data_repo.getPreparedStatement(recipients.get(0),
+																	BROADCAST_ADD_MESSAGE_RECIPIENT);
+			synchronized (stmt) {
+				for (BareJID recipient : recipients) {
+					stmt.setString(1, id);
+					stmt.setString(2, recipient.toString());
+					stmt.addBatch();
+				}
+				stmt.executeBatch();
+			}
+		} catch (Exception ex) {
+			log.log(Level.WARNING, "Problem with updating broadcast message", ex);
+		}
+	}
+
 }
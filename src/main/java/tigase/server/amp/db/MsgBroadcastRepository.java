@@ -21,10 +21,16 @@ import tigase.db.DBInitException;
 import tigase.db.DataSource;
 import tigase.db.DataSourceAware;
 import tigase.db.DataSourceHelper;
+import tigase.db.TigaseDBException;
+import tigase.db.UserRepository;
 import tigase.db.beans.MDRepositoryBeanWithStatistics;
 import tigase.kernel.beans.Bean;
+import tigase.kernel.beans.Inject;
+import tigase.kernel.beans.config.ConfigField;
 import tigase.server.amp.AmpComponent;
-import tigase.server.amp.JidResourceMap;
+import tigase.util.common.CompressedBitmap;
+import tigase.util.common.TinyLFUCache;
+import tigase.vhosts.VHostManagerIfc;
 import tigase.xml.Element;
 import tigase.xml.SimpleParser;
 import tigase.xml.SingletonFactory;
@@ -33,17 +39,41 @@ import tigase.xmpp.jid.JID;
 
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 /**
  * Created by andrzej on 15.03.2016.
+ * <br>
+ * Recipients of broadcast messages are identified by user UID (see {@link UserRepository#getUserUID(BareJID)}) and
+ * kept in a {@link CompressedBitmap}. UIDs are kept in a cache of the repository, so each user is looked up once for
+ * all broadcast messages, and users of domains which are not local are not looked up at all. New recipients are
+ * stored in the database in batches - thread which stores recipients stores also all recipients added by other
+ * threads in the meantime.
  */
 public abstract class MsgBroadcastRepository<T, S extends DataSource>
 		implements DataSourceAware<S> {
 
+	private static final Logger log = Logger.getLogger(MsgBroadcastRepository.class.getCanonicalName());
+
+	private static final int MAX_RECIPIENTS_BATCH = 1000;
+	private static final Long NO_UID = -1L;
+
 	protected Map<String, BroadcastMsg> broadcastMessages = new ConcurrentHashMap<String, BroadcastMsg>();
 	protected long broadcastMessagesLastCleanup = 0;
 	protected SimpleParser parser = SingletonFactory.getParserInstance();
+	private final AtomicBoolean storingRecipients = new AtomicBoolean(false);
+	private final Queue<Object[]> recipientsToStore = new ConcurrentLinkedQueue<>();
+	private TinyLFUCache<BareJID, Long> recipientUIDs = new TinyLFUCache<>(10000);
+	@ConfigField(desc = "Maximal number of cached UIDs of recipients", alias = "recipient-uid-cache-size")
+	private int recipientUIDCacheSize = 10000;
+	@Inject(nullAllowed = true)
+	private UserRepository userRepository;
+	@Inject(nullAllowed = true)
+	private VHostManagerIfc vHostManager;
 
 	public abstract void loadMessagesToBroadcast();
 
@@ -83,25 +113,90 @@ public abstract class MsgBroadcastRepository<T, S extends DataSource>
 
 	public boolean updateBroadcastMessage(String id, Element msg, Date expire, BareJID recipient) {
 		boolean isNew = false;
-		synchronized (broadcastMessages) {
-			BroadcastMsg bmsg = broadcastMessages.get(id);
-			if (bmsg == null) {
-				bmsg = new BroadcastMsg(null, msg, expire);
-				broadcastMessages.put(id, bmsg);
-				isNew = true;
-				insertBroadcastMessage(id, msg, expire, recipient);
-			}
-			if (bmsg.addRecipient(recipient)) {
-				ensureBroadcastMessageRecipient(id, recipient);
+		BroadcastMsg bmsg = broadcastMessages.get(id);
+		if (bmsg == null) {
+			synchronized (broadcastMessages) {
+				bmsg = broadcastMessages.get(id);
+				if (bmsg == null) {
+					bmsg = new BroadcastMsg(null, msg, expire);
+					insertBroadcastMessage(id, msg, expire, recipient);
+					broadcastMessages.put(id, bmsg);
+					isNew = true;
+				}
 			}
-			return isNew;
 		}
+		if (bmsg.addRecipient(recipient)) {
+			storeRecipient(id, recipient);
+		}
+		return isNew;
+	}
+
+	/**
+	 * Returns UID of the user used to identify recipients of broadcast messages or <code>-1</code> if user has no
+	 * UID (ie. is not a local user).
+	 */
+	public long getRecipientUID(BareJID jid) {
+		Long uid = recipientUIDs.get(jid);
+		if (uid == null) {
+			uid = loadRecipientUID(jid);
+			recipientUIDs.put(jid, uid);
+		}
+		return uid;
+	}
+
+	public void setRecipientUIDCacheSize(int recipientUIDCacheSize) {
+		this.recipientUIDCacheSize = recipientUIDCacheSize;
+		this.recipientUIDs = new TinyLFUCache<>(Math.max(1, recipientUIDCacheSize));
 	}
 
 	protected abstract void ensureBroadcastMessageRecipient(String id, BareJID recipient);
 
+	/**
+	 * Stores recipients of the broadcast message. Implementations should override this method if they are able to
+	 * store many recipients at once.
+	 */
+	protected void ensureBroadcastMessageRecipients(String id, List<BareJID> recipients) {
+		for (BareJID recipient : recipients) {
+			ensureBroadcastMessageRecipient(id, recipient);
+		}
+	}
+
 	protected abstract void insertBroadcastMessage(String id, Element msg, Date expire, BareJID recipient);
 
+	private Long loadRecipientUID(BareJID jid) {
+		// users of remote domains have no UID, looking them up would only fill the cache of the user repository
+		if (userRepository == null || (vHostManager != null && !vHostManager.isLocalDomain(jid.getDomain()))) {
+			return NO_UID;
+		}
+		try {
+			return userRepository.getUserUID(jid);
+		} catch (TigaseDBException ex) {
+			log.log(Level.FINEST, "Could not retrieve UID of user " + jid, ex);
+			return NO_UID;
+		}
+	}
+
+	private void storeRecipient(String id, BareJID recipient) {
+		recipientsToStore.offer(new Object[]{id, recipient});
+		// if other thread is storing recipients, it will store this one as well
+		while (!recipientsToStore.isEmpty() && storingRecipients.compareAndSet(false, true)) {
+			try {
+				Map<String, List<BareJID>> batch = new LinkedHashMap<>();
+				Object[] item;
+				int count = 0;
+				while (count < MAX_RECIPIENTS_BATCH && (item = recipientsToStore.poll()) != null) {
+					batch.computeIfAbsent((String) item[0], k -> new ArrayList<>()).add((BareJID) item[1]);
+					count++;
+				}
+				for (Map.Entry<String, List<BareJID>> e : batch.entrySet()) {
+					ensureBroadcastMessageRecipients(e.getKey(), e.getValue());
+				}
+			} finally {
+				storingRecipients.set(false);
+			}
+		}
+	}
+
 	@Bean(name = "msgBroadcastRepository", parent = AmpComponent.class, active = true)
 	public static class MsgBroadcastRepositoryBean
 			extends MDRepositoryBeanWithStatistics<MsgBroadcastRepository>
@@ -141,6 +236,11 @@ public abstract class MsgBroadcastRepository<T, S extends DataSource>
 			return getRepository("default").updateBroadcastMessage(id, msg, expire, recipient);
 		}
 
+		@Override
+		public long getRecipientUID(BareJID jid) {
+			return getRepository("default").getRecipientUID(jid);
+		}
+
 		@Override
 		public Class<?> getDefaultBeanClass() {
 			return MsgBroadcastRepositoryConfigBean.class;
@@ -161,29 +261,127 @@ public abstract class MsgBroadcastRepository<T, S extends DataSource>
 	public class BroadcastMsg<T>
 			extends MsgRepository.MsgDBItem<T> {
 
-		private JidResourceMap<Boolean> recipients = new JidResourceMap<Boolean>();
+		private final CompressedBitmap recipients = new CompressedBitmap();
+		// recipients without UID, ie. users of other servers
+		private final Set<BareJID> recipientsWithoutUID = ConcurrentHashMap.newKeySet();
+		private final ResourceSet sentTo = new ResourceSet();
 
 		public BroadcastMsg(T db_id, Element msg, Date expired) {
 			super(db_id, msg, expired);
 		}
 
 		public boolean needToSend(JID jid) {
-			return recipients.containsKey(jid.getBareJID()) &&
-					(jid.getResource() == null || !recipients.containsKey(jid));
+			return needToSend(jid, getRecipientUID(jid.getBareJID()));
+		}
+
+		/**
+		 * Checks if message needs to be sent to the JID, using UID of the user retrieved with
+		 * {@link MsgBroadcastRepository#getRecipientUID(BareJID)}.
+		 */
+		public boolean needToSend(JID jid, long uid) {
+			if (!isRecipient(jid.getBareJID(), uid)) {
+				return false;
+			}
+			return jid.getResource() == null || !sentTo.contains(resourceHash(jid, uid));
 		}
 
 		public void markAsSent(JID jid) {
-			recipients.put(jid, Boolean.TRUE);
+			if (jid.getResource() != null) {
+				sentTo.add(resourceHash(jid, getRecipientUID(jid.getBareJID())));
+			}
+		}
+
+		/**
+		 * Returns number of recipients of the message.
+		 */
+		public long getRecipientsCount() {
+			synchronized (recipients) {
+				return recipients.getCardinality() + recipientsWithoutUID.size();
+			}
 		}
 
 		protected boolean addRecipient(BareJID jid) {
-			if (recipients.containsKey(jid)) {
-				return false;
+			long uid = getRecipientUID(jid);
+			if (uid < 0) {
+				return recipientsWithoutUID.add(jid);
+			}
+			synchronized (recipients) {
+				return recipients.add(uid);
 			}
-			recipients.put(JID.jidInstance(jid), Boolean.TRUE);
-			return true;
 		}
 
+		private boolean isRecipient(BareJID jid, long uid) {
+			if (uid >= 0) {
+				synchronized (recipients) {
+					if (recipients.contains(uid)) {
+						return true;
+					}
+				}
+			}
+			// UID of the user might have been unknown when the recipient was added
+			return !recipientsWithoutUID.isEmpty() && recipientsWithoutUID.contains(jid);
+		}
+
+		private long resourceHash(JID jid, long uid) {
+			long h = (uid < 0 ? jid.getBareJID().hashCode() : uid) * 0x9E3779B97F4A7C15L;
+			h ^= jid.getResource().hashCode();
+			h ^= h >>> 33;
+			h *= 0xff51afd7ed558ccdL;
+			h ^= h >>> 33;
+			return h;
+		}
+
+	}
+
+	/**
+	 * Set of hashes of full JIDs to which message was already sent. Uses open addressing and keeps only 64-bit hashes
+	 * instead of JID instances.
+	 */
+	private static class ResourceSet {
+
+		private static final long EMPTY = 0;
+
+		private int size = 0;
+		private long[] table = new long[16];
+
+		private synchronized void add(long hash) {
+			hash = hash == EMPTY ? 1 : hash;
+			if (size * 2 >= table.length) {
+				long[] old = table;
+				table = new long[old.length * 2];
+				size = 0;
+				for (long h : old) {
+					if (h != EMPTY) {
+						insert(h);
+					}
+				}
+			}
+			insert(hash);
+		}
+
+		private synchronized boolean contains(long hash) {
+			hash = hash == EMPTY ? 1 : hash;
+			int mask = table.length - 1;
+			for (int i = (int) hash & mask; table[i] != EMPTY; i = (i + 1) & mask) {
+				if (table[i] == hash) {
+					return true;
+				}
+			}
+			return false;
+		}
+
+		private void insert(long hash) {
+			int mask = table.length - 1;
+			int i = (int) hash & mask;
+			while (table[i] != EMPTY) {
+				if (table[i] == hash) {
+					return;
+				}
+				i = (i + 1) & mask;
+			}
+			table[i] = hash;
+			size++;
+		}
 	}
 
 }
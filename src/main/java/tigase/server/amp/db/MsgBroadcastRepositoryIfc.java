@@ -41,4 +41,6 @@ public interface MsgBroadcastRepositoryIfc<T extends DataSource>
 
 	boolean updateBroadcastMessage(String id, Element msg, Date expire, BareJID recipient);
 
+	long getRecipientUID(BareJID jid);
+
 }
@@ -30,6 +30,7 @@ import tigase.server.ReceiverTimeoutHandler;
 import tigase.server.xmppclient.ClientConnectionManager;
 import tigase.server.xmppclient.SeeOtherHostIfc.Phase;
 import tigase.stats.StatisticsList;
+import tigase.util.common.HashedTimingWheel;
 import tigase.util.stringprep.TigaseStringprepException;
 import tigase.xml.Element;
 import tigase.xmpp.*;
@@ -41,7 +42,7 @@ import java.io.BufferedReader;
 import java.io.FileReader;
 import java.io.IOException;
 import java.util.*;
-import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.TimeUnit;
 import java.util.logging.*;
 
@@ -68,9 +69,12 @@ public class BoshConnectionManager
 	public static final String CLIENT_ACCESS_POLICY_FILE_PROP_VAL = "etc/client-access-policy.xml";
 	private static final Logger log = Logger.getLogger(BoshConnectionManager.class.getName());
 	private static final int DEF_PORT_NO = 5280;
+	private static final int SLOWEST_SESSIONS_IN_STATS = 10;
+	private static final long TASKS_WHEEL_TICK = 100;
+	private static final int TASKS_WHEEL_TICKS_PER_WHEEL = 1024;
 
 	private static java.util.logging.Handler sidFilehandler;
-	protected final Map<UUID, BoshSession> sessions = new ConcurrentSkipListMap<UUID, BoshSession>();
+	protected final Map<UUID, BoshSession> sessions = new ConcurrentHashMap<UUID, BoshSession>();
 	private int[] PORTS = {DEF_PORT_NO};
 	@ConfigField(desc = "Batch queue timeout", alias = BATCH_QUEUE_TIMEOUT_KEY)
 	private long batch_queue_timeout = BATCH_QUEUE_TIMEOUT_VAL;
@@ -108,6 +112,7 @@ public class BoshConnectionManager
 
 	;
 	private ReceiverTimeoutHandler stoppedHandler = newStoppedHandler();
+	private HashedTimingWheel tasksWheel = null;
 
 	// This should be actually a multi-thread save variable.
 	// Changing it to
@@ -202,69 +207,69 @@ public class BoshConnectionManager
 			BoshSession bs = null;
 			String sid_str = null;
 
-			synchronized (sessions) {
-				if (log.isLoggable(Level.FINER)) {
-					log.log(Level.FINER, "Processing packet: {0}, type: {1}",
-							new Object[]{p.getElemName(), p.getType()});
-				}
-				if (log.isLoggable(Level.FINEST)) {
-					log.log(Level.FINEST, "Processing socket data: {0}", p);
-				}
-				sid_str = p.getAttributeStaticStr(SID_ATTR);
+			if (log.isLoggable(Level.FINER)) {
+				log.log(Level.FINER, "Processing packet: {0}, type: {1}",
+						new Object[]{p.getElemName(), p.getType()});
+			}
+			if (log.isLoggable(Level.FINEST)) {
+				log.log(Level.FINEST, "Processing socket data: {0}", p);
+			}
+			sid_str = p.getAttributeStaticStr(SID_ATTR);
 
-				UUID sid = null;
+			UUID sid = null;
 
-				if (sid_str == null) {
-					String hostname = p.getAttributeStaticStr(Packet.TO_ATT);
+			if (sid_str == null) {
+				String hostname = p.getAttributeStaticStr(Packet.TO_ATT);
 
-					if ((hostname != null) && isLocalDomain(hostname)) {
-						if (!isAllowed(srv, hostname)) {
-							if (log.isLoggable(Level.FINE)) {
-								log.log(Level.FINE, "Policy violation. Closing connection: {0}", p);
-							}
-							try {
-								serv.sendErrorAndStop(Authorization.NOT_ALLOWED, StreamError.PolicyViolation, p,
-													  "Policy violation.");
-							} catch (IOException e) {
-								log.log(Level.WARNING, "Problem sending invalid hostname error for sid =  " + sid, e);
-							}
-						} else {
-							bs = new BoshSession(getDefVHostItem().getDomain(),
-												 JID.jidInstanceNS(routings.computeRouting(hostname)), this,
-												 sendNodeHostname ? getDefHostName().getDomain() : null,
-												 maxSessionWaitingPackets);
-							sid = bs.getSid();
-							sessions.put(sid, bs);
-
-							if (log.isLoggable(Level.FINE)) {
-								log.log(Level.FINE, "{0} : {1} ({2})",
-										new Object[]{BOSH_OPERATION_TYPE.CREATE, sid, "Socket bosh session"});
-							}
+				if ((hostname != null) && isLocalDomain(hostname)) {
+					if (!isAllowed(srv, hostname)) {
+						if (log.isLoggable(Level.FINE)) {
+							log.log(Level.FINE, "Policy violation. Closing connection: {0}", p);
 						}
-					} else {
 						try {
-							serv.sendErrorAndStop(Authorization.NOT_ALLOWED, hostname == null
-																			 ? StreamError.ImproperAddressing
-																			 : StreamError.HostUnknown, p,
-												  "Invalid hostname.");
+							serv.sendErrorAndStop(Authorization.NOT_ALLOWED, StreamError.PolicyViolation, p,
+												  "Policy violation.");
 						} catch (IOException e) {
 							log.log(Level.WARNING, "Problem sending invalid hostname error for sid =  " + sid, e);
 						}
+					} else {
+						bs = new BoshSession(getDefVHostItem().getDomain(),
+											 JID.jidInstanceNS(routings.computeRouting(hostname)), this,
+											 sendNodeHostname ? getDefHostName().getDomain() : null,
+											 maxSessionWaitingPackets);
+						sid = bs.getSid();
+
+						if (log.isLoggable(Level.FINE)) {
+							log.log(Level.FINE, "{0} : {1} ({2})",
+									new Object[]{BOSH_OPERATION_TYPE.CREATE, sid, "Socket bosh session"});
+						}
 					}
 				} else {
 					try {
-						sid = UUID.fromString(sid_str);
-						bs = sessions.get(sid);
-					} catch (IllegalArgumentException e) {
-						log.log(Level.WARNING, "Problem processing socket data, sid =  " + sid_str +
-								" does not conform to the UUID string representation.", e);
+						serv.sendErrorAndStop(Authorization.NOT_ALLOWED, hostname == null
+																		 ? StreamError.ImproperAddressing
+																		 : StreamError.HostUnknown, p,
+											  "Invalid hostname.");
+					} catch (IOException e) {
+						log.log(Level.WARNING, "Problem sending invalid hostname error for sid =  " + sid, e);
 					}
 				}
+			} else {
+				try {
+					sid = UUID.fromString(sid_str);
+					bs = sessions.get(sid);
+				} catch (IllegalArgumentException e) {
+					log.log(Level.WARNING, "Problem processing socket data, sid =  " + sid_str +
+							" does not conform to the UUID string representation.", e);
+				}
 			}
 			try {
 				if (bs != null) {
 					synchronized (bs) {
 						if (sid_str == null) {
+							// new session is published while holding its lock, so anything processed for it
+							// concurrently will wait until it is initialized
+							sessions.put(bs.getSid(), bs);
 							bs.init(p, serv, max_wait, min_polling, max_inactivity, concurrent_requests, hold_requests,
 									max_pause, max_batch_size, batch_queue_timeout, out_results);
 						} else {
@@ -303,7 +308,12 @@ public class BoshConnectionManager
 	public BoshTask scheduleTask(BoshSession bs, long delay) {
 		BoshTask bt = new BoshTask(bs, this);
 
-		addTimerTask(bt, delay);
+		HashedTimingWheel wheel = tasksWheel;
+		if (wheel != null) {
+			wheel.schedule(bt, delay);
+		} else {
+			addTimerTask(bt, delay);
+		}
 
 		// boshTasks.schedule(bt, delay);
 		return bt;
@@ -436,13 +446,56 @@ public class BoshConnectionManager
 			   : null;
 	}
 
+	@Override
+	public void start() {
+		// wait and inactivity timers of BOSH sessions are rescheduled with almost every request so they are kept in
+		// a timing wheel instead of the component scheduler
+		tasksWheel = new HashedTimingWheel("BoshTasks - " + getName(), TASKS_WHEEL_TICK, TimeUnit.MILLISECONDS,
+										   TASKS_WHEEL_TICKS_PER_WHEEL);
+		tasksWheel.start();
+		super.start();
+	}
+
+	@Override
+	public void stop() {
+		super.stop();
+		if (tasksWheel != null) {
+			tasksWheel.stop();
+			tasksWheel = null;
+		}
+	}
+
 	@Override
 	public void getStatistics(StatisticsList list) {
 		super.getStatistics(list);
+		if (tasksWheel != null) {
+			list.add(getName(), "Bosh scheduled tasks", tasksWheel.getScheduledCount(), Level.FINER);
+		}
 		if (list.checkLevel(Level.FINEST)) {
 
-			// Be careful here, the size() for this map is expensive to count
 			list.add(getName(), "Bosh sessions", sessions.size(), Level.FINEST);
+
+			long responses = 0;
+			long responsesLatency = 0;
+			long maxLatency = 0;
+			// latencies are updated while statistics are collected, so values are copied before sorting
+			List<SessionLatency> slowest = new ArrayList<>(sessions.size());
+			for (BoshSession session : sessions.values()) {
+				SessionLatency latency = new SessionLatency(session);
+				responses += latency.responses;
+				responsesLatency += latency.responses * latency.average;
+				maxLatency = Math.max(maxLatency, latency.max);
+				slowest.add(latency);
+			}
+			list.add(getName(), "Bosh average response latency [ms]", responses == 0 ? 0 : (responsesLatency / responses),
+					 Level.FINEST);
+			list.add(getName(), "Bosh max response latency [ms]", maxLatency, Level.FINEST);
+
+			slowest.sort(Comparator.comparingLong((SessionLatency latency) -> latency.average).reversed());
+			for (SessionLatency latency : slowest.subList(0, Math.min(SLOWEST_SESSIONS_IN_STATS, slowest.size()))) {
+				list.add(getName(), "Bosh session " + latency.sid + " average/max response latency [ms]",
+						 latency.average + "/" + latency.max, Level.FINEST);
+			}
 		}
 	}
 
@@ -847,6 +900,21 @@ public class BoshConnectionManager
 	}
 
 	// ~--- inner classes --------------------------------------------------------
+	private static class SessionLatency {
+
+		private final long average;
+		private final long max;
+		private final long responses;
+		private final UUID sid;
+
+		private SessionLatency(BoshSession session) {
+			this.sid = session.getSid();
+			this.responses = session.getResponsesCount();
+			this.average = session.getAverageResponseLatency();
+			this.max = session.getMaxResponseLatency();
+		}
+	}
+
 	private class StartedHandler
 			implements ReceiverTimeoutHandler {
 
@@ -58,6 +58,7 @@ public class BoshIOService
 	private String content_type = "text/xml; charset=utf-8";
 	private boolean firstPassCORS = true;
 	private boolean firstPassClientAccessPolicy = true;
+	private long requestReceivedTime = -1;
 	private long rid = -1;
 	private UUID sid = null;
 	private BoshTask waitTimer = null;
@@ -67,6 +68,18 @@ public class BoshIOService
 		this.configProvider = configProvider;
 	}
 
+	/**
+	 * Returns time when BOSH request was received by this connection or <code>-1</code> if it was already
+	 * responded.
+	 */
+	public long getRequestReceivedTime() {
+		return requestReceivedTime;
+	}
+
+	public void setRequestReceivedTime(long requestReceivedTime) {
+		this.requestReceivedTime = requestReceivedTime;
+	}
+
 	public long getRid() {
 		return this.rid;
 	}
@@ -86,6 +86,7 @@ public class BoshSession {
 	private int max_batch_size = MAX_BATCH_SIZE_VAL;
 	private long max_inactivity = MAX_INACTIVITY_PROP_VAL;
 	private long max_pause = MAX_PAUSE_PROP_VAL;
+	private long max_response_latency = 0;
 	private long max_wait = MAX_WAIT_DEF_PROP_VAL;
 	private long min_polling = MIN_POLLING_PROP_VAL;
 	// Old connections which might be reused in keep-alive mode.
@@ -95,6 +96,8 @@ public class BoshSession {
 	private Queue<BoshIOService> old_connections = new LinkedBlockingQueue<BoshIOService>(4);
 	private long previous_received_rid = -1;
 	private BoshSendQueueTask queueTask = null;
+	private long responses_count = 0;
+	private long responses_latency = 0;
 	private String[] replace_with = {"$1&lt;a href=\"http://$2\" target=\"_blank\"&gt;$2&lt;/a&gt;",
 									 "$1&lt;a href=\"$2\" target=\"_blank\"&gt;$2&lt;/a&gt;",};
 	private int rids_head = 0;
@@ -207,6 +210,7 @@ public class BoshSession {
 		if (log.isLoggable(Level.FINEST)) {
 			log.finest("[" + connections.size() + "] Processing socket packet: " + packet.toString());
 		}
+		service.setRequestReceivedTime(System.currentTimeMillis());
 
 		BoshTask waitTimer = service.getWaitTimer();
 
@@ -535,6 +539,27 @@ public class BoshSession {
 		return sid;
 	}
 
+	/**
+	 * Returns number of BOSH requests which were responded.
+	 */
+	public synchronized long getResponsesCount() {
+		return responses_count;
+	}
+
+	/**
+	 * Returns average time (in milliseconds) between receiving of BOSH request and sending response to it.
+	 */
+	public synchronized long getAverageResponseLatency() {
+		return responses_count == 0 ? 0 : (responses_latency / responses_count);
+	}
+
+	/**
+	 * Returns maximal time (in milliseconds) between receiving of BOSH request and sending response to it.
+	 */
+	public synchronized long getMaxResponseLatency() {
+		return max_response_latency;
+	}
+
 	public void setUserJid(String jid) {
 		userJid = JID.jidInstanceNS(jid);
 	}
@@ -542,6 +567,7 @@ public class BoshSession {
 	protected void init(Packet packet, BoshIOService service, long max_wait, long min_polling, long max_inactivity,
 						int concurrent_requests, int hold_requests, long max_pause, int max_batch_size,
 						long batch_queue_timeout, Queue<Packet> out_results, boolean preBindEnabled) {
+		service.setRequestReceivedTime(System.currentTimeMillis());
 		String cache_action = packet.getAttributeStaticStr(CACHE_ATTR);
 
 		if ((cache_action != null) && cache_action.equals(CacheAction.on.toString())) {
@@ -887,6 +913,15 @@ public class BoshSession {
 			queueTask = null;
 		}
 		last_send_time = System.currentTimeMillis();
+		if (serv.getRequestReceivedTime() > 0) {
+			long latency = last_send_time - serv.getRequestReceivedTime();
+			serv.setRequestReceivedTime(-1);
+			++responses_count;
+			responses_latency += latency;
+			if (latency > max_response_latency) {
+				max_response_latency = latency;
+			}
+		}
 
 		BoshTask timer = serv.getWaitTimer();
 
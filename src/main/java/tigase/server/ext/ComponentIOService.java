@@ -22,7 +22,9 @@ import tigase.util.cache.SizedCache;
 import tigase.xmpp.XMPPIOService;
 import tigase.xmpp.jid.JID;
 
+import java.io.IOException;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Created: Jun 14, 2010 12:05:41 PM
@@ -36,8 +38,11 @@ public class ComponentIOService
 	private static final long MAX_CACHE_TIME = 100000;
 
 	private boolean authenticated = false;
+	private int maxQueueSize = 0;
+	private final AtomicLong queueOverflows = new AtomicLong();
 	private SizedCache<JID, JID> recentJIDs = new SizedCache<JID, JID>(MAX_RECENT_JIDS);
 	private String routings = null;
+	private volatile long writeLatency = 0;
 
 	public boolean isAuthenticated() {
 		return authenticated;
@@ -66,4 +71,69 @@ public class ComponentIOService
 		return jid != null && recentJIDs.get(jid) != null;
 	}
 
+	/**
+	 * Returns estimated time in nanoseconds needed to send all data waiting to be sent over this connection. It is
+	 * based on the number of packets waiting in the queue, bytes not yet written to the socket (counted as a packet
+	 * per kilobyte) and recent average time of writing a single packet.
+	 */
+	public long getLoad() {
+		long waiting = getWaitingPacketsSize() + ((waitingToSendSize() + 1023) / 1024);
+
+		return (waiting + 1) * Math.max(1, writeLatency);
+	}
+
+	public int getMaxQueueSize() {
+		return maxQueueSize;
+	}
+
+	/**
+	 * Sets maximal number of packets waiting to be sent over this connection, <code>0</code> means no limit.
+	 */
+	public void setMaxQueueSize(int maxQueueSize) {
+		this.maxQueueSize = maxQueueSize;
+	}
+
+	public long getQueueOverflows() {
+		return queueOverflows.get();
+	}
+
+	/**
+	 * Returns average time in nanoseconds of writing a single packet to the socket.
+	 */
+	public long getWriteLatency() {
+		return writeLatency;
+	}
+
+	/**
+	 * Checks if there is a room for the next packet in the outbound queue. If the queue is full, overflow is counted
+	 * and the packet should not be added.
+	 */
+	public boolean hasQueueCapacity() {
+		if (isQueueFull()) {
+			queueOverflows.incrementAndGet();
+			return false;
+		}
+		return true;
+	}
+
+	public boolean isQueueFull() {
+		return maxQueueSize > 0 && getWaitingPacketsSize() >= maxQueueSize;
+	}
+
+	@Override
+	public void processWaitingPackets() throws IOException {
+		int waiting = getWaitingPacketsSize();
+		long start = System.nanoTime();
+
+		super.processWaitingPackets();
+
+		if (waiting > 0) {
+			long latency = (System.nanoTime() - start) / waiting;
+			long current = writeLatency;
+
+			// exponentially weighted moving average, so only recent writes matter
+			writeLatency = current == 0 ? latency : current + ((latency - current) >> 3);
+		}
+	}
+
 }
@@ -73,6 +73,8 @@ public class ComponentProtocol
 
 	public static final String MAX_AUTH_ATTEMPTS_PROP_KEY = "max-auth-attempts";
 
+	public static final String MAX_QUEUE_SIZE_PROP_KEY = "max-queue-size";
+
 	public static final String PACK_ROUTED_KEY = "pack-routed";
 
 	public static final String RETURN_SERVICE_DISCO_KEY = "service-disco";
@@ -98,6 +100,8 @@ public class ComponentProtocol
 	private String identity_type = IDENTITY_TYPE_VAL;
 	@ConfigField(desc = "Max number of authentication attempts", alias = MAX_AUTH_ATTEMPTS_PROP_KEY)
 	private int maxAuthenticationAttempts = 1;
+	@ConfigField(desc = "Max number of packets waiting to send over a connection", alias = MAX_QUEUE_SIZE_PROP_KEY)
+	private int maxQueueSize = 10000;
 	/**
 	 * List of processors which should handle all traffic incoming from the network. In most cases if not all, these
 	 * processors handle just protocol traffic, all the rest traffic should be passed on to MR.
@@ -254,6 +258,25 @@ public class ComponentProtocol
 			size += conns.size();
 		}
 		list.add(getName(), "Number of external component connections", size, Level.FINER);
+
+		long overflows = 0;
+		int maxWaiting = 0;
+		long maxLatency = 0;
+
+		for (CopyOnWriteArrayList<ComponentConnection> conns : connections.values()) {
+			for (ComponentConnection conn : conns) {
+				ComponentIOService serv = conn.getService();
+
+				if (serv != null) {
+					overflows += serv.getQueueOverflows();
+					maxWaiting = Math.max(maxWaiting, serv.getWaitingPacketsSize());
+					maxLatency = Math.max(maxLatency, serv.getWriteLatency());
+				}
+			}
+		}
+		list.add(getName(), "Outbound queue overflows", overflows, Level.FINE);
+		list.add(getName(), "Max packets waiting to send on connection", maxWaiting, Level.FINER);
+		list.add(getName(), "Max average packet write time [us]", maxLatency / 1000, Level.FINER);
 	}
 
 	@Override
@@ -507,6 +530,22 @@ public class ComponentProtocol
 		// }
 		p.getElement().removeAttribute("xmlns");
 
+		// outbound queue is bounded only for traffic forwarded to the component
+		if (ios.isAuthenticated() && !ios.hasQueueCapacity()) {
+			if (log.isLoggable(Level.FINE)) {
+				log.log(Level.FINE, "{0}, outbound queue full, rejecting packet: {1}", new Object[]{ios, p});
+			}
+			try {
+				addOutPacket(Authorization.RESOURCE_CONSTRAINT.getResponseMessage(p,
+																				 "External component connection overloaded, service temporarily unavailable.",
+																				 true));
+			} catch (PacketErrorTypeException ex) {
+				log.log(Level.FINE, "Outbound queue full. Packet is error type already: {0}", p);
+			}
+
+			return false;
+		}
+
 		return super.writePacketToSocket(ios, p);
 	}
 
@@ -662,7 +701,7 @@ public class ComponentProtocol
 			for (ComponentConnection componentConnection : conns) {
 				ComponentIOService serv = componentConnection.getService();
 
-				if ((serv != null) && serv.isConnected() && serv.isRecentJID(p.getStanzaTo())) {
+				if ((serv != null) && serv.isConnected() && !serv.isQueueFull() && serv.isRecentJID(p.getStanzaTo())) {
 					result = serv;
 
 					break;
@@ -719,7 +758,11 @@ public class ComponentProtocol
 
 	@Override
 	protected ComponentIOService getXMPPIOServiceInstance() {
-		return new ComponentIOService();
+		ComponentIOService serv = new ComponentIOService();
+
+		serv.setMaxQueueSize(maxQueueSize);
+
+		return serv;
 	}
 
 	@Override
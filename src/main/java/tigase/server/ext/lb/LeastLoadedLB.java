@@ -0,0 +1,94 @@
+/*
+ * Tigase XMPP Server - The instant messaging server
+ * Copyright (C) 2004 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.server.ext.lb;
+
+import tigase.server.Packet;
+import tigase.server.ext.ComponentConnection;
+import tigase.server.ext.ComponentIOService;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Load balancer selecting connection with the lowest load, which is estimated time needed to send all data waiting
+ * to be sent over the connection (see {@link ComponentIOService#getLoad()}). Connections with full outbound queue are
+ * never selected.
+ * <br>
+ * Subclasses may keep packets of the same JID on the same connection by returning a sticky key. Connection selected
+ * for the key by hashing is used as long as its load is not much higher than the lowest load, otherwise packets are
+ * redirected to the least loaded connection.
+ */
+public class LeastLoadedLB
+		implements LoadBalancerIfc {
+
+	/**
+	 * Load of sticky connection below which it is always selected.
+	 */
+	protected static final long MIN_SKEWED_LOAD = TimeUnit.MILLISECONDS.toNanos(1);
+	/**
+	 * How many times load of sticky connection may be higher than the lowest load.
+	 */
+	protected static final int MAX_LOAD_SKEW = 4;
+
+	@Override
+	public ComponentIOService selectConnection(Packet p, List<ComponentConnection> conns) {
+		ComponentIOService leastLoaded = null;
+		long minLoad = Long.MAX_VALUE;
+
+		for (ComponentConnection conn : conns) {
+			ComponentIOService serv = conn.getService();
+
+			if (isAvailable(serv)) {
+				long load = serv.getLoad();
+
+				if (load < minLoad) {
+					minLoad = load;
+					leastLoaded = serv;
+				}
+			}
+		}
+
+		Object key = getStickyKey(p);
+
+		if (key != null && leastLoaded != null) {
+			ComponentIOService serv = conns.get(Math.abs(key.hashCode() % conns.size())).getService();
+
+			if (serv != leastLoaded && isAvailable(serv)) {
+				long load = serv.getLoad();
+
+				if (load < MIN_SKEWED_LOAD || load <= minLoad * MAX_LOAD_SKEW) {
+					return serv;
+				}
+			}
+		}
+
+		return leastLoaded;
+	}
+
+	/**
+	 * Returns key used to select the same connection for related packets or <code>null</code> if packet may be sent
+	 * over any connection.
+	 */
+	protected Object getStickyKey(Packet p) {
+		return null;
+	}
+
+	private static boolean isAvailable(ComponentIOService serv) {
+		return (serv != null) && serv.isConnected() && !serv.isQueueFull();
+	}
+}
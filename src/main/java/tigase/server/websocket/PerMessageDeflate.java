@@ -0,0 +1,410 @@
+/*
+ * Tigase XMPP Server - The instant messaging server
+ * Copyright (C) 2004 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.server.websocket;
+
+import tigase.stats.StatisticsList;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Implementation of <code>permessage-deflate</code> WebSocket extension (RFC 7692) for a single connection.
+ * <br>
+ * Deflater and inflater are created once per connection and reused for all messages. If compression context is not
+ * kept between messages sent by the server (<code>server_no_context_takeover</code>), deflater is reset after every
+ * message, so instead of keeping it for each connection a deflater is taken from {@link DeflaterPool} shared by
+ * all connections for each message.
+ * <br>
+ * Java implementation of deflate always uses 15-bit window, so offers requiring smaller window for messages sent by
+ * the server are declined.
+ * <br>
+ * Messages are compressed and decompressed by different threads than the one which closes the connection, so
+ * deflater and inflater are used only while holding their locks and are not used any more after {@link #end()}.
+ */
+class PerMessageDeflate {
+
+	static final String EXTENSION_NAME = "permessage-deflate";
+
+	private static final String CLIENT_MAX_WINDOW_BITS = "client_max_window_bits";
+	private static final String CLIENT_NO_CONTEXT_TAKEOVER = "client_no_context_takeover";
+	private static final int INFLATED_BUFFER_SIZE = 1024;
+	private static final int MAX_RETAINED_INFLATED_BUFFER_SIZE = 64 * 1024;
+	private static final int MAX_WINDOW_BITS = 15;
+	private static final String SERVER_MAX_WINDOW_BITS = "server_max_window_bits";
+	private static final String SERVER_NO_CONTEXT_TAKEOVER = "server_no_context_takeover";
+	private static final byte[] TAIL = new byte[]{0x00, 0x00, (byte) 0xFF, (byte) 0xFF};
+
+	private final boolean clientNoContextTakeover;
+	private final Object deflaterLock = new Object();
+	private final DeflaterPool deflaterPool;
+	private final Object inflaterLock = new Object();
+	private final int level;
+	private final int maxMessageSize;
+	private final boolean serverNoContextTakeover;
+	private final Statistics statistics;
+	private Deflater deflater;
+	private boolean ended = false;
+	private Inflater inflater;
+	private byte[] inflated = new byte[INFLATED_BUFFER_SIZE];
+	private int inflatedSize = 0;
+
+	/**
+	 * Selects first acceptable offer of the extension from value of <code>Sec-WebSocket-Extensions</code> header.
+	 *
+	 * @return negotiated extension or <code>null</code> if there is no acceptable offer
+	 */
+	static PerMessageDeflate negotiate(String extensionsHeader, int level, boolean serverNoContextTakeover,
+									   int maxMessageSize, DeflaterPool deflaterPool, Statistics statistics) {
+		if (extensionsHeader == null) {
+			return null;
+		}
+		for (String offer : extensionsHeader.split(",")) {
+			String[] params = offer.split(";");
+			if (!EXTENSION_NAME.equalsIgnoreCase(params[0].trim())) {
+				continue;
+			}
+			boolean acceptable = true;
+			boolean clientNoContext = false;
+			boolean serverNoContext = serverNoContextTakeover;
+			for (int i = 1; i < params.length && acceptable; i++) {
+				String param = params[i].trim();
+				int idx = param.indexOf('=');
+				String name = (idx < 0 ? param : param.substring(0, idx)).trim().toLowerCase();
+				String value = idx < 0 ? null : param.substring(idx + 1).trim().replace("\"", "");
+				switch (name) {
+					case CLIENT_NO_CONTEXT_TAKEOVER:
+						clientNoContext = true;
+						break;
+					case SERVER_NO_CONTEXT_TAKEOVER:
+						serverNoContext = true;
+						break;
+					case CLIENT_MAX_WINDOW_BITS:
+						// inflater is able to handle any window size
+						break;
+					case SERVER_MAX_WINDOW_BITS:
+						acceptable = value != null && value.equals(String.valueOf(MAX_WINDOW_BITS));
+						break;
+					default:
+						acceptable = false;
+						break;
+				}
+			}
+			if (acceptable) {
+				return new PerMessageDeflate(level, clientNoContext, serverNoContext, maxMessageSize, deflaterPool,
+											 statistics);
+			}
+		}
+		return null;
+	}
+
+	PerMessageDeflate(int level, boolean clientNoContextTakeover, boolean serverNoContextTakeover,
+					  int maxMessageSize, DeflaterPool deflaterPool, Statistics statistics) {
+		this.level = level;
+		this.deflaterPool = deflaterPool;
+		this.clientNoContextTakeover = clientNoContextTakeover;
+		this.serverNoContextTakeover = serverNoContextTakeover;
+		this.maxMessageSize = maxMessageSize;
+		this.statistics = statistics;
+	}
+
+	/**
+	 * Returns value of <code>Sec-WebSocket-Extensions</code> header sent to the client.
+	 */
+	String getResponseHeaderValue() {
+		StringBuilder sb = new StringBuilder(EXTENSION_NAME);
+		if (serverNoContextTakeover) {
+			sb.append("; ").append(SERVER_NO_CONTEXT_TAKEOVER);
+		}
+		if (clientNoContextTakeover) {
+			sb.append("; ").append(CLIENT_NO_CONTEXT_TAKEOVER);
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * Compresses whole message and returns data to send in a frame with RSV1 bit set.
+	 *
+	 * @return compressed message or <code>null</code> if connection was already closed and message should be sent
+	 * uncompressed
+	 */
+	ByteBuffer compress(ByteBuffer data) {
+		synchronized (deflaterLock) {
+			if (ended) {
+				return null;
+			}
+			return deflate(data);
+		}
+	}
+
+	/**
+	 * Decompresses payload of a frame of compressed message. Payloads of all frames of the message are decompressed
+	 * to the same buffer, which is returned when the last frame is processed.
+	 * <br>
+	 * Returned buffer is valid only until the next call of this method, as its array is reused for the next message.
+	 *
+	 * @return decompressed message or <code>null</code> if it was not the last frame of the message or connection was
+	 * already closed
+	 */
+	ByteBuffer decompress(ByteBuffer data, boolean last) throws DataFormatException {
+		synchronized (inflaterLock) {
+			if (ended) {
+				data.position(data.limit());
+				return null;
+			}
+			return inflate(data, last);
+		}
+	}
+
+	/**
+	 * Releases native resources of this connection.
+	 */
+	void end() {
+		synchronized (deflaterLock) {
+			synchronized (inflaterLock) {
+				ended = true;
+				if (deflater != null) {
+					deflater.end();
+					deflater = null;
+				}
+				if (inflater != null) {
+					inflater.end();
+					inflater = null;
+				}
+				inflated = null;
+			}
+		}
+	}
+
+	private ByteBuffer deflate(ByteBuffer data) {
+		long start = System.nanoTime();
+		int size = data.remaining();
+		Deflater deflater = serverNoContextTakeover ? deflaterPool.acquire(level) : getDeflater();
+		try {
+			return deflate(deflater, data, size, start);
+		} finally {
+			if (serverNoContextTakeover) {
+				deflaterPool.release(deflater);
+			}
+		}
+	}
+
+	private ByteBuffer deflate(Deflater deflater, ByteBuffer data, int size, long start) {
+		byte[] input;
+		int offset;
+		if (data.hasArray()) {
+			input = data.array();
+			offset = data.arrayOffset() + data.position();
+		} else {
+			input = new byte[size];
+			data.duplicate().get(input);
+			offset = 0;
+		}
+		data.position(data.limit());
+		deflater.setInput(input, offset, size);
+
+		byte[] output = new byte[Math.max(64, size / 2)];
+		int length = 0;
+		while (true) {
+			length += deflater.deflate(output, length, output.length - length, Deflater.SYNC_FLUSH);
+			if (length < output.length) {
+				break;
+			}
+			output = Arrays.copyOf(output, output.length * 2);
+		}
+
+		// message is sent without trailing 0x00 0x00 0xFF 0xFF added by SYNC_FLUSH
+		if (length >= TAIL.length) {
+			length -= TAIL.length;
+		}
+		statistics.compressed(size, length, System.nanoTime() - start);
+		return ByteBuffer.wrap(output, 0, length);
+	}
+
+	private Deflater getDeflater() {
+		if (deflater == null) {
+			deflater = new Deflater(level, true);
+		}
+		return deflater;
+	}
+
+	private ByteBuffer inflate(ByteBuffer data, boolean last) throws DataFormatException {
+		long start = System.nanoTime();
+		int size = data.remaining();
+		if (inflater == null) {
+			inflater = new Inflater(true);
+		}
+		if (data.hasArray()) {
+			inflater.setInput(data.array(), data.arrayOffset() + data.position(), size);
+		} else {
+			byte[] input = new byte[size];
+			data.duplicate().get(input);
+			inflater.setInput(input);
+		}
+		data.position(data.limit());
+		inflateInput();
+		if (!last) {
+			statistics.decompressed(size, 0, System.nanoTime() - start);
+			return null;
+		}
+		inflater.setInput(TAIL);
+		inflateInput();
+		if (clientNoContextTakeover) {
+			inflater.reset();
+		}
+
+		// message is decoded before the next frame is decompressed, so buffer is returned without copying it
+		ByteBuffer result = ByteBuffer.wrap(inflated, 0, inflatedSize);
+		statistics.decompressed(size, inflatedSize, System.nanoTime() - start);
+		inflatedSize = 0;
+		if (inflated.length > MAX_RETAINED_INFLATED_BUFFER_SIZE) {
+			// do not keep buffer grown for a single large message
+			inflated = new byte[INFLATED_BUFFER_SIZE];
+		}
+		return result;
+	}
+
+	private void inflateInput() throws DataFormatException {
+		while (true) {
+			if (inflatedSize == inflated.length) {
+				if (inflated.length >= maxMessageSize) {
+					inflatedSize = 0;
+					inflated = new byte[INFLATED_BUFFER_SIZE];
+					throw new DataFormatException("Decompressed message exceeds " + maxMessageSize + " bytes");
+				}
+				inflated = Arrays.copyOf(inflated, Math.min(inflated.length * 2, maxMessageSize));
+			}
+			int count = inflater.inflate(inflated, inflatedSize, inflated.length - inflatedSize);
+			inflatedSize += count;
+			if (count == 0 && (inflater.needsInput() || inflater.finished() || inflater.needsDictionary())) {
+				break;
+			}
+		}
+	}
+
+	/**
+	 * Pool of deflaters used by connections which do not keep compression context between messages. Deflater is
+	 * reset when it is returned to the pool; deflaters over the limit of idle deflaters and all deflaters returned
+	 * after {@link #end()} are released immediately.
+	 */
+	static class DeflaterPool {
+
+		private final ConcurrentLinkedQueue<Deflater> idle = new ConcurrentLinkedQueue<>();
+		private final AtomicInteger idleCount = new AtomicInteger();
+		private final int maxIdle;
+		private volatile boolean ended = false;
+
+		DeflaterPool(int maxIdle) {
+			this.maxIdle = maxIdle;
+		}
+
+		Deflater acquire(int level) {
+			Deflater deflater = idle.poll();
+			if (deflater == null) {
+				return new Deflater(level, true);
+			}
+			idleCount.decrementAndGet();
+			deflater.setLevel(level);
+			return deflater;
+		}
+
+		void release(Deflater deflater) {
+			deflater.reset();
+			if (!ended) {
+				if (idleCount.incrementAndGet() <= maxIdle) {
+					idle.offer(deflater);
+					// pool could be ended after the check above and would not release this deflater
+					if (ended) {
+						end();
+					}
+					return;
+				}
+				idleCount.decrementAndGet();
+			}
+			deflater.end();
+		}
+
+		/**
+		 * Releases native resources of all idle deflaters.
+		 */
+		void end() {
+			ended = true;
+			Deflater deflater;
+			while ((deflater = idle.poll()) != null) {
+				idleCount.decrementAndGet();
+				deflater.end();
+			}
+		}
+
+		int getIdleCount() {
+			return idleCount.get();
+		}
+	}
+
+	/**
+	 * Statistics of compression of all connections.
+	 */
+	static class Statistics {
+
+		private final LongAdder compressedIn = new LongAdder();
+		private final LongAdder compressedOut = new LongAdder();
+		private final LongAdder compressionTime = new LongAdder();
+		private final LongAdder decompressedIn = new LongAdder();
+		private final LongAdder decompressedOut = new LongAdder();
+		private final LongAdder decompressionTime = new LongAdder();
+		private final LongAdder negotiated = new LongAdder();
+
+		void compressed(int in, int out, long nanos) {
+			compressedIn.add(in);
+			compressedOut.add(out);
+			compressionTime.add(nanos);
+		}
+
+		void decompressed(int in, int out, long nanos) {
+			decompressedIn.add(in);
+			decompressedOut.add(out);
+			decompressionTime.add(nanos);
+		}
+
+		void negotiated() {
+			negotiated.increment();
+		}
+
+		void getStatistics(String compName, StatisticsList list) {
+			list.add(compName, "Permessage-deflate negotiated", negotiated.sum(), Level.FINE);
+			list.add(compName, "Average compression ratio", ratio(compressedOut.sum(), compressedIn.sum()),
+					 Level.FINE);
+			list.add(compName, "Average decompression ratio", ratio(decompressedIn.sum(), decompressedOut.sum()),
+					 Level.FINE);
+			list.add(compName, "Compression time [ms]", compressionTime.sum() / 1000000, Level.FINER);
+			list.add(compName, "Decompression time [ms]", decompressionTime.sum() / 1000000, Level.FINER);
+			list.add(compName, "Bytes before compression", compressedIn.sum(), Level.FINER);
+			list.add(compName, "Bytes after compression", compressedOut.sum(), Level.FINER);
+		}
+
+		private static float ratio(long compressed, long uncompressed) {
+			return uncompressed == 0 ? 0f : ((float) compressed) / uncompressed;
+		}
+	}
+}
@@ -18,17 +18,22 @@
 package tigase.server.websocket;
 
 import tigase.kernel.beans.Bean;
+import tigase.kernel.beans.UnregisterAware;
 import tigase.kernel.beans.config.ConfigField;
+import tigase.stats.StatisticsList;
 import tigase.util.Base64;
 
 import java.io.IOException;
 import java.nio.BufferUnderflowException;
 import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.Map;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
 
 import static tigase.server.websocket.WebSocketXMPPIOService.State.closing;
 
@@ -41,7 +46,7 @@ import static tigase.server.websocket.WebSocketXMPPIOService.State.closing;
  */
 @Bean(name = "hybiProtocol", parent = WebSocketClientConnectionManager.class, active = true)
 public class WebSocketHybi
-		implements WebSocketProtocolIfc {
+		implements WebSocketProtocolIfc, UnregisterAware {
 
 	public static final String ID = "hybi";
 	private static final Logger log = Logger.getLogger(WebSocketHybi.class.getCanonicalName());
@@ -54,19 +59,39 @@ public class WebSocketHybi
 					"Access-Control-Allow-Headers: Content-Type\r\n" + "Access-Control-Max-Age: 86400\r\n";
 
 	private static final String WS_ACCEPT_KEY = "Sec-WebSocket-Accept";
+	private static final String WS_EXTENSIONS_KEY = "Sec-WebSocket-Extensions";
 	private static final String WS_KEY_KEY = "Sec-WebSocket-Key";
 
 	private static final String CLOSE_CODE = "close-code";
+	private static final int INVALID_DATA = 1007;
 	private static final int PROTOCOL_ERROR = 1003;
 	private static byte[] EMPTY = new byte[0];
+	private final PerMessageDeflate.DeflaterPool deflaterPool = new PerMessageDeflate.DeflaterPool(
+			Runtime.getRuntime().availableProcessors());
+	private final PerMessageDeflate.Statistics deflateStatistics = new PerMessageDeflate.Statistics();
 	@ConfigField(desc = "Allow for unmasked frames send from client", alias = "ws-allow-unmasked-frames")
 	private boolean allowUnmaskedFromClient = false;
+	@ConfigField(desc = "Compression level used by permessage-deflate extension", alias = "permessage-deflate-level")
+	private int deflateLevel = Deflater.DEFAULT_COMPRESSION;
+	@ConfigField(desc = "Max size of decompressed message", alias = "permessage-deflate-max-message-size")
+	private int deflateMaxMessageSize = 10 * 1024 * 1024;
+	@ConfigField(desc = "Do not keep compression context between messages sent to client", alias = "permessage-deflate-server-no-context-takeover")
+	private boolean deflateServerNoContextTakeover = false;
+	@ConfigField(desc = "Messages smaller than this size are not compressed", alias = "permessage-deflate-threshold")
+	private int deflateThreshold = 64;
+	@ConfigField(desc = "Support for permessage-deflate extension", alias = "permessage-deflate")
+	private boolean permessageDeflate = false;
 
 	@Override
 	public String getId() {
 		return ID;
 	}
 
+	@Override
+	public void beforeUnregister() {
+		deflaterPool.end();
+	}
+
 	static String calculateWsAcceptKey(final String webSocketKey) throws NoSuchAlgorithmException {
 		final MessageDigest md = MessageDigest.getInstance("SHA1");
 		if (webSocketKey != null) {
@@ -99,6 +124,18 @@ public class WebSocketHybi
 		response.append(WS_ACCEPT_KEY + ": ");
 		response.append(wsAccept);
 		response.append("\r\n");
+		if (permessageDeflate) {
+			PerMessageDeflate deflate = PerMessageDeflate.negotiate(headers.get(WS_EXTENSIONS_KEY.toUpperCase()),
+																	deflateLevel, deflateServerNoContextTakeover,
+																	deflateMaxMessageSize, deflaterPool,
+																	deflateStatistics);
+			if (deflate != null) {
+				response.append(WS_EXTENSIONS_KEY).append(": ").append(deflate.getResponseHeaderValue());
+				response.append("\r\n");
+				service.perMessageDeflate = deflate;
+				deflateStatistics.negotiated();
+			}
+		}
 		response.append("\r\n");
 		service.maskingKey = new byte[4];
 		service.writeRawData(response.toString());
@@ -169,19 +206,31 @@ public class WebSocketHybi
 			}
 
 			if (buf.remaining() >= service.frameLength) {
-				byte[] data = new byte[(int) service.frameLength];
-
-				buf.get(data);
+				int length = (int) service.frameLength;
 
-				// if content is masked then unmask content
+				// if content is masked then unmask content in place and return part of the input buffer
 				if (masked) {
-					byte[] maskingKey = service.maskingKey;
-					for (int i = 0; i < data.length; i++) {
-						data[i] = (byte) (data[i] ^ maskingKey[i % 4]);
-					}
+					unmask(buf, buf.position(), length, service.maskingKey);
 				}
-				unmasked = ByteBuffer.wrap(data);
+				unmasked = buf.slice();
+				unmasked.limit(length);
+				buf.position(buf.position() + length);
 				service.frameLength = -1;
+
+				// data frames of compressed message (continuation frames have no RSV1 bit set)
+				int opcode = type & 0x0F;
+				if (service.perMessageDeflate != null && opcode <= 0x02) {
+					if (opcode != 0x00) {
+						service.compressedMessage = (type & 0x40) == 0x40;
+					}
+					if (service.compressedMessage) {
+						unmasked = service.perMessageDeflate.decompress(unmasked, (type & 0x80) == 0x80);
+						if (unmasked == null) {
+							// We are returning empty byte buffer to make sure other frames remaining in buffer will be processed
+							unmasked = ByteBuffer.wrap(EMPTY);
+						}
+					}
+				}
 			} else {
 				// not enought data so reset buffer position
 				buf.position(position);
@@ -223,21 +272,60 @@ public class WebSocketHybi
 			buf.position(position);
 			service.frameLength = -1;
 			unmasked = null;
+		} catch (DataFormatException ex) {
+			if (log.isLoggable(Level.FINEST)) {
+				log.log(Level.FINEST, "Socket: {0}, closing connection due to invalid compressed data: {1}",
+						new Object[]{service, ex.getMessage()});
+			}
+			closeConnection(service, INVALID_DATA);
+			unmasked = null;
 		}
 
 		return unmasked;
 	}
 
+	/**
+	 * Unmasks <code>length</code> bytes of the buffer starting at <code>offset</code> in place. Masking key is
+	 * replicated to 8 bytes, so data is unmasked 8 bytes at once and only remaining tail byte by byte.
+	 */
+	static void unmask(ByteBuffer buf, int offset, int length, byte[] maskingKey) {
+		int key = ((maskingKey[0] & 0xFF) << 24) | ((maskingKey[1] & 0xFF) << 16) | ((maskingKey[2] & 0xFF) << 8) |
+				(maskingKey[3] & 0xFF);
+		if (buf.order() == ByteOrder.LITTLE_ENDIAN) {
+			key = Integer.reverseBytes(key);
+		}
+		long mask = (((long) key) << 32) | (key & 0xFFFFFFFFL);
+		int i = 0;
+		for (; i + 8 <= length; i += 8) {
+			buf.putLong(offset + i, buf.getLong(offset + i) ^ mask);
+		}
+		for (; i < length; i++) {
+			buf.put(offset + i, (byte) (buf.get(offset + i) ^ maskingKey[i & 3]));
+		}
+	}
+
 	@Override
 	public void encodeFrameAndWrite(WebSocketXMPPIOService service, ByteBuffer buf) throws IOException {
 		int size = buf.remaining();
 
 		// set type as finally part (0x80) of message of type text (0x01)
+		byte type = (byte) 0x81;
+		PerMessageDeflate deflate = service.perMessageDeflate;
+		if (deflate != null && size >= deflateThreshold) {
+			ByteBuffer compressed = deflate.compress(buf);
+			if (compressed != null) {
+				// compressed message has RSV1 bit (0x40) set
+				buf = compressed;
+				type = (byte) 0xC1;
+				size = buf.remaining();
+			}
+		}
+
 		if (log.isLoggable(Level.FINEST)) {
 			log.log(Level.FINEST, "Socket: {0}, sending encoded data size = {1}", new Object[]{service, size});
 		}
 
-		ByteBuffer bbuf = createFrameHeader((byte) 0x81, size);
+		ByteBuffer bbuf = createFrameHeader(type, size);
 
 		// send frame header
 		service.writeBytes(bbuf);
@@ -271,6 +359,13 @@ public class WebSocketHybi
 		}
 	}
 
+	/**
+	 * Adds statistics of <code>permessage-deflate</code> extension of all connections.
+	 */
+	public void getStatistics(String compName, StatisticsList list) {
+		deflateStatistics.getStatistics(compName, list);
+	}
+
 	private void closeConnection(WebSocketXMPPIOService service, Integer code) {
 		if (code != null) {
 			service.getSessionData().put(CLOSE_CODE, code);
@@ -70,8 +70,11 @@ public class WebSocketXMPPIOService<RefObject>
 	/* static variables used by WebSocket protocol */
 
 	private final WebSocketProtocolIfc[] protocols;
+	protected boolean compressedMessage = false;
 	protected long frameLength = -1;
 	protected byte[] maskingKey = null;
+	protected volatile PerMessageDeflate perMessageDeflate = null;
+	private final ByteBuffer partialCharacter = ByteBuffer.allocate(8);
 	private byte[] partialData = null;
 	private WebSocketProtocolIfc protocol = null;
 	private boolean started = false;
@@ -88,6 +91,9 @@ public class WebSocketXMPPIOService<RefObject>
 	public void stop() {
 		protocol.closeConnection(this);
 		super.stop(); //To change body of generated methods, choose Tools | Templates.
+		if (perMessageDeflate != null) {
+			perMessageDeflate.end();
+		}
 	}
 
 	public void dumpHeaders(Map<String, String> headers) {
@@ -173,13 +179,11 @@ public class WebSocketXMPPIOService<RefObject>
 		if (state != State.handshaking) {
 
 			// data needs to be decoded fully not just first frame!!
-			ByteBuffer tmp = ByteBuffer.allocate(cb.remaining());
-			// here we got buffer overflow
+			// payload of every frame is decoded to characters directly from the input buffer
 			ByteBuffer decoded = null;
 			while (cb.hasRemaining() && (decoded = decodeFrame(cb)) != null) {
-				//decoded = decodeFrame(cb);
-				if (decoded != null && decoded.hasRemaining()) {
-					tmp.put(decoded);
+				if (decoded.hasRemaining()) {
+					decodeCharacters(decoded);
 				}
 			}
 
@@ -192,10 +196,7 @@ public class WebSocketXMPPIOService<RefObject>
 			// compact buffer after reading all frames
 			cb.compact();
 
-			if (tmp.capacity() > 0) {
-				tmp.flip();
-			}
-			cb = tmp;
+			return decodedCharacters();
 		}
 		if (started) {
 			return decode(cb);
@@ -420,46 +421,85 @@ public class WebSocketXMPPIOService<RefObject>
 			return null;
 		}
 
-		char[] result = null;
+		decodeCharacters(tmpBuffer);
+		tmpBuffer.clear();
+
+		return decodedCharacters();
+	}
+
+	/**
+	 * Decode data from buffer and append characters to character buffer. Bytes of multibyte UTF8 character split
+	 * between buffers are kept in a small buffer and completed with first bytes of the next buffer.
+	 */
+	private void decodeCharacters(ByteBuffer data) throws MalformedInputException {
+		ensureCharactersCapacity(data.remaining() + partialCharacter.position());
 
 		// Restore the partial bytes for multibyte UTF8 characters
-		if (partialCharacterBytes != null) {
-			ByteBuffer oldTmpBuffer = tmpBuffer;
-
-			tmpBuffer = ByteBuffer.allocate(partialCharacterBytes.length + oldTmpBuffer.remaining() + 2);
-			tmpBuffer.put(partialCharacterBytes);
-			tmpBuffer.put(oldTmpBuffer);
-			tmpBuffer.flip();
-			oldTmpBuffer.clear();
-			partialCharacterBytes = null;
-		}
-		if (cb.capacity() < tmpBuffer.remaining() * 4) {
-			cb = CharBuffer.allocate(tmpBuffer.remaining() * 4);
+		if (partialCharacter.position() > 0) {
+			int partial = partialCharacter.position();
+			int start = data.position();
+			int count = Math.min(data.remaining(), partialCharacter.remaining());
+			for (int i = 0; i < count; i++) {
+				partialCharacter.put(data.get(start + i));
+			}
+			partialCharacter.flip();
+
+			CoderResult cr = decoder.decode(partialCharacter, cb, false);
+
+			if (cr.isMalformed()) {
+				throw new MalformedInputException(partialCharacter.remaining());
+			}
+			int consumed = partialCharacter.position() - partial;
+			if (consumed <= 0) {
+				// character is still not complete
+				partialCharacter.position(partialCharacter.limit());
+				partialCharacter.limit(partialCharacter.capacity());
+				data.position(data.limit());
+				return;
+			}
+			partialCharacter.clear();
+			data.position(start + consumed);
 		}
 
-		CoderResult cr = decoder.decode(tmpBuffer, cb, false);
+		CoderResult cr = decoder.decode(data, cb, false);
 
 		if (cr.isMalformed()) {
-			throw new MalformedInputException(tmpBuffer.remaining());
-		}
-		if (cb.remaining() > 0) {
-			cb.flip();
-			result = new char[cb.remaining()];
-			cb.get(result);
+			throw new MalformedInputException(data.remaining());
 		}
-		if (cr.isUnderflow() && (tmpBuffer.remaining() > 0)) {
+		if (cr.isUnderflow() && (data.remaining() > 0)) {
 
 			// Save the partial bytes of a multibyte character such that they
 			// can be restored on the next read.
-			partialCharacterBytes = new byte[tmpBuffer.remaining()];
-			tmpBuffer.get(partialCharacterBytes);
+			partialCharacter.put(data);
+		}
+	}
+
+	/**
+	 * Returns characters decoded since last call and clears character buffer.
+	 */
+	private char[] decodedCharacters() {
+		char[] result = null;
+
+		cb.flip();
+		if (cb.hasRemaining()) {
+			result = new char[cb.remaining()];
+			cb.get(result);
 		}
-		tmpBuffer.clear();
 		cb.clear();
 
 		return result;
 	}
 
+	private void ensureCharactersCapacity(int bytes) {
+		if (cb.remaining() < bytes) {
+			CharBuffer oldCb = cb;
+
+			cb = CharBuffer.allocate(Math.max(cb.capacity() * 2, cb.position() + bytes));
+			oldCb.flip();
+			cb.put(oldCb);
+		}
+	}
+
 	/**
 	 * Encode string into buffer
 	 */
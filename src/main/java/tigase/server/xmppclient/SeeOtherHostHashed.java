@@ -17,16 +17,23 @@
  */
 package tigase.server.xmppclient;
 
+import tigase.eventbus.HandleEvent;
 import tigase.eventbus.events.ShutdownEvent;
 import tigase.kernel.beans.Bean;
+import tigase.kernel.beans.Inject;
+import tigase.kernel.beans.config.ConfigField;
 import tigase.kernel.beans.selector.ClusterModeRequired;
+import tigase.server.ConnectionManager;
+import tigase.sys.TigaseRuntime;
+import tigase.util.common.HashUtils;
+import tigase.util.common.TimerTask;
+import tigase.util.dns.DNSResolverFactory;
 import tigase.xmpp.jid.BareJID;
 import tigase.xmpp.jid.JID;
 
-import java.util.ArrayList;
-import java.util.Collections;
-import java.util.Iterator;
-import java.util.List;
+import java.io.Serializable;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -34,6 +41,13 @@ import java.util.logging.Logger;
 /**
  * Default implementation for cluster environment of SeeOtherHostIfc returning redirect host based on the hash value of
  * the user's JID
+ * <br>
+ * Host is selected using rendezvous hashing: every node gets a score calculated from hash of the user's JID and the
+ * node name and the node with the highest score is selected. When a node joins or leaves the cluster only users
+ * assigned to this node are redirected.
+ * <br>
+ * Every node periodically broadcasts number of its connections and CPU load. Scores of nodes exceeding configured
+ * limits are multiplied by a lower weight, so part of users assigned to them is moved to other nodes.
  *
  * @author Wojtek
  */
@@ -45,18 +59,61 @@ public class SeeOtherHostHashed
 	private static final Logger log = Logger.getLogger(SeeOtherHostHashed.class.getName());
 	//	protected List<BareJID> defaultHost = null;
 	protected List<BareJID> connectedNodes = new CopyOnWriteArrayList<BareJID>();
+	@Inject(bean = "service", nullAllowed = true)
+	private ConnectionManager connectionManager;
+	@ConfigField(desc = "Interval of broadcasting load of this node (in seconds)", alias = "load-report-interval")
+	private long loadReportInterval = 60;
+	private TimerTask loadReportTask = null;
+	@ConfigField(desc = "Max number of connections on node before it is less preferred", alias = "max-node-connections")
+	private int maxNodeConnections = 0;
+	@ConfigField(desc = "Max CPU load (in percent) of node before it is less preferred", alias = "max-node-cpu-load")
+	private float maxNodeCpuLoad = 0;
+	private final Map<String, Map<String, NodeLoadEvent>> nodesLoad = new ConcurrentHashMap<>();
+	@ConfigField(desc = "Weight of overloaded node", alias = "overloaded-node-weight")
+	private double overloadedNodeWeight = 0.25;
+	private volatile Set<String> overloadedNodes = Collections.emptySet();
 
 	@Override
 	public BareJID findHostForJID(BareJID jid, BareJID host) {
-		int hash = Math.abs(jid.hashCode());
-		if (defaultHost != null && !defaultHost.isEmpty() &&
-				connectedNodes.contains(defaultHost.get(hash % defaultHost.size()))) {
-			return defaultHost.get(hash % defaultHost.size());
-		} else if (connectedNodes.size() > 0) {
-			return connectedNodes.get(hash % connectedNodes.size());
-		} else {
+		List<BareJID> candidates = connectedNodes;
+		if (defaultHost != null && !defaultHost.isEmpty()) {
+			List<BareJID> connectedDefaultHosts = new ArrayList<>(defaultHost.size());
+			for (BareJID node : defaultHost) {
+				if (candidates.contains(node)) {
+					connectedDefaultHosts.add(node);
+				}
+			}
+			if (!connectedDefaultHosts.isEmpty()) {
+				candidates = connectedDefaultHosts;
+			}
+		}
+		if (candidates.isEmpty()) {
 			return host;
 		}
+
+		long jidHash = HashUtils.hash64(jid.toString());
+		Set<String> overloaded = overloadedNodes;
+		BareJID result = null;
+		double bestScore = Double.NEGATIVE_INFINITY;
+		for (BareJID node : candidates) {
+			double score = score(jidHash, node.toString(),
+								 overloaded.contains(node.getDomain()) ? overloadedNodeWeight : 1.0);
+			if (score > bestScore) {
+				bestScore = score;
+				result = node;
+			}
+		}
+		return result;
+	}
+
+	@HandleEvent
+	public void nodeLoadChanged(NodeLoadEvent event) {
+		if (event.getNode() == null || event.getComponent() == null) {
+			return;
+		}
+		nodesLoad.computeIfAbsent(event.getNode(), node -> new ConcurrentHashMap<>())
+				.put(event.getComponent(), event);
+		updateOverloadedNodes();
 	}
 
 	@Override
@@ -75,6 +132,29 @@ public class SeeOtherHostHashed
 		super.setNodes(connectedNodes);
 	}
 
+	@Override
+	public void start() {
+		super.start();
+		if (connectionManager != null && loadReportInterval > 0 && (maxNodeConnections > 0 || maxNodeCpuLoad > 0)) {
+			loadReportTask = new TimerTask() {
+				@Override
+				public void run() {
+					reportLoad();
+				}
+			};
+			connectionManager.addTimerTask(loadReportTask, loadReportInterval * 1000, loadReportInterval * 1000);
+		}
+	}
+
+	@Override
+	public void stop() {
+		if (loadReportTask != null) {
+			loadReportTask.cancel();
+			loadReportTask = null;
+		}
+		super.stop();
+	}
+
 	@Override
 	protected void nodeShutdown(ShutdownEvent event) {
 		super.nodeShutdown(event);
@@ -83,17 +163,59 @@ public class SeeOtherHostHashed
 		}
 	}
 
+	protected void reportLoad() {
+		TigaseRuntime runtime = TigaseRuntime.getTigaseRuntime();
+		float cpuLoad = (float) (runtime.getLoadAverage() * 100 / runtime.getCPUsNumber());
+		eventBus.fire(new NodeLoadEvent(DNSResolverFactory.getInstance().getDefaultHost(), connectionManager.getName(),
+										connectionManager.getOpenConnections(), cpuLoad));
+	}
+
+	private double score(long jidHash, String node, double weight) {
+		long h = HashUtils.mix64(jidHash ^ HashUtils.hash64(node));
+		// uniformly distributed value from range (0, 1)
+		double u = ((h >>> 11) + 0.5) / (1L << 53);
+		return -weight / Math.log(u);
+	}
+
 	private void setConnectedNodes(List<BareJID> connectedNodes) {
 		connectedNodes = filterNodes(connectedNodes);
 		synchronized (this) {
 			Collections.sort(connectedNodes);
 			this.connectedNodes = new CopyOnWriteArrayList<>(connectedNodes);
 		}
+		Set<String> domains = new HashSet<>();
+		for (BareJID node : connectedNodes) {
+			domains.add(node.getDomain());
+		}
+		nodesLoad.keySet().retainAll(domains);
+		updateOverloadedNodes();
 		if (log.isLoggable(Level.FINEST)) {
 			log.log(Level.FINEST, "setting list of connected nodes: {0}", this.connectedNodes);
 		}
 	}
 
+	private void updateOverloadedNodes() {
+		Set<String> overloaded = new HashSet<>();
+		for (Map.Entry<String, Map<String, NodeLoadEvent>> e : nodesLoad.entrySet()) {
+			int connections = 0;
+			float cpuLoad = 0;
+			for (NodeLoadEvent load : e.getValue().values()) {
+				connections += load.getConnections();
+				cpuLoad = Math.max(cpuLoad, load.getCpuLoad());
+			}
+			if ((maxNodeConnections > 0 && connections > maxNodeConnections) ||
+					(maxNodeCpuLoad > 0 && cpuLoad > maxNodeCpuLoad)) {
+				overloaded.add(e.getKey());
+			}
+		}
+		if (!overloaded.equals(overloadedNodes)) {
+			if (log.isLoggable(Level.FINE)) {
+				log.log(Level.FINE, "setting list of overloaded nodes: {0}", overloaded);
+			}
+			overloadedNodes = Collections.unmodifiableSet(overloaded);
+		}
+	}
+
 	private List<BareJID> filterNodes(List<BareJID> list) {
 		Iterator<BareJID> it = list.iterator();
 		while (it.hasNext()) {
@@ -107,4 +229,43 @@ public class SeeOtherHostHashed
 		}
 		return list;
 	}
+
+	/**
+	 * Event broadcasted periodically by every connection manager with number of its connections and CPU load of the
+	 * node.
+	 */
+	public static class NodeLoadEvent
+			implements Serializable {
+
+		private String component;
+		private int connections;
+		private float cpuLoad;
+		private String node;
+
+		public NodeLoadEvent() {
+		}
+
+		public NodeLoadEvent(String node, String component, int connections, float cpuLoad) {
+			this.node = node;
+			this.component = component;
+			this.connections = connections;
+			this.cpuLoad = cpuLoad;
+		}
+
+		public String getComponent() {
+			return component;
+		}
+
+		public int getConnections() {
+			return connections;
+		}
+
+		public float getCpuLoad() {
+			return cpuLoad;
+		}
+
+		public String getNode() {
+			return node;
+		}
+	}
 }
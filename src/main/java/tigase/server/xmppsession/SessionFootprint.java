@@ -0,0 +1,192 @@
+/*
+ * Tigase XMPP Server - The instant messaging server
+ * Copyright (C) 2004 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.server.xmppsession;
+
+import tigase.util.common.MemoryEstimator;
+import tigase.xmpp.XMPPResourceConnection;
+import tigase.xmpp.XMPPSession;
+
+import java.util.*;
+
+/**
+ * Report of estimated heap memory used by sessions of users, broken down by keys of session data.
+ * <br>
+ * Only a sample of sessions is measured and results are extrapolated to all sessions, as estimation needs to walk
+ * through all objects stored in session data. Objects shared by many sessions are counted once per session, so for
+ * them results are overestimated. Data common for all connections of the user is reported with
+ * <code>(common)</code> suffix.
+ */
+public class SessionFootprint {
+
+	public static final String COMMON_SUFFIX = " (common)";
+
+	private final Map<String, long[]> dataByKey = new HashMap<>();
+	private long connections = 0;
+	private long connectionsSize = 0;
+	private long sampledSessions = 0;
+	private final long sessions;
+	private long sessionsSize = 0;
+	private final long timestamp = System.currentTimeMillis();
+
+	/**
+	 * Estimates memory used by up to <code>sampleSize</code> sessions.
+	 */
+	public static SessionFootprint calculate(Collection<XMPPSession> sessions, int sampleSize) {
+		SessionFootprint footprint = new SessionFootprint(sessions.size());
+		Iterator<XMPPSession> it = sessions.iterator();
+		while (it.hasNext() && footprint.sampledSessions < sampleSize) {
+			footprint.add(it.next());
+		}
+		return footprint;
+	}
+
+	private static long storageSize(int entries) {
+		// storage object with arrays of keys and values
+		return 24 + 16 + entries * 8;
+	}
+
+	private SessionFootprint(long sessions) {
+		this.sessions = sessions;
+	}
+
+	/**
+	 * Returns number of all sessions.
+	 */
+	public long getSessions() {
+		return sessions;
+	}
+
+	public long getSampledSessions() {
+		return sampledSessions;
+	}
+
+	/**
+	 * Returns average number of connections per session.
+	 */
+	public double getConnectionsPerSession() {
+		return sampledSessions == 0 ? 0 : ((double) connections) / sampledSessions;
+	}
+
+	/**
+	 * Returns estimated average size (in bytes) of a session with its connections and all session data.
+	 */
+	public long getAverageSessionSize() {
+		if (sampledSessions == 0) {
+			return 0;
+		}
+		long total = sessionsSize + connectionsSize;
+		for (long[] data : dataByKey.values()) {
+			total += data[1];
+		}
+		return total / sampledSessions;
+	}
+
+	/**
+	 * Returns estimated size (in bytes) of all sessions.
+	 */
+	public long getTotalSize() {
+		return getAverageSessionSize() * sessions;
+	}
+
+	/**
+	 * Returns estimated average size (in bytes) of session and connection objects without session data.
+	 */
+	public long getAverageStructuresSize() {
+		return sampledSessions == 0 ? 0 : (sessionsSize + connectionsSize) / sampledSessions;
+	}
+
+	/**
+	 * Returns keys of session data ordered by estimated memory used by values stored under them (starting with the
+	 * largest).
+	 */
+	public List<String> getKeys() {
+		List<String> keys = new ArrayList<>(dataByKey.keySet());
+		keys.sort((k1, k2) -> Long.compare(dataByKey.get(k2)[1], dataByKey.get(k1)[1]));
+		return keys;
+	}
+
+	/**
+	 * Returns estimated average size (in bytes) of values stored under the key per session.
+	 */
+	public long getAverageSize(String key) {
+		long[] data = dataByKey.get(key);
+		return data == null || sampledSessions == 0 ? 0 : data[1] / sampledSessions;
+	}
+
+	/**
+	 * Returns percent of sessions (or connections) which have value stored under the key.
+	 */
+	public double getUsage(String key) {
+		long[] data = dataByKey.get(key);
+		if (data == null) {
+			return 0;
+		}
+		long total = key.endsWith(COMMON_SUFFIX) ? sampledSessions : connections;
+		return total == 0 ? 0 : (data[0] * 100.0) / total;
+	}
+
+	public long getTimestamp() {
+		return timestamp;
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder("SessionFootprint[sessions=").append(sessions)
+				.append(", sampled=")
+				.append(sampledSessions)
+				.append(", avgSize=")
+				.append(getAverageSessionSize());
+		for (String key : getKeys()) {
+			sb.append(", ").append(key).append('=').append(getAverageSize(key));
+		}
+		return sb.append(']').toString();
+	}
+
+	private void add(XMPPSession session) {
+		List<XMPPResourceConnection> resources = session.getActiveResources();
+		MemoryEstimator estimator = new MemoryEstimator();
+		estimator.exclude(session);
+		for (XMPPResourceConnection conn : resources) {
+			estimator.exclude(conn);
+		}
+
+		sampledSessions++;
+		int[] entries = new int[1];
+		session.forEachCommonSessionData((key, value) -> {
+			entries[0]++;
+			add(key + COMMON_SUFFIX, estimator.estimate(value));
+		});
+		sessionsSize += MemoryEstimator.shallowSize(session) + storageSize(entries[0]) + 48 + resources.size() * 12;
+
+		for (XMPPResourceConnection conn : resources) {
+			connections++;
+			entries[0] = 0;
+			conn.forEachSessionData((key, value) -> {
+				entries[0]++;
+				add(key, estimator.estimate(value));
+			});
+			connectionsSize += MemoryEstimator.shallowSize(conn) + storageSize(entries[0]);
+		}
+	}
+
+	private void add(String key, long size) {
+		long[] data = dataByKey.computeIfAbsent(key, k -> new long[2]);
+		data[0]++;
+		data[1] += size;
+	}
+}
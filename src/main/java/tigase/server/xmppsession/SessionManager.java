@@ -136,6 +136,10 @@ public class SessionManager
 	@ConfigField(desc = "Force detail check of stale connections", alias = SessionManagerConfig.STALE_CONNECTION_CLOSER_QUEUE_SIZE_KEY)
 	private boolean forceDetailStaleConnectionCheck = true;
 	private Kernel kernel = null;
+	@ConfigField(desc = "Subnodes of user data preloaded on login ('/' for default node)", alias = "login-preload-subnodes")
+	private String[] loginPreloadSubnodes = new String[0];
+	@ConfigField(desc = "Period of time for which user data preloaded on login is used", alias = "login-preload-validity")
+	private long loginPreloadValidity = 10 * SECOND;
 	/*
 	 * Date of moment where daily stats was resetted.
 	 */
@@ -179,6 +183,11 @@ public class SessionManager
 	private SMResourceConnection smResourceConnection = null;
 	@ConfigField(desc = "Default processors threads pool size", alias = SessionManagerConfig.SM_THREADS_POOL_PROP_KEY)
 	private String smThreadsPool = SessionManagerConfig.SM_THREADS_POOL_PROP_VAL;
+	private volatile SessionFootprint sessionFootprint = null;
+	@ConfigField(desc = "Number of sessions sampled to estimate memory used by sessions", alias = "session-footprint-sample-size")
+	private int sessionFootprintSampleSize = 1000;
+	@ConfigField(desc = "Period of time for which estimated memory usage of sessions is reported", alias = "session-footprint-validity")
+	private long sessionFootprintValidity = 5 * MINUTE;
 	private StaleConnectionCloser staleConnectionCloser = new StaleConnectionCloser();
 	private Map<String, XMPPStopListenerIfc> stopListeners = new ConcurrentHashMap<String, XMPPStopListenerIfc>(10);
 	private int tIdx = 0;
@@ -254,6 +263,9 @@ public class SessionManager
 				}
 			}
 			processors.put(proc.id(), (XMPPProcessorIfc) proc);
+			if (router != null) {
+				router.invalidateDiscoInfoCache();
+			}
 			log.log(Level.CONFIG, "Added processor: {0} for plugin id: {1}",
 					new Object[]{proc.getClass().getSimpleName(), proc.id()});
 			loaded = true;
@@ -344,6 +356,7 @@ public class SessionManager
 			log.log(Level.FINEST, "handleLogin called for: {0}, conn_id: {1}", new Object[]{userId, conn});
 		}
 		registerNewSession(userId, conn);
+		preloadUserData(conn);
 	}
 
 	@Override
@@ -421,6 +434,24 @@ public class SessionManager
 		return super.hashCodeForPacket(packet);
 	}
 
+	@Override
+	protected Object getPacketSender(Packet packet) {
+		if (packet.getStanzaFrom() == null && packet.getPacketFrom() != null) {
+			// client connection managers do not set stanza sender, so use account of the session
+			XMPPResourceConnection conn = connectionsByFrom.get(packet.getPacketFrom());
+
+			if (conn != null && conn.isAuthorized()) {
+				try {
+					return conn.getBareJID();
+				} catch (NotAuthorizedException ex) {
+					// session was closed in the meantime
+				}
+			}
+		}
+
+		return super.getPacketSender(packet);
+	}
+
 	@Override
 	public void initBindings(Bindings binds) {
 		super.initBindings(binds);
@@ -494,6 +525,9 @@ public class SessionManager
 			p = stopListeners.remove(plug_id);
 			allPlugins.remove(p);
 		}
+		if (p != null && router != null) {
+			router.invalidateDiscoInfoCache();
+		}
 		if (p != null) {
 			eventBus.unregisterAll(p);
 			if (p instanceof PresenceCapabilitiesManager.PresenceCapabilitiesListener) {
@@ -642,6 +676,19 @@ public class SessionManager
 		return connectionsByFrom.size();
 	}
 
+	/**
+	 * Returns estimated memory usage of user sessions. Estimation is recalculated (for a sample of sessions) only if
+	 * the last one is older than <code>session-footprint-validity</code>.
+	 */
+	public SessionFootprint getSessionFootprint() {
+		SessionFootprint footprint = sessionFootprint;
+		if (footprint == null || footprint.getTimestamp() + sessionFootprintValidity < System.currentTimeMillis()) {
+			footprint = SessionFootprint.calculate(sessionsByNodeId.values(), sessionFootprintSampleSize);
+			sessionFootprint = footprint;
+		}
+		return footprint;
+	}
+
 	@Override
 	@SuppressWarnings("unchecked")
 	public void getStatistics(StatisticsList list) {
@@ -658,6 +705,18 @@ public class SessionManager
 		list.add(getName(), "Total user sessions", totalUserSessions, Level.FINER);
 		list.add(getName(), "Active user connections", activeUserNumber, Level.FINER);
 		list.add(getName(), "Authentication timouts", authTimeouts, Level.INFO);
+		if (list.checkLevel(Level.FINER)) {
+			SessionFootprint footprint = getSessionFootprint();
+			list.add(getName(), "Estimated user sessions memory [B]", footprint.getTotalSize(), Level.FINER);
+			list.add(getName(), "Estimated memory per user session [B]", footprint.getAverageSessionSize(),
+					 Level.FINER);
+			if (list.checkLevel(Level.FINEST)) {
+				for (String key : footprint.getKeys()) {
+					list.add(getName(), "Estimated memory per user session for " + key + " [B]",
+							 footprint.getAverageSize(key), Level.FINEST);
+				}
+			}
+		}
 		if (list.checkLevel(Level.INFO)) {
 			int totalQueuesWait = list.getValue(getName(), "Total queues wait", 0);
 			long totalQueuesOverflow = list.getValue(getName(), "Total queues overflow", 0l);
@@ -1953,6 +2012,27 @@ public class SessionManager
 		}
 	}
 
+	/**
+	 * Method loads configured subnodes of user data with a single request to the user repository, so processors
+	 * reading this data during login do not have to access the repository one key at a time.
+	 *
+	 * @param conn authorized user session
+	 */
+	protected void preloadUserData(XMPPResourceConnection conn) {
+		if (loginPreloadSubnodes == null || loginPreloadSubnodes.length == 0 || !conn.isAuthorized()) {
+			return;
+		}
+		List<String> subnodes = new ArrayList<>(loginPreloadSubnodes.length);
+		for (String subnode : loginPreloadSubnodes) {
+			subnodes.add((subnode == null || subnode.isEmpty() || "/".equals(subnode)) ? null : subnode);
+		}
+		try {
+			conn.preloadData(subnodes, loginPreloadValidity);
+		} catch (NotAuthorizedException | TigaseDBException ex) {
+			log.log(Level.FINE, "Could not preload data for user session " + conn, ex);
+		}
+	}
+
 	protected void registerNewSession(BareJID userId, XMPPResourceConnection conn) {
 		synchronized (conn) {
 			if (conn.getSessionData(XMPPResourceConnection.CLOSING_KEY) != null) {
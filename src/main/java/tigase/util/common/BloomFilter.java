@@ -0,0 +1,82 @@
+/*
+ * Tigase XMPP Server - The instant messaging server
+ * Copyright (C) 2004 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.util.common;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free Bloom filter of strings.
+ * <br>
+ * Filter answers if a string <em>might</em> have been added to it. There are no false negatives, while probability of a
+ * false positive is close to the value passed to the constructor as long as number of added strings does not exceed
+ * <code>expectedItems</code>. Strings cannot be removed from the filter, so it needs to be rebuilt to forget them.
+ */
+public class BloomFilter {
+
+	private final AtomicLongArray bits;
+	private final int expectedItems;
+	private final int hashes;
+	private final long size;
+
+	public BloomFilter(int expectedItems, double falsePositiveRate) {
+		this.expectedItems = Math.max(1, expectedItems);
+		long bitsNo = (long) Math.ceil(-this.expectedItems * Math.log(falsePositiveRate) / (Math.log(2) * Math.log(2)));
+		int words = (int) Math.max(1, Math.min(Integer.MAX_VALUE - 8, (bitsNo + 63) / 64));
+		this.bits = new AtomicLongArray(words);
+		this.size = words * 64L;
+		this.hashes = Math.max(1, (int) Math.round(((double) size / this.expectedItems) * Math.log(2)));
+	}
+
+	public void add(String value) {
+		long h1 = HashUtils.hash64(value);
+		long h2 = HashUtils.hash64(value, 0x84222325cbf29ce4L) | 1;
+		for (int i = 0; i < hashes; i++) {
+			long bit = Math.floorMod(h1 + i * h2, size);
+			int word = (int) (bit >>> 6);
+			long mask = 1L << bit;
+			long current = bits.get(word);
+			while ((current & mask) == 0 && !bits.compareAndSet(word, current, current | mask)) {
+				current = bits.get(word);
+			}
+		}
+	}
+
+	public boolean mightContain(String value) {
+		long h1 = HashUtils.hash64(value);
+		long h2 = HashUtils.hash64(value, 0x84222325cbf29ce4L) | 1;
+		for (int i = 0; i < hashes; i++) {
+			long bit = Math.floorMod(h1 + i * h2, size);
+			if ((bits.get((int) (bit >>> 6)) & (1L << bit)) == 0) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	public int getExpectedItems() {
+		return expectedItems;
+	}
+
+	/**
+	 * Returns size of the filter in bytes.
+	 */
+	public long getSizeInBytes() {
+		return size / 8;
+	}
+
+}
@@ -0,0 +1,212 @@
+/*
+ * Tigase XMPP Server - The instant messaging server
+ * Copyright (C) 2004 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.util.common;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Compressed set of non-negative <code>long</code> values (ie. database ids).
+ * <br>
+ * Values are split into chunks of 65536 consecutive values. Chunk with few values keeps them as a sorted array of
+ * <code>char</code> (2 bytes per value) and is converted to a bitmap (8kB) when it has more than {@link #ARRAY_LIMIT}
+ * values, so dense ranges of ids use a single bit per id and sparse ones only a few bytes per id.
+ * <br>
+ * This class is not thread-safe.
+ */
+public class CompressedBitmap {
+
+	static final int ARRAY_LIMIT = 4096;
+
+	private final Map<Long, Chunk> chunks = new HashMap<>();
+	private long cardinality = 0;
+
+	public boolean add(long value) {
+		checkValue(value);
+		Long key = value >>> 16;
+		Chunk chunk = chunks.get(key);
+		if (chunk == null) {
+			chunk = new ArrayChunk();
+			chunks.put(key, chunk);
+		}
+		char low = (char) value;
+		if (chunk.contains(low)) {
+			return false;
+		}
+		if (chunk instanceof ArrayChunk && ((ArrayChunk) chunk).size >= ARRAY_LIMIT) {
+			chunk = ((ArrayChunk) chunk).toBitmap();
+			chunks.put(key, chunk);
+		}
+		chunk.add(low);
+		cardinality++;
+		return true;
+	}
+
+	public boolean contains(long value) {
+		if (value < 0) {
+			return false;
+		}
+		Chunk chunk = chunks.get(value >>> 16);
+		return chunk != null && chunk.contains((char) value);
+	}
+
+	public boolean remove(long value) {
+		if (value < 0) {
+			return false;
+		}
+		Long key = value >>> 16;
+		Chunk chunk = chunks.get(key);
+		if (chunk == null || !chunk.remove((char) value)) {
+			return false;
+		}
+		if (chunk.isEmpty()) {
+			chunks.remove(key);
+		}
+		cardinality--;
+		return true;
+	}
+
+	/**
+	 * Returns number of values in the set.
+	 */
+	public long getCardinality() {
+		return cardinality;
+	}
+
+	/**
+	 * Returns approximate number of bytes used to store values.
+	 */
+	public long getSizeInBytes() {
+		long size = 0;
+		for (Chunk chunk : chunks.values()) {
+			size += chunk.getSizeInBytes() + 48;
+		}
+		return size;
+	}
+
+	private static void checkValue(long value) {
+		if (value < 0) {
+			throw new IllegalArgumentException("Negative values are not supported: " + value);
+		}
+	}
+
+	private interface Chunk {
+
+		void add(char value);
+
+		boolean contains(char value);
+
+		long getSizeInBytes();
+
+		boolean isEmpty();
+
+		boolean remove(char value);
+
+	}
+
+	private static class ArrayChunk
+			implements Chunk {
+
+		private int size = 0;
+		private char[] values = new char[4];
+
+		@Override
+		public void add(char value) {
+			int idx = -Arrays.binarySearch(values, 0, size, value) - 1;
+			if (size == values.length) {
+				values = Arrays.copyOf(values, Math.min(values.length * 2, ARRAY_LIMIT));
+			}
+			System.arraycopy(values, idx, values, idx + 1, size - idx);
+			values[idx] = value;
+			size++;
+		}
+
+		@Override
+		public boolean contains(char value) {
+			return Arrays.binarySearch(values, 0, size, value) >= 0;
+		}
+
+		@Override
+		public long getSizeInBytes() {
+			return values.length * 2;
+		}
+
+		@Override
+		public boolean isEmpty() {
+			return size == 0;
+		}
+
+		@Override
+		public boolean remove(char value) {
+			int idx = Arrays.binarySearch(values, 0, size, value);
+			if (idx < 0) {
+				return false;
+			}
+			System.arraycopy(values, idx + 1, values, idx, size - idx - 1);
+			size--;
+			return true;
+		}
+
+		private BitmapChunk toBitmap() {
+			BitmapChunk bitmap = new BitmapChunk();
+			for (int i = 0; i < size; i++) {
+				bitmap.add(values[i]);
+			}
+			return bitmap;
+		}
+	}
+
+	private static class BitmapChunk
+			implements Chunk {
+
+		private final long[] words = new long[1024];
+		private int size = 0;
+
+		@Override
+		public void add(char value) {
+			words[value >>> 6] |= 1L << value;
+			size++;
+		}
+
+		@Override
+		public boolean contains(char value) {
+			return (words[value >>> 6] & (1L << value)) != 0;
+		}
+
+		@Override
+		public long getSizeInBytes() {
+			return words.length * 8;
+		}
+
+		@Override
+		public boolean isEmpty() {
+			return size == 0;
+		}
+
+		@Override
+		public boolean remove(char value) {
+			if (!contains(value)) {
+				return false;
+			}
+			words[value >>> 6] &= ~(1L << value);
+			size--;
+			return true;
+		}
+	}
+}
@@ -0,0 +1,68 @@
+/*
+ * Tigase XMPP Server - The instant messaging server
+ * Copyright (C) 2004 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.util.common;
+
+/**
+ * Fast non-cryptographic hashing of strings shared by classes which need hashes stable between cluster nodes and JVM
+ * restarts (unlike {@link String#hashCode()} values, which are poorly spread over high bits of a <code>long</code>).
+ * <br>
+ * Strings are hashed with 64-bit FNV-1a followed by the final mixing step of MurmurHash3, as FNV alone spreads short
+ * strings poorly over high bits.
+ */
+public class HashUtils {
+
+	private static final long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+	private static final long FNV_PRIME = 0x100000001b3L;
+
+	/**
+	 * Calculates 64-bit hash of the string.
+	 */
+	public static long hash64(String value) {
+		return hash64(value, FNV_OFFSET_BASIS);
+	}
+
+	/**
+	 * Calculates 64-bit hash of the string starting from passed seed instead of FNV offset basis, so independent
+	 * hashes of the same string may be calculated.
+	 */
+	public static long hash64(String value, long seed) {
+		long h = seed;
+		for (int i = 0; i < value.length(); i++) {
+			h ^= value.charAt(i);
+			h *= FNV_PRIME;
+		}
+		return mix64(h);
+	}
+
+	/**
+	 * Mixes bits of the value (finalizer of 64-bit MurmurHash3), so every bit of the input affects all bits of the
+	 * result.
+	 */
+	public static long mix64(long h) {
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h >>> 33;
+		h *= 0xc4ceb9fe1a85ec53L;
+		h ^= h >>> 33;
+		return h;
+	}
+
+	private HashUtils() {
+	}
+
+}
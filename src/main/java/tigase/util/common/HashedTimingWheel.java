@@ -0,0 +1,302 @@
+/*
+ * Tigase XMPP Server - The instant messaging server
+ * Copyright (C) 2004 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.util.common;
+
+import java.util.Queue;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Hashed timing wheel scheduler suitable for large number of timeouts which are usually cancelled or rescheduled
+ * before they expire (ie. connection inactivity timeouts).
+ * <br>
+ * Scheduling and cancellation are O(1) and do not require any lock. Tasks are kept in buckets of the wheel and the
+ * worker thread processes only single bucket on every tick, so cost of expiration is proportional to number of
+ * expired tasks and not to number of all scheduled tasks. Precision of the scheduler is limited to the duration of a
+ * tick.
+ * <br>
+ * Expired tasks are executed by the worker thread, so they should not block.
+ */
+public class HashedTimingWheel {
+
+	private static final Logger log = Logger.getLogger(HashedTimingWheel.class.getName());
+
+	private static final int MAX_TRANSFERS_PER_TICK = 100000;
+
+	private final Queue<Timeout> cancelledTimeouts = new ConcurrentLinkedQueue<>();
+	private final AtomicLong expired = new AtomicLong();
+	private final long mask;
+	private final String name;
+	private final Queue<Timeout> pendingTimeouts = new ConcurrentLinkedQueue<>();
+	private final AtomicLong scheduled = new AtomicLong();
+	private final long tickDuration;
+	private final Bucket[] wheel;
+	private volatile boolean shutdown = false;
+	private volatile long startTime = 0;
+	private long tick = 0;
+	private Thread worker = null;
+
+	/**
+	 * Creates new instance of the wheel.
+	 *
+	 * @param name name of the worker thread
+	 * @param tickDuration duration of a single tick
+	 * @param unit time unit of <code>tickDuration</code>
+	 * @param ticksPerWheel number of buckets (will be rounded up to power of 2)
+	 */
+	public HashedTimingWheel(String name, long tickDuration, TimeUnit unit, int ticksPerWheel) {
+		if (tickDuration <= 0) {
+			throw new IllegalArgumentException("tickDuration must be greater than 0: " + tickDuration);
+		}
+		if (ticksPerWheel <= 0 || ticksPerWheel > (1 << 30)) {
+			throw new IllegalArgumentException("ticksPerWheel must be between 1 and 2^30: " + ticksPerWheel);
+		}
+		int size = 1;
+		while (size < ticksPerWheel) {
+			size <<= 1;
+		}
+		this.name = name;
+		this.tickDuration = unit.toNanos(tickDuration);
+		this.wheel = new Bucket[size];
+		for (int i = 0; i < size; i++) {
+			wheel[i] = new Bucket();
+		}
+		this.mask = size - 1;
+	}
+
+	/**
+	 * Starts the worker thread. Wheel cannot be restarted after it was stopped.
+	 */
+	public synchronized void start() {
+		if (worker != null) {
+			return;
+		}
+		startTime = System.nanoTime();
+		worker = new Thread(this::run, name);
+		worker.setDaemon(true);
+		worker.start();
+	}
+
+	public synchronized void stop() {
+		shutdown = true;
+		if (worker != null) {
+			worker.interrupt();
+		}
+	}
+
+	public synchronized boolean isStarted() {
+		return worker != null && !shutdown;
+	}
+
+	/**
+	 * Schedules task for execution after passed delay. Task may be scheduled before the wheel is started, but then
+	 * delay is counted from the start of the wheel.
+	 *
+	 * @param task task to execute
+	 * @param delay delay in milliseconds
+	 *
+	 * @return future representing pending execution of the task or <code>null</code> if task was already cancelled
+	 */
+	public ScheduledFuture<?> schedule(TimerTask task, long delay) {
+		if (task.isCancelled()) {
+			return null;
+		}
+		Timeout timeout = new Timeout(task, System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(Math.max(0, delay)));
+		task.setScheduledFuture(timeout);
+		add(timeout);
+		// task cancelled after the check above could cancel its previous future, so the new one is cancelled here
+		if (task.isCancelled()) {
+			timeout.cancel(false);
+			return null;
+		}
+		return timeout;
+	}
+
+	public ScheduledFuture<?> schedule(Runnable task, long delay, TimeUnit unit) {
+		Timeout timeout = new Timeout(task, System.nanoTime() + unit.toNanos(Math.max(0, delay)));
+		add(timeout);
+		return timeout;
+	}
+
+	/**
+	 * Returns number of tasks which are scheduled and not yet expired or removed after cancellation.
+	 */
+	public long getScheduledCount() {
+		return scheduled.get();
+	}
+
+	/**
+	 * Returns total number of expired tasks.
+	 */
+	public long getExpiredCount() {
+		return expired.get();
+	}
+
+	private void add(Timeout timeout) {
+		scheduled.incrementAndGet();
+		pendingTimeouts.offer(timeout);
+	}
+
+	private void run() {
+		while (!shutdown) {
+			long deadline = startTime + (tick + 1) * tickDuration;
+			long sleep = deadline - System.nanoTime();
+			if (sleep > 0) {
+				try {
+					TimeUnit.NANOSECONDS.sleep(sleep);
+				} catch (InterruptedException ex) {
+					continue;
+				}
+			}
+
+			try {
+				removeCancelled();
+				transferPending();
+				expire(wheel[(int) (tick & mask)], deadline);
+			} catch (Throwable ex) {
+				log.log(Level.WARNING, name + ": problem processing tick " + tick, ex);
+			}
+			tick++;
+		}
+	}
+
+	private void removeCancelled() {
+		Timeout timeout;
+		while ((timeout = cancelledTimeouts.poll()) != null) {
+			if (timeout.bucket != null) {
+				timeout.bucket.remove(timeout);
+				scheduled.decrementAndGet();
+			}
+		}
+	}
+
+	private void transferPending() {
+		for (int i = 0; i < MAX_TRANSFERS_PER_TICK; i++) {
+			Timeout timeout = pendingTimeouts.poll();
+			if (timeout == null) {
+				break;
+			}
+			if (timeout.isCancelled()) {
+				scheduled.decrementAndGet();
+				continue;
+			}
+			long calculated = Math.max(0, timeout.deadline - startTime) / tickDuration;
+			timeout.remainingRounds = (calculated - tick) / wheel.length;
+			long ticks = Math.max(calculated, tick);
+			wheel[(int) (ticks & mask)].add(timeout);
+		}
+	}
+
+	private void expire(Bucket bucket, long deadline) {
+		Timeout timeout = bucket.head;
+		while (timeout != null) {
+			Timeout next = timeout.next;
+			if (timeout.isCancelled()) {
+				bucket.remove(timeout);
+				scheduled.decrementAndGet();
+			} else if (timeout.remainingRounds <= 0 && timeout.deadline <= deadline) {
+				bucket.remove(timeout);
+				scheduled.decrementAndGet();
+				expired.incrementAndGet();
+				timeout.run();
+			} else {
+				timeout.remainingRounds--;
+			}
+			timeout = next;
+		}
+	}
+
+	private static class Bucket {
+
+		private Timeout head;
+		private Timeout tail;
+
+		private void add(Timeout timeout) {
+			timeout.bucket = this;
+			if (head == null) {
+				head = tail = timeout;
+			} else {
+				tail.next = timeout;
+				timeout.prev = tail;
+				tail = timeout;
+			}
+		}
+
+		private void remove(Timeout timeout) {
+			if (timeout.prev != null) {
+				timeout.prev.next = timeout.next;
+			}
+			if (timeout.next != null) {
+				timeout.next.prev = timeout.prev;
+			}
+			if (timeout == head) {
+				head = timeout.next;
+			}
+			if (timeout == tail) {
+				tail = timeout.prev;
+			}
+			timeout.prev = null;
+			timeout.next = null;
+			timeout.bucket = null;
+		}
+	}
+
+	private class Timeout
+			extends FutureTask<Void>
+			implements ScheduledFuture<Void> {
+
+		private final long deadline;
+		private Bucket bucket;
+		private Timeout next;
+		private Timeout prev;
+		private long remainingRounds;
+
+		private Timeout(Runnable task, long deadline) {
+			super(task, null);
+			this.deadline = deadline;
+		}
+
+		@Override
+		public long getDelay(TimeUnit unit) {
+			return unit.convert(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+		}
+
+		@Override
+		public int compareTo(Delayed o) {
+			if (o == this) {
+				return 0;
+			}
+			return Long.compare(getDelay(TimeUnit.NANOSECONDS), o.getDelay(TimeUnit.NANOSECONDS));
+		}
+
+		@Override
+		protected void done() {
+			if (isCancelled()) {
+				cancelledTimeouts.offer(this);
+			}
+		}
+
+		@Override
+		protected void setException(Throwable t) {
+			log.log(Level.WARNING, name + ": execution of scheduled task failed", t);
+			super.setException(t);
+		}
+	}
+}
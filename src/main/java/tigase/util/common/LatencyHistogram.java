@@ -0,0 +1,84 @@
+/*
+ * Tigase XMPP Server - The instant messaging server
+ * Copyright (C) 2004 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.util.common;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Lock-free histogram of durations with buckets of exponentially growing size.
+ * <br>
+ * Duration of <code>n</code> nanoseconds is counted in a bucket covering durations from <code>2^(b-1)</code> to
+ * <code>2^b - 1</code> nanoseconds, so percentiles are reported with precision of a factor of 2, which is enough to
+ * tell where the time is spent while recording is just an increment of a counter.
+ */
+public class LatencyHistogram {
+
+	private static final int BUCKETS = 64;
+
+	private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+	private final LongAdder count = new LongAdder();
+	private final LongAdder total = new LongAdder();
+
+	private static int bucket(long nanos) {
+		return nanos <= 0 ? 0 : Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(nanos));
+	}
+
+	public void record(long nanos) {
+		buckets.incrementAndGet(bucket(nanos));
+		count.increment();
+		total.add(Math.max(0, nanos));
+	}
+
+	public long getCount() {
+		return count.sum();
+	}
+
+	/**
+	 * Returns average of recorded durations in nanoseconds.
+	 */
+	public long getAverage() {
+		long c = count.sum();
+		return c == 0 ? 0 : total.sum() / c;
+	}
+
+	/**
+	 * Returns upper bound (in nanoseconds) of durations of <code>percentile</code> percent of recorded durations.
+	 */
+	public long getPercentile(double percentile) {
+		long[] counts = new long[BUCKETS];
+		long sum = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			counts[i] = buckets.get(i);
+			sum += counts[i];
+		}
+		if (sum == 0) {
+			return 0;
+		}
+		long threshold = (long) Math.ceil(sum * percentile / 100);
+		long seen = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			seen += counts[i];
+			if (seen >= threshold && counts[i] > 0) {
+				return i == 0 ? 0 : (i == BUCKETS - 1 ? Long.MAX_VALUE : (1L << i) - 1);
+			}
+		}
+		return Long.MAX_VALUE;
+	}
+
+}
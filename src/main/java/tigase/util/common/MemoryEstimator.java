@@ -0,0 +1,210 @@
+/*
+ * Tigase XMPP Server - The instant messaging server
+ * Copyright (C) 2004 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.util.common;
+
+import tigase.xml.Element;
+
+import java.lang.reflect.Array;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Estimates amount of heap memory retained by objects.
+ * <br>
+ * Estimation assumes 64-bit JVM with compressed references (12 bytes of object header, 4 bytes per reference and
+ * objects aligned to 8 bytes) and Latin-1 strings. Collections and maps are measured using their public API with an
+ * estimated overhead per entry, XML elements without their names and names of attributes (which are interned), and
+ * other objects (except JDK classes) by reading their fields. Every object is counted only once by an instance of the
+ * estimator, so objects excluded with {@link #exclude(Object)} or already counted (ie. shared by all sessions) are not
+ * counted again. Boxed booleans, enums and classes are treated as shared.
+ */
+public class MemoryEstimator {
+
+	private static final int ENTRY_OVERHEAD = 32;
+	private static final int HEADER = 12;
+	private static final int MAX_DEPTH = 16;
+	private static final int REFERENCE = 4;
+	private static final Map<Class<?>, Field[]> fieldsCache = new ConcurrentHashMap<>();
+
+	private final Set<Object> visited = Collections.newSetFromMap(new IdentityHashMap<>());
+
+	private static long align(long size) {
+		return (size + 7) & ~7L;
+	}
+
+	private static Field[] fields(Class<?> cls) {
+		return fieldsCache.computeIfAbsent(cls, c -> {
+			List<Field> result = new ArrayList<>();
+			for (Class<?> it = c; it != null && it != Object.class; it = it.getSuperclass()) {
+				for (Field field : it.getDeclaredFields()) {
+					if (Modifier.isStatic(field.getModifiers())) {
+						continue;
+					}
+					try {
+						field.setAccessible(true);
+						result.add(field);
+					} catch (RuntimeException ex) {
+						// field is not accessible, so it will not be counted
+					}
+				}
+			}
+			return result.toArray(new Field[result.size()]);
+		});
+	}
+
+	private static boolean isJdkClass(Class<?> cls) {
+		String name = cls.getName();
+		return name.startsWith("java.") || name.startsWith("javax.") || name.startsWith("sun.") ||
+				name.startsWith("jdk.");
+	}
+
+	private static long primitiveSize(Class<?> cls) {
+		if (cls == long.class || cls == double.class) {
+			return 8;
+		}
+		if (cls == int.class || cls == float.class) {
+			return 4;
+		}
+		if (cls == short.class || cls == char.class) {
+			return 2;
+		}
+		return 1;
+	}
+
+	/**
+	 * Marks object as already counted, so it (and objects referenced only by it) will not be counted.
+	 */
+	public void exclude(Object obj) {
+		if (obj != null) {
+			visited.add(obj);
+		}
+	}
+
+	/**
+	 * Returns estimated size (in bytes) of the object itself, without objects referenced by it.
+	 */
+	public static long shallowSize(Object obj) {
+		long size = HEADER;
+		for (Field field : fields(obj.getClass())) {
+			size += field.getType().isPrimitive() ? primitiveSize(field.getType()) : REFERENCE;
+		}
+		return align(size);
+	}
+
+	/**
+	 * Returns estimated size (in bytes) of the object and all objects referenced by it which were not counted before.
+	 */
+	public long estimate(Object obj) {
+		return estimate(obj, 0);
+	}
+
+	private long estimate(Object obj, int depth) {
+		if (obj == null || depth > MAX_DEPTH || obj instanceof Boolean || obj instanceof Enum || obj instanceof Class ||
+				!visited.add(obj)) {
+			return 0;
+		}
+		if (obj instanceof String) {
+			return align(HEADER + 12) + align(16 + ((String) obj).length());
+		}
+		if (obj instanceof Long || obj instanceof Double) {
+			return 24;
+		}
+		if (obj instanceof Number || obj instanceof Character) {
+			return 16;
+		}
+		if (obj instanceof Element) {
+			return estimateElement((Element) obj, depth);
+		}
+		if (obj instanceof Map) {
+			long size = 64;
+			try {
+				for (Map.Entry<?, ?> e : ((Map<?, ?>) obj).entrySet()) {
+					size += ENTRY_OVERHEAD + estimate(e.getKey(), depth + 1) + estimate(e.getValue(), depth + 1);
+				}
+			} catch (ConcurrentModificationException ex) {
+				// map was modified, so estimation is not accurate
+			}
+			return size;
+		}
+		if (obj instanceof Collection) {
+			long size = 48;
+			try {
+				for (Object it : (Collection<?>) obj) {
+					size += ENTRY_OVERHEAD - 8 + estimate(it, depth + 1);
+				}
+			} catch (ConcurrentModificationException ex) {
+				// collection was modified, so estimation is not accurate
+			}
+			return size;
+		}
+
+		Class<?> cls = obj.getClass();
+		if (cls.isArray()) {
+			int length = Array.getLength(obj);
+			if (cls.getComponentType().isPrimitive()) {
+				return align(16 + length * primitiveSize(cls.getComponentType()));
+			}
+			long size = align(16 + (long) length * REFERENCE);
+			for (Object it : (Object[]) obj) {
+				size += estimate(it, depth + 1);
+			}
+			return size;
+		}
+		if (isJdkClass(cls)) {
+			return 16;
+		}
+
+		long shallow = HEADER;
+		long size = 0;
+		for (Field field : fields(cls)) {
+			if (field.getType().isPrimitive()) {
+				shallow += primitiveSize(field.getType());
+				continue;
+			}
+			shallow += REFERENCE;
+			try {
+				size += estimate(field.get(obj), depth + 1);
+			} catch (IllegalAccessException ex) {
+				// value cannot be read, so it will not be counted
+			}
+		}
+		return align(shallow) + size;
+	}
+
+	private long estimateElement(Element elem, int depth) {
+		long size = 40;
+		Map<String, String> attributes = elem.getAttributes();
+		if (attributes != null) {
+			size += 64;
+			for (String value : attributes.values()) {
+				size += ENTRY_OVERHEAD + estimate(value, depth + 1);
+			}
+		}
+		size += estimate(elem.getCData(), depth + 1);
+		List<Element> children = elem.getChildren();
+		if (children != null) {
+			size += 48;
+			for (Element child : children) {
+				size += ENTRY_OVERHEAD - 8 + estimate(child, depth + 1);
+			}
+		}
+		return size;
+	}
+}
@@ -0,0 +1,285 @@
+/*
+ * Tigase XMPP Server - The instant messaging server
+ * Copyright (C) 2004 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.util.common;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Storage of byte arrays outside of the Java heap.
+ * <br>
+ * Data is appended to direct buffers (segments) of a fixed size. Handle of stored data is an index in a table of
+ * locations (index of the segment and offset within it), so data may be moved without changing its handle. When less
+ * than half of a segment (other than the one currently written) is used by live entries, the segment is queued for
+ * reuse. Before it is written again, its live entries are moved to the beginning of the segment, so entries removed
+ * out of order do not keep most of the allocated space. Data larger than a segment is stored in a dedicated buffer.
+ * When total size of allocated buffers would exceed the limit, data is not stored and caller should keep it on heap.
+ */
+public class OffHeapStore {
+
+	public static final long NO_HANDLE = -1;
+
+	// size of header of an entry: id and size of the data
+	private static final int HEADER_SIZE = 8;
+	// id of a removed entry
+	private static final int REMOVED = -1;
+
+	// ids of removed entries which may be reused
+	private final ArrayDeque<Integer> freeIds = new ArrayDeque<>();
+	// segments with at least half of the space not used by live entries
+	private final ArrayDeque<Segment> freeSegments = new ArrayDeque<>();
+	// indexes of released dedicated buffers which may be reused
+	private final ArrayDeque<Integer> freeSlots = new ArrayDeque<>();
+	private final long maxSize;
+	private final int segmentSize;
+	private final List<Segment> segments = new ArrayList<>();
+	private long allocatedBytes = 0;
+	private long compactions = 0;
+	private Segment current = null;
+	private long entries = 0;
+	private long[] locations = new long[64];
+	private int nextId = 0;
+	private long rejected = 0;
+	private long usedBytes = 0;
+
+	public OffHeapStore(int segmentSize, long maxSize) {
+		if (segmentSize <= HEADER_SIZE) {
+			throw new IllegalArgumentException("Segment size has to be larger than " + HEADER_SIZE + " bytes");
+		}
+		this.segmentSize = segmentSize;
+		this.maxSize = maxSize;
+	}
+
+	/**
+	 * Stores data.
+	 *
+	 * @return handle of stored data or {@link #NO_HANDLE} if there is no space left
+	 */
+	public synchronized long put(byte[] data) {
+		int size = data.length + HEADER_SIZE;
+		Segment segment = size > segmentSize ? allocate(size) : segmentFor(size);
+		if (segment == null) {
+			rejected++;
+			return NO_HANDLE;
+		}
+		int id = nextId();
+		write(segment, id, data);
+		entries++;
+		usedBytes += size;
+		return id;
+	}
+
+	/**
+	 * Returns data stored under the handle.
+	 */
+	public synchronized byte[] get(long handle) {
+		long location = locations[(int) handle];
+		ByteBuffer buffer = segments.get((int) (location >>> 32)).buffer.duplicate();
+		buffer.position((int) location + 4);
+		byte[] data = new byte[buffer.getInt()];
+		buffer.get(data);
+		return data;
+	}
+
+	/**
+	 * Releases space used by data stored under the handle.
+	 */
+	public synchronized void remove(long handle) {
+		int id = (int) handle;
+		long location = locations[id];
+		locations[id] = NO_HANDLE;
+		freeIds.offer(id);
+		Segment segment = segments.get((int) (location >>> 32));
+		int size = segment.buffer.getInt((int) location + 4) + HEADER_SIZE;
+		segment.buffer.putInt((int) location, REMOVED);
+		usedBytes -= size;
+		entries--;
+		segment.live--;
+		segment.liveBytes -= size;
+		if (segment.buffer.capacity() > segmentSize) {
+			// dedicated buffer
+			segments.set(segment.idx, null);
+			allocatedBytes -= segment.buffer.capacity();
+			freeSlots.offer(segment.idx);
+		} else if (segment == current) {
+			if (segment.live == 0) {
+				segment.writePos = 0;
+			}
+		} else {
+			release(segment);
+		}
+	}
+
+	public synchronized long getAllocatedBytes() {
+		return allocatedBytes;
+	}
+
+	/**
+	 * Returns number of segments which were reused after moving their live entries.
+	 */
+	public synchronized long getCompactions() {
+		return compactions;
+	}
+
+	public synchronized long getEntries() {
+		return entries;
+	}
+
+	/**
+	 * Returns number of entries which were not stored as there was no space left.
+	 */
+	public synchronized long getRejected() {
+		return rejected;
+	}
+
+	public synchronized long getUsedBytes() {
+		return usedBytes;
+	}
+
+	private Segment allocate(int capacity) {
+		if (allocatedBytes + capacity > maxSize) {
+			return null;
+		}
+		Integer idx = freeSlots.poll();
+		Segment segment = new Segment(idx == null ? segments.size() : idx, ByteBuffer.allocateDirect(capacity));
+		if (idx == null) {
+			segments.add(segment);
+		} else {
+			segments.set(idx, segment);
+		}
+		allocatedBytes += capacity;
+		return segment;
+	}
+
+	/**
+	 * Moves live entries to the beginning of the segment.
+	 */
+	private void compact(Segment segment) {
+		if (segment.live == 0) {
+			segment.writePos = 0;
+			return;
+		}
+		ByteBuffer src = segment.buffer.duplicate();
+		ByteBuffer dst = segment.buffer.duplicate();
+		int pos = 0;
+		while (pos < segment.writePos) {
+			src.position(pos);
+			int id = src.getInt();
+			int size = src.getInt() + HEADER_SIZE;
+			if (id != REMOVED) {
+				if (dst.position() != pos) {
+					byte[] entry = new byte[size];
+					src.position(pos);
+					src.get(entry);
+					locations[id] = (((long) segment.idx) << 32) | dst.position();
+					dst.put(entry);
+				} else {
+					dst.position(pos + size);
+				}
+			}
+			pos += size;
+		}
+		segment.writePos = dst.position();
+		compactions++;
+	}
+
+	private int nextId() {
+		Integer id = freeIds.poll();
+		if (id != null) {
+			return id;
+		}
+		if (nextId == locations.length) {
+			locations = Arrays.copyOf(locations, locations.length * 2);
+		}
+		return nextId++;
+	}
+
+	/**
+	 * Queues segment which is not written for reuse if less than half of it is used by live entries.
+	 */
+	private void release(Segment segment) {
+		if (!segment.queued && segment.liveBytes < segmentSize / 2) {
+			segment.queued = true;
+			freeSegments.offer(segment);
+		}
+	}
+
+	/**
+	 * Returns segment with enough free space for the entry, which becomes the current segment.
+	 */
+	private Segment segmentFor(int size) {
+		if (current != null && current.buffer.capacity() - current.writePos >= size) {
+			return current;
+		}
+		Segment segment = null;
+		for (Iterator<Segment> it = freeSegments.iterator(); it.hasNext(); ) {
+			Segment candidate = it.next();
+			if (segmentSize - candidate.liveBytes >= size) {
+				it.remove();
+				candidate.queued = false;
+				compact(candidate);
+				segment = candidate;
+				break;
+			}
+		}
+		if (segment == null) {
+			segment = allocate(segmentSize);
+		}
+		if (segment == null) {
+			return null;
+		}
+		Segment previous = current;
+		current = segment;
+		if (previous != null) {
+			release(previous);
+		}
+		return current;
+	}
+
+	private void write(Segment segment, int id, byte[] data) {
+		int offset = segment.writePos;
+		ByteBuffer buffer = segment.buffer.duplicate();
+		buffer.position(offset);
+		buffer.putInt(id);
+		buffer.putInt(data.length);
+		buffer.put(data);
+		segment.writePos = buffer.position();
+		segment.live++;
+		segment.liveBytes += data.length + HEADER_SIZE;
+		locations[id] = (((long) segment.idx) << 32) | offset;
+	}
+
+	private static class Segment {
+
+		private final ByteBuffer buffer;
+		private final int idx;
+		private int live = 0;
+		private int liveBytes = 0;
+		private boolean queued = false;
+		private int writePos = 0;
+
+		private Segment(int idx, ByteBuffer buffer) {
+			this.idx = idx;
+			this.buffer = buffer;
+		}
+	}
+}
@@ -29,8 +29,8 @@ public abstract class TimerTask
 		implements Runnable {
 
 	private static final Logger log = Logger.getLogger(TimerTask.class.getName());
-	private boolean cancelled = false;
-	private ScheduledFuture<?> future = null;
+	private volatile boolean cancelled = false;
+	private volatile ScheduledFuture<?> future = null;
 
 	public void setScheduledFuture(ScheduledFuture<?> future) {
 		this.future = future;
@@ -0,0 +1,231 @@
+/*
+ * Tigase XMPP Server - The instant messaging server
+ * Copyright (C) 2004 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.util.common;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.function.Predicate;
+
+/**
+ * Bounded cache with frequency-aware admission (TinyLFU).
+ * <br>
+ * Entries are kept in LRU order, but when the cache is full a new entry is added (and the least recently used entry
+ * is evicted) only if the new key was requested more often than the key which would be evicted. Frequency of
+ * requests is estimated with a count-min sketch which is periodically aged, so keys requested only once (ie. during
+ * scans) do not push frequently used entries out of the cache.
+ * <br>
+ * Cache is split into segments, each guarded by its own lock.
+ */
+public class TinyLFUCache<K, V> {
+
+	private static final int SEGMENTS = 16;
+
+	private final int limit;
+	private final Segment<K, V>[] segments;
+
+	@SuppressWarnings("unchecked")
+	public TinyLFUCache(int limit) {
+		this.limit = limit;
+		int segmentLimit = Math.max(1, (limit + SEGMENTS - 1) / SEGMENTS);
+		this.segments = new Segment[SEGMENTS];
+		for (int i = 0; i < SEGMENTS; i++) {
+			segments[i] = new Segment<>(segmentLimit);
+		}
+	}
+
+	/**
+	 * Returns value cached for the key (or <code>null</code>) and records request for this key.
+	 */
+	public V get(K key) {
+		return segment(key).get(key);
+	}
+
+	/**
+	 * Adds entry to the cache if there is a free space or if the key is requested more often than the least recently
+	 * used one.
+	 *
+	 * @return <code>true</code> if entry was admitted to the cache
+	 */
+	public boolean put(K key, V value) {
+		return segment(key).put(key, value);
+	}
+
+	public V remove(K key) {
+		return segment(key).remove(key);
+	}
+
+	/**
+	 * Removes all entries with keys matching the predicate. This method needs to check all entries of the cache.
+	 */
+	public void removeIf(Predicate<K> predicate) {
+		for (Segment<K, V> segment : segments) {
+			segment.removeIf(predicate);
+		}
+	}
+
+	public void clear() {
+		for (Segment<K, V> segment : segments) {
+			segment.clear();
+		}
+	}
+
+	public int size() {
+		int size = 0;
+		for (Segment<K, V> segment : segments) {
+			size += segment.size();
+		}
+		return size;
+	}
+
+	public int limit() {
+		return limit;
+	}
+
+	/**
+	 * Returns number of entries which were not admitted to the cache as they were less frequently used than entries
+	 * already cached.
+	 */
+	public long getRejected() {
+		long rejected = 0;
+		for (Segment<K, V> segment : segments) {
+			rejected += segment.rejected;
+		}
+		return rejected;
+	}
+
+	private static int spread(int hash) {
+		hash ^= hash >>> 16;
+		hash *= 0x45d9f3b;
+		hash ^= hash >>> 16;
+		return hash;
+	}
+
+	private Segment<K, V> segment(K key) {
+		return segments[(spread(key.hashCode()) >>> 28) & (SEGMENTS - 1)];
+	}
+
+	private static class Segment<K, V> {
+
+		private final int limit;
+		private final LinkedHashMap<K, V> map;
+		private final FrequencySketch sketch;
+		private volatile long rejected = 0;
+
+		private Segment(int limit) {
+			this.limit = limit;
+			this.map = new LinkedHashMap<>(16, 0.75f, true);
+			this.sketch = new FrequencySketch(limit);
+		}
+
+		private synchronized V get(K key) {
+			sketch.increment(key.hashCode());
+			return map.get(key);
+		}
+
+		private synchronized boolean put(K key, V value) {
+			if (map.containsKey(key) || map.size() < limit) {
+				map.put(key, value);
+				return true;
+			}
+
+			Iterator<K> it = map.keySet().iterator();
+			K victim = it.next();
+			if (sketch.frequency(key.hashCode()) > sketch.frequency(victim.hashCode())) {
+				it.remove();
+				map.put(key, value);
+				return true;
+			}
+			rejected++;
+			return false;
+		}
+
+		private synchronized V remove(K key) {
+			return map.remove(key);
+		}
+
+		private synchronized void removeIf(Predicate<K> predicate) {
+			map.keySet().removeIf(predicate);
+		}
+
+		private synchronized void clear() {
+			map.clear();
+		}
+
+		private synchronized int size() {
+			return map.size();
+		}
+	}
+
+	/**
+	 * Count-min sketch with 4 counters (each limited to 15) per key. All counters are halved when number of recorded
+	 * requests reaches 10 times size of the cache, so old popularity is forgotten.
+	 */
+	private static class FrequencySketch {
+
+		private static final int[] SEEDS = {0x97cb3127, 0xb492b66f, 0x9ae16a3b, 0xcbf29ce4};
+		private static final int MAX_COUNT = 15;
+
+		private final int mask;
+		private final int sampleSize;
+		private final byte[] table;
+		private int additions = 0;
+
+		private FrequencySketch(int limit) {
+			int size = 16;
+			while (size < limit * 16 && size < (1 << 24)) {
+				size <<= 1;
+			}
+			this.table = new byte[size];
+			this.mask = size - 1;
+			this.sampleSize = Math.max(10 * limit, 16);
+		}
+
+		private void increment(int hash) {
+			boolean added = false;
+			for (int seed : SEEDS) {
+				int idx = indexOf(hash, seed);
+				if (table[idx] < MAX_COUNT) {
+					table[idx]++;
+					added = true;
+				}
+			}
+			if (added && ++additions >= sampleSize) {
+				reset();
+			}
+		}
+
+		private int frequency(int hash) {
+			int frequency = MAX_COUNT;
+			for (int seed : SEEDS) {
+				frequency = Math.min(frequency, table[indexOf(hash, seed)]);
+			}
+			return frequency;
+		}
+
+		private int indexOf(int hash, int seed) {
+			return spread(hash * seed) & mask;
+		}
+
+		private void reset() {
+			for (int i = 0; i < table.length; i++) {
+				table[i] = (byte) (table[i] >>> 1);
+			}
+			additions = additions >>> 1;
+		}
+	}
+}
@@ -0,0 +1,171 @@
+/*
+ * Tigase XMPP Server - The instant messaging server
+ * Copyright (C) 2004 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.util.reflection;
+
+import javax.annotation.processing.AbstractProcessor;
+import javax.annotation.processing.RoundEnvironment;
+import javax.annotation.processing.SupportedAnnotationTypes;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.*;
+import javax.lang.model.type.TypeMirror;
+import javax.lang.model.util.Elements;
+import javax.lang.model.util.Types;
+import javax.tools.Diagnostic;
+import javax.tools.FileObject;
+import javax.tools.StandardLocation;
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+/**
+ * Annotation processor generating index of classes which may be used by the Tigase Kernel and its bean configurators
+ * (classes annotated with <code>@Bean</code> or <code>@Repository.Meta</code> and implementations of repositories,
+ * schema loaders, components and processors). Index is stored in {@link #INDEX_RESOURCE} and used by
+ * {@link ClassUtilBean} instead of scanning jar files and directories on the classpath.
+ * <br>
+ * This class must not depend on any other Tigase class as it is compiled and executed before the rest of the sources.
+ */
+@SupportedAnnotationTypes("*")
+public class BeanIndexProcessor
+		extends AbstractProcessor {
+
+	public static final String INDEX_RESOURCE = "META-INF/tigase/beans.index";
+
+	private static final String[] INDEXED_ANNOTATIONS = {"tigase.kernel.beans.Bean", "tigase.db.Repository.Meta"};
+	private static final String[] INDEXED_TYPES = {"tigase.db.Repository", "tigase.db.DataSource",
+												   "tigase.db.util.SchemaLoader", "tigase.server.ServerComponent",
+												   "tigase.xmpp.XMPPImplIfc"};
+
+	private final Set<String> classNames = new TreeSet<>();
+
+	@Override
+	public SourceVersion getSupportedSourceVersion() {
+		return SourceVersion.latestSupported();
+	}
+
+	@Override
+	public boolean process(Set<? extends TypeElement> annotations, RoundEnvironment roundEnv) {
+		if (roundEnv.processingOver()) {
+			writeIndex();
+			return false;
+		}
+
+		List<TypeMirror> indexedTypes = new ArrayList<>();
+		for (String typeName : INDEXED_TYPES) {
+			TypeElement type = processingEnv.getElementUtils().getTypeElement(typeName);
+			if (type != null) {
+				indexedTypes.add(processingEnv.getTypeUtils().erasure(type.asType()));
+			}
+		}
+
+		for (Element element : roundEnv.getRootElements()) {
+			processElement(element, indexedTypes);
+		}
+		return false;
+	}
+
+	private void processElement(Element element, List<TypeMirror> indexedTypes) {
+		if (!(element instanceof TypeElement)) {
+			return;
+		}
+
+		TypeElement type = (TypeElement) element;
+		if (isIndexed(type, indexedTypes)) {
+			classNames.add(processingEnv.getElementUtils().getBinaryName(type).toString());
+		}
+
+		for (Element enclosed : type.getEnclosedElements()) {
+			processElement(enclosed, indexedTypes);
+		}
+	}
+
+	private boolean isIndexed(TypeElement type, List<TypeMirror> indexedTypes) {
+		if (type.getKind() != ElementKind.CLASS || type.getModifiers().contains(Modifier.ABSTRACT)) {
+			return false;
+		}
+		if (type.getNestingKind() == NestingKind.MEMBER && !type.getModifiers().contains(Modifier.STATIC)) {
+			return false;
+		}
+		if (type.getNestingKind() == NestingKind.LOCAL || type.getNestingKind() == NestingKind.ANONYMOUS) {
+			return false;
+		}
+
+		// including annotations inherited from superclasses, as @Bean is @Inherited
+		for (AnnotationMirror annotation : processingEnv.getElementUtils().getAllAnnotationMirrors(type)) {
+			Name name = ((TypeElement) annotation.getAnnotationType().asElement()).getQualifiedName();
+			for (String indexedAnnotation : INDEXED_ANNOTATIONS) {
+				if (name.contentEquals(indexedAnnotation)) {
+					return true;
+				}
+			}
+		}
+
+		Types types = processingEnv.getTypeUtils();
+		TypeMirror erasure = types.erasure(type.asType());
+		for (TypeMirror indexedType : indexedTypes) {
+			if (types.isAssignable(erasure, indexedType)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private void writeIndex() {
+		if (classNames.isEmpty()) {
+			return;
+		}
+
+		// keeping entries from the previous index for classes which were not recompiled
+		Elements elements = processingEnv.getElementUtils();
+		try {
+			FileObject previous = processingEnv.getFiler()
+					.getResource(StandardLocation.CLASS_OUTPUT, "", INDEX_RESOURCE);
+			try (BufferedReader reader = new BufferedReader(
+					new InputStreamReader(previous.openInputStream(), StandardCharsets.UTF_8))) {
+				String line;
+				while ((line = reader.readLine()) != null) {
+					line = line.trim();
+					if (line.isEmpty() || line.startsWith("#")) {
+						continue;
+					}
+					if (elements.getTypeElement(line.replace('$', '.')) != null) {
+						classNames.add(line);
+					}
+				}
+			}
+		} catch (IOException | IllegalArgumentException ex) {
+			// there is no previous index, nothing to merge
+		}
+
+		try {
+			FileObject index = processingEnv.getFiler()
+					.createResource(StandardLocation.CLASS_OUTPUT, "", INDEX_RESOURCE);
+			try (Writer writer = new BufferedWriter(
+					new OutputStreamWriter(index.openOutputStream(), StandardCharsets.UTF_8))) {
+				writer.write("# Generated by " + BeanIndexProcessor.class.getName() + "\n");
+				for (String className : classNames) {
+					writer.write(className);
+					writer.write('\n');
+				}
+			}
+		} catch (IOException ex) {
+			processingEnv.getMessager()
+					.printMessage(Diagnostic.Kind.WARNING, "Could not write bean index: " + ex.getMessage());
+		}
+	}
+}
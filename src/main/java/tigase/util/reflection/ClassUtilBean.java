@@ -20,9 +20,11 @@ package tigase.util.reflection;
 import tigase.util.ClassComparator;
 import tigase.util.ClassUtil;
 
-import java.io.File;
-import java.io.IOException;
+import java.io.*;
+import java.nio.charset.StandardCharsets;
 import java.util.*;
+import java.util.jar.JarFile;
+import java.util.zip.ZipEntry;
 import java.util.function.Predicate;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -47,6 +49,9 @@ public class ClassUtilBean {
 	private static ClassUtilBean instance;
 	private static Logger log = Logger.getLogger(ClassUtilBean.class.getCanonicalName());
 	protected HashSet<Class<?>> classes = new HashSet<>();
+	private Set<Class<?>> allClasses = null;
+	private Predicate<String> filter = className -> true;
+	private boolean indexUsed = false;
 
 	public static List<String> getPackagesToSkip(String[] packagesToSkip) {
 		if (packagesToSkip == null) {
@@ -87,10 +92,23 @@ public class ClassUtilBean {
 					return true;
 				};
 			}
-			classes.addAll(ClassUtil.getClassesFromClassPath(filter));
+			this.filter = filter;
+			long start = System.currentTimeMillis();
+			Set<Class<?>> indexed = getClassesFromIndex(System.getProperty("java.class.path"), filter);
+			if (indexed != null) {
+				indexUsed = true;
+				classes.addAll(indexed);
+			} else {
+				classes.addAll(ClassUtil.getClassesFromClassPath(filter));
+			}
 			// support for handling debugging test cases started by Maven Surefire Plugin
 			// as without it Tigase Kernel is not able to see annotated beans
-			classes.addAll(getClassesFromSurefireClassLoader());
+			classes.addAll(getClassesFromSurefireClassLoader(filter, true));
+			if (log.isLoggable(Level.CONFIG)) {
+				log.log(Level.CONFIG, "Loaded {0} classes {1} in {2}ms",
+						new Object[]{classes.size(), indexed != null ? "using bean index" : "by scanning classpath",
+									 System.currentTimeMillis() - start});
+			}
 		} catch (IOException | ClassNotFoundException e) {
 			log.log(Level.SEVERE, "Could not initialize list of classes", e);
 		}
@@ -99,17 +117,147 @@ public class ClassUtilBean {
 		}
 	}
 
+	/**
+	 * Returns all classes found on the classpath. If classes were loaded using bean index, the classpath is scanned on
+	 * the first call of this method.
+	 */
 	public Set<Class<?>> getAllClasses() {
+		if (!indexUsed) {
+			return Collections.unmodifiableSet(classes);
+		}
+		synchronized (this) {
+			if (allClasses == null) {
+				Set<Class<?>> result = new HashSet<>(classes);
+				try {
+					result.addAll(ClassUtil.getClassesFromClassPath(filter));
+				} catch (IOException | ClassNotFoundException e) {
+					log.log(Level.SEVERE, "Could not scan classpath for classes", e);
+				}
+				result.addAll(getClassesFromSurefireClassLoader(filter, false));
+				allClasses = Collections.unmodifiableSet(result);
+			}
+			return allClasses;
+		}
+	}
+
+	/**
+	 * Returns classes which may be used by the Tigase Kernel and its bean configurators (classes annotated with
+	 * <code>@Bean</code> or <code>@Repository.Meta</code> and implementations of repositories, schema loaders,
+	 * components and processors). Classes are loaded from bean indexes if they are available, so other classes may
+	 * be missing.
+	 */
+	public Set<Class<?>> getBeanClasses() {
 		return Collections.unmodifiableSet(classes);
 	}
 
-	private Set<Class<?>> getClassesFromSurefireClassLoader() {
+	/**
+	 * Checks if class is available on the classpath, scanning the classpath only if the class is not one of bean
+	 * classes.
+	 */
+	public boolean isKnownClass(Class<?> clazz) {
+		return classes.contains(clazz) || getAllClasses().contains(clazz);
+	}
+
+	/**
+	 * Loads classes listed in indexes generated by {@link BeanIndexProcessor} for entries of the passed classpath.
+	 * Entries without an index are scanned for classes. If there is no index in any of classpath entries
+	 * <code>null</code> is returned and whole classpath needs to be scanned.
+	 */
+	private Set<Class<?>> getClassesFromIndex(String classpath, Predicate<String> filter)
+			throws IOException, ClassNotFoundException {
+		if (classpath == null) {
+			return null;
+		}
+
+		Set<String> indexed_names = new TreeSet<>();
+		Set<String> scanned_names = new TreeSet<>();
+		boolean found = false;
+		StringTokenizer stok = new StringTokenizer(classpath, File.pathSeparator, false);
+		while (stok.hasMoreTokens()) {
+			File file = new File(stok.nextToken());
+			if (!file.exists()) {
+				continue;
+			}
+			List<String> names = readIndex(file);
+			if (names != null) {
+				found = true;
+				indexed_names.addAll(names);
+			} else if (file.isDirectory()) {
+				scanned_names.addAll(ClassUtil.getClassNamesFromDir(file));
+			} else {
+				scanned_names.addAll(ClassUtil.getClassNamesFromJar(file));
+			}
+		}
+
+		if (!found) {
+			return null;
+		}
+
+		if (log.isLoggable(Level.FINE)) {
+			log.log(Level.FINE, "Found {0} classes in bean indexes, scanning {1} classes from not indexed entries",
+					new Object[]{indexed_names.size(), scanned_names.size()});
+		}
+
+		indexed_names.addAll(scanned_names);
+		Set<String> class_names = indexed_names.stream().filter(filter).collect(Collectors.toSet());
+		Set<Class<?>> classes_set = new TreeSet<Class<?>>(new ClassComparator());
+		tigase.osgi.util.ClassUtil.getClassesFromNames(Thread.currentThread().getContextClassLoader(), class_names)
+				.stream()
+				.forEach(classes_set::add);
+		return classes_set;
+	}
+
+	private List<String> readIndex(File file) throws IOException {
+		if (file.isDirectory()) {
+			File index = new File(file, BeanIndexProcessor.INDEX_RESOURCE);
+			if (!index.exists()) {
+				return null;
+			}
+			try (InputStream in = new FileInputStream(index)) {
+				return readIndex(in);
+			}
+		}
+
+		try (JarFile jar = new JarFile(file)) {
+			ZipEntry entry = jar.getEntry(BeanIndexProcessor.INDEX_RESOURCE);
+			if (entry == null) {
+				return null;
+			}
+			try (InputStream in = jar.getInputStream(entry)) {
+				return readIndex(in);
+			}
+		}
+	}
+
+	private List<String> readIndex(InputStream in) throws IOException {
+		List<String> names = new ArrayList<>();
+		BufferedReader reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8));
+		String line;
+		while ((line = reader.readLine()) != null) {
+			line = line.trim();
+			if (!line.isEmpty() && !line.startsWith("#")) {
+				names.add(line);
+			}
+		}
+		return names;
+	}
+
+	private Set<Class<?>> getClassesFromSurefireClassLoader(Predicate<String> filter, boolean useIndex) {
 		Set<Class<?>> classes_set = new TreeSet<Class<?>>(new ClassComparator());
 		String classpath = System.getProperty("surefire.test.class.path");
 
 		if (classpath == null) {
 			return classes_set;
 		}
+
+		try {
+			Set<Class<?>> indexed = useIndex ? getClassesFromIndex(classpath, filter) : null;
+			if (indexed != null) {
+				return indexed;
+			}
+		} catch (ClassNotFoundException | IOException ex) {
+			log.log(Level.WARNING, "Could not load classes using bean index, scanning classpath", ex);
+		}
 		// System.out.println("classpath: "+classpath);
 		StringTokenizer stok = new StringTokenizer(classpath, File.pathSeparator, false);
 
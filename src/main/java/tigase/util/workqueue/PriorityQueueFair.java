@@ -0,0 +1,291 @@
+/*
+ * Tigase XMPP Server - The instant messaging server
+ * Copyright (C) 2004 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.util.workqueue;
+
+import java.util.*;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Function;
+
+/**
+ * Priority queue which within each priority schedules elements fairly between flows (ie. senders of packets).
+ * <br>
+ * Elements of a lower priority are returned before any elements of a higher priority, as in
+ * {@link PriorityQueueRelaxed}. Within the same priority every flow has its own FIFO queue and flows are served using
+ * deficit round-robin: each flow in its turn may return up to <code>quantum</code> elements and then goes to the end
+ * of the list of active flows. A single flow may not keep more than <code>maxFlowSize</code> elements of the same
+ * priority, so one sender can not fill the whole queue. Key of the flow of an element is returned by the function set
+ * by {@link #setFlowKey(Function)}, by default all elements belong to the same flow.
+ */
+public class PriorityQueueFair<E>
+		extends PriorityQueueAbstract<E> {
+
+	public static final int DEF_QUANTUM = 8;
+
+	private final ReentrantLock lock = new ReentrantLock();
+	private final Condition notEmpty = lock.newCondition();
+	private final Condition notFull = lock.newCondition();
+	private Function<E, Object> flowKey = element -> null;
+	private Level<E>[] levels = null;
+	private int maxFlowSize;
+	private int maxSize;
+	private int quantum = DEF_QUANTUM;
+	private long rejected = 0;
+	private int totalSize = 0;
+
+	public PriorityQueueFair() {
+	}
+
+	protected PriorityQueueFair(int maxPriority, int maxSize) {
+		init(maxPriority, maxSize);
+	}
+
+	@Override
+	@SuppressWarnings("unchecked")
+	public final void init(int maxPriority, int maxSize) {
+		levels = new Level[maxPriority];
+		for (int i = 0; i < levels.length; i++) {
+			levels[i] = new Level<>();
+		}
+		this.maxSize = maxSize;
+		this.maxFlowSize = maxSize;
+	}
+
+	@Override
+	public boolean offer(E element, int priority) {
+		try {
+			return add(element, priority, false);
+		} catch (InterruptedException e) {
+			return false;
+		}
+	}
+
+	@Override
+	public void put(E element, int priority) throws InterruptedException {
+		add(element, priority, true);
+	}
+
+	/**
+	 * Sets function returning key of the flow to which element belongs. Elements with <code>null</code> key belong to
+	 * the same flow.
+	 */
+	public void setFlowKey(Function<E, Object> flowKey) {
+		this.flowKey = flowKey;
+	}
+
+	/**
+	 * Sets maximal number of elements of the same priority which may be queued for a single flow. Elements over the
+	 * limit are rejected by {@link #offer(Object, int)}, while {@link #put(Object, int)} is limited only by the size of
+	 * the queue.
+	 */
+	public void setMaxFlowSize(int maxFlowSize) {
+		lock.lock();
+		try {
+			this.maxFlowSize = Math.max(1, maxFlowSize);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public void setMaxSize(int maxSize) {
+		lock.lock();
+		try {
+			this.maxSize = maxSize;
+			notFull.signalAll();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Sets number of elements which flow may return in a single turn.
+	 */
+	public void setQuantum(int quantum) {
+		this.quantum = Math.max(1, quantum);
+	}
+
+	/**
+	 * Returns number of elements which were not added to the queue as their flow reached its limit.
+	 */
+	public long getRejected() {
+		lock.lock();
+		try {
+			return rejected;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Returns number of queued elements (of all priorities) of up to <code>limit</code> flows with the largest number
+	 * of queued elements, in descending order.
+	 */
+	public Map<Object, Integer> getTopFlows(int limit) {
+		Map<Object, Integer> sizes = new HashMap<>();
+		lock.lock();
+		try {
+			for (Level<E> level : levels) {
+				for (Flow<E> flow : level.active) {
+					sizes.merge(flow.key, flow.queue.size(), Integer::sum);
+				}
+			}
+		} finally {
+			lock.unlock();
+		}
+		return top(sizes, limit);
+	}
+
+	@Override
+	public int[] size() {
+		int[] result = new int[levels.length];
+		lock.lock();
+		try {
+			for (int i = 0; i < result.length; i++) {
+				result[i] = levels[i].size;
+			}
+		} finally {
+			lock.unlock();
+		}
+		return result;
+	}
+
+	@Override
+	public E take() throws InterruptedException {
+		lock.lockInterruptibly();
+		try {
+			while (totalSize == 0) {
+				notEmpty.await();
+			}
+			for (Level<E> level : levels) {
+				if (level.size > 0) {
+					E e = level.poll(quantum);
+					totalSize--;
+					// waiting threads may wait for space in queues of different priorities
+					notFull.signalAll();
+					return e;
+				}
+			}
+			throw new IllegalStateException("Queue size is " + totalSize + " but all priorities are empty");
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public int totalSize() {
+		lock.lock();
+		try {
+			return totalSize;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Returns up to <code>limit</code> entries with the largest values, in descending order.
+	 */
+	public static Map<Object, Integer> top(Map<Object, Integer> sizes, int limit) {
+		List<Map.Entry<Object, Integer>> entries = new ArrayList<>(sizes.entrySet());
+		entries.sort(Map.Entry.<Object, Integer>comparingByValue().reversed());
+		Map<Object, Integer> result = new LinkedHashMap<>();
+		for (int i = 0; i < Math.min(limit, entries.size()); i++) {
+			result.put(entries.get(i).getKey(), entries.get(i).getValue());
+		}
+		return result;
+	}
+
+	private boolean add(E element, int priority, boolean blocking) throws InterruptedException {
+		if ((priority < 0) || (levels.length <= priority)) {
+			throw new IllegalArgumentException("parameter priority must be " + "between 0 and " + (levels.length - 1));
+		}
+
+		Object key = flowKey.apply(element);
+		lock.lock();
+		try {
+			Level<E> level = levels[priority];
+			Flow<E> flow = level.flows.get(key);
+			// blocking here would stop the caller, which delivers elements of other flows as well, so limit is
+			// checked only by non-blocking calls
+			if (!blocking && flow != null && flow.queue.size() >= maxFlowSize) {
+				rejected++;
+				return false;
+			}
+			while (level.size >= maxSize) {
+				if (!blocking) {
+					// like PriorityQueueRelaxed, try to put element in the queue of the next priority
+					return (priority < levels.length - 1) && add(element, priority + 1, false);
+				}
+				notFull.await();
+			}
+			level.add(key, element);
+			totalSize++;
+			notEmpty.signal();
+			return true;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	private static class Flow<E> {
+
+		private final Object key;
+		private final ArrayDeque<E> queue = new ArrayDeque<>();
+		private int deficit = 0;
+
+		private Flow(Object key) {
+			this.key = key;
+		}
+	}
+
+	private static class Level<E> {
+
+		private final ArrayDeque<Flow<E>> active = new ArrayDeque<>();
+		private final HashMap<Object, Flow<E>> flows = new HashMap<>();
+		private int size = 0;
+
+		private void add(Object key, E element) {
+			Flow<E> flow = flows.get(key);
+			if (flow == null) {
+				flow = new Flow<>(key);
+				flows.put(key, flow);
+				active.offerLast(flow);
+			}
+			flow.queue.offer(element);
+			size++;
+		}
+
+		private E poll(int quantum) {
+			Flow<E> flow = active.peekFirst();
+			if (flow.deficit <= 0) {
+				flow.deficit = quantum;
+			}
+			E e = flow.queue.poll();
+			flow.deficit--;
+			size--;
+			if (flow.queue.isEmpty()) {
+				active.pollFirst();
+				flows.remove(flow.key);
+			} else if (flow.deficit <= 0) {
+				active.pollFirst();
+				active.offerLast(flow);
+			}
+			return e;
+		}
+	}
+}
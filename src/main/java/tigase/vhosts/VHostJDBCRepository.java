@@ -142,7 +142,7 @@ public class VHostJDBCRepository
 		if (vhostDefaults == null) {
 			return;
 		}
-		super.reload();
+		loadItems();
 
 		VHostItem defaults = getItem(VHostItem.DEF_VHOST_KEY);
 		if (defaults == null) {
@@ -158,11 +158,7 @@ public class VHostJDBCRepository
 		super.addItemNoStore(item);
 		if (VHostItem.DEF_VHOST_KEY.equals(item.getKey())) {
 			this.defaults = defaults;
-			for (VHostItem it : allItems()) {
-				if (it instanceof VHostItemImpl.VHostItemWrapper && it != item) {
-					((VHostItemImpl.VHostItemWrapper) it).setDefaults(item);
-				}
-			}
+			defaultsChanged(item);
 		}
 	}
 
@@ -329,7 +325,7 @@ public class VHostJDBCRepository
 			this.pendingItemsToSetOld = items_arr;
 		} else {
 			super.setItemsOld(items_arr);
-			super.reload();
+			loadItems();
 		}
 	}
 
@@ -342,6 +338,24 @@ public class VHostJDBCRepository
 		setDefaultVHost(defaultVHost);
 	}
 
+	/**
+	 * Loads items from the database.
+	 */
+	protected void loadItems() {
+		super.reload();
+	}
+
+	/**
+	 * Called when item with defaults for all vhosts is replaced.
+	 */
+	protected void defaultsChanged(VHostItem defaults) {
+		for (VHostItem it : allItems()) {
+			if (it instanceof VHostItemImpl.VHostItemWrapper && it != defaults) {
+				((VHostItemImpl.VHostItemWrapper) it).setDefaults(defaults);
+			}
+		}
+	}
+
 	private void reloadIfReady() {
 		if (vhostDefaults != null && extensionManager != null) {
 			if (this.defaultVHost != null && defaults == null) {
@@ -0,0 +1,482 @@
+/*
+ * Tigase XMPP Server - The instant messaging server
+ * Copyright (C) 2004 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.vhosts;
+
+import tigase.db.TigaseDBException;
+import tigase.db.UserRepository;
+import tigase.db.comp.RepositoryChangeListenerIfc;
+import tigase.kernel.beans.config.ConfigField;
+import tigase.util.common.BloomFilter;
+import tigase.util.common.TinyLFUCache;
+import tigase.xml.DomBuilderHandler;
+import tigase.xml.Element;
+import tigase.xml.SimpleParser;
+import tigase.xml.SingletonFactory;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Implementation of virtual hosts repository for installations hosting a very large number of domains.
+ * <br>
+ * Each virtual host is stored in a separate entry of the UserRepository (instead of a single entry with all of them
+ * used by {@link VHostJDBCRepository}) and is loaded on first use into a bounded cache. Existence of a domain is
+ * checked against a Bloom filter of names of all virtual hosts first, so checks for domains which are not local do not
+ * hit the database. Every added, updated or removed virtual host is recorded in a list of changes with a timestamp of
+ * the change, so periodic reload reads only this list and refreshes changed virtual hosts instead of reading and
+ * comparing all of them. The filter is rebuilt from names of virtual hosts (without loading them) every
+ * <code>filter-rebuild-interval</code> seconds to forget removed domains.
+ * <br>
+ * Methods returning all items (ie. used by ad-hoc commands listing virtual hosts) still need to read all of them from
+ * the database. Virtual hosts stored by {@link VHostJDBCRepository} are copied to the new format on first startup.
+ */
+public class VHostLazyJDBCRepository
+		extends VHostJDBCRepository {
+
+	private static final String CHANGES_SUBNODE = "vhost-changes";
+	// changes are read with a margin to not miss changes made on other nodes with a slightly different clock
+	private static final long CHANGES_GRACE = 60 * 1000;
+	private static final double FILTER_FALSE_POSITIVE_RATE = 0.01;
+	private static final String IMPORTED_KEY = "vhost-items-imported";
+	private static final String ITEMS_SUBNODE = "vhost-items";
+	private static final int MIN_FILTER_SIZE = 1024;
+	private static final Logger log = Logger.getLogger(VHostLazyJDBCRepository.class.getName());
+
+	@ConfigField(desc = "Max number of cached virtual hosts", alias = "cache-size")
+	private int cacheSize = 10000;
+	@ConfigField(desc = "Time (in seconds) for which list of changes of virtual hosts is kept", alias = "changes-retention")
+	private long changesRetention = 24 * 60 * 60;
+	@ConfigField(desc = "Interval (in seconds) of rebuilding filter of names of virtual hosts", alias = "filter-rebuild-interval")
+	private long filterRebuildInterval = 60 * 60;
+
+	private volatile TinyLFUCache<String, Optional<VHostItem>> cache = new TinyLFUCache<>(cacheSize);
+	private final AtomicInteger domainsCount = new AtomicInteger();
+	private volatile BloomFilter filter = null;
+	private long filterBuiltAt = 0;
+	private final AtomicLong invalidations = new AtomicLong();
+	private long lastChangesCheck = 0;
+	private volatile BloomFilter nextFilter = null;
+	private volatile Set<String> pendingFilterDomains = null;
+	private final Set<String> processedChanges = new HashSet<>();
+
+	private static long changeTimestamp(String change) {
+		int idx = change.indexOf(':');
+		if (idx <= 0) {
+			return -1;
+		}
+		try {
+			return Long.parseLong(change.substring(0, idx));
+		} catch (NumberFormatException ex) {
+			return -1;
+		}
+	}
+
+	private static String normalize(String key) {
+		return key.toLowerCase();
+	}
+
+	public void setCacheSize(int cacheSize) {
+		this.cacheSize = cacheSize;
+		if (cache.limit() != cacheSize) {
+			invalidations.incrementAndGet();
+			cache = new TinyLFUCache<>(Math.max(1, cacheSize));
+		}
+	}
+
+	@Override
+	public VHostItem getItem(String key) {
+		if (key == null) {
+			return null;
+		}
+		VHostItem item = items.get(key);
+		if (item != null) {
+			return item;
+		}
+
+		String domain = normalize(key);
+		BloomFilter filter = this.filter;
+		if (filter != null && !filter.mightContain(domain)) {
+			return null;
+		}
+		Optional<VHostItem> cached = cache.get(domain);
+		if (cached != null) {
+			return cached.orElse(null);
+		}
+
+		UserRepository repo = getRepo();
+		if (repo == null) {
+			return null;
+		}
+		long invalidation = invalidations.get();
+		try {
+			item = loadItem(repo, domain);
+		} catch (TigaseDBException ex) {
+			log.log(Level.WARNING, "Problem with loading virtual host " + domain + " from the database", ex);
+			return null;
+		}
+		// do not cache value read before concurrent change of this item
+		if (invalidation == invalidations.get()) {
+			cache.put(domain, Optional.ofNullable(item));
+		}
+		return item;
+	}
+
+	@Override
+	public boolean contains(String key) {
+		return getItem(key) != null;
+	}
+
+	@Override
+	public int size() {
+		return filter == null ? items.size() : domainsCount.get();
+	}
+
+	@Override
+	public Collection<VHostItem> allItems() {
+		UserRepository repo = getRepo();
+		if (repo == null) {
+			return items.values();
+		}
+		List<VHostItem> result = new ArrayList<>(items.values());
+		try {
+			Map<String, String> data = repo.getDataMap(getRepoUser(), ITEMS_SUBNODE);
+			for (Map.Entry<String, String> e : data.entrySet()) {
+				if (e.getValue() == null || items.containsKey(e.getKey())) {
+					continue;
+				}
+				VHostItem item = createItem(e.getValue());
+				if (item != null) {
+					result.add(item);
+				}
+			}
+		} catch (TigaseDBException ex) {
+			log.log(Level.SEVERE, "Problem with loading virtual hosts from the database.", ex);
+		}
+		return result;
+	}
+
+	@Override
+	public Iterator<VHostItem> iterator() {
+		return allItems().iterator();
+	}
+
+	@Override
+	public void addItem(VHostItem item) {
+		UserRepository repo = getRepo();
+		if (repo != null) {
+			String domain = normalize(item.getKey());
+			try {
+				if (repo.getData(getRepoUser(), ITEMS_SUBNODE, domain) == null) {
+					domainsCount.incrementAndGet();
+				}
+				repo.setData(getRepoUser(), ITEMS_SUBNODE, domain, item.toElement().toString());
+				recordChange(repo, domain);
+			} catch (TigaseDBException ex) {
+				log.log(Level.SEVERE, "Error storing virtual host " + domain + " in the repository", ex);
+			}
+		}
+		// item is stored before it is added to the filter, so filter rebuilt concurrently will not miss it
+		addItemNoStore(item);
+	}
+
+	@Override
+	public void addItemNoStore(VHostItem item) {
+		if (VHostItem.DEF_VHOST_KEY.equals(item.getKey())) {
+			super.addItemNoStore(item);
+			return;
+		}
+		if (item instanceof VHostItemImpl.VHostItemWrapper) {
+			((VHostItemImpl.VHostItemWrapper) item).readOnly();
+		}
+		String domain = normalize(item.getKey());
+		invalidations.incrementAndGet();
+		Optional<VHostItem> old = cache.remove(domain);
+		cache.put(domain, Optional.of(item));
+		addToFilter(domain);
+
+		RepositoryChangeListenerIfc<VHostItem> listener = getRepoChangeListener();
+		if (listener != null) {
+			if (old == null || !old.isPresent()) {
+				listener.itemAdded(item);
+			} else {
+				listener.itemUpdated(item);
+			}
+		}
+	}
+
+	@Override
+	public void removeItem(String key) {
+		// make sure removed item is cached, so listener will be notified about removal
+		getItem(key);
+
+		UserRepository repo = getRepo();
+		if (repo != null) {
+			String domain = normalize(key);
+			try {
+				if (repo.getData(getRepoUser(), ITEMS_SUBNODE, domain) != null) {
+					repo.removeData(getRepoUser(), ITEMS_SUBNODE, domain);
+					domainsCount.decrementAndGet();
+					recordChange(repo, domain);
+				}
+			} catch (TigaseDBException ex) {
+				log.log(Level.SEVERE, "Error removing virtual host " + domain + " from the repository", ex);
+			}
+		}
+		removeItemNoStore(key);
+	}
+
+	@Override
+	public void removeItemNoStore(String key) {
+		if (VHostItem.DEF_VHOST_KEY.equals(key)) {
+			super.removeItemNoStore(key);
+			return;
+		}
+		String domain = normalize(key);
+		invalidations.incrementAndGet();
+		Optional<VHostItem> old = cache.remove(domain);
+		cache.put(domain, Optional.empty());
+
+		RepositoryChangeListenerIfc<VHostItem> listener = getRepoChangeListener();
+		if (listener != null && old != null && old.isPresent()) {
+			listener.itemRemoved(old.get());
+		}
+	}
+
+	@Override
+	public void store() {
+		// items are stored one by one when added or removed
+	}
+
+	@Override
+	protected synchronized void loadItems() {
+		UserRepository repo = getRepo();
+		if (repo == null) {
+			log.log(Level.SEVERE, "Repository is not initialised - skipping reload");
+			return;
+		}
+		try {
+			long now = System.currentTimeMillis();
+			if (filter != null) {
+				loadChanges(repo, now);
+			}
+			if (filter == null || now - filterBuiltAt >= filterRebuildInterval * 1000) {
+				loadNames(repo, now);
+			}
+		} catch (TigaseDBException ex) {
+			log.log(Level.SEVERE, "Problem with loading virtual hosts from the database.", ex);
+		}
+	}
+
+	@Override
+	protected void defaultsChanged(VHostItem defaults) {
+		// cached items will be loaded again with new defaults
+		invalidations.incrementAndGet();
+		cache.clear();
+	}
+
+	private void addToFilter(String domain) {
+		// fields are read in reverse order of their publication by loadNames(), so the domain gets to the rebuilt
+		// filter if it is not in the list of names read by the rebuild
+		Set<String> pending = pendingFilterDomains;
+		if (pending != null) {
+			pending.add(domain);
+		}
+		BloomFilter filter = nextFilter;
+		if (filter != null) {
+			filter.add(domain);
+		}
+		filter = this.filter;
+		if (filter != null) {
+			filter.add(domain);
+		}
+	}
+
+	private VHostItem createItem(String data) {
+		DomBuilderHandler domHandler = new DomBuilderHandler();
+		SimpleParser parser = SingletonFactory.getParserInstance();
+
+		parser.parse(domHandler, data.toCharArray(), 0, data.length());
+
+		Queue<Element> elems = domHandler.getParsedElements();
+		if (elems == null || elems.isEmpty()) {
+			return null;
+		}
+
+		VHostItem item = getItemInstance();
+		item.initFromElement(elems.poll());
+		if (item instanceof VHostItemImpl.VHostItemWrapper) {
+			VHostItem defaults = items.get(VHostItem.DEF_VHOST_KEY);
+			if (defaults != null && !VHostItem.DEF_VHOST_KEY.equals(item.getKey())) {
+				((VHostItemImpl.VHostItemWrapper) item).setDefaults(defaults);
+			}
+			((VHostItemImpl.VHostItemWrapper) item).readOnly();
+		}
+		return item;
+	}
+
+	private void importItems(UserRepository repo) throws TigaseDBException {
+		String itemsList = repo.getData(getRepoUser(), getItemsListPKey());
+		if (itemsList == null || itemsList.isEmpty()) {
+			return;
+		}
+
+		DomBuilderHandler domHandler = new DomBuilderHandler();
+		SimpleParser parser = SingletonFactory.getParserInstance();
+
+		parser.parse(domHandler, itemsList.toCharArray(), 0, itemsList.length());
+
+		int imported = 0;
+		Queue<Element> elems = domHandler.getParsedElements();
+		if (elems != null) {
+			for (Element elem : elems) {
+				VHostItem item = getItemInstance();
+				item.initFromElement(elem);
+				String domain = normalize(item.getKey());
+				// virtual host stored in the new format before the import is newer than the one from the old list
+				if (repo.getData(getRepoUser(), ITEMS_SUBNODE, domain) == null) {
+					repo.setData(getRepoUser(), ITEMS_SUBNODE, domain, item.toElement().toString());
+					imported++;
+				}
+			}
+		}
+		log.log(Level.INFO, "Imported {0} virtual hosts stored in the old format", imported);
+	}
+
+	private void loadChanges(UserRepository repo, long now) throws TigaseDBException {
+		String[] changes = repo.getKeys(getRepoUser(), CHANGES_SUBNODE);
+		long since = lastChangesCheck - CHANGES_GRACE;
+		long expired = now - changesRetention * 1000;
+
+		Set<String> changed = new HashSet<>();
+		if (changes != null) {
+			for (String change : changes) {
+				long timestamp = changeTimestamp(change);
+				if (timestamp < 0) {
+					continue;
+				}
+				if (timestamp < expired) {
+					repo.removeData(getRepoUser(), CHANGES_SUBNODE, change);
+				} else if (timestamp >= since && processedChanges.add(change)) {
+					changed.add(change.substring(change.indexOf(':') + 1));
+				}
+			}
+		}
+		processedChanges.removeIf(change -> changeTimestamp(change) < since);
+		lastChangesCheck = now;
+
+		if (!changed.isEmpty()) {
+			log.log(Level.FINE, "Refreshing changed virtual hosts: {0}", changed);
+		}
+		for (String domain : changed) {
+			refreshItem(repo, domain);
+		}
+	}
+
+	private VHostItem loadItem(UserRepository repo, String domain) throws TigaseDBException {
+		String data = repo.getData(getRepoUser(), ITEMS_SUBNODE, domain);
+		return data == null ? null : createItem(data);
+	}
+
+	private void loadNames(UserRepository repo, long now) throws TigaseDBException {
+		// virtual hosts may be stored in the new format before they are imported (ie. by setItemsOld()), so the
+		// import is marked explicitly
+		if (filter == null && repo.getData(getRepoUser(), IMPORTED_KEY) == null) {
+			importItems(repo);
+			repo.setData(getRepoUser(), IMPORTED_KEY, String.valueOf(now));
+		}
+
+		// domains added while names are read are not in the list of names, so they are kept until the new filter is
+		// published and then they are added to both filters
+		Set<String> pending = ConcurrentHashMap.newKeySet();
+		pendingFilterDomains = pending;
+		String[] keys = repo.getKeys(getRepoUser(), ITEMS_SUBNODE);
+		List<String> domains = keys == null ? Collections.emptyList() : Arrays.asList(keys);
+
+		BloomFilter filter = new BloomFilter(Math.max(MIN_FILTER_SIZE, domains.size() * 2), FILTER_FALSE_POSITIVE_RATE);
+		nextFilter = filter;
+		for (String domain : domains) {
+			filter.add(domain);
+		}
+		for (String domain : pending) {
+			filter.add(domain);
+		}
+		this.filter = filter;
+		nextFilter = null;
+		pendingFilterDomains = null;
+		filterBuiltAt = now;
+		domainsCount.set(domains.size());
+		if (lastChangesCheck == 0) {
+			lastChangesCheck = now;
+		}
+		log.log(Level.CONFIG, "Loaded names of {0} virtual hosts, filter size: {1} bytes",
+				new Object[]{domains.size(), filter.getSizeInBytes()});
+
+		if (!items.containsKey(VHostItem.DEF_VHOST_KEY)) {
+			VHostItem defaults = loadItem(repo, VHostItem.DEF_VHOST_KEY);
+			if (defaults != null) {
+				addItemNoStore(defaults);
+			}
+		}
+	}
+
+	private void recordChange(UserRepository repo, String domain) throws TigaseDBException {
+		repo.setData(getRepoUser(), CHANGES_SUBNODE, System.currentTimeMillis() + ":" + domain, domain);
+	}
+
+	private void refreshItem(UserRepository repo, String domain) throws TigaseDBException {
+		VHostItem item = loadItem(repo, domain);
+		if (VHostItem.DEF_VHOST_KEY.equals(domain)) {
+			VHostItem old = items.get(VHostItem.DEF_VHOST_KEY);
+			if (item != null && (old == null || !old.toElement().toString().equals(item.toElement().toString()))) {
+				addItemNoStore(item);
+			}
+			return;
+		}
+
+		invalidations.incrementAndGet();
+		Optional<VHostItem> old = cache.remove(domain);
+		if (item == null) {
+			cache.put(domain, Optional.empty());
+			RepositoryChangeListenerIfc<VHostItem> listener = getRepoChangeListener();
+			if (listener != null && old != null && old.isPresent()) {
+				listener.itemRemoved(old.get());
+			}
+			return;
+		}
+
+		addToFilter(domain);
+		if (old != null && old.isPresent() && old.get().toElement().toString().equals(item.toElement().toString())) {
+			// keep the same instance if item was not changed (ie. it is our own change)
+			cache.put(domain, old);
+			return;
+		}
+		cache.put(domain, Optional.of(item));
+		RepositoryChangeListenerIfc<VHostItem> listener = getRepoChangeListener();
+		if (listener != null) {
+			if (old == null || !old.isPresent()) {
+				listener.itemAdded(item);
+			} else {
+				listener.itemUpdated(item);
+			}
+		}
+	}
+}
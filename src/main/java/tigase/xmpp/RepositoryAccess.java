@@ -26,6 +26,7 @@ import tigase.xmpp.jid.BareJID;
 import tigase.xmpp.jid.JID;
 
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -62,6 +63,13 @@ public abstract class RepositoryAccess {
 	 * Handle to user repository - permanent data base for storing user data.
 	 */
 	private UserRepository repo = null;
+	/**
+	 * User data preloaded from repository, kept only for a short period of time after the login.
+	 */
+	private volatile Map<String, Map<String, String>> preloadedData = null;
+	private final Object preloadedDataLock = new Object();
+	private volatile long preloadedDataValidUntil = 0;
+	private long preloadedDataVersion = 0;
 
 	/**
 	 * Creates a new <code>RepositoryAccess</code> instance.
@@ -81,6 +89,7 @@ public abstract class RepositoryAccess {
 		if (!isAuthorized()) {
 			throw new NotAuthorizedException(NO_ACCESS_TO_REP_MSG);
 		}
+		dataModified(subnode);
 		try {
 			repo.addDataList(getBareJID(), subnode, key, list);
 		} catch (UserNotFoundException e) {
@@ -103,6 +112,55 @@ public abstract class RepositoryAccess {
 		addDataList(calcNode(PUBLIC_DATA_NODE, subnode), key, list);
 	}
 
+	/**
+	 * Method loads data stored in given subnodes of user repository for authorized user with a single call to the
+	 * repository. Preloaded data is used by {@link #getData(String, String, String)} and
+	 * {@link #getDataKeys(String)} for the given period of time (or until it is modified using this instance or
+	 * other session of the same user), which saves many round trips to the repository made by processors during
+	 * login. Data modified in the meantime by other means (ie. on other cluster node) may be returned for the given
+	 * period of time, so it should be short.
+	 *
+	 * @param subnodes a <code>Collection</code> of subnodes paths to load (<code>null</code> is a default node).
+	 * @param validity period of time (in milliseconds) for which preloaded data may be used.
+	 *
+	 * @throws NotAuthorizedException is thrown when session has not been authorized yet and there is no access to
+	 * permanent storage.
+	 */
+	public void preloadData(Collection<String> subnodes, long validity)
+			throws NotAuthorizedException, TigaseDBException {
+		if (is_anonymous || subnodes.isEmpty()) {
+			return;
+		}
+		if (!isAuthorized()) {
+			throw new NotAuthorizedException(NO_ACCESS_TO_REP_MSG);
+		}
+		long version;
+		synchronized (preloadedDataLock) {
+			version = preloadedDataVersion;
+		}
+		try {
+			Map<String, Map<String, String>> data = repo.getDataMaps(getBareJID(), subnodes);
+			if (data == null) {
+				return;
+			}
+			Map<String, Map<String, String>> preloaded = new ConcurrentHashMap<>();
+			for (Map.Entry<String, Map<String, String>> e : data.entrySet()) {
+				preloaded.put(preloadedDataKey(e.getKey()), Collections.unmodifiableMap(e.getValue()));
+			}
+			synchronized (preloadedDataLock) {
+				// data modified while it was loaded may be already outdated
+				if (version == preloadedDataVersion) {
+					preloadedDataValidUntil = System.currentTimeMillis() + validity;
+					preloadedData = preloaded;
+				}
+			}
+		} catch (UserNotFoundException e) {
+			log.log(Level.FINEST, "Problem accessing reposiotry: ", e);
+
+			throw new NotAuthorizedException(NO_ACCESS_TO_REP_MSG, e);
+		}    // end of try-catch
+	}
+
 	public void logout() throws NotAuthorizedException {
 		authState = Authorization.NOT_AUTHORIZED;
 	}
@@ -146,6 +204,7 @@ public abstract class RepositoryAccess {
 	}
 
 	public void removeData(String subnode, String key) throws NotAuthorizedException, TigaseDBException {
+		dataModified(subnode);
 		try {
 			repo.removeData(getBareJID(), subnode, key);
 		} catch (UserNotFoundException e) {
@@ -176,6 +235,7 @@ public abstract class RepositoryAccess {
 		if (!isAuthorized()) {
 			throw new NotAuthorizedException(NO_ACCESS_TO_REP_MSG);
 		}
+		dataModified(null);
 		try {
 			repo.removeSubnode(getBareJID(), subnode);
 		} catch (UserNotFoundException e) {
@@ -261,6 +321,11 @@ public abstract class RepositoryAccess {
 		if (!isAuthorized()) {
 			throw new NotAuthorizedException(NO_ACCESS_TO_REP_MSG);
 		}
+		Map<String, String> preloaded = getPreloadedData(subnode);
+		if (preloaded != null) {
+			String value = preloaded.get(key);
+			return value == null ? def : value;
+		}
 		try {
 			return repo.getData(getBareJID(), subnode, key, def);
 		} catch (UserNotFoundException e) {
@@ -330,6 +395,10 @@ public abstract class RepositoryAccess {
 		if (!isAuthorized()) {
 			throw new NotAuthorizedException(NO_ACCESS_TO_REP_MSG);
 		}
+		Map<String, String> preloaded = getPreloadedData(subnode);
+		if (preloaded != null) {
+			return preloaded.isEmpty() ? null : preloaded.keySet().toArray(new String[preloaded.size()]);
+		}
 		try {
 			return repo.getKeys(getBareJID(), subnode);
 		} catch (UserNotFoundException e) {
@@ -466,6 +535,7 @@ public abstract class RepositoryAccess {
 	 * @see UserRepository
 	 */
 	public void setData(String subnode, String key, String value) throws NotAuthorizedException, TigaseDBException {
+		dataModified(subnode);
 		try {
 			repo.setData(getBareJID(), subnode, key, value);
 		} catch (UserNotFoundException e) {
@@ -500,6 +570,7 @@ public abstract class RepositoryAccess {
 		if (!isAuthorized()) {
 			throw new NotAuthorizedException(NO_ACCESS_TO_REP_MSG);
 		}
+		dataModified(subnode);
 		try {
 			repo.setDataList(getBareJID(), subnode, key, list);
 		} catch (UserNotFoundException e) {
@@ -603,6 +674,48 @@ public abstract class RepositoryAccess {
 
 	protected abstract void login();
 
+	/**
+	 * Method called before user data is modified using this instance.
+	 *
+	 * @param subnode path of the modified node or <code>null</code> if any node may be modified
+	 */
+	protected void dataModified(String subnode) {
+		invalidatePreloadedData(subnode);
+	}
+
+	private Map<String, String> getPreloadedData(String subnode) {
+		Map<String, Map<String, String>> preloaded = preloadedData;
+		if (preloaded == null) {
+			return null;
+		}
+		if (System.currentTimeMillis() > preloadedDataValidUntil) {
+			preloadedData = null;
+			return null;
+		}
+		return preloaded.get(preloadedDataKey(subnode));
+	}
+
+	/**
+	 * Drops preloaded data of given subnode or all preloaded data if subnode is <code>null</code>.
+	 */
+	void invalidatePreloadedData(String subnode) {
+		synchronized (preloadedDataLock) {
+			preloadedDataVersion++;
+			Map<String, Map<String, String>> preloaded = preloadedData;
+			if (preloaded != null) {
+				if (subnode == null) {
+					preloadedData = null;
+				} else {
+					preloaded.remove(preloadedDataKey(subnode));
+				}
+			}
+		}
+	}
+
+	private String preloadedDataKey(String subnode) {
+		return subnode == null ? "" : subnode;
+	}
+
 	private String calcNode(String base, String subnode) {
 		if (subnode == null) {
 			return base;
@@ -0,0 +1,217 @@
+/*
+ * Tigase XMPP Server - The instant messaging server
+ * Copyright (C) 2004 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.xmpp;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+
+/**
+ * Compact storage of data of a user session used instead of a <code>ConcurrentHashMap</code>, which with its table
+ * and nodes costs a few hundred bytes for every connection even if only a few entries are stored.
+ * <br>
+ * Values of keys used by most sessions (ie. presence or roster) are kept in slots with a fixed position, which keys are
+ * registered with {@link #registerSlot(String)} by classes using them, so neither the key nor an entry object is
+ * stored for every session. Other entries are kept in a single array of keys and values. Both arrays are replaced on
+ * every change (changes are synchronized), so reads do not need to acquire any lock.
+ */
+public class SessionData {
+
+	private static final Object[] EMPTY = new Object[0];
+	private static volatile String[] slotKeys = new String[0];
+	private static volatile Map<String, Integer> slots = new HashMap<>();
+
+	// keys and values of entries without slots: [key0, value0, key1, value1, ...]
+	private volatile Object[] entries = EMPTY;
+	private volatile Object[] slotValues = EMPTY;
+
+	/**
+	 * Registers key which value should be kept in a slot.
+	 *
+	 * @return index of the slot
+	 */
+	public static synchronized int registerSlot(String key) {
+		Integer idx = slots.get(key);
+		if (idx != null) {
+			return idx;
+		}
+		Map<String, Integer> result = new HashMap<>(slots);
+		idx = result.size();
+		result.put(key, idx);
+		String[] keys = Arrays.copyOf(slotKeys, idx + 1);
+		keys[idx] = key;
+		slotKeys = keys;
+		slots = result;
+		return idx;
+	}
+
+	private static int indexOf(Object[] entries, String key) {
+		for (int i = 0; i < entries.length; i += 2) {
+			if (key.equals(entries[i])) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	private static int slot(String key) {
+		Integer idx = slots.get(key);
+		return idx == null ? -1 : idx;
+	}
+
+	public Object get(String key) {
+		int slot = slot(key);
+		if (slot >= 0) {
+			Object[] values = slotValues;
+			if (slot < values.length && values[slot] != null) {
+				return values[slot];
+			}
+		}
+		// value could have been stored before the slot was registered
+		Object[] entries = this.entries;
+		int idx = indexOf(entries, key);
+		return idx < 0 ? null : entries[idx + 1];
+	}
+
+	public synchronized Object put(String key, Object value) {
+		if (value == null) {
+			return remove(key);
+		}
+		int slot = slot(key);
+		if (slot >= 0) {
+			Object[] values = Arrays.copyOf(slotValues, Math.max(slotValues.length, slot + 1));
+			Object old = values[slot];
+			values[slot] = value;
+			// new value is published before the entry stored before the slot was registered is removed, so readers
+			// never see the key without a value
+			slotValues = values;
+			Object oldEntry = removeEntry(key);
+			return old != null ? old : oldEntry;
+		}
+
+		Object[] entries = this.entries;
+		int idx = indexOf(entries, key);
+		Object old = null;
+		Object[] result;
+		if (idx >= 0) {
+			old = entries[idx + 1];
+			result = entries.clone();
+			result[idx + 1] = value;
+		} else {
+			result = Arrays.copyOf(entries, entries.length + 2);
+			result[entries.length] = key;
+			result[entries.length + 1] = value;
+		}
+		this.entries = result;
+		return old;
+	}
+
+	public synchronized Object putIfAbsent(String key, Object value) {
+		Object old = get(key);
+		if (old == null) {
+			put(key, value);
+		}
+		return old;
+	}
+
+	public Object computeIfAbsent(String key, Function<String, Object> valueFactory) {
+		Object value = get(key);
+		if (value != null) {
+			return value;
+		}
+		synchronized (this) {
+			value = get(key);
+			if (value == null) {
+				value = valueFactory.apply(key);
+				if (value != null) {
+					put(key, value);
+				}
+			}
+			return value;
+		}
+	}
+
+	public synchronized Object remove(String key) {
+		Object old = null;
+		int slot = slot(key);
+		if (slot >= 0 && slot < slotValues.length && slotValues[slot] != null) {
+			Object[] values = slotValues.clone();
+			old = values[slot];
+			values[slot] = null;
+			slotValues = values;
+		}
+
+		Object oldEntry = removeEntry(key);
+		return oldEntry != null ? oldEntry : old;
+	}
+
+	private Object removeEntry(String key) {
+		Object[] entries = this.entries;
+		int idx = indexOf(entries, key);
+		if (idx < 0) {
+			return null;
+		}
+		Object old = entries[idx + 1];
+		Object[] result = new Object[entries.length - 2];
+		System.arraycopy(entries, 0, result, 0, idx);
+		System.arraycopy(entries, idx + 2, result, idx, entries.length - idx - 2);
+		this.entries = result.length == 0 ? EMPTY : result;
+		return old;
+	}
+
+	/**
+	 * Calls consumer for every stored entry.
+	 */
+	public void forEach(BiConsumer<String, Object> consumer) {
+		Object[] values = slotValues;
+		String[] keys = slotKeys;
+		for (int i = 0; i < values.length; i++) {
+			if (values[i] != null) {
+				consumer.accept(keys[i], values[i]);
+			}
+		}
+		Object[] entries = this.entries;
+		for (int i = 0; i < entries.length; i += 2) {
+			consumer.accept((String) entries[i], entries[i + 1]);
+		}
+	}
+
+	public int size() {
+		int size = entries.length / 2;
+		for (Object value : slotValues) {
+			if (value != null) {
+				size++;
+			}
+		}
+		return size;
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder("{");
+		forEach((key, value) -> {
+			if (sb.length() > 1) {
+				sb.append(", ");
+			}
+			sb.append(key).append('=').append(value);
+		});
+		return sb.append('}').toString();
+	}
+}
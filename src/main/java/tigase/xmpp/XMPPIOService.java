@@ -34,6 +34,7 @@ import java.util.Map;
 import java.util.Queue;
 import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.locks.ReentrantLock;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -98,6 +99,7 @@ public class XMPPIOService<RefObject>
 	 * The <code>waitingPackets</code> queue keeps data which have to be processed.
 	 */
 	private ConcurrentLinkedQueue<Packet> waitingPackets = new ConcurrentLinkedQueue<Packet>();
+	private final AtomicInteger waitingPacketsSize = new AtomicInteger();
 	private boolean white_char_ack = false;
 	private String xmlns = null;
 	private boolean xmpp_ack = false;
@@ -139,6 +141,7 @@ public class XMPPIOService<RefObject>
 		++packetsSent;
 		++totalPacketsSent;
 		waitingPackets.offer(packet);
+		waitingPacketsSize.incrementAndGet();
 	}
 
 	@Override
@@ -194,6 +197,7 @@ public class XMPPIOService<RefObject>
 	 */
 	public void clearWaitingPackets() {
 		this.waitingPackets.clear();
+		this.waitingPacketsSize.set(0);
 	}
 
 	/**
@@ -205,6 +209,14 @@ public class XMPPIOService<RefObject>
 		return waitingPackets;
 	}
 
+	/**
+	 * Returns number of packets waiting to send. Unlike <code>getWaitingPackets().size()</code> it does not need to
+	 * traverse the queue.
+	 */
+	public int getWaitingPacketsSize() {
+		return Math.max(0, waitingPacketsSize.get());
+	}
+
 	@Override
 	public void forceStop() {
 		boolean stop = false;
@@ -237,6 +249,7 @@ public class XMPPIOService<RefObject>
 
 			// and after sending it we should remove it to minimalize chances of lost packets
 			waitingPackets.poll();
+			waitingPacketsSize.decrementAndGet();
 
 			if (log.isLoggable(Level.FINEST)) {
 				log.log(Level.FINEST, "{0}, SENT: {1}", new Object[]{toString(), packet.getElement().toString()});
@@ -251,6 +264,54 @@ public class XMPPIOService<RefObject>
 		}
 	}
 
+	/**
+	 * Works as {@link #processWaitingPackets()} but joins waiting packets into batches of up to
+	 * <code>batchSize</code> characters, each of them written to the socket at once.
+	 *
+	 * @return number of written packets
+	 */
+	protected int processWaitingPackets(int batchSize) throws IOException {
+		StringBuilder batch = new StringBuilder(batchSize);
+		int written = 0;
+		int batched = 0;
+
+		// packets are removed from the queue only after the batch containing them is written
+		for (Packet packet : waitingPackets) {
+			if (log.isLoggable(Level.FINEST)) {
+				log.log(Level.FINEST, "{0}, Sending packet: {1}", new Object[]{toString(), packet});
+			}
+			batch.append(packet.getElement().toString());
+			++batched;
+			if (batch.length() >= batchSize) {
+				writeRawData(batch.toString());
+				written += removeWaitingPackets(batched);
+				batched = 0;
+				batch.setLength(0);
+			}
+		}
+		if (batched > 0) {
+			writeRawData(batch.toString());
+			written += removeWaitingPackets(batched);
+		}
+
+		// notify io processors that all waiting packets were sent
+		if (processors != null) {
+			for (XMPPIOProcessor processor : processors) {
+				processor.packetsSent(this);
+			}
+		}
+		return written;
+	}
+
+	private int removeWaitingPackets(int count) {
+		int removed = 0;
+		while (removed < count && waitingPackets.poll() != null) {
+			waitingPacketsSize.decrementAndGet();
+			++removed;
+		}
+		return removed;
+	}
+
 	@Override
 	public void stop() {
 
@@ -34,7 +34,7 @@ import tigase.xmpp.jid.JID;
 import java.util.List;
 import java.util.Map;
 import java.util.Queue;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.BiConsumer;
 import java.util.function.Function;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -69,6 +69,10 @@ public class XMPPResourceConnection
 
 	private static final Logger log = Logger.getLogger(XMPPResourceConnection.class.getName());
 
+	static {
+		SessionData.registerSlot(PRESENCE_KEY);
+	}
+
 	private long authenticationTime = 0;
 
 	/**
@@ -95,9 +99,9 @@ public class XMPPResourceConnection
 	private String resource = null;
 
 	/**
-	 * Session temporary data. All data stored in this <code>Map</code> disappear when session finishes.
+	 * Session temporary data. All data stored in this <code>SessionData</code> disappear when session finishes.
 	 */
-	private Map<String, Object> sessionData = null;
+	private final SessionData sessionData = new SessionData();
 
 	/**
 	 * <code>sessionId</code> keeps XMPP stream session ID given at connection initialization time.
@@ -116,7 +120,6 @@ public class XMPPResourceConnection
 		this.loginHandler = loginHandler;
 		this.creationTime = currTime;
 		this.lastAccessed = currTime;
-		sessionData = new ConcurrentHashMap<String, Object>(4, 0.9f);
 	}
 
 	public void authorizeJID(BareJID jid, boolean anonymous) throws TigaseStringprepException {
@@ -493,7 +496,14 @@ public class XMPPResourceConnection
 	}
 
 	public void setPriority(final int priority) {
-		this.priority = priority;
+		if (this.priority != priority) {
+			this.priority = priority;
+
+			XMPPSession parent = parentSession;
+			if (parent != null) {
+				parent.resourcePriorityChanged(this);
+			}
+		}
 	}
 
 	/**
@@ -546,6 +556,14 @@ public class XMPPResourceConnection
 		return sessionData.get(key);
 	}
 
+	/**
+	 * Calls passed consumer for every entry of temporary session data. It does not update last access time of the
+	 * session, so it may be used for monitoring purposes.
+	 */
+	public void forEachSessionData(BiConsumer<String, Object> consumer) {
+		sessionData.forEach(consumer);
+	}
+
 	/**
 	 * Gets the value of sessionId
 	 *
@@ -657,5 +675,19 @@ public class XMPPResourceConnection
 		authenticationTime = System.currentTimeMillis();
 	}
 
+	@Override
+	protected void dataModified(String subnode) {
+		super.dataModified(subnode);
+		// user data is shared by all sessions of the user, so data preloaded by other sessions is outdated as well
+		XMPPSession parentSession = this.parentSession;
+		if (parentSession != null) {
+			for (XMPPResourceConnection conn : parentSession.getActiveResources()) {
+				if (conn != this) {
+					conn.invalidatePreloadedData(subnode);
+				}
+			}
+		}
+	}
+
 }    // XMPPResourceConnection
 
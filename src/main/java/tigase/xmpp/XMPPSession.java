@@ -20,12 +20,8 @@ package tigase.xmpp;
 import tigase.util.stringprep.TigaseStringprepException;
 import tigase.xmpp.jid.JID;
 
-import java.util.ArrayDeque;
-import java.util.ArrayList;
-import java.util.List;
-import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.*;
+import java.util.function.BiConsumer;
 import java.util.function.Function;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -33,6 +29,10 @@ import java.util.logging.Logger;
 /**
  * XMPPSession class is a container class for all {@link XMPPResourceConnection} objects for particular user (i.e. all
  * user's connected resources)
+ * <br>
+ * Connected resources are kept in an immutable snapshot with connections indexed by resource name and ordered by
+ * priority, which is replaced on every change. Changes are serialized, while lookups (done for every packet sent to
+ * the user) only read the current snapshot and do not need to acquire any lock.
  */
 public class XMPPSession {
 
@@ -41,10 +41,10 @@ public class XMPPSession {
 	 */
 	private static final Logger log = Logger.getLogger(XMPPSession.class.getName());
 
-	private CopyOnWriteArrayList<XMPPResourceConnection> activeResources = null;
+	private volatile Resources activeResources = Resources.EMPTY;
 	private long creationTime = 0;
 	private long packets_counter = 0;
-	private Map<String, Object> sessionData = null;
+	private final SessionData sessionData = new SessionData();
 
 	/**
 	 * User name - localpart of user's JID
@@ -57,8 +57,6 @@ public class XMPPSession {
 	 * @param username - localpart of user's JID
 	 */
 	public XMPPSession(final String username) {
-		sessionData = new ConcurrentHashMap<String, Object>();
-		activeResources = new CopyOnWriteArrayList<XMPPResourceConnection>();
 		this.username = username;
 		this.creationTime = System.currentTimeMillis();
 	}
@@ -83,7 +81,7 @@ public class XMPPSession {
 		if (resource != null) {
 			ArrayDeque<XMPPResourceConnection> old_ress = new ArrayDeque<XMPPResourceConnection>();
 
-			for (XMPPResourceConnection act_conn : activeResources) {
+			for (XMPPResourceConnection act_conn : activeResources.connections) {
 				if (log.isLoggable(Level.FINEST)) {
 					log.finest("Resource checking for: " + username + " :: " + act_conn.getResource() +
 									   ", connectionID: " + act_conn);
@@ -116,20 +114,30 @@ public class XMPPSession {
 
 		// The connection could have been already added with null resource
 		// to avoid adding it twice let's check if it is already there
-		XMPPResourceConnection old_res;
+		boolean added = false;
 
-		try {
-			old_res = getResourceForConnectionId(conn.getConnectionId());
-		} catch (NoConnectionIdException ex) {
-			old_res = null;
+		synchronized (this) {
+			XMPPResourceConnection old_res;
+
+			try {
+				old_res = getResourceForConnectionId(conn.getConnectionId());
+			} catch (NoConnectionIdException ex) {
+				old_res = null;
+			}
+			if (old_res == null) {
+				activeResources = activeResources.with(conn);
+				added = true;
+			} else {
+				// resource of the connection could have been changed
+				activeResources = new Resources(activeResources.connections);
+			}
 		}
-		if (old_res == null) {
-			activeResources.add(conn);
+		if (added) {
 			conn.setParentSession(this);
 		}
 		if (log.isLoggable(Level.FINEST)) {
-			log.finest("Number of active resources of [" + username + "] = " + activeResources.size() + " : " +
-							   activeResources);
+			log.finest("Number of active resources of [" + username + "] = " + getActiveResourcesSize() + " : " +
+							   activeResources.list);
 		}
 	}
 
@@ -147,7 +155,15 @@ public class XMPPSession {
 	 *
 	 */
 	public void removeResourceConnection(XMPPResourceConnection conn) {
-		if (activeResources.remove(conn)) {
+		boolean removed;
+
+		synchronized (this) {
+			Resources resources = activeResources.without(conn);
+
+			removed = resources != activeResources;
+			activeResources = resources;
+		}
+		if (removed) {
 			conn.removeParentSession(null);
 		}
 	}
@@ -168,33 +184,33 @@ public class XMPPSession {
 		sb.append("XMPPSession=[");
 		sb.append("hash=" + System.identityHashCode(this));
 		sb.append(", username: ").append(username);
-		sb.append(", resources: ").append(activeResources.toString());
+		sb.append(", resources: ").append(activeResources.list.toString());
 		sb.append("];");
 
 		return sb.toString();
 	}
 
 	/**
-	 * Method returns a List of all {@link XMPPResourceConnection} objects related to this {@link XMPPSession} object
+	 * Method returns an unmodifiable List of all {@link XMPPResourceConnection} objects related to this {@link
+	 * XMPPSession} object at the time of the call
 	 */
 	public List<XMPPResourceConnection> getActiveResources() {
-		return (List<XMPPResourceConnection>) activeResources;
+		return activeResources.list;
 	}
 
 	/**
 	 * Method returns a cloned List of all {@link XMPPResourceConnection} objects related to this {@link XMPPSession}
 	 * object
 	 */
-	@SuppressWarnings({"unchecked"})
 	public List<XMPPResourceConnection> getActiveResourcesClone() {
-		return (List<XMPPResourceConnection>) activeResources.clone();
+		return new ArrayList<XMPPResourceConnection>(activeResources.list);
 	}
 
 	/**
 	 * Method returns number of all {@link XMPPResourceConnection} objects related to this {@link XMPPSession} object
 	 */
 	public int getActiveResourcesSize() {
-		return activeResources.size();
+		return activeResources.connections.length;
 	}
 
 	/**
@@ -209,14 +225,23 @@ public class XMPPSession {
 		return sessionData.get(key);
 	}
 
+	/**
+	 * Calls passed consumer for every entry of data common to all resource connections within this {@link
+	 * XMPPSession}
+	 */
+	public void forEachCommonSessionData(BiConsumer<String, Object> consumer) {
+		sessionData.forEach(consumer);
+	}
+
 	/**
 	 * Method returns an array of all ConnectionIDs related to this {@link XMPPSession}
 	 */
 	public JID[] getConnectionIds() {
-		JID[] result = new JID[activeResources.size()];
+		XMPPResourceConnection[] connections = activeResources.connections;
+		JID[] result = new JID[connections.length];
 		int idx = 0;
 
-		for (XMPPResourceConnection conn : activeResources) {
+		for (XMPPResourceConnection conn : connections) {
 			try {
 				result[idx] = conn.getConnectionId();
 				++idx;
@@ -233,10 +258,11 @@ public class XMPPSession {
 	 * Method returns an array of all FullJIDs related to this {@link XMPPSession}
 	 */
 	public JID[] getJIDs() {
-		JID[] result = new JID[activeResources.size()];
+		XMPPResourceConnection[] connections = activeResources.connections;
+		JID[] result = new JID[connections.length];
 		int idx = 0;
 
-		for (XMPPResourceConnection conn : activeResources) {
+		for (XMPPResourceConnection conn : connections) {
 			result[idx++] = conn.getjid();
 		}    // end of for (XMPPResourceConnection conn: activeResources)
 
@@ -264,91 +290,41 @@ public class XMPPSession {
 	 *
 	 * @param jid FullJID for which a {@code XMPPResourceConnection} should be returned
 	 */
-	public synchronized XMPPResourceConnection getResourceConnection(JID jid) {
+	public XMPPResourceConnection getResourceConnection(JID jid) {
 		if (log.isLoggable(Level.FINEST)) {
 			log.finest("Called for: " + jid);
 		}
-		if (activeResources.size() == 0) {
+
+		Resources resources = activeResources;
+
+		if (resources.connections.length == 0) {
 			if (log.isLoggable(Level.FINEST)) {
 				log.finest("No active resources found!");
 			}
 			return null;
-		}    // end of if (activeResources.size() == 0)
+		}    // end of if (resources.connections.length == 0)
 		if (jid.getResource() != null) {
-			return this.getResourceForResource(jid.getResource());
+			return resources.getForResource(jid.getResource());
 		}
-		if (activeResources.size() == 1) {
-			XMPPResourceConnection result = activeResources.get(0);
+		if (resources.connections.length == 1) {
+			XMPPResourceConnection result = resources.connections[0];
 
 			if (log.isLoggable(Level.FINEST)) {
 				log.finest("Only 1 active resource: " + result.getResource());
 			}
 
 			return result;
-		}    // end of if (activeResources.size() == 1)
-
-		XMPPResourceConnection conn = getResourceForJID(jid);
-
-		if (conn != null) {
-			if (log.isLoggable(Level.FINEST)) {
-				log.finest("Number of resources: " + activeResources.size() + ", got resource for jid: " + jid);
-			}
-
-			return conn;
-		}    // end of if (conn != null)
+		}    // end of if (resources.connections.length == 1)
 
 		// There is no single active resource for this jid, so let's return
 		// connection with the highest priority:
-		ArrayList<XMPPResourceConnection> al = new ArrayList<XMPPResourceConnection>();
-
-		int highest_priority = 0;
-		int priority;
-
-		for (XMPPResourceConnection conn_tmp : activeResources) {
-			if (!conn_tmp.isAuthorized()) {
-				if (log.isLoggable(Level.FINE)) {
-					log.finest("Connection either not yet authorized or already gone, ignoring while processing: " +
-									   conn_tmp);
-				}
-				continue;
-			}
+		XMPPResourceConnection result = resources.getWithHighestPriority();
 
-			// if connections priority matches current highest priority add it only, otherwise if
-			// it's greater clear current list and set new highest priority
-			priority = conn_tmp.getPriority();
-			if (priority == highest_priority) {
-				al.add(conn_tmp);
-			}
-			if (priority > highest_priority) {
-				al.clear();
-				al.add(conn_tmp);
-				highest_priority = priority;
-			}
-		}
-		if (al.size() == 0) {
-			if (log.isLoggable(Level.FINEST)) {
-				log.finest("No active resources found!");
-			}
-			return null;
-		}
-		if (al.size() == 1) {
-			// We found 1 connection with highest priority
-			return al.get(0);
-		}    // end of if (al.size() == 1)
-
-		// We have a few connections with the same highest priority
-		// Let's return the one which was the most recently used.
-		XMPPResourceConnection conn_last = al.get(0);
-		long time = conn_last.getLastAccessed();
-
-		for (int i = 1; i < al.size(); ++i) {
-			if (al.get(i).getLastAccessed() > time) {
-				conn_last = al.get(i);
-				time = conn_last.getLastAccessed();
-			}    // end of if (al.get(i).getLastAccessed() > time)
+		if (result == null && log.isLoggable(Level.FINEST)) {
+			log.finest("No active resources found!");
 		}
 
-		return conn_last;
+		return result;
 	}
 
 	/**
@@ -359,7 +335,7 @@ public class XMPPSession {
 	 */
 	public XMPPResourceConnection getResourceForConnectionId(JID connectionId) {
 		try {
-			for (XMPPResourceConnection conn : activeResources) {
+			for (XMPPResourceConnection conn : activeResources.connections) {
 				if (connectionId.equals(conn.getConnectionId())) {
 					return conn;
 				}    // end of if (resource.equals(conn.getResource()))
@@ -392,14 +368,7 @@ public class XMPPSession {
 	 */
 	public XMPPResourceConnection getResourceForResource(String resource) {
 		if ((resource != null) && (resource.length() > 0)) {
-			for (XMPPResourceConnection conn : activeResources) {
-				if (log.isLoggable(Level.FINEST)) {
-					log.finest("Resource checking: " + conn.getResource() + ", connectionID: " + conn);
-				}
-				if (resource.equalsIgnoreCase(conn.getResource())) {
-					return conn;
-				}    // end of if (resource.equals(conn.getResource()))
-			}      // end of for (XMPPResourceConnection conn: activeResources)
+			return activeResources.getForResource(resource);
 		}        // end of if (resource.length() > 0)
 
 		return null;
@@ -430,6 +399,22 @@ public class XMPPSession {
 		return sessionData.putIfAbsent(key, value);
 	}
 
+	/**
+	 * Method called by {@link XMPPResourceConnection} when its priority was changed to update order of connections.
+	 *
+	 * @param conn connection which priority was changed
+	 */
+	protected synchronized void resourcePriorityChanged(XMPPResourceConnection conn) {
+		Resources resources = activeResources;
+
+		for (XMPPResourceConnection act_conn : resources.connections) {
+			if (act_conn == conn) {
+				activeResources = new Resources(resources.connections);
+				return;
+			}
+		}
+	}
+
 	/**
 	 * Method used to remove data common for all connections of the user.
 	 *
@@ -438,4 +423,105 @@ public class XMPPSession {
 	protected Object removeCommonSessionData(String key) {
 		return sessionData.remove(key);
 	}
+
+	/**
+	 * Immutable snapshot of active resources of the session.
+	 */
+	private static final class Resources {
+
+		private static final Resources EMPTY = new Resources(new XMPPResourceConnection[0]);
+
+		private final XMPPResourceConnection[] byPriority;
+		private final Map<String, XMPPResourceConnection> byResource;
+		private final XMPPResourceConnection[] connections;
+		private final List<XMPPResourceConnection> list;
+		private final int[] priorities;
+
+		private Resources(XMPPResourceConnection[] connections) {
+			this.connections = connections;
+			this.list = Collections.unmodifiableList(Arrays.asList(connections));
+
+			Map<String, XMPPResourceConnection> byResource = new HashMap<>();
+			for (XMPPResourceConnection conn : connections) {
+				String resource = conn.getResource();
+				if (resource != null && !resource.isEmpty()) {
+					byResource.putIfAbsent(resource.toLowerCase(), conn);
+				}
+			}
+			this.byResource = byResource;
+
+			// sorting is stable, so connections with the same priority are kept in the order they were added
+			int[] priorities = new int[connections.length];
+			Integer[] order = new Integer[connections.length];
+			for (int i = 0; i < connections.length; i++) {
+				priorities[i] = connections[i].getPriority();
+				order[i] = i;
+			}
+			Arrays.sort(order, (i1, i2) -> Integer.compare(priorities[i2], priorities[i1]));
+			this.byPriority = new XMPPResourceConnection[connections.length];
+			this.priorities = new int[connections.length];
+			for (int i = 0; i < order.length; i++) {
+				this.byPriority[i] = connections[order[i]];
+				this.priorities[i] = priorities[order[i]];
+			}
+		}
+
+		private XMPPResourceConnection getForResource(String resource) {
+			XMPPResourceConnection conn = byResource.get(resource.toLowerCase());
+			if (conn != null && resource.equalsIgnoreCase(conn.getResource())) {
+				return conn;
+			}
+			return null;
+		}
+
+		/**
+		 * Returns authorized connection with the highest (not negative) priority. If there are still more than one
+		 * connections with the same priority then the latest active one is returned.
+		 */
+		private XMPPResourceConnection getWithHighestPriority() {
+			XMPPResourceConnection result = null;
+			int highest_priority = 0;
+			long time = 0;
+
+			for (int i = 0; i < byPriority.length; i++) {
+				if (priorities[i] < 0 || (result != null && priorities[i] < highest_priority)) {
+					break;
+				}
+
+				XMPPResourceConnection conn = byPriority[i];
+				if (!conn.isAuthorized()) {
+					if (log.isLoggable(Level.FINEST)) {
+						log.finest("Connection either not yet authorized or already gone, ignoring while processing: " +
+										   conn);
+					}
+					continue;
+				}
+				if (result == null || conn.getLastAccessed() > time) {
+					result = conn;
+					highest_priority = priorities[i];
+					time = conn.getLastAccessed();
+				}
+			}
+
+			return result;
+		}
+
+		private Resources with(XMPPResourceConnection conn) {
+			XMPPResourceConnection[] connections = Arrays.copyOf(this.connections, this.connections.length + 1);
+			connections[this.connections.length] = conn;
+			return new Resources(connections);
+		}
+
+		private Resources without(XMPPResourceConnection conn) {
+			for (int i = 0; i < connections.length; i++) {
+				if (connections[i].equals(conn)) {
+					XMPPResourceConnection[] result = new XMPPResourceConnection[connections.length - 1];
+					System.arraycopy(connections, 0, result, 0, i);
+					System.arraycopy(connections, i + 1, result, i, connections.length - i - 1);
+					return result.length == 0 ? EMPTY : new Resources(result);
+				}
+			}
+			return this;
+		}
+	}
 }    // XMPPSession
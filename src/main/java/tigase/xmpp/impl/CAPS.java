@@ -45,6 +45,10 @@ public class CAPS
 	private static final String[][] ELEMENTS = {{Presence.ELEM_NAME}, Iq.IQ_QUERY_PATH};
 	private static final String ID = "caps";
 	private static final Logger log = Logger.getLogger(CAPS.class.getCanonicalName());
+
+	static {
+		SessionData.registerSlot(ID);
+	}
 	private static final String XMLNS_DISCO = "http://jabber.org/protocol/disco#info";
 	private static final String[] XMLNSS = {"jabber:client", XMLNS_DISCO};
 	private static final RosterAbstract roster_impl = RosterFactory.getRosterImplementation(true);
@@ -24,6 +24,7 @@ import tigase.kernel.beans.RegistrarBean;
 import tigase.kernel.core.Kernel;
 import tigase.server.Packet;
 import tigase.server.xmppsession.SessionManager;
+import tigase.stats.StatisticsList;
 import tigase.xml.Element;
 import tigase.xmpp.*;
 import tigase.xmpp.impl.annotation.*;
@@ -88,6 +89,12 @@ public class ClientStateIndication
 		}
 	}
 
+	@Override
+	public void getStatistics(StatisticsList list) {
+		super.getStatistics(list);
+		logic.getStatistics(list);
+	}
+
 	@Override
 	public Element[] supStreamFeatures(XMPPResourceConnection session) {
 		if (session == null || !session.isAuthorized()) {
@@ -27,6 +27,7 @@ import tigase.xml.Element;
 import tigase.xml.SimpleParser;
 import tigase.xml.SingletonFactory;
 import tigase.xmpp.NotAuthorizedException;
+import tigase.xmpp.SessionData;
 import tigase.xmpp.XMPPProcessorIfc;
 import tigase.xmpp.XMPPResourceConnection;
 import tigase.xmpp.impl.annotation.AnnotatedXMPPProcessor;
@@ -56,6 +57,10 @@ public abstract class LastActivityAbstract
 	public final static String[] STATUS_PATH = new String[]{Presence.ELEM_NAME, "status"};
 	public final static String[] SHOW_PATH = new String[]{Presence.ELEM_NAME, "show"};
 
+	static {
+		SessionData.registerSlot(LAST_ACTIVITY_KEY);
+	}
+
 	private SimpleParser parser = SingletonFactory.getParserInstance();
 
 	protected static long getLastActivity(NonAuthUserRepository repo, BareJID requestedJid) throws UserNotFoundException {
@@ -19,15 +19,19 @@ package tigase.xmpp.impl;
 
 import tigase.db.NonAuthUserRepository;
 import tigase.kernel.beans.Bean;
+import tigase.kernel.beans.Initializable;
 import tigase.kernel.beans.Inject;
 import tigase.kernel.beans.RegistrarBean;
+import tigase.kernel.beans.UnregisterAware;
 import tigase.kernel.beans.config.ConfigField;
 import tigase.kernel.core.Kernel;
 import tigase.server.Message;
 import tigase.server.Packet;
 import tigase.server.Presence;
 import tigase.server.xmppsession.SessionManager;
+import tigase.stats.StatisticsList;
 import tigase.xml.Element;
+import tigase.xmpp.NotAuthorizedException;
 import tigase.xmpp.XMPPException;
 import tigase.xmpp.XMPPResourceConnection;
 import tigase.xmpp.XMPPStopListenerIfc;
@@ -35,9 +39,15 @@ import tigase.xmpp.impl.annotation.DiscoFeatures;
 import tigase.xmpp.impl.annotation.Handle;
 import tigase.xmpp.impl.annotation.Handles;
 import tigase.xmpp.impl.annotation.Id;
+import tigase.xmpp.jid.BareJID;
 
+import java.util.Iterator;
 import java.util.Map;
 import java.util.Queue;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -57,13 +67,21 @@ import static tigase.xmpp.impl.LastActivityMarker.ID;
 @Bean(name = LastActivityMarker.ID, parent = SessionManager.class, active = false)
 public class LastActivityMarker
 		extends LastActivityAbstract
-		implements XMPPStopListenerIfc, RegistrarBean {
+		implements XMPPStopListenerIfc, RegistrarBean, Initializable, UnregisterAware {
 
 	protected final static String ID = XMLNS + "-marker";
 	private static final Logger log = Logger.getLogger(LastActivityMarker.class.getName());
+	// last update of each user waiting to be persisted
+	private final Map<BareJID, PendingUpdate> pendingUpdates = new ConcurrentHashMap<>();
+	private final LongAdder persistedUpdates = new LongAdder();
+	private final LongAdder requestedUpdates = new LongAdder();
+	private final LongAdder flushedBatches = new LongAdder();
 	private Kernel kernel;
 	@ConfigField(desc = "To persist all updates to repository")
 	private boolean persistAllToRepository = true;
+	@ConfigField(desc = "Interval of persisting updates to repository in batches (0 - persist immediately)", alias = "persist-interval")
+	private long persistInterval = 10 * 1000;
+	private volatile Timer timer;
 	@Inject
 	private LastActivityRetriever[] retrievers;
 	@ConfigField(desc = "Whether to update last activity information on message packets", alias = "message")
@@ -71,11 +89,90 @@ public class LastActivityMarker
 	@ConfigField(desc = "Whether to update last activity information on presence packets", alias = "presence")
 	private boolean updateOnPresence = true;
 
-	private static void setLastActivity(XMPPResourceConnection session, Long last, Element presence, boolean repository) {
+	@Override
+	public void initialize() {
+		if (persistInterval > 0) {
+			timer = new Timer("last-activity-persister", true);
+			timer.schedule(new TimerTask() {
+				@Override
+				public void run() {
+					// exception thrown from here would cancel the timer and stop persisting of all updates
+					try {
+						flush();
+					} catch (Exception ex) {
+						log.log(Level.WARNING, "Could not persist pending updates of last activity", ex);
+					}
+				}
+			}, persistInterval, persistInterval);
+		}
+	}
+
+	@Override
+	public void beforeUnregister() {
+		if (timer != null) {
+			timer.cancel();
+			timer = null;
+		}
+		flush();
+	}
+
+	@Override
+	public void getStatistics(StatisticsList list) {
+		super.getStatistics(list);
+		long requested = requestedUpdates.sum();
+		long persisted = persistedUpdates.sum();
+		list.add(id(), "Last activity updates", requested, Level.FINE);
+		list.add(id(), "Last activity persisted updates", persisted, Level.FINE);
+		list.add(id(), "Last activity flushed batches", flushedBatches.sum(), Level.FINER);
+		list.add(id(), "Last activity pending updates", pendingUpdates.size(), Level.FINER);
+		list.add(id(), "Last activity coalescing ratio", persisted == 0 ? 0f : ((float) requested) / persisted,
+				 Level.FINE);
+	}
+
+	/**
+	 * Persists all pending updates of last activity to repository.
+	 */
+	public void flush() {
+		if (pendingUpdates.isEmpty()) {
+			return;
+		}
+		int count = 0;
+		for (Iterator<PendingUpdate> it = pendingUpdates.values().iterator(); it.hasNext(); ) {
+			PendingUpdate update = it.next();
+			it.remove();
+			try {
+				persist(update.session, update.presence);
+				count++;
+			} catch (RuntimeException ex) {
+				log.log(Level.WARNING, "Could not persist last activity of session " + update.session, ex);
+			}
+		}
+		flushedBatches.increment();
+		if (log.isLoggable(Level.FINEST)) {
+			log.log(Level.FINEST, "Persisted {0} pending updates of last activity", count);
+		}
+	}
+
+	private void persist(XMPPResourceConnection session, Element presence) {
+		persistedUpdates.increment();
+		persistLastActivity(session, presence);
+	}
+
+	private void setLastActivity(XMPPResourceConnection session, Long last, Element presence, boolean repository) {
 		session.putCommonSessionData(LastActivityAbstract.LAST_ACTIVITY_KEY, last);
 		session.putSessionData(LastActivityAbstract.LAST_ACTIVITY_KEY, last);
 		if (repository) {
-			persistLastActivity(session, presence);
+			requestedUpdates.increment();
+			if (timer == null) {
+				persist(session, presence);
+				return;
+			}
+			try {
+				// only the latest update of the user will be persisted
+				pendingUpdates.put(session.getBareJID(), new PendingUpdate(session, presence));
+			} catch (NotAuthorizedException ex) {
+				persist(session, presence);
+			}
 		}
 	}
 
@@ -120,7 +217,13 @@ public class LastActivityMarker
 		}
 		if (session != null && session.isAuthorized()) {
 			final Element presence = session.getPresence();
-			persistLastActivity(session, presence);
+			try {
+				// pending update (if any) is older than the one persisted now
+				pendingUpdates.remove(session.getBareJID());
+			} catch (NotAuthorizedException ex) {
+				// not possible as session is authorized
+			}
+			persist(session, presence);
 		}
 	}
 
@@ -133,4 +236,15 @@ public class LastActivityMarker
 	public void unregister(Kernel kernel) {
 
 	}
+
+	private static class PendingUpdate {
+
+		private final Element presence;
+		private final XMPPResourceConnection session;
+
+		private PendingUpdate(XMPPResourceConnection session, Element presence) {
+			this.session = session;
+			this.presence = presence;
+		}
+	}
 }
@@ -71,6 +71,10 @@ public class MessageCarbons
 		return new ConcurrentHashMap<JID, Boolean>();
 	};
 
+	static {
+		SessionData.registerSlot(ENABLED_KEY);
+	}
+
 	private final EventBus eventBus = EventBusFactory.getInstance();
 	private tigase.xmpp.impl.Message messageProcessor = new tigase.xmpp.impl.Message();
 
@@ -0,0 +1,74 @@
+/*
+ * Tigase XMPP Server - The instant messaging server
+ * Copyright (C) 2004 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.xmpp.impl;
+
+import tigase.kernel.beans.config.ConfigField;
+import tigase.server.Packet;
+import tigase.stats.StatisticsList;
+import tigase.xmpp.impl.annotation.AnnotatedXMPPProcessor;
+import tigase.xmpp.jid.JID;
+
+import java.util.ArrayDeque;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Base class of processors queuing packets for inactive mobile clients, which creates queues of packets. Queues are
+ * kept off-heap if <code>hibernate-queues</code> is enabled.
+ */
+public abstract class MobileAbstract
+		extends AnnotatedXMPPProcessor {
+
+	@ConfigField(desc = "Keep queued packets off-heap", alias = "hibernate-queues")
+	private boolean hibernateQueues = false;
+	@ConfigField(desc = "Maximal size of off-heap storage of queued packets", alias = "hibernate-queues-max-size")
+	private long hibernateQueuesMaxSize = 256 * 1024 * 1024;
+	private volatile PacketHibernationStore hibernationStore = null;
+
+	@Override
+	public void getStatistics(StatisticsList list) {
+		super.getStatistics(list);
+		PacketHibernationStore store = hibernationStore;
+		if (store != null) {
+			store.getStatistics(id(), list);
+		}
+	}
+
+	/**
+	 * Creates queue of packets in the order in which they were added.
+	 */
+	protected Queue<Packet> createPacketQueue() {
+		return hibernateQueues ? getHibernationStore().createQueue() : new ArrayDeque<Packet>();
+	}
+
+	/**
+	 * Creates queue of presences, which keeps only the last presence of each sender.
+	 */
+	protected Map<JID, Packet> createPresenceQueue() {
+		return hibernateQueues ? getHibernationStore().createMap() : new ConcurrentHashMap<JID, Packet>();
+	}
+
+	private synchronized PacketHibernationStore getHibernationStore() {
+		if (hibernationStore == null) {
+			hibernationStore = new PacketHibernationStore(PacketHibernationStore.DEF_SEGMENT_SIZE,
+														  hibernateQueuesMaxSize);
+		}
+		return hibernationStore;
+	}
+}
@@ -30,7 +30,6 @@ import tigase.xmpp.jid.JID;
 import java.util.Iterator;
 import java.util.Map;
 import java.util.Queue;
-import java.util.concurrent.ConcurrentHashMap;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -42,7 +41,7 @@ import java.util.logging.Logger;
  */
 @Bean(name = MobileV2.ID, parent = SessionManager.class, active = false)
 public class MobileV2
-		extends XMPPProcessor
+		extends MobileAbstract
 		implements XMPPProcessorIfc, XMPPPacketFilterIfc, ClientStateIndication.Logic {
 
 	protected static final String ID = "mobile_v2";
@@ -143,7 +142,7 @@ public class MobileV2
 
 			// session.putSessionData(QUEUE_KEY, new
 			// LinkedBlockingQueue<Packet>());
-			session.putSessionData(QUEUE_KEY, new ConcurrentHashMap<JID, Packet>());
+			session.putSessionData(QUEUE_KEY, createPresenceQueue());
 		}
 		session.putSessionData(XMLNS, true);
 	}
@@ -154,7 +153,7 @@ public class MobileV2
 
 			// session.putSessionData(QUEUE_KEY, new
 			// LinkedBlockingQueue<Packet>());
-			session.putSessionData(QUEUE_KEY, new ConcurrentHashMap<JID, Packet>());
+			session.putSessionData(QUEUE_KEY, createPresenceQueue());
 		}
 		session.putSessionData(XMLNS, false);
 
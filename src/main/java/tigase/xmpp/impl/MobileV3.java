@@ -30,7 +30,6 @@ import tigase.xmpp.jid.JID;
 
 import java.text.SimpleDateFormat;
 import java.util.*;
-import java.util.concurrent.ConcurrentHashMap;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -47,7 +46,7 @@ import static tigase.xmpp.impl.MobileV3.*;
 @StreamFeatures({@StreamFeature(elem = MOBILE_EL_NAME, xmlns = XMLNS)})
 @Bean(name = MobileV3.ID, parent = SessionManager.class, active = false)
 public class MobileV3
-		extends AnnotatedXMPPProcessor
+		extends MobileAbstract
 		implements XMPPProcessorIfc, XMPPPacketFilterIfc {
 
 	protected static final String ID = "mobile_v3";
@@ -116,10 +115,10 @@ public class MobileV3
 
 						// session.putSessionData(QUEUE_KEY, new
 						// LinkedBlockingQueue<Packet>());
-						session.putSessionData(PRESENCE_QUEUE_KEY, new ConcurrentHashMap<JID, Packet>());
+						session.putSessionData(PRESENCE_QUEUE_KEY, createPresenceQueue());
 					}
 					if (session.getSessionData(PACKET_QUEUE_KEY) == null) {
-						session.putSessionData(PACKET_QUEUE_KEY, new ArrayDeque<Packet>());
+						session.putSessionData(PACKET_QUEUE_KEY, createPacketQueue());
 					}
 					session.putSessionData(XMLNS, value);
 					results.offer(packet.okResult((Element) null, 0));
@@ -0,0 +1,336 @@
+/*
+ * Tigase XMPP Server - The instant messaging server
+ * Copyright (C) 2004 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.xmpp.impl;
+
+import tigase.server.Packet;
+import tigase.stats.StatisticsList;
+import tigase.util.common.OffHeapStore;
+import tigase.util.stringprep.TigaseStringprepException;
+import tigase.xml.DomBuilderHandler;
+import tigase.xml.Element;
+import tigase.xml.SimpleParser;
+import tigase.xml.SingletonFactory;
+import tigase.xmpp.jid.JID;
+
+import java.lang.ref.PhantomReference;
+import java.lang.ref.ReferenceQueue;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Keeps packets queued for inactive (mobile) connections serialized outside of the Java heap.
+ * <br>
+ * Clients which are inactive for a long time may have many presences and messages queued, each of them kept as a tree
+ * of XML elements. Collections created by this store keep only handles of serialized packets on the heap and parse
+ * them back when the queue is flushed (ie. when the client becomes active again). If there is no space left in the
+ * off-heap storage, packets are kept on heap as usual. Space used by collections dropped without clearing them (ie.
+ * because the session was closed) is released after they are garbage collected.
+ */
+public class PacketHibernationStore {
+
+	public static final int DEF_SEGMENT_SIZE = 1024 * 1024;
+
+	private static final Logger log = Logger.getLogger(PacketHibernationStore.class.getCanonicalName());
+
+	private final Set<OwnerReference> owners = ConcurrentHashMap.newKeySet();
+	private final SimpleParser parser = SingletonFactory.getParserInstance();
+	private final ReferenceQueue<Object> released = new ReferenceQueue<>();
+	private final OffHeapStore store;
+
+	public PacketHibernationStore(int segmentSize, long maxSize) {
+		store = new OffHeapStore(segmentSize, maxSize);
+	}
+
+	/**
+	 * Creates map of packets (ie. presences by sender) which values are kept off-heap.
+	 * <br>
+	 * Iteration over the map, its values or entries works on a snapshot of the map. To avoid parsing of replaced
+	 * packets, <code>put()</code> and <code>remove()</code> always return <code>null</code>.
+	 */
+	public Map<JID, Packet> createMap() {
+		HibernatedMap map = new HibernatedMap();
+		register(map, map.handles);
+		return map;
+	}
+
+	/**
+	 * Creates FIFO queue of packets which are kept off-heap.
+	 * <br>
+	 * Iteration over the queue works on a snapshot of the queue.
+	 */
+	public Queue<Packet> createQueue() {
+		HibernatedQueue queue = new HibernatedQueue();
+		register(queue, queue.handles);
+		return queue;
+	}
+
+	public void getStatistics(String name, StatisticsList list) {
+		expunge();
+		list.add(name, "Hibernated packets", store.getEntries(), Level.FINE);
+		list.add(name, "Hibernated packets size [B]", store.getUsedBytes(), Level.FINE);
+		list.add(name, "Hibernated packets off-heap allocated [B]", store.getAllocatedBytes(), Level.FINE);
+		list.add(name, "Hibernated packets rejected (no space)", store.getRejected(), Level.FINER);
+		list.add(name, "Hibernated packets compacted segments", store.getCompactions(), Level.FINER);
+	}
+
+	protected Object hibernate(Packet packet) {
+		expunge();
+		long handle = store.put(serialize(packet));
+		return handle == OffHeapStore.NO_HANDLE ? packet : (Object) handle;
+	}
+
+	protected Packet restore(Object value) {
+		if (value instanceof Packet) {
+			return (Packet) value;
+		}
+		try {
+			return deserialize(store.get((Long) value));
+		} catch (TigaseStringprepException ex) {
+			log.log(Level.WARNING, "could not restore hibernated packet", ex);
+			return null;
+		}
+	}
+
+	protected void release(Object value) {
+		if (value instanceof Long) {
+			store.remove((Long) value);
+		}
+	}
+
+	private byte[] serialize(Packet packet) {
+		StringBuilder sb = new StringBuilder(256);
+		if (packet.getPacketFrom() != null) {
+			sb.append(packet.getPacketFrom());
+		}
+		sb.append('\n');
+		if (packet.getPacketTo() != null) {
+			sb.append(packet.getPacketTo());
+		}
+		sb.append('\n').append(packet.getElement().toString());
+		return sb.toString().getBytes(StandardCharsets.UTF_8);
+	}
+
+	private Packet deserialize(byte[] data) throws TigaseStringprepException {
+		char[] chars = new String(data, StandardCharsets.UTF_8).toCharArray();
+		int fromEnd = indexOf(chars, 0);
+		int toEnd = indexOf(chars, fromEnd + 1);
+
+		DomBuilderHandler domHandler = new DomBuilderHandler();
+		parser.parse(domHandler, chars, toEnd + 1, chars.length - toEnd - 1);
+		Element elem = domHandler.getParsedElements().poll();
+		if (elem == null) {
+			return null;
+		}
+		Packet packet = Packet.packetInstance(elem);
+		if (fromEnd > 0) {
+			packet.setPacketFrom(JID.jidInstanceNS(new String(chars, 0, fromEnd)));
+		}
+		if (toEnd > fromEnd + 1) {
+			packet.setPacketTo(JID.jidInstanceNS(new String(chars, fromEnd + 1, toEnd - fromEnd - 1)));
+		}
+		return packet;
+	}
+
+	private static int indexOf(char[] chars, int from) {
+		for (int i = from; i < chars.length; i++) {
+			if (chars[i] == '\n') {
+				return i;
+			}
+		}
+		return chars.length;
+	}
+
+	private void register(Object owner, Handles handles) {
+		owners.add(new OwnerReference(owner, released, handles));
+	}
+
+	private void expunge() {
+		OwnerReference ref;
+		while ((ref = (OwnerReference) released.poll()) != null) {
+			owners.remove(ref);
+			ref.handles.releaseAll();
+		}
+	}
+
+	private static class OwnerReference
+			extends PhantomReference<Object> {
+
+		private final Handles handles;
+
+		private OwnerReference(Object owner, ReferenceQueue<Object> queue, Handles handles) {
+			super(owner, queue);
+			this.handles = handles;
+		}
+	}
+
+	/**
+	 * Values stored by a collection, which are released when the collection is cleared or garbage collected.
+	 */
+	private class Handles {
+
+		private final LinkedHashMap<Object, Object> values = new LinkedHashMap<>();
+
+		private synchronized void releaseAll() {
+			for (Object value : values.values()) {
+				release(value);
+			}
+			values.clear();
+		}
+	}
+
+	private class HibernatedMap
+			extends AbstractMap<JID, Packet> {
+
+		private final Handles handles = new Handles();
+
+		@Override
+		public Packet put(JID key, Packet value) {
+			Object hibernated = hibernate(value);
+			Object old;
+			synchronized (handles) {
+				old = handles.values.put(key, hibernated);
+			}
+			if (old != null) {
+				release(old);
+			}
+			return null;
+		}
+
+		@Override
+		public Packet get(Object key) {
+			synchronized (handles) {
+				Object value = handles.values.get(key);
+				return value == null ? null : restore(value);
+			}
+		}
+
+		@Override
+		public boolean containsKey(Object key) {
+			synchronized (handles) {
+				return handles.values.containsKey(key);
+			}
+		}
+
+		@Override
+		public Packet remove(Object key) {
+			Object old;
+			synchronized (handles) {
+				old = handles.values.remove(key);
+			}
+			if (old != null) {
+				release(old);
+			}
+			return null;
+		}
+
+		@Override
+		public int size() {
+			synchronized (handles) {
+				return handles.values.size();
+			}
+		}
+
+		@Override
+		public void clear() {
+			handles.releaseAll();
+		}
+
+		@Override
+		public Set<Entry<JID, Packet>> entrySet() {
+			Set<Entry<JID, Packet>> result = new LinkedHashSet<>();
+			synchronized (handles) {
+				for (Map.Entry<Object, Object> e : handles.values.entrySet()) {
+					Packet packet = restore(e.getValue());
+					if (packet != null) {
+						result.add(new AbstractMap.SimpleImmutableEntry<>((JID) e.getKey(), packet));
+					}
+				}
+			}
+			return result;
+		}
+	}
+
+	private class HibernatedQueue
+			extends AbstractQueue<Packet> {
+
+		private final Handles handles = new Handles();
+		private long nextKey = 0;
+
+		@Override
+		public boolean offer(Packet packet) {
+			Object hibernated = hibernate(packet);
+			synchronized (handles) {
+				handles.values.put(nextKey++, hibernated);
+			}
+			return true;
+		}
+
+		@Override
+		public Packet poll() {
+			Object value;
+			synchronized (handles) {
+				Iterator<Object> it = handles.values.values().iterator();
+				if (!it.hasNext()) {
+					return null;
+				}
+				value = it.next();
+				it.remove();
+			}
+			Packet result = restore(value);
+			release(value);
+			return result;
+		}
+
+		@Override
+		public Packet peek() {
+			synchronized (handles) {
+				Iterator<Object> it = handles.values.values().iterator();
+				return it.hasNext() ? restore(it.next()) : null;
+			}
+		}
+
+		@Override
+		public int size() {
+			synchronized (handles) {
+				return handles.values.size();
+			}
+		}
+
+		@Override
+		public void clear() {
+			handles.releaseAll();
+		}
+
+		@Override
+		public Iterator<Packet> iterator() {
+			List<Packet> result = new ArrayList<>();
+			synchronized (handles) {
+				for (Object value : handles.values.values()) {
+					Packet packet = restore(value);
+					if (packet != null) {
+						result.add(packet);
+					}
+				}
+			}
+			return Collections.unmodifiableList(result).iterator();
+		}
+	}
+}
@@ -77,6 +77,12 @@ public class PresenceState
 	public static final String PRESENCE_GLOBAL_FORWARD = "presence-global-forward";
 	protected static final String ID = "presence-state";
 	private static final Logger log = Logger.getLogger(PresenceState.class.getCanonicalName());
+
+	static {
+		SessionData.registerSlot(DIRECT_PRESENCE);
+		SessionData.registerSlot(OFFLINE_BUD_SENT);
+		SessionData.registerSlot(OFFLINE_RES_SENT);
+	}
 	private static final long MAX_DIRECT_PRESENCES_NO = 1000;
 	private static final String[] PRESENCE_C_PATH = {PRESENCE_ELEMENT_NAME, "c"};
 	private static final Set<StanzaType> TYPES = new HashSet<>(
@@ -19,6 +19,7 @@ package tigase.xmpp.impl;
 
 import tigase.auth.*;
 import tigase.auth.XmppSaslException.SaslError;
+import tigase.auth.credentials.VerifiedPasswordCache;
 import tigase.auth.mechanisms.AbstractSasl;
 import tigase.auth.mechanisms.SaslANONYMOUS;
 import tigase.db.AuthRepository;
@@ -26,11 +27,14 @@ import tigase.db.NonAuthUserRepository;
 import tigase.db.TigaseDBException;
 import tigase.kernel.beans.Bean;
 import tigase.kernel.beans.Inject;
+import tigase.kernel.beans.config.ConfigField;
 import tigase.server.Command;
 import tigase.server.Packet;
 import tigase.server.Priority;
 import tigase.server.xmppsession.SessionManager;
+import tigase.stats.StatisticsList;
 import tigase.util.Base64;
+import tigase.util.common.LatencyHistogram;
 import tigase.xml.Element;
 import tigase.xmpp.NotAuthorizedException;
 import tigase.xmpp.StanzaType;
@@ -46,12 +50,20 @@ import java.util.Collection;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.Queue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 /**
  * Describe class SaslAuth here.
  * <br>
+ * SASL requests are always processed by a dedicated thread pool with bounded queues, so verification of passwords
+ * during reconnection of many clients does not delay processing of other packets. If average time of waiting for
+ * processing exceeds <code>max-queue-wait</code>, new authentications are rejected with
+ * <code>temporary-auth-failure</code> while responses to challenges of already started authentications are still
+ * processed.
+ * <br>
  * Created: Mon Feb 20 16:28:13 2006
  *
  * @author <a href="mailto:artur.hefczyc@tigase.org">Artur Hefczyc</a>
@@ -64,10 +76,12 @@ public class SaslAuth
 	public static final String ID = "urn:ietf:params:xml:ns:xmpp-sasl";
 	private static final String _XMLNS = "urn:ietf:params:xml:ns:xmpp-sasl";
 	protected final static String ALLOWED_SASL_MECHANISMS_KEY = "allowed-sasl-mechanisms";
+	private static final int DEF_QUEUE_SIZE = 1000;
 	private static final Element[] DISCO_FEATURES = {new Element("feature", new String[]{"var"}, new String[]{_XMLNS})};
 	private static final String[][] ELEMENTS = {{"auth"}, {"response"}, {"challenge"}, {"failure"}, {"success"},
 												{"abort"}};
 	private static final Logger log = Logger.getLogger(SaslAuth.class.getName());
+	protected final static String QUEUED_AT_KEY = "SASL_QUEUED_AT_KEY";
 	private final static String SASL_SERVER_KEY = "SASL_SERVER_KEY";
 	private static final String[] XMLNSS = {_XMLNS, _XMLNS, _XMLNS, _XMLNS, _XMLNS, _XMLNS};
 
@@ -80,29 +94,103 @@ public class SaslAuth
 		success
 	}
 
+	private final LatencyHistogram evaluationTime = new LatencyHistogram();
+	private final LatencyHistogram processingTime = new LatencyHistogram();
 	private final Map<String, Object> props = new HashMap<String, Object>();
+	private final LatencyHistogram queueWaitTime = new LatencyHistogram();
+	private final LongAdder rejectedAuthentications = new LongAdder();
 	@Inject
 	private BruteForceLockerBean bruteForceLocker;
+	@ConfigField(desc = "Max average queue wait [ms] before rejecting new authentications", alias = "max-queue-wait")
+	private long maxQueueWait = 5000;
+	// average time of waiting for processing updated by many threads without synchronization, as an estimate is enough
+	private volatile long queueWait = 0;
+	private volatile long queueWaitUpdatedAt = 0;
 	@Inject
 	private TigaseSaslProvider saslProvider;
+	@ConfigField(desc = "Size of verified passwords cache", alias = "verified-passwords-cache-size")
+	private int verifiedPasswordsCacheSize = VerifiedPasswordCache.DEF_LIMIT;
+	@ConfigField(desc = "Time [ms] of caching verified passwords", alias = "verified-passwords-cache-ttl")
+	private long verifiedPasswordsCacheTtl = VerifiedPasswordCache.DEF_TTL;
 
 	@Override
 	public int concurrentQueuesNo() {
 		return super.concurrentQueuesNo() * 4;
 	}
 
+	/**
+	 * Returns size of the queue of a processing thread. Value is always set, so SASL requests are processed by a
+	 * dedicated thread pool, even if other processors share the default one.
+	 */
+	@Override
+	public Integer getQueueSize() {
+		Integer queueSize = super.getQueueSize();
+		return queueSize == null ? DEF_QUEUE_SIZE : queueSize;
+	}
+
+	@Override
+	public void getStatistics(StatisticsList list) {
+		super.getStatistics(list);
+		String name = getComponentInfo().getName();
+		list.add(name, "Rejected authentications (overload)", rejectedAuthentications.sum(), Level.INFO);
+		list.add(name, "Average queue wait [ms]", TimeUnit.NANOSECONDS.toMillis(queueWait), Level.FINE);
+		addHistogram(list, name, "Queue wait", queueWaitTime);
+		addHistogram(list, name, "Mechanism evaluation", evaluationTime);
+		addHistogram(list, name, "Processing", processingTime);
+		VerifiedPasswordCache cache = VerifiedPasswordCache.getInstance();
+		list.add(name, "Verified passwords cache size", cache.getSize(), Level.FINE);
+		list.add(name, "Verified passwords cache hits", cache.getHits(), Level.FINE);
+		list.add(name, "Verified passwords cache misses", cache.getMisses(), Level.FINE);
+	}
+
+	public void setVerifiedPasswordsCacheSize(int verifiedPasswordsCacheSize) {
+		this.verifiedPasswordsCacheSize = verifiedPasswordsCacheSize;
+		VerifiedPasswordCache.getInstance().setLimit(verifiedPasswordsCacheSize);
+	}
+
+	public void setVerifiedPasswordsCacheTtl(long verifiedPasswordsCacheTtl) {
+		this.verifiedPasswordsCacheTtl = verifiedPasswordsCacheTtl;
+		VerifiedPasswordCache.getInstance().setTtl(verifiedPasswordsCacheTtl);
+	}
+
 	@Override
 	public String id() {
 		return ID;
 	}
 
 	@Override
-	@SuppressWarnings("unchecked")
+	public boolean preProcess(Packet packet, XMPPResourceConnection session, NonAuthUserRepository repo,
+							  Queue<Packet> results, Map<String, Object> settings) {
+		boolean stop = super.preProcess(packet, session, repo, results, settings);
+		if (!stop && session != null && packet.getXMLNS() == _XMLNS && !session.isAuthorized()) {
+			session.putSessionData(QUEUED_AT_KEY, System.nanoTime());
+		}
+		return stop;
+	}
+
+	@Override
 	public void process(final Packet packet, final XMPPResourceConnection session, final NonAuthUserRepository repo,
 						final Queue<Packet> results, final Map<String, Object> settings) {
 		if (session == null) {
 			return;
 		}
+		long start = System.nanoTime();
+		Long queuedAt = (Long) session.getSessionData(QUEUED_AT_KEY);
+		if (queuedAt != null) {
+			session.removeSessionData(QUEUED_AT_KEY);
+			updateQueueWait(start - queuedAt, start);
+		}
+		try {
+			processRequest(packet, session, repo, results, settings);
+		} finally {
+			processingTime.record(System.nanoTime() - start);
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	protected void processRequest(final Packet packet, final XMPPResourceConnection session,
+								  final NonAuthUserRepository repo, final Queue<Packet> results,
+								  final Map<String, Object> settings) {
 		synchronized (session) {
 			// If authentication timeout expired, ignore the request....
 			if (session.getSessionData(XMPPResourceConnection.AUTHENTICATION_TIMEOUT_KEY) != null) {
@@ -143,6 +231,17 @@ public class SaslAuth
 					SaslServer ss;
 
 					if ("auth" == request.getName()) {
+						if (isOverloaded()) {
+							rejectedAuthentications.increment();
+							if (log.isLoggable(Level.FINER)) {
+								log.log(Level.FINER, "Rejecting authentication, average queue wait: {0}ms",
+										TimeUnit.NANOSECONDS.toMillis(queueWait));
+							}
+							sendNotAuthorized(SaslError.temporary_auth_failure, "Server is busy, try again later",
+											  packet, results);
+							return;
+						}
+
 						final String mechanismName = request.getAttributeStaticStr("mechanism");
 
 						if (log.isLoggable(Level.FINEST)) {
@@ -193,7 +292,13 @@ public class SaslAuth
 						data = new byte[]{};
 					}
 
-					byte[] challenge = ss.evaluateResponse(data);
+					byte[] challenge;
+					long evaluationStart = System.nanoTime();
+					try {
+						challenge = ss.evaluateResponse(data);
+					} finally {
+						evaluationTime.record(System.nanoTime() - evaluationStart);
+					}
 					String challengeData;
 
 					if (challenge != null) {
@@ -309,6 +414,15 @@ public class SaslAuth
 		session.removeSessionData(SASL_SERVER_KEY);
 	}
 
+	private static void addHistogram(StatisticsList list, String name, String prefix, LatencyHistogram histogram) {
+		list.add(name, prefix + " count", histogram.getCount(), Level.FINE);
+		list.add(name, prefix + " average [us]", TimeUnit.NANOSECONDS.toMicros(histogram.getAverage()), Level.FINE);
+		list.add(name, prefix + " 50th percentile [us]", TimeUnit.NANOSECONDS.toMicros(histogram.getPercentile(50)),
+				 Level.FINE);
+		list.add(name, prefix + " 99th percentile [us]", TimeUnit.NANOSECONDS.toMicros(histogram.getPercentile(99)),
+				 Level.FINE);
+	}
+
 	private Element createReply(final ElementType type, final String cdata) {
 		Element reply = new Element(type.toString());
 
@@ -350,6 +464,23 @@ public class SaslAuth
 		return jid;
 	}
 
+	private boolean isOverloaded() {
+		return maxQueueWait > 0 && queueWait > TimeUnit.MILLISECONDS.toNanos(maxQueueWait);
+	}
+
+	private void updateQueueWait(long wait, long now) {
+		queueWaitTime.record(wait);
+		long avg = queueWait;
+		// average calculated before the queue was idle for a longer time is outdated
+		if (now - queueWaitUpdatedAt > TimeUnit.MILLISECONDS.toNanos(maxQueueWait)) {
+			avg = wait;
+		} else {
+			avg += (wait - avg) >> 3;
+		}
+		queueWait = avg;
+		queueWaitUpdatedAt = now;
+	}
+
 	private void saveIntoBruteForceLocker(final XMPPResourceConnection session, final Exception e) {
 		try {
 			if (bruteForceLocker.isEnabled(session)) {
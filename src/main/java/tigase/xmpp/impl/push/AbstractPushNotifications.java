@@ -22,6 +22,7 @@ import tigase.kernel.beans.Inject;
 import tigase.kernel.beans.config.ConfigField;
 import tigase.server.*;
 import tigase.server.amp.db.MsgRepository;
+import tigase.stats.StatisticsList;
 import tigase.util.stringprep.TigaseStringprepException;
 import tigase.xml.DomBuilderHandler;
 import tigase.xml.Element;
@@ -70,6 +71,9 @@ public class AbstractPushNotifications
 	@Inject
 	private MsgRepositoryIfc msgRepository;
 
+	@Inject(nullAllowed = true)
+	private PushServicesCache pushServicesCache;
+
 	@Inject
 	private UserRepository userRepository;
 
@@ -156,8 +160,8 @@ public class AbstractPushNotifications
 					String userJid = affiliationEl.getAttributeStaticStr("jid");
 					if ("none".equals(affiliationEl.getAttributeStaticStr("affiliation"))) {
 						if (userJid != null) {
-							userRepository.removeData(BareJID.bareJIDInstanceNS(userJid), ID,
-													  packet.getStanzaFrom().toString() + "/" + node);
+							removePushService(BareJID.bareJIDInstanceNS(userJid),
+											  packet.getStanzaFrom().toString() + "/" + node);
 						}
 					}
 				}
@@ -192,6 +196,9 @@ public class AbstractPushNotifications
 		}
 
 		pushServices.put(key, settings);
+		if (pushServicesCache != null) {
+			pushServicesCache.put(session.getBareJID(), key, settings);
+		}
 	}
 
 	protected void disableNotifications(XMPPResourceConnection session, JID jid, String node)
@@ -207,6 +214,9 @@ public class AbstractPushNotifications
 				String key = jid.toString() + "/" + node;
 				pushServices.remove(key);
 				session.removeData(ID, key);
+				if (pushServicesCache != null) {
+					pushServicesCache.remove(session.getBareJID(), key);
+				}
 			} else {
 				String prefix = jid.toString() + "/";
 				List<String> removed = new ArrayList<>();
@@ -220,6 +230,9 @@ public class AbstractPushNotifications
 				for (String key : removed) {
 					session.removeData(ID, key);
 				}
+				if (pushServicesCache != null && !removed.isEmpty()) {
+					pushServicesCache.remove(session.getBareJID(), removed);
+				}
 			}
 		}
 	}
@@ -293,9 +306,31 @@ public class AbstractPushNotifications
 	}
 
 	protected Map<String, Element> getPushServices(BareJID userJid) throws TigaseDBException {
+		if (pushServicesCache != null) {
+			return pushServicesCache.get(userJid, this::loadPushServices);
+		}
+		return loadPushServices(userJid);
+	}
+
+	protected Map<String, Element> loadPushServices(BareJID userJid) throws TigaseDBException {
 		return userRepository.getDataMap(userJid, ID, this::parseElement);
 	}
 
+	protected void removePushService(BareJID userJid, String key) throws TigaseDBException {
+		userRepository.removeData(userJid, ID, key);
+		if (pushServicesCache != null) {
+			pushServicesCache.remove(userJid, key);
+		}
+	}
+
+	@Override
+	public void getStatistics(StatisticsList list) {
+		super.getStatistics(list);
+		if (pushServicesCache != null) {
+			pushServicesCache.getStatistics(id(), list);
+		}
+	}
+
 	protected void sendPushNotification(XMPPResourceConnection session, Packet packet)
 			throws TigaseDBException {
 		final BareJID userJid = packet.getStanzaTo().getBareJID();
@@ -354,7 +389,7 @@ public class AbstractPushNotifications
 						return;
 					}
 					try {
-						userRepository.removeData(userJid, ID, pushService + "/" + pushNode);
+						removePushService(userJid, pushService + "/" + pushNode);
 					} catch (TigaseDBException ex) {
 						log.log(Level.FINEST,
 								"could not disable push for " + userJid + " on " + pushService + "/" + pushNode, ex);
@@ -0,0 +1,216 @@
+/*
+ * Tigase XMPP Server - The instant messaging server
+ * Copyright (C) 2004 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.xmpp.impl.push;
+
+import tigase.db.TigaseDBException;
+import tigase.eventbus.EventBus;
+import tigase.eventbus.HandleEvent;
+import tigase.kernel.beans.Bean;
+import tigase.kernel.beans.Initializable;
+import tigase.kernel.beans.Inject;
+import tigase.kernel.beans.UnregisterAware;
+import tigase.kernel.beans.config.ConfigField;
+import tigase.stats.StatisticsList;
+import tigase.util.cache.LRUConcurrentCache;
+import tigase.xml.Element;
+import tigase.xmpp.jid.BareJID;
+
+import java.io.Serializable;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Bounded cache of parsed push services registrations of users, used to avoid loading and parsing settings from
+ * the user repository for every message sent to an offline user.
+ * <br>
+ * Users without any registration are cached as well (as an empty map). Entries are updated locally on enable and
+ * disable, while other cluster nodes are notified with <code>PushServicesChangedEvent</code> and drop their entries.
+ * <br>
+ * Every change or invalidation of an entry increments generation of the entry (generations are shared by users
+ * with the same hash) and registrations loaded from the repository are cached only if the generation did not change
+ * while they were loaded, as they may be already outdated.
+ */
+@Bean(name = PushServicesCache.ID, parent = PushNotifications.class, active = true)
+public class PushServicesCache
+		implements Initializable, UnregisterAware {
+
+	public static final String ID = "push-services-cache";
+
+	private static final Logger log = Logger.getLogger(PushServicesCache.class.getCanonicalName());
+
+	private static final int GENERATION_STRIPES = 64;
+
+	private final AtomicLongArray generations = new AtomicLongArray(GENERATION_STRIPES);
+	private final AtomicLong hits = new AtomicLong();
+	private final Object[] locks = new Object[GENERATION_STRIPES];
+	private final AtomicLong misses = new AtomicLong();
+	@ConfigField(desc = "Cache size", alias = "size")
+	private int cacheSize = 10000;
+	private LRUConcurrentCache<BareJID, Map<String, Element>> cache = new LRUConcurrentCache<>(cacheSize);
+	@Inject
+	private EventBus eventBus;
+
+	public PushServicesCache() {
+		for (int i = 0; i < locks.length; i++) {
+			locks[i] = new Object();
+		}
+	}
+
+	@Override
+	public void initialize() {
+		eventBus.registerAll(this);
+	}
+
+	@Override
+	public void beforeUnregister() {
+		eventBus.unregisterAll(this);
+	}
+
+	public void setCacheSize(int cacheSize) {
+		this.cacheSize = cacheSize;
+		if (cache.limit() != cacheSize) {
+			cache = new LRUConcurrentCache<>(cacheSize);
+		}
+	}
+
+	/**
+	 * Returns unmodifiable map of push services registered by the user, loading it with passed loader if there is
+	 * no entry in the cache.
+	 */
+	public Map<String, Element> get(BareJID userJid, Loader loader) throws TigaseDBException {
+		Map<String, Element> services = cache.get(userJid);
+		if (services != null) {
+			hits.incrementAndGet();
+			return services;
+		}
+
+		misses.incrementAndGet();
+		int stripe = stripe(userJid);
+		long generation = generations.get(stripe);
+		Map<String, Element> loaded = loader.load(userJid);
+		services = (loaded == null || loaded.isEmpty())
+				   ? Collections.emptyMap()
+				   : Collections.unmodifiableMap(new HashMap<>(loaded));
+		synchronized (locks[stripe]) {
+			if (generation == generations.get(stripe)) {
+				cache.put(userJid, services);
+			}
+		}
+		return services;
+	}
+
+	public void put(BareJID userJid, String key, Element settings) {
+		int stripe = stripe(userJid);
+		synchronized (locks[stripe]) {
+			generations.incrementAndGet(stripe);
+			Map<String, Element> services = cache.get(userJid);
+			if (services != null) {
+				Map<String, Element> updated = new HashMap<>(services);
+				updated.put(key, settings);
+				cache.put(userJid, Collections.unmodifiableMap(updated));
+			}
+		}
+		fireChanged(userJid);
+	}
+
+	public void remove(BareJID userJid, Collection<String> keys) {
+		int stripe = stripe(userJid);
+		synchronized (locks[stripe]) {
+			generations.incrementAndGet(stripe);
+			Map<String, Element> services = cache.get(userJid);
+			if (services != null) {
+				Map<String, Element> updated = new HashMap<>(services);
+				updated.keySet().removeAll(keys);
+				cache.put(userJid, updated.isEmpty() ? Collections.emptyMap() : Collections.unmodifiableMap(updated));
+			}
+		}
+		fireChanged(userJid);
+	}
+
+	public void remove(BareJID userJid, String key) {
+		remove(userJid, Collections.singleton(key));
+	}
+
+	public void invalidate(BareJID userJid) {
+		int stripe = stripe(userJid);
+		synchronized (locks[stripe]) {
+			generations.incrementAndGet(stripe);
+			cache.remove(userJid);
+		}
+	}
+
+	public void getStatistics(String compName, StatisticsList list) {
+		long hitsCount = hits.get();
+		long missesCount = misses.get();
+		long total = hitsCount + missesCount;
+		list.add(compName, "Push services cache size", cache.size(), Level.FINE);
+		list.add(compName, "Push services cache hits", hitsCount, Level.FINE);
+		list.add(compName, "Push services cache misses", missesCount, Level.FINE);
+		list.add(compName, "Push services cache hit ratio", total == 0 ? 0f : ((float) hitsCount) / total, Level.FINE);
+	}
+
+	@HandleEvent(filter = HandleEvent.Type.remote)
+	protected void onPushServicesChanged(PushServicesChangedEvent event) {
+		if (log.isLoggable(Level.FINEST)) {
+			log.log(Level.FINEST, "Push services changed on other node for JID: {0}, invalidating cache entry",
+					event.getUserJid());
+		}
+		invalidate(event.getUserJid());
+	}
+
+	private void fireChanged(BareJID userJid) {
+		eventBus.fire(new PushServicesChangedEvent(userJid));
+	}
+
+	private static int stripe(BareJID userJid) {
+		return (userJid.hashCode() & 0x7fffffff) % GENERATION_STRIPES;
+	}
+
+	public interface Loader {
+
+		Map<String, Element> load(BareJID userJid) throws TigaseDBException;
+
+	}
+
+	/**
+	 * Event fired when push services registrations of the user were changed on this cluster node.
+	 */
+	public static class PushServicesChangedEvent
+			implements Serializable {
+
+		private BareJID userJid;
+
+		public PushServicesChangedEvent() {
+		}
+
+		public PushServicesChangedEvent(BareJID userJid) {
+			this.userJid = userJid;
+		}
+
+		public BareJID getUserJid() {
+			return userJid;
+		}
+
+	}
+}
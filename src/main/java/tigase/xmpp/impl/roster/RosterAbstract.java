@@ -424,6 +424,8 @@ public abstract class RosterAbstract {
 
 	// ~--- static initializers --------------------------------------------------
 	static {
+		SessionData.registerSlot(ROSTER);
+		SessionData.registerSlot(ROSTERHASH);
 		subsToStateMap.put(SubscriptionType.none, StateTransition.none);
 		subsToStateMap.put(SubscriptionType.none_pre_approved, StateTransition.none_pre_approved);
 		subsToStateMap.put(SubscriptionType.none_pending_out, StateTransition.none_pending_out);
@@ -0,0 +1,96 @@
+/*
+ * Tigase XMPP Server - The instant messaging server
+ * Copyright (C) 2004 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase;
+
+import tigase.eventbus.EventBus;
+
+import java.lang.reflect.Array;
+import java.lang.reflect.Field;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Proxy;
+import java.util.function.Consumer;
+
+/**
+ * Helpers for preparing objects under test without the kernel: setting fields which would be injected or configured
+ * and creating stubs of interfaces used by them.
+ */
+public class TestHelper {
+
+	/**
+	 * Sets value of the field declared in the class of the object or in one of its superclasses.
+	 */
+	public static void setField(Object object, String name, Object value) throws Exception {
+		findField(object, name).set(object, value);
+	}
+
+	/**
+	 * Returns value of the field declared in the class of the object or in one of its superclasses.
+	 */
+	public static Object getField(Object object, String name) throws Exception {
+		return findField(object, name).get(object);
+	}
+
+	/**
+	 * Creates implementation of the interface which passes all calls to the handler. If the handler returns
+	 * <code>null</code> from a method returning a primitive, default value of this primitive is returned.
+	 * Exceptions thrown by methods invoked by the handler using reflection are rethrown unwrapped.
+	 */
+	@SuppressWarnings("unchecked")
+	public static <T> T stub(Class<T> iface, InvocationHandler handler) {
+		return (T) Proxy.newProxyInstance(iface.getClassLoader(), new Class[]{iface}, (proxy, method, args) -> {
+			Object result;
+			try {
+				result = handler.invoke(proxy, method, args);
+			} catch (InvocationTargetException ex) {
+				throw ex.getCause();
+			}
+			Class<?> type = method.getReturnType();
+			if (result == null && type.isPrimitive() && type != void.class) {
+				// default value of the primitive type
+				return Array.get(Array.newInstance(type, 1), 0);
+			}
+			return result;
+		});
+	}
+
+	/**
+	 * Creates event bus which ignores all registrations and passes fired events to the consumer.
+	 */
+	public static EventBus eventBus(Consumer<Object> fired) {
+		return stub(EventBus.class, (proxy, method, args) -> {
+			if (method.getName().equals("fire")) {
+				fired.accept(args[0]);
+			}
+			return null;
+		});
+	}
+
+	private static Field findField(Object object, String name) throws NoSuchFieldException {
+		for (Class<?> cls = object.getClass(); cls != null; cls = cls.getSuperclass()) {
+			try {
+				Field f = cls.getDeclaredField(name);
+				f.setAccessible(true);
+				return f;
+			} catch (NoSuchFieldException ex) {
+				// field is declared in a superclass
+			}
+		}
+		throw new NoSuchFieldException(name);
+	}
+}
@@ -0,0 +1,85 @@
+/*
+ * Tigase XMPP Server - The instant messaging server
+ * Copyright (C) 2004 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.auth.credentials;
+
+import org.junit.After;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class VerifiedPasswordCacheTest {
+
+	private static final byte[] SALT = {1, 2, 3, 4};
+	private static final byte[] SALTED_PASSWORD = {5, 6, 7, 8};
+
+	private final VerifiedPasswordCache cache = VerifiedPasswordCache.getInstance();
+
+	@After
+	public void tearDown() {
+		cache.setTtl(VerifiedPasswordCache.DEF_TTL);
+		cache.setLimit(VerifiedPasswordCache.DEF_LIMIT);
+		cache.clear();
+	}
+
+	@Test
+	public void testVerified() {
+		assertFalse(cache.isVerified("SHA1", SALT, 4096, SALTED_PASSWORD, "password"));
+		cache.verified("SHA1", SALT, 4096, SALTED_PASSWORD, "password");
+		assertTrue(cache.isVerified("SHA1", SALT, 4096, SALTED_PASSWORD, "password"));
+
+		assertFalse(cache.isVerified("SHA1", SALT, 4096, SALTED_PASSWORD, "password1"));
+		assertFalse(cache.isVerified("SHA-256", SALT, 4096, SALTED_PASSWORD, "password"));
+		assertFalse(cache.isVerified("SHA1", SALT, 8192, SALTED_PASSWORD, "password"));
+		assertFalse(cache.isVerified("SHA1", new byte[]{1, 2, 3, 5}, 4096, SALTED_PASSWORD, "password"));
+	}
+
+	@Test
+	public void testCredentialChanged() {
+		cache.verified("SHA1", SALT, 4096, SALTED_PASSWORD, "password");
+		// the same password with a new salt is a new credential
+		assertFalse(cache.isVerified("SHA1", SALT, 4096, new byte[]{5, 6, 7, 9}, "password"));
+	}
+
+	@Test
+	public void testDisabled() {
+		cache.setTtl(0);
+		cache.verified("SHA1", SALT, 4096, SALTED_PASSWORD, "password");
+		assertFalse(cache.isVerified("SHA1", SALT, 4096, SALTED_PASSWORD, "password"));
+		assertEquals(0, cache.getSize());
+	}
+
+	@Test
+	public void testExpired() throws InterruptedException {
+		cache.setTtl(1);
+		cache.verified("SHA1", SALT, 4096, SALTED_PASSWORD, "password");
+		Thread.sleep(10);
+		assertFalse(cache.isVerified("SHA1", SALT, 4096, SALTED_PASSWORD, "password"));
+		assertEquals(0, cache.getSize());
+	}
+
+	@Test
+	public void testHitsAndMisses() {
+		long hits = cache.getHits();
+		long misses = cache.getMisses();
+		cache.isVerified("SHA1", SALT, 4096, SALTED_PASSWORD, "password");
+		cache.verified("SHA1", SALT, 4096, SALTED_PASSWORD, "password");
+		cache.isVerified("SHA1", SALT, 4096, SALTED_PASSWORD, "password");
+		assertEquals(hits + 1, cache.getHits());
+		assertEquals(misses + 1, cache.getMisses());
+	}
+}
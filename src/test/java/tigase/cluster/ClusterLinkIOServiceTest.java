@@ -0,0 +1,66 @@
+/*
+ * Tigase XMPP Server - The instant messaging server
+ * Copyright (C) 2004 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.cluster;
+
+import org.junit.Test;
+import tigase.stats.StatisticsList;
+
+import java.util.logging.Level;
+
+import static org.junit.Assert.assertEquals;
+
+public class ClusterLinkIOServiceTest {
+
+	private long bytesReceived = 0;
+	private long bytesSent = 0;
+
+	@Test
+	public void testStatisticsDoNotResetRates() {
+		ClusterLinkIOService<Object> service = new ClusterLinkIOService<Object>(1024) {
+			@Override
+			public long getTotalBytesReceived() {
+				return bytesReceived;
+			}
+
+			@Override
+			public long getTotalBytesSent() {
+				return bytesSent;
+			}
+		};
+		service.sampleLinkStatistics(1000);
+
+		bytesReceived = 4000;
+		bytesSent = 2000;
+		service.sampleLinkStatistics(3000);
+
+		// every reader gets the same rates, calculated by the last sample
+		for (int i = 0; i < 3; i++) {
+			StatisticsList list = new StatisticsList(Level.ALL);
+			service.getLinkStatistics("cl-comp", list);
+			assertEquals(2000, list.getValue("cl-comp", "Link " + service.getUniqueId() + " received [B/s]", -1L));
+			assertEquals(1000, list.getValue("cl-comp", "Link " + service.getUniqueId() + " sent [B/s]", -1L));
+		}
+
+		bytesReceived = 5000;
+		service.sampleLinkStatistics(4000);
+		StatisticsList list = new StatisticsList(Level.ALL);
+		service.getLinkStatistics("cl-comp", list);
+		assertEquals(1000, list.getValue("cl-comp", "Link " + service.getUniqueId() + " received [B/s]", -1L));
+		assertEquals(0, list.getValue("cl-comp", "Link " + service.getUniqueId() + " sent [B/s]", -1L));
+	}
+}
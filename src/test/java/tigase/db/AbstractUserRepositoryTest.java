@@ -25,7 +25,9 @@ import tigase.db.jdbc.JDBCRepositoryTest;
 import tigase.xmpp.jid.BareJID;
 
 import java.time.LocalDateTime;
+import java.util.Arrays;
 import java.util.Date;
+import java.util.Map;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
@@ -69,6 +71,36 @@ public abstract class AbstractUserRepositoryTest<DS extends DataSource> extends
 		repo.removeUser(user);
 	}
 
+	@Test
+	public void testGetDataMaps() throws TigaseDBException {
+		BareJID user = BareJID.bareJIDInstanceNS("user-maps", "domain");
+		repo.addUser(user);
+		try {
+			repo.setData(user, "rootKey", "rootValue");
+			repo.setData(user, "privacy", "default-list", "list1");
+			repo.setData(user, "privacy/list1", "items", "item1");
+			repo.setData(user, "jabber:iq:private", "key1", "value1");
+			repo.setData(user, "jabber:iq:private", "key2", "value2");
+
+			Map<String, Map<String, String>> data = repo.getDataMaps(user,
+																	   Arrays.asList(null, "privacy", "jabber:iq:private",
+																					 "missing"));
+			Assert.assertEquals("rootValue", data.get(null).get("rootKey"));
+			Assert.assertEquals(1, data.get("privacy").size());
+			Assert.assertEquals("list1", data.get("privacy").get("default-list"));
+			Assert.assertEquals(2, data.get("jabber:iq:private").size());
+			Assert.assertEquals("value2", data.get("jabber:iq:private").get("key2"));
+			Assert.assertTrue(data.get("missing").isEmpty());
+
+			Map<String, Map<String, String>> tree = repo.getDataTree(user, "privacy");
+			Assert.assertEquals(2, tree.size());
+			Assert.assertEquals("list1", tree.get("privacy").get("default-list"));
+			Assert.assertEquals("item1", tree.get("privacy/list1").get("items"));
+		} finally {
+			repo.removeUser(user);
+		}
+	}
+
 	@Test
 	public void testGetData() throws InterruptedException {
 
@@ -0,0 +1,143 @@
+/*
+ * Tigase XMPP Server - The instant messaging server
+ * Copyright (C) 2004 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.db.beans;
+
+import org.junit.Assert;
+import org.junit.Test;
+import tigase.db.DataSource;
+import tigase.db.DataSourceAware;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static tigase.TestHelper.getField;
+import static tigase.TestHelper.setField;
+import static tigase.TestHelper.stub;
+
+public class MDRepositoryBeanTest {
+
+	private static final String DOMAIN = "example.com";
+
+	@Test
+	public void testRepositoryPublishedAfterInitialization() throws Exception {
+		TestMDRepositoryBean repositoryBean = new TestMDRepositoryBean();
+		TestConfigBean configBean = createConfigBean(repositoryBean);
+		DataSource dataSource = (DataSource) getField(configBean, "dataSource");
+
+		TestRepository repository = new TestRepository();
+		configBean.setDataSourceAware(repository);
+		Assert.assertTrue(repository.started.await(5, TimeUnit.SECONDS));
+		Assert.assertNull("repository should not be available before it is initialized",
+						  repositoryBean.getRepository(DOMAIN));
+
+		repository.initialized.countDown();
+		getPendingInitializations(repositoryBean).awaitAll(repositoryBean.getName());
+		Assert.assertSame(repository, repositoryBean.getRepository(DOMAIN));
+		Assert.assertSame(dataSource, repository.dataSource);
+
+		// after initialization of repository bean, new instance is published by the caller
+		TestRepository newRepository = new TestRepository();
+		newRepository.initialized.countDown();
+		configBean.setDataSourceAware(newRepository);
+		Assert.assertSame(newRepository, repositoryBean.getRepository(DOMAIN));
+		Assert.assertEquals(1, repositoryBean.getRepositories().size());
+
+		configBean.setDataSourceAware(null);
+		Assert.assertNull(repositoryBean.getRepository(DOMAIN));
+	}
+
+	@Test
+	public void testRepositoryNotPublishedIfInitializationFailed() throws Exception {
+		TestMDRepositoryBean repositoryBean = new TestMDRepositoryBean();
+		TestConfigBean configBean = createConfigBean(repositoryBean);
+
+		TestRepository repository = new TestRepository();
+		repository.fail = true;
+		repository.initialized.countDown();
+		configBean.setDataSourceAware(repository);
+		try {
+			getPendingInitializations(repositoryBean).awaitAll(repositoryBean.getName());
+			Assert.fail("failure of initialization should be reported");
+		} catch (RuntimeException ex) {
+			// expected
+		}
+		Assert.assertNull(repositoryBean.getRepository(DOMAIN));
+	}
+
+	private static TestConfigBean createConfigBean(TestMDRepositoryBean repositoryBean) throws Exception {
+		setField(repositoryBean, "name", "test-repository");
+		DataSource dataSource = stub(DataSource.class, (proxy, method, args) -> {
+			if ("checkSchemaVersion".equals(method.getName())) {
+				return true;
+			}
+			return null;
+		});
+		TestConfigBean configBean = new TestConfigBean();
+		setField(configBean, "mdRepositoryBean", repositoryBean);
+		setField(configBean, "dataSource", dataSource);
+		setField(configBean, "name", DOMAIN);
+		return configBean;
+	}
+
+	private static PendingInitializations getPendingInitializations(MDRepositoryBean repositoryBean)
+			throws Exception {
+		return (PendingInitializations) getField(repositoryBean, "pendingInitializations");
+	}
+
+	public static class TestRepository
+			implements DataSourceAware<DataSource> {
+
+		private final CountDownLatch initialized = new CountDownLatch(1);
+		private final CountDownLatch started = new CountDownLatch(1);
+		private volatile DataSource dataSource;
+		private volatile boolean fail = false;
+
+		@Override
+		public void setDataSource(DataSource dataSource) {
+			started.countDown();
+			try {
+				initialized.await();
+			} catch (InterruptedException ex) {
+				throw new RuntimeException(ex);
+			}
+			if (fail) {
+				throw new RuntimeException("Could not connect to " + dataSource);
+			}
+			this.dataSource = dataSource;
+		}
+	}
+
+	public static class TestMDRepositoryBean
+			extends MDRepositoryBean<TestRepository> {
+
+		@Override
+		public Class<?> getDefaultBeanClass() {
+			return TestConfigBean.class;
+		}
+
+		@Override
+		protected Class<? extends TestRepository> findClassForDataSource(DataSource dataSource) {
+			return TestRepository.class;
+		}
+	}
+
+	public static class TestConfigBean
+			extends MDRepositoryBean.MDRepositoryConfigBean<TestRepository> {
+
+	}
+}
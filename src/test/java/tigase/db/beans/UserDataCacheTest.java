@@ -0,0 +1,113 @@
+/*
+ * Tigase XMPP Server - The instant messaging server
+ * Copyright (C) 2004 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.db.beans;
+
+import org.junit.Before;
+import org.junit.Test;
+import tigase.xmpp.jid.BareJID;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static tigase.TestHelper.eventBus;
+import static tigase.TestHelper.setField;
+
+public class UserDataCacheTest {
+
+	private static final BareJID JULIET = BareJID.bareJIDInstanceNS("juliet@example.com");
+	private static final BareJID ROMEO = BareJID.bareJIDInstanceNS("romeo@example.com");
+
+	private UserDataCache cache;
+	private AtomicInteger events;
+	private AtomicInteger loads;
+
+	@Before
+	public void setUp() throws Exception {
+		cache = new UserDataCache();
+		events = new AtomicInteger();
+		loads = new AtomicInteger();
+		setField(cache, "eventBus", eventBus(event -> events.incrementAndGet()));
+	}
+
+	@Test
+	public void testModificationOfOtherKeyDuringLoad() throws Exception {
+		assertEquals("1", cache.get(JULIET, "roster", "items", () -> {
+			cache.invalidate(JULIET, "roster", "version");
+			cache.invalidate(ROMEO);
+			return load();
+		}));
+		assertEquals("1", cache.get(JULIET, "roster", "items", this::load));
+		assertEquals(1, loads.get());
+		assertEquals(2, events.get());
+	}
+
+	@Test
+	public void testModificationOfKeyDuringLoad() throws Exception {
+		assertEquals("1", cache.get(JULIET, "roster", "items", () -> {
+			cache.invalidate(JULIET, "roster", "items");
+			return load();
+		}));
+		assertEquals("2", cache.get(JULIET, "roster", "items", this::load));
+		assertEquals("2", cache.get(JULIET, "roster", "items", this::load));
+	}
+
+	@Test
+	public void testModificationOfSubnodeDuringLoad() throws Exception {
+		assertEquals("1", cache.get(JULIET, "roster/group", "items", () -> {
+			cache.invalidate(JULIET, "roster");
+			return load();
+		}));
+		assertEquals("2", cache.get(JULIET, "roster/group", "items", this::load));
+
+		assertEquals("3", cache.get(JULIET, "privacy", "list", () -> {
+			cache.invalidate(JULIET);
+			return load();
+		}));
+		assertEquals("4", cache.get(JULIET, "privacy", "list", this::load));
+		assertEquals("4", cache.get(JULIET, "privacy", "list", this::load));
+	}
+
+	@Test
+	public void testDisabled() throws Exception {
+		cache.setEnabled(false);
+		cache.invalidate(JULIET, "roster", "items");
+		cache.invalidate(JULIET, "roster");
+		cache.invalidate(JULIET);
+		cache.onUserDataChanged(new UserDataCache.UserDataChangedEvent(JULIET, null, null));
+
+		assertEquals(0, events.get());
+
+		assertEquals("1", cache.get(JULIET, "roster", "items", this::load));
+		assertEquals("2", cache.get(JULIET, "roster", "items", this::load));
+	}
+
+	@Test
+	public void testExpiration() throws Exception {
+		setField(cache, "ttl", 50L);
+
+		assertEquals("1", cache.get(JULIET, "roster", "items", this::load));
+		assertEquals("1", cache.get(JULIET, "roster", "items", this::load));
+		Thread.sleep(100);
+		assertEquals("2", cache.get(JULIET, "roster", "items", this::load));
+		assertEquals("2", cache.get(JULIET, "roster", "items", this::load));
+	}
+
+	private String load() {
+		return String.valueOf(loads.incrementAndGet());
+	}
+}
@@ -0,0 +1,141 @@
+/*
+ * Tigase XMPP Server - The instant messaging server
+ * Copyright (C) 2004 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.db.jdbc;
+
+import org.junit.Before;
+import org.junit.Test;
+import tigase.auth.credentials.Credentials;
+import tigase.db.AuthRepository;
+import tigase.db.DataRepository;
+import tigase.xmpp.jid.BareJID;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+import static tigase.TestHelper.setField;
+import static tigase.TestHelper.stub;
+
+/**
+ * Tests of caching of credentials read by {@link TigaseCustomAuth}, which use statements returning a single row of
+ * credentials instead of a database.
+ */
+public class TigaseCustomAuthTest {
+
+	private static final BareJID USER = BareJID.bareJIDInstanceNS("user@example.com");
+
+	private final AtomicInteger queries = new AtomicInteger();
+	private TigaseCustomAuth auth;
+
+	@Before
+	public void setUp() throws Exception {
+		auth = new TigaseCustomAuth();
+		auth.setDataSource(createDataRepository());
+	}
+
+	@Test
+	public void testCredentialsCached() throws Exception {
+		Credentials credentials = auth.getCredentials(USER, Credentials.DEFAULT_USERNAME);
+		assertNotNull(credentials);
+		assertSame(credentials, auth.getCredentials(USER, Credentials.DEFAULT_USERNAME));
+		assertEquals(1, queries.get());
+
+		auth.getCredentials(USER, "other");
+		assertEquals(2, queries.get());
+	}
+
+	@Test
+	public void testInvalidatedOnCredentialChange() throws Exception {
+		auth.getCredentials(USER, Credentials.DEFAULT_USERNAME);
+		auth.getCredentials(USER, "other");
+		auth.removeCredential(USER, "other");
+
+		auth.getCredentials(USER, Credentials.DEFAULT_USERNAME);
+		assertEquals(2, queries.get());
+		auth.getCredentials(USER, "other");
+		assertEquals(3, queries.get());
+	}
+
+	@Test
+	public void testInvalidatedOnAccountStatusChange() throws Exception {
+		auth.getCredentials(USER, Credentials.DEFAULT_USERNAME);
+		auth.getCredentials(USER, "other");
+		auth.setAccountStatus(USER, AuthRepository.AccountStatus.disabled);
+
+		auth.getCredentials(USER, Credentials.DEFAULT_USERNAME);
+		auth.getCredentials(USER, "other");
+		assertEquals(4, queries.get());
+	}
+
+	@Test
+	public void testInvalidatedOnUserRemoval() throws Exception {
+		auth.getCredentials(USER, Credentials.DEFAULT_USERNAME);
+		auth.removeUser(USER);
+
+		auth.getCredentials(USER, Credentials.DEFAULT_USERNAME);
+		assertEquals(2, queries.get());
+	}
+
+	@Test
+	public void testCacheDisabled() throws Exception {
+		setField(auth, "credentialsCacheTtl", 0L);
+
+		auth.getCredentials(USER, Credentials.DEFAULT_USERNAME);
+		auth.getCredentials(USER, Credentials.DEFAULT_USERNAME);
+		assertEquals(2, queries.get());
+	}
+
+	private DataRepository createDataRepository() {
+		PreparedStatement statement = stub(PreparedStatement.class, (proxy, method, args) -> {
+			switch (method.getName()) {
+				case "executeQuery":
+					queries.incrementAndGet();
+					return createResultSet();
+				case "execute":
+					return false;
+				case "executeBatch":
+					return new int[0];
+				default:
+					return null;
+			}
+		});
+		return stub(DataRepository.class, (proxy, method, args) -> {
+			if ("getPreparedStatement".equals(method.getName())) {
+				return statement;
+			}
+			return null;
+		});
+	}
+
+	private ResultSet createResultSet() {
+		AtomicInteger row = new AtomicInteger();
+		return stub(ResultSet.class, (proxy, method, args) -> {
+			switch (method.getName()) {
+				case "next":
+					return row.incrementAndGet() == 1;
+				case "getString":
+					return ((Integer) args[0]) == 1 ? "PLAIN" : "password";
+				case "getInt":
+					return AuthRepository.AccountStatus.active.getValue();
+				default:
+					return null;
+			}
+		});
+	}
+}
@@ -0,0 +1,158 @@
+/*
+ * Tigase XMPP Server - The instant messaging server
+ * Copyright (C) 2004 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.db.log;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import tigase.xmpp.jid.BareJID;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import static org.junit.Assert.*;
+
+public class LogStoreTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private final BareJID user = BareJID.bareJIDInstanceNS("user", "example.com");
+
+	@Test
+	public void testReadWrite() throws IOException {
+		LogStore store = open(folder.getRoot());
+		try {
+			assertTrue(store.addUser(user));
+			assertFalse(store.addUser(user));
+			store.setData(user, null, "root-key", new String[]{"root-value"});
+			store.setData(user, "privacy/list1", "items", new String[]{"item1", "item2"});
+			store.setData(user, "privacy", "default-list", new String[]{"list1"});
+
+			assertEquals("root-value", store.getData(user, null, "root-key")[0]);
+			assertArrayEquals(new String[]{"item1", "item2"}, store.getData(user, "/privacy/list1/", "items"));
+			assertArrayEquals(new String[]{"privacy"}, store.getSubnodes(user, null));
+			assertArrayEquals(new String[]{"list1"}, store.getSubnodes(user, "privacy"));
+
+			store.removeNode(user, "privacy");
+			assertNull(store.getData(user, "privacy/list1", "items"));
+			assertNull(store.getData(user, "privacy", "default-list"));
+			assertEquals("root-value", store.getData(user, null, "root-key")[0]);
+
+			assertTrue(store.removeUser(user));
+			assertFalse(store.userExists(user));
+			assertFalse(store.setData(user, null, "root-key", new String[]{"value"}));
+		} finally {
+			store.close();
+		}
+	}
+
+	@Test
+	public void testRecoveryAfterCompaction() throws IOException {
+		File dir = folder.getRoot();
+		LogStore store = open(dir);
+		store.addUser(user);
+		for (int i = 0; i < 2000; i++) {
+			store.setData(user, "node", "key" + (i % 10), new String[]{"value" + i});
+		}
+		assertTrue(store.getSegmentsCount() > 1);
+		store.compact();
+		assertTrue(store.getCompactedSegmentsCount() > 0);
+		store.close();
+
+		store = open(dir);
+		try {
+			assertTrue(store.userExists(user));
+			assertEquals("value1999", store.getData(user, "node", "key9")[0]);
+			assertEquals("value1990", store.getData(user, "node", "key0")[0]);
+		} finally {
+			store.close();
+		}
+	}
+
+	@Test
+	public void testNoCompactionAfterClose() throws IOException {
+		File dir = folder.getRoot();
+		LogStore store = open(dir);
+		store.addUser(user);
+		for (int i = 0; i < 2000; i++) {
+			store.setData(user, "node", "key" + (i % 10), new String[]{"value" + i});
+		}
+		store.close();
+		int files = dir.listFiles().length;
+		store.compact();
+		assertEquals(0, store.getCompactedSegmentsCount());
+		assertEquals(files, dir.listFiles().length);
+
+		store = open(dir);
+		try {
+			assertEquals("value1999", store.getData(user, "node", "key9")[0]);
+		} finally {
+			store.close();
+		}
+	}
+
+	@Test
+	public void testRecoveryOfTornRecord() throws IOException {
+		File dir = folder.getRoot();
+		LogStore store = open(dir);
+		store.addUser(user);
+		store.setData(user, "node", "key", new String[]{"value"});
+		store.close();
+
+		File segment = dir.listFiles()[0];
+		try (RandomAccessFile file = new RandomAccessFile(segment, "rw")) {
+			int offset = 0;
+			int length;
+			while ((length = readInt(file, offset)) != 0) {
+				offset += 8 + length;
+			}
+			// header of a record which was not completely written
+			file.seek(offset);
+			file.writeInt(100);
+			file.writeInt(12345);
+		}
+
+		store = open(dir);
+		try {
+			assertEquals("value", store.getData(user, "node", "key")[0]);
+			store.setData(user, "node", "key2", new String[]{"value2"});
+		} finally {
+			store.close();
+		}
+
+		store = open(dir);
+		try {
+			assertEquals("value2", store.getData(user, "node", "key2")[0]);
+		} finally {
+			store.close();
+		}
+	}
+
+	private static int readInt(RandomAccessFile file, int offset) throws IOException {
+		file.seek(offset);
+		return file.readInt();
+	}
+
+	private static LogStore open(File dir) throws IOException {
+		LogStore store = new LogStore(dir, 4096, 0.3, 1000);
+		store.open();
+		return store;
+	}
+}
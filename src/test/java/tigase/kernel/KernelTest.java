@@ -26,6 +26,7 @@ import tigase.kernel.beans.Bean;
 import tigase.kernel.beans.config.AbstractBeanConfigurator;
 import tigase.kernel.beans.config.BeanConfigurator;
 import tigase.kernel.core.BeanConfig;
+import tigase.kernel.core.BeanInitializationTimeline;
 import tigase.kernel.core.DependencyGrapher;
 import tigase.kernel.core.Kernel;
 import tigase.kernel.core.PlantUMLGrapher;
@@ -33,6 +34,7 @@ import tigase.kernel.core.PlantUMLGrapher;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Type;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -374,6 +376,29 @@ public class KernelTest {
 				.count());
 	}
 
+	@Test
+	public void testBeanInitializationTimeline() throws Exception {
+		Kernel krnl = new Kernel();
+		krnl.registerBean(DefaultTypesConverter.class).exec();
+		krnl.registerBean(Bean1.class).exec();
+		krnl.registerBean("bean2").asClass(Bean2.class).exec();
+		krnl.registerBean("bean3").asClass(Bean3.class).exec();
+		krnl.registerBean("bean4").asClass(Bean4.class).exec();
+		krnl.registerBean("bean5").asClass(Bean5.class).withFactory(Bean5Factory.class).exec();
+
+		krnl.getInstance(Bean1.class);
+
+		List<BeanInitializationTimeline.Entry> entries = krnl.getBeanInitializationTimeline().getEntries();
+		BeanInitializationTimeline.Entry bean1 = entries.stream()
+				.filter(entry -> "bean1".equals(entry.getBeanName()))
+				.findFirst()
+				.orElse(null);
+		assertNotNull(bean1);
+		assertEquals(Bean1.class.getName(), bean1.getClassName());
+		assertTrue(bean1.getSelfTime() <= bean1.getTotalTime());
+		assertFalse(krnl.getBeanInitializationTimeline().getSlowest(1).isEmpty());
+	}
+
 	@Test
 	public void testInactiveBean() throws Exception {
 		Kernel krnl = new Kernel();
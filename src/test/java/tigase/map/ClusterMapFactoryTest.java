@@ -22,8 +22,12 @@ import org.junit.Test;
 import tigase.eventbus.EventBus;
 import tigase.eventbus.EventListener;
 import tigase.eventbus.impl.EventBusImplementation;
+import tigase.xml.Element;
 
+import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 public class ClusterMapFactoryTest {
 
@@ -82,26 +86,259 @@ public class ClusterMapFactoryTest {
 		factory.setEventBus(new EventBusImplementation());
 		final EventBus eventBus = factory.getEventBus();
 
-		final boolean[] received = new boolean[]{false};
+		final List<ClusterMapFactory.ElementsChangedEvent> received = new CopyOnWriteArrayList<>();
 
 		final Map<String, String> map = factory.createMap("test", String.class, String.class);
 
-		eventBus.addListener(ClusterMapFactory.ElementAddEvent.class,
-							 new EventListener<ClusterMapFactory.ElementAddEvent>() {
+		eventBus.addListener(ClusterMapFactory.ElementsChangedEvent.class,
+							 new EventListener<ClusterMapFactory.ElementsChangedEvent>() {
 								 @Override
-								 public void onEvent(ClusterMapFactory.ElementAddEvent event) {
-									 received[0] = true;
-									 Assert.assertEquals("kluczyk", event.getKey());
-									 Assert.assertEquals("wartosc", event.getValue());
-									 Assert.assertEquals(((DMap) map).getUid(), event.getUid());
+								 public void onEvent(ClusterMapFactory.ElementsChangedEvent event) {
+									 received.add(event);
 								 }
 							 });
 
+		map.put("kluczyk", "wartosc0");
 		map.put("kluczyk", "wartosc");
+		map.put("other", "value");
+		map.remove("other");
+
+		Thread.sleep(ClusterMapFactory.DEFAULT_BATCH_DELAY + 200);
+
+		Assert.assertEquals(1, received.size());
+		ClusterMapFactory.ElementsChangedEvent event = received.get(0);
+		Assert.assertEquals(((DMap) map).getUid(), event.getUid());
+		List<Element> changes = event.getChanges().getChildren();
+		Assert.assertEquals(2, changes.size());
+		Assert.assertEquals("put", changes.get(0).getName());
+		Assert.assertEquals("kluczyk", changes.get(0).getAttributeStaticStr("k"));
+		Assert.assertEquals("wartosc", changes.get(0).getAttributeStaticStr("v"));
+		Assert.assertEquals("remove", changes.get(1).getName());
+		Assert.assertEquals("other", changes.get(1).getAttributeStaticStr("k"));
+
+		final ClusterMapFactory remoteFactory = new ClusterMapFactory();
+		remoteFactory.setEventBus(new EventBusImplementation());
+		final Map<String, String> remoteMap = remoteFactory.createMap("test", String.class, String.class);
+		remoteMap.put("other", "value");
+		remoteFactory.onElementsChanged(event);
+		Assert.assertEquals("wartosc", remoteMap.get("kluczyk"));
+		Assert.assertNull(remoteMap.get("other"));
+	}
 
-		Thread.sleep(100);
+	@Test
+	public void testSnapshotOnNodeJoin() throws Exception {
+		final ClusterMapFactory factory = new ClusterMapFactory();
+		factory.setEventBus(new EventBusImplementation());
+		factory.setLocalNode("node1");
+		factory.nodeConnected("node2");
+		final EventBus eventBus = factory.getEventBus();
 
-		Assert.assertTrue(received[0]);
+		final Map<String, String> map = factory.createMap("test-snapshot", String.class, String.class);
+		factory.onMapSnapshot(inSync("test-snapshot"));
+		for (int i = 0; i < ClusterMapFactory.MAX_BATCH_SIZE + 10; i++) {
+			((DMap<String, String>) map).putNoEvent("key" + i, "value" + i);
+		}
+
+		final List<ClusterMapFactory.MapSnapshotEvent> received = new CopyOnWriteArrayList<>();
+		eventBus.addListener(ClusterMapFactory.MapSnapshotEvent.class,
+							 new EventListener<ClusterMapFactory.MapSnapshotEvent>() {
+								 @Override
+								 public void onEvent(ClusterMapFactory.MapSnapshotEvent event) {
+									 received.add(event);
+								 }
+							 });
+
+		// node with the same content joined, nothing to send
+		final ClusterMapFactory sameFactory = new ClusterMapFactory();
+		sameFactory.setEventBus(new EventBusImplementation());
+		final Map<String, String> sameMap = sameFactory.createMap("test-snapshot", String.class, String.class);
+		((DMap<String, String>) sameMap).map.putAll(map);
+		ClusterMapFactory.NewMapCreatedEvent joined = new ClusterMapFactory.NewMapCreatedEvent();
+		joined.setUid("test-snapshot");
+		joined.setKeyClass(String.class);
+		joined.setValueClass(String.class);
+		joined.setSourceNode("node2");
+		joined.setSize(sameMap.size());
+		joined.setDigest(sameFactory.calculateDigest((DMap) sameMap));
+		factory.onNewMapCreated(joined);
+
+		Thread.sleep(200);
+		Assert.assertEquals(1, received.size());
+		Assert.assertTrue(received.get(0).isInSync());
+		Assert.assertNull(received.get(0).getItems());
+		received.clear();
+
+		// node with different content joined
+		final ClusterMapFactory newFactory = new ClusterMapFactory();
+		newFactory.setEventBus(new EventBusImplementation());
+		newFactory.setLocalNode("node2");
+		newFactory.nodeConnected("node1");
+		final Map<String, String> newMap = newFactory.createMap("test-snapshot", String.class, String.class);
+		((DMap<String, String>) newMap).putNoEvent("stale", "value");
+		((DMap<String, String>) newMap).putNoEvent("key0", "old-value");
+		ClusterMapFactory.NewMapCreatedEvent created = new ClusterMapFactory.NewMapCreatedEvent();
+		created.setUid("test-snapshot");
+		created.setKeyClass(String.class);
+		created.setValueClass(String.class);
+		created.setSourceNode("node2");
+		created.setSize(newMap.size());
+		created.setDigest(newFactory.calculateDigest((DMap) newMap));
+		factory.onNewMapCreated(created);
+
+		Thread.sleep(200);
+		Assert.assertEquals(2, received.size());
+		for (ClusterMapFactory.MapSnapshotEvent event : received) {
+			Assert.assertEquals("node2", event.getTargetNode());
+			Assert.assertEquals("node1", event.getSourceNode());
+		}
+		Assert.assertFalse(received.get(0).isLast());
+		Assert.assertTrue(received.get(1).isLast());
+
+		// chunk of snapshot sent by other node is ignored
+		ClusterMapFactory.MapSnapshotEvent other = new ClusterMapFactory.MapSnapshotEvent();
+		other.setUid("test-snapshot");
+		other.setTargetNode("node2");
+		other.setSourceNode("node3");
+		other.setChunk(1);
+		other.setLast(true);
+		other.setItems(new Element("items"));
+
+		newFactory.onMapSnapshot(received.get(0));
+		newFactory.onMapSnapshot(other);
+		Assert.assertEquals("snapshot should be applied after the last chunk", "value", newMap.get("stale"));
+		newFactory.onMapSnapshot(received.get(1));
+		Assert.assertEquals(new HashMap<>(map), new HashMap<>(newMap));
+	}
+
+	@Test
+	public void testSnapshotSentByOneNode() throws Exception {
+		final ClusterMapFactory factory = new ClusterMapFactory();
+		factory.setEventBus(new EventBusImplementation());
+		factory.setLocalNode("node1");
+		factory.nodeConnected("node2");
+		factory.nodeConnected("node3");
+		final ClusterMapFactory otherFactory = new ClusterMapFactory();
+		otherFactory.setEventBus(new EventBusImplementation());
+		otherFactory.setLocalNode("node2");
+		otherFactory.nodeConnected("node1");
+		otherFactory.nodeConnected("node3");
+
+		final List<ClusterMapFactory.MapSnapshotEvent> received = new CopyOnWriteArrayList<>();
+		for (ClusterMapFactory f : new ClusterMapFactory[]{factory, otherFactory}) {
+			Map<String, String> map = f.createMap("test-snapshot-sender", String.class, String.class);
+			((DMap<String, String>) map).putNoEvent("key", "value");
+			f.onMapSnapshot(inSync("test-snapshot-sender"));
+			f.getEventBus()
+					.addListener(ClusterMapFactory.MapSnapshotEvent.class,
+								 new EventListener<ClusterMapFactory.MapSnapshotEvent>() {
+									 @Override
+									 public void onEvent(ClusterMapFactory.MapSnapshotEvent event) {
+										 received.add(event);
+									 }
+								 });
+
+			ClusterMapFactory.NewMapCreatedEvent created = new ClusterMapFactory.NewMapCreatedEvent();
+			created.setUid("test-snapshot-sender");
+			created.setKeyClass(String.class);
+			created.setValueClass(String.class);
+			created.setSourceNode("node3");
+			f.onNewMapCreated(created);
+		}
+
+		Thread.sleep(200);
+		Assert.assertEquals(1, received.size());
+		Assert.assertEquals("node3", received.get(0).getTargetNode());
+	}
+
+	@Test
+	public void testSnapshotKeepsKeysChangedAfterRequest() throws Exception {
+		final ClusterMapFactory factory = new ClusterMapFactory();
+		factory.setEventBus(new EventBusImplementation());
+		factory.setLocalNode("node2");
+		factory.nodeConnected("node1");
+		final Map<String, String> map = factory.createMap("test-snapshot-merge", String.class, String.class);
+		((DMap<String, String>) map).putNoEvent("stale", "value");
+		map.put("local", "value");
+		ClusterMapFactory.ElementAddEvent added = new ClusterMapFactory.ElementAddEvent();
+		added.setUid("test-snapshot-merge");
+		added.setKey("remote");
+		added.setValue("new-value");
+		factory.onMapElementAdd(added);
+
+		// snapshot read on other node before it received changes made after the request
+		Element items = new Element("items");
+		items.addChild(new Element("put", new String[]{"k", "v"}, new String[]{"key", "value"}));
+		items.addChild(new Element("put", new String[]{"k", "v"}, new String[]{"remote", "old-value"}));
+		ClusterMapFactory.MapSnapshotEvent snapshot = new ClusterMapFactory.MapSnapshotEvent();
+		snapshot.setUid("test-snapshot-merge");
+		snapshot.setTargetNode("node2");
+		snapshot.setSourceNode("node1");
+		snapshot.setLast(true);
+		snapshot.setItems(items);
+		factory.onMapSnapshot(snapshot);
+
+		Assert.assertEquals("value", map.get("key"));
+		Assert.assertEquals("value", map.get("local"));
+		Assert.assertEquals("new-value", map.get("remote"));
+		Assert.assertNull(map.get("stale"));
+	}
+
+	@Test
+	public void testSnapshotRequestedAgainAfterTimeout() throws Exception {
+		final ClusterMapFactory factory = new ClusterMapFactory();
+		factory.setEventBus(new EventBusImplementation());
+		factory.setRequestTimeout(100);
+		factory.setLocalNode("node1");
+		factory.nodeConnected("node2");
+		factory.nodeConnected("node3");
+
+		final List<ClusterMapFactory.NewMapCreatedEvent> requests = new CopyOnWriteArrayList<>();
+		factory.getEventBus()
+				.addListener(ClusterMapFactory.NewMapCreatedEvent.class,
+							 new EventListener<ClusterMapFactory.NewMapCreatedEvent>() {
+								 @Override
+								 public void onEvent(ClusterMapFactory.NewMapCreatedEvent event) {
+									 requests.add(event);
+								 }
+							 });
+		factory.createMap("test-snapshot-retry", String.class, String.class);
+
+		Thread.sleep(500);
+		// each of two other nodes is asked once
+		Assert.assertEquals(2, requests.size());
+		Assert.assertEquals(0, requests.get(0).getAttempt());
+		Assert.assertEquals(1, requests.get(1).getAttempt());
+
+		// nodes selected for both attempts are different
+		final ClusterMapFactory node2 = new ClusterMapFactory();
+		node2.setLocalNode("node2");
+		node2.nodeConnected("node1");
+		node2.nodeConnected("node3");
+		final ClusterMapFactory node3 = new ClusterMapFactory();
+		node3.setLocalNode("node3");
+		node3.nodeConnected("node1");
+		node3.nodeConnected("node2");
+		final List<ClusterMapFactory.MapSnapshotEvent> received = new CopyOnWriteArrayList<>();
+		for (ClusterMapFactory f : new ClusterMapFactory[]{node2, node3}) {
+			f.setEventBus(new EventBusImplementation());
+			Map<String, String> map = f.createMap("test-snapshot-retry", String.class, String.class);
+			((DMap<String, String>) map).putNoEvent("key", "value");
+			f.onMapSnapshot(inSync("test-snapshot-retry"));
+			f.getEventBus()
+					.addListener(ClusterMapFactory.MapSnapshotEvent.class,
+								 new EventListener<ClusterMapFactory.MapSnapshotEvent>() {
+									 @Override
+									 public void onEvent(ClusterMapFactory.MapSnapshotEvent event) {
+										 received.add(event);
+									 }
+								 });
+			f.onNewMapCreated(requests.get(0));
+			f.onNewMapCreated(requests.get(1));
+		}
+
+		Thread.sleep(200);
+		Assert.assertEquals(2, received.size());
+		Assert.assertNotEquals(received.get(0).getSourceNode(), received.get(1).getSourceNode());
 	}
 
 	@Test
@@ -183,4 +420,117 @@ public class ClusterMapFactoryTest {
 		Thread.sleep(100);
 		Assert.assertTrue(received[0]);
 	}
-}
\ No newline at end of file
+
+	@Test
+	public void testPartitionedMapBackup() throws Exception {
+		final ClusterMapFactory factory = new ClusterMapFactory();
+		factory.setEventBus(new EventBusImplementation());
+		factory.setLocalNode("node1");
+		factory.nodeConnected("node2");
+		final EventBus eventBus = factory.getEventBus();
+
+		final List<ClusterMapFactory.PartitionTransferEvent> received = new CopyOnWriteArrayList<>();
+		eventBus.addListener(ClusterMapFactory.PartitionTransferEvent.class,
+							 new EventListener<ClusterMapFactory.PartitionTransferEvent>() {
+								 @Override
+								 public void onEvent(ClusterMapFactory.PartitionTransferEvent event) {
+									 received.add(event);
+								 }
+							 });
+
+		final Map<String, String> map = factory.createPartitionedMap("test-partitioned", String.class,
+																	 String.class, 1);
+		String key = null;
+		for (int i = 0; key == null; i++) {
+			if ("node1".equals(factory.getOwners("key" + i, 1).get(0))) {
+				key = "key" + i;
+			}
+		}
+		map.put(key, "value");
+		Assert.assertEquals("value", map.get(key));
+
+		Thread.sleep(ClusterMapFactory.DEFAULT_BATCH_DELAY + 200);
+
+		Assert.assertEquals(1, received.size());
+		ClusterMapFactory.PartitionTransferEvent event = received.get(0);
+		Assert.assertEquals("node2", event.getTargetNode());
+
+		final ClusterMapFactory remoteFactory = new ClusterMapFactory();
+		remoteFactory.setEventBus(new EventBusImplementation());
+		remoteFactory.setLocalNode("node2");
+		remoteFactory.nodeConnected("node1");
+		final Map<String, String> remoteMap = remoteFactory.createPartitionedMap("test-partitioned", String.class,
+																				 String.class, 1);
+		remoteFactory.onPartitionTransfer(event);
+		Assert.assertEquals("value", remoteMap.get(key));
+		Assert.assertEquals(1, remoteMap.size());
+	}
+
+	@Test
+	public void testPartitionRequestToNotOwner() throws Exception {
+		final ClusterMapFactory factory = new ClusterMapFactory();
+		factory.setEventBus(new EventBusImplementation());
+		factory.setLocalNode("node1");
+		factory.nodeConnected("node2");
+		factory.nodeConnected("node3");
+		final EventBus eventBus = factory.getEventBus();
+
+		final List<ClusterMapFactory.PartitionResponseEvent> received = new CopyOnWriteArrayList<>();
+		eventBus.addListener(ClusterMapFactory.PartitionResponseEvent.class,
+							 new EventListener<ClusterMapFactory.PartitionResponseEvent>() {
+								 @Override
+								 public void onEvent(ClusterMapFactory.PartitionResponseEvent event) {
+									 received.add(event);
+								 }
+							 });
+
+		final Map<String, String> map = factory.createPartitionedMap("test-partitioned", String.class,
+																	 String.class, 1);
+		// key which is kept by this node only as a backup
+		String key = null;
+		for (int i = 0; key == null; i++) {
+			List<String> owners = factory.getOwners("key" + i, 2);
+			if (!"node1".equals(owners.get(0)) && "node1".equals(owners.get(1))) {
+				key = "key" + i;
+			}
+		}
+		String owner = factory.getOwners(key, 1).get(0);
+
+		factory.onPartitionRequest(partitionRequest(1, "put", key, "value"));
+		Thread.sleep(100);
+		Assert.assertEquals(1, received.size());
+		Assert.assertEquals(owner, received.get(0).getOwner());
+		Assert.assertEquals(1, received.get(0).getRequestId());
+		Assert.assertEquals("node2", received.get(0).getTargetNode());
+		Assert.assertEquals(0, map.size());
+
+		// backup may be read
+		((PartitionedDMap<String, String>) map).putNoEvent(key, "value");
+		factory.onPartitionRequest(partitionRequest(2, "get", key, null));
+		Thread.sleep(100);
+		Assert.assertEquals(2, received.size());
+		Assert.assertNull(received.get(1).getOwner());
+		Assert.assertEquals("value", received.get(1).getValue());
+	}
+
+	private static ClusterMapFactory.PartitionRequestEvent partitionRequest(long requestId, String op, String key,
+																			 String value) {
+		ClusterMapFactory.PartitionRequestEvent event = new ClusterMapFactory.PartitionRequestEvent();
+		event.setUid("test-partitioned");
+		event.setSourceNode("node2");
+		event.setTargetNode("node1");
+		event.setRequestId(requestId);
+		event.setOp(op);
+		event.setKey(key);
+		event.setValue(value);
+		return event;
+	}
+
+	private static ClusterMapFactory.MapSnapshotEvent inSync(String uid) {
+		ClusterMapFactory.MapSnapshotEvent event = new ClusterMapFactory.MapSnapshotEvent();
+		event.setUid(uid);
+		event.setLast(true);
+		event.setInSync(true);
+		return event;
+	}
+}
@@ -0,0 +1,65 @@
+/*
+ * Tigase XMPP Server - The instant messaging server
+ * Copyright (C) 2004 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.map;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+public class ConsistentHashRingTest {
+
+	@Test
+	public void testOwners() {
+		ConsistentHashRing ring = new ConsistentHashRing(Arrays.asList("node1", "node2", "node3"));
+
+		List<String> owners = ring.getOwners("key", 2);
+		Assert.assertEquals(2, owners.size());
+		Assert.assertNotEquals(owners.get(0), owners.get(1));
+		Assert.assertEquals(owners, ring.getOwners("key", 2));
+		Assert.assertEquals(3, ring.getOwners("key", 5).size());
+		Assert.assertTrue(new ConsistentHashRing(Arrays.asList()).getOwners("key", 1).isEmpty());
+	}
+
+	@Test
+	public void testDistributionAndMovedKeys() {
+		ConsistentHashRing ring = new ConsistentHashRing(Arrays.asList("node1", "node2", "node3"));
+		ConsistentHashRing newRing = new ConsistentHashRing(Arrays.asList("node1", "node2", "node3", "node4"));
+
+		Map<String, Integer> counts = new HashMap<>();
+		int moved = 0;
+		for (int i = 0; i < 30000; i++) {
+			String owner = ring.getOwners("key-" + i, 1).get(0);
+			counts.merge(owner, 1, Integer::sum);
+			String newOwner = newRing.getOwners("key-" + i, 1).get(0);
+			if (!owner.equals(newOwner)) {
+				Assert.assertEquals("node4", newOwner);
+				moved++;
+			}
+		}
+
+		for (int count : counts.values()) {
+			Assert.assertTrue("Uneven distribution: " + counts, count > 8000 && count < 12000);
+		}
+		Assert.assertTrue("Moved keys: " + moved, moved > 5000 && moved < 10000);
+	}
+
+}
@@ -0,0 +1,227 @@
+/*
+ * Tigase XMPP Server - The instant messaging server
+ * Copyright (C) 2004 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.net;
+
+import org.junit.Test;
+import tigase.stats.StatisticsList;
+
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ConnectionOpenThreadTest {
+
+	@Test
+	public void testThrottling() {
+		long second = TimeUnit.SECONDS.toNanos(1);
+		ConnectionOpenThread.PortThrottlingData data = new ConnectionOpenThread.PortThrottlingData(3, 0);
+		// bucket is full at start, so first connections up to the limit are accepted at once
+		for (int i = 0; i < 3; i++) {
+			assertTrue(data.tryAcquire(0));
+		}
+		assertFalse(data.tryAcquire(0));
+		assertFalse(data.tryAcquire(second / 6));
+
+		// bucket is refilled with 3 tokens per second
+		assertTrue(data.tryAcquire(second / 2));
+		assertFalse(data.tryAcquire(second / 2));
+
+		// but never above the limit
+		for (int i = 0; i < 3; i++) {
+			assertTrue(data.tryAcquire(2 * second));
+		}
+		assertFalse(data.tryAcquire(2 * second));
+
+		data.setThrottling(1);
+		assertTrue(data.tryAcquire(10 * second));
+		assertFalse(data.tryAcquire(10 * second));
+		assertFalse(data.tryAcquire(10 * second + second / 2));
+		assertTrue(data.tryAcquire(11 * second + second / 2));
+	}
+
+	@Test
+	public void testAcceptorGroup() throws Exception {
+		TestListener listener = new TestListener(findFreePort(), "group-test", 2, 1000);
+		ConnectionOpenThread.getInstance().addConnectionOpenListener(listener);
+		List<Socket> sockets = new ArrayList<>();
+		try {
+			for (int i = 0; i < 20; i++) {
+				sockets.add(connect(listener.port));
+			}
+			waitForConnections(listener, 20);
+			assertEquals(20, listener.accepted.size());
+			assertEquals(20, getStatistic(listener, "accepted"));
+			// connections are accepted only by threads of the group of the listener
+			for (String thread : listener.threads) {
+				assertTrue(thread, thread.startsWith("ConnectionOpenThread-group-test-"));
+			}
+			long groupThreads = Thread.getAllStackTraces()
+					.keySet()
+					.stream()
+					.filter(thread -> thread.getName().startsWith("ConnectionOpenThread-group-test-"))
+					.count();
+			assertEquals(2, groupThreads);
+		} finally {
+			close(listener, sockets);
+		}
+	}
+
+	private void close(TestListener listener, List<Socket> sockets) throws IOException {
+		ConnectionOpenThread.getInstance().removeConnectionOpenListener(listener);
+		for (Socket socket : sockets) {
+			socket.close();
+		}
+		for (SocketChannel sc : listener.accepted) {
+			sc.close();
+		}
+	}
+
+	private int findFreePort() throws IOException {
+		try (ServerSocket socket = new ServerSocket(0)) {
+			return socket.getLocalPort();
+		}
+	}
+
+	private long getStatistic(TestListener listener, String name) {
+		StatisticsList list = new StatisticsList(Level.ALL);
+		ConnectionOpenThread.getInstance().getStatistics("c2s", listener.port, list);
+		return list.getValue("c2s", "Port " + listener.port + " " + name + " connections", -1L);
+	}
+
+	/**
+	 * Connects to the port, waiting until it is bound.
+	 */
+	private Socket connect(int port) throws Exception {
+		for (int i = 0; i < 100; i++) {
+			try {
+				return new Socket("localhost", port);
+			} catch (ConnectException ex) {
+				Thread.sleep(20);
+			}
+		}
+		throw new AssertionError("Port " + port + " was not bound");
+	}
+
+	private void waitForConnections(TestListener listener, int expected) throws Exception {
+		for (int i = 0; i < 100 && getStatistic(listener, "accepted") + getStatistic(listener, "rejected") <
+				expected; i++) {
+			Thread.sleep(20);
+		}
+		Thread.sleep(50);
+	}
+
+	private static class TestListener
+			implements ConnectionOpenListener {
+
+		private final List<SocketChannel> accepted = new CopyOnWriteArrayList<>();
+		private final String group;
+		private final int port;
+		private final Set<String> threads = ConcurrentHashMap.newKeySet();
+		private final int threadsNo;
+		private final long throttling;
+
+		private TestListener(int port, String group, int threadsNo, long throttling) {
+			this.port = port;
+			this.group = group;
+			this.threadsNo = threadsNo;
+			this.throttling = throttling;
+		}
+
+		@Override
+		public void accept(SocketChannel sc) {
+			if (sc != null) {
+				accepted.add(sc);
+				threads.add(Thread.currentThread().getName());
+			}
+		}
+
+		@Override
+		public String getAcceptorGroup() {
+			return group;
+		}
+
+		@Override
+		public int getAcceptorThreads() {
+			return threadsNo;
+		}
+
+		@Override
+		public ConnectionType getConnectionType() {
+			return ConnectionType.accept;
+		}
+
+		@Override
+		public String[] getIfcs() {
+			return null;
+		}
+
+		@Override
+		public long getNewConnectionsThrottling() {
+			return throttling;
+		}
+
+		@Override
+		public int getPort() {
+			return port;
+		}
+
+		@Override
+		public int getReceiveBufferSize() {
+			return DEF_RECEIVE_BUFFER_SIZE;
+		}
+
+		@Override
+		public InetSocketAddress getRemoteAddress() {
+			return null;
+		}
+
+		@Override
+		public String getRemoteHostname() {
+			return null;
+		}
+
+		@Override
+		public String getSRVType() {
+			return null;
+		}
+
+		@Override
+		public SocketType getSocketType() {
+			return SocketType.plain;
+		}
+
+		@Override
+		public int getTrafficClass() {
+			return DEF_TRAFFIC_CLASS;
+		}
+	}
+}
@@ -0,0 +1,96 @@
+/*
+ * Tigase XMPP Server - The instant messaging server
+ * Copyright (C) 2004 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.server;
+
+import org.junit.Before;
+import org.junit.Test;
+import tigase.stats.StatisticsList;
+import tigase.util.workqueue.PriorityQueueFair;
+import tigase.xml.Element;
+import tigase.xmpp.jid.JID;
+
+import java.util.Collections;
+import java.util.logging.Level;
+
+import static org.junit.Assert.*;
+import static tigase.TestHelper.setField;
+
+public class AbstractMessageReceiverTest {
+
+	private static final String NAME = "sess-man";
+
+	private AbstractMessageReceiver receiver;
+
+	@Before
+	public void setUp() throws Exception {
+		receiver = new AbstractMessageReceiver() {
+			@Override
+			public void processPacket(Packet packet) {
+			}
+		};
+		setField(receiver, "priorityQueueClass", PriorityQueueFair.class);
+		setField(receiver, "processingInThreads", 1);
+		setField(receiver, "processingOutThreads", 1);
+		setField(receiver, "maxQueueSize", 1000);
+		receiver.setName(NAME);
+		receiver.setCompId(JID.jidInstanceNS(NAME + "@node.example.com"));
+		receiver.beanConfigurationChanged(Collections.emptyList());
+	}
+
+	@Test
+	public void testFairQueueWithClientConnections() throws Exception {
+		// in queue has 2000 slots for each priority, 200 of them may be used by a single sender
+		for (int conn = 0; conn < 30; conn++) {
+			for (int i = 0; i < 60; i++) {
+				assertTrue(receiver.addPacketNB(clientPacket(conn)));
+			}
+		}
+
+		int accepted = 0;
+		for (int i = 0; i < 300; i++) {
+			if (receiver.addPacketNB(clientPacket(99))) {
+				accepted++;
+			}
+		}
+		assertEquals(200, accepted);
+
+		StatisticsList list = new StatisticsList(Level.ALL);
+		receiver.getStatistics(list);
+		assertEquals(100, list.getValue(NAME, "In queue overflow per sender", -1L));
+		String top = list.getValue(NAME, "Top In queue consumers", (String) null);
+		assertNotNull(top);
+		assertTrue(top, top.startsWith("{" + connectionId(99) + "=200"));
+	}
+
+	private static JID connectionId(int conn) {
+		return JID.jidInstanceNS("c2s@node.example.com/127.0.0.1_5222_10.0.0.1_" + (40000 + conn));
+	}
+
+	/**
+	 * Creates packet as it is sent by the client connection manager: without stanza sender and with the address of
+	 * the connection as the packet sender.
+	 */
+	private Packet clientPacket(int conn) throws Exception {
+		Element elem = new Element("message", new String[]{"to", "type"}, new String[]{"juliet@example.com", "chat"});
+		elem.addChild(new Element("body", "Hello"));
+		Packet packet = Packet.packetInstance(elem);
+		packet.setPacketFrom(connectionId(conn));
+		packet.setPacketTo(receiver.getComponentId());
+		return packet;
+	}
+}
@@ -25,13 +25,14 @@ import tigase.xmpp.XMPPIOService;
 
 import java.io.IOException;
 import java.lang.reflect.Field;
-import java.lang.reflect.Method;
 import java.nio.ByteBuffer;
 import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
 import java.util.Map;
 import java.util.Queue;
 import java.util.UUID;
 
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertTrue;
 
@@ -60,6 +61,24 @@ public class ConnectionManagerTest {
 		test_watchDogStop(ConnectionManager.WATCHDOG_PING_TYPE.XMPP, Type.timeout, true);
 	}
 
+	@Test
+	public void test_watchDog_activeConnection() throws Exception {
+		ConnectionManager connectionManager = newConnectionManager(ConnectionManager.WATCHDOG_PING_TYPE.WHITESPACE);
+		Field f = ConnectionManager.class.getDeclaredField("watchdogTimeout");
+		f.setAccessible(true);
+		f.set(connectionManager, 60 * 1000);
+
+		XMPPIOService service = registerService(connectionManager, false);
+		f = IOService.class.getDeclaredField("lastTransferTime");
+		f.setAccessible(true);
+		f.set(service, System.currentTimeMillis() - 20 * 1000);
+
+		// connection is not pinged until watchdog timeout passes since the last transfer
+		long delay = connectionManager.newWatchdog().check(service);
+		assertTrue("Unexpected delay of the next check: " + delay, delay > 30 * 1000 && delay <= 40 * 1000);
+		assertEquals(1, getServices(connectionManager).size());
+	}
+
 	protected ConnectionManager newConnectionManager(ConnectionManager.WATCHDOG_PING_TYPE pingType) throws Exception {
 		ConnectionManager connectionManager = new ConnectionManager() {
 			@Override
@@ -277,9 +296,9 @@ public class ConnectionManagerTest {
 
 	protected void execute_watchDogStop(ConnectionManager connectionManager) throws Exception {
 		ConnectionManager.Watchdog watchdog = connectionManager.newWatchdog();
-		Method m = ConnectionManager.Watchdog.class.getDeclaredMethod("executeWatchdog");
-		m.setAccessible(true);
-		m.invoke(watchdog);
+		for (XMPPIOService service : new ArrayList<>(getServices(connectionManager).values())) {
+			assertEquals("Check of stopped connection should not be rescheduled", -1, watchdog.check(service));
+		}
 
 		assertTrue("All connections should be removed due to IOExceptions", getServices(connectionManager).isEmpty());
 	}
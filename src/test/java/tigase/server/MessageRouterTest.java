@@ -0,0 +1,158 @@
+/*
+ * Tigase XMPP Server - The instant messaging server
+ * Copyright (C) 2004 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.server;
+
+import org.junit.Before;
+import org.junit.Test;
+import tigase.server.xmppsession.SessionManager;
+import tigase.vhosts.VHostItem;
+import tigase.vhosts.VHostItemImpl;
+import tigase.vhosts.VHostManagerIfc;
+import tigase.xml.Element;
+import tigase.xmpp.impl.UrnXmppPing;
+import tigase.xmpp.jid.JID;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+import static tigase.TestHelper.setField;
+import static tigase.TestHelper.stub;
+
+public class MessageRouterTest {
+
+	private static final JID DOMAIN = JID.jidInstanceNS("example.com");
+	private static final JID USER = JID.jidInstanceNS("juliet@example.com/balcony");
+
+	private MessageRouter router;
+	private VHostItem vhost;
+
+	@Before
+	public void setUp() throws Exception {
+		vhost = new VHostItemImpl(DOMAIN.getDomain());
+		router = new MessageRouter();
+		router.setName("message-router");
+		router.updateServiceEntity();
+		setField(router, "vHostManager", stub(VHostManagerIfc.class, (proxy, method, args) -> {
+			switch (method.getName()) {
+				case "isLocalDomain":
+					return DOMAIN.getDomain().equals(args[0]);
+				case "getVHostItem":
+					return DOMAIN.getDomain().equals(args[0]) ? vhost : null;
+				default:
+					return null;
+			}
+		}));
+	}
+
+	@Test
+	public void testDiscoInfoCachedUntilComponentsChange() throws Exception {
+		TestService service1 = new TestService("service1", "urn:test:1");
+		router.addComponent(service1);
+		assertTrue(hasFeature(router.getDiscoInfo(DOMAIN, USER, null), "urn:test:1"));
+		String ver = router.getServiceEntityCaps(USER).get().getAttributeStaticStr("ver");
+
+		// features are not read again until components change
+		service1.features.add(feature("urn:test:2"));
+		assertFalse(hasFeature(router.getDiscoInfo(DOMAIN, USER, null), "urn:test:2"));
+		assertEquals(ver, router.getServiceEntityCaps(USER).get().getAttributeStaticStr("ver"));
+
+		TestService service2 = new TestService("service2", "urn:test:3");
+		router.addComponent(service2);
+		Element discoInfo = router.getDiscoInfo(DOMAIN, USER, null);
+		assertTrue(hasFeature(discoInfo, "urn:test:2"));
+		assertTrue(hasFeature(discoInfo, "urn:test:3"));
+		assertNotEquals(ver, router.getServiceEntityCaps(USER).get().getAttributeStaticStr("ver"));
+
+		router.removeComponent(service2);
+		assertFalse(hasFeature(router.getDiscoInfo(DOMAIN, USER, null), "urn:test:3"));
+	}
+
+	@Test
+	public void testDiscoInfoCachedUntilVHostItemChanges() throws Exception {
+		TestService service1 = new TestService("service1", "urn:test:1");
+		router.addComponent(service1);
+		assertTrue(hasFeature(router.getDiscoInfo(DOMAIN, USER, null), "urn:test:1"));
+
+		service1.features.add(feature("urn:test:2"));
+		assertFalse(hasFeature(router.getDiscoInfo(DOMAIN, USER, null), "urn:test:2"));
+
+		// vhost item is replaced when configuration of the domain changes
+		vhost = new VHostItemImpl(DOMAIN.getDomain());
+		assertTrue(hasFeature(router.getDiscoInfo(DOMAIN, USER, null), "urn:test:2"));
+	}
+
+	@Test
+	public void testCachedDiscoInfoIsNotModified() throws Exception {
+		router.addComponent(new TestService("service1", "urn:test:1"));
+		Element discoInfo = router.getDiscoInfo(DOMAIN, USER, null);
+		discoInfo.addChild(feature("urn:test:modified"));
+		router.getServiceEntityCaps(USER).get().setAttribute("ver", "modified");
+
+		assertFalse(hasFeature(router.getDiscoInfo(DOMAIN, USER, null), "urn:test:modified"));
+		assertNotEquals("modified", router.getServiceEntityCaps(USER).get().getAttributeStaticStr("ver"));
+	}
+
+	@Test
+	public void testDiscoInfoInvalidatedByPlugins() throws Exception {
+		SessionManager sessionManager = new SessionManager();
+		sessionManager.setName("sess-man");
+		setField(sessionManager, "router", router);
+		router.addComponent(sessionManager);
+		assertFalse(hasFeature(router.getDiscoInfo(DOMAIN, USER, null), "urn:xmpp:ping"));
+
+		UrnXmppPing ping = new UrnXmppPing();
+		sessionManager.addPlugin(ping);
+		assertTrue(hasFeature(router.getDiscoInfo(DOMAIN, USER, null), "urn:xmpp:ping"));
+
+		sessionManager.removePlugin(ping);
+		assertFalse(hasFeature(router.getDiscoInfo(DOMAIN, USER, null), "urn:xmpp:ping"));
+	}
+
+	private static Element feature(String var) {
+		return new Element("feature", new String[]{"var"}, new String[]{var});
+	}
+
+	private static boolean hasFeature(Element discoInfo, String var) {
+		List<Element> children = discoInfo.getChildren();
+		if (children != null) {
+			for (Element child : children) {
+				if ("feature".equals(child.getName()) && var.equals(child.getAttributeStaticStr("var"))) {
+					return true;
+				}
+			}
+		}
+		return false;
+	}
+
+	private static class TestService
+			extends BasicComponent {
+
+		private final List<Element> features = new ArrayList<>();
+
+		private TestService(String name, String feature) {
+			setName(name);
+			features.add(feature(feature));
+		}
+
+		@Override
+		public List<Element> getDiscoFeatures(JID from) {
+			return new ArrayList<>(features);
+		}
+	}
+}
@@ -0,0 +1,196 @@
+/*
+ * Tigase XMPP Server - The instant messaging server
+ * Copyright (C) 2004 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.server.amp.db;
+
+import org.junit.Before;
+import org.junit.Test;
+import tigase.db.DataSource;
+import tigase.db.UserRepository;
+import tigase.vhosts.VHostManagerIfc;
+import tigase.xml.Element;
+import tigase.xmpp.jid.BareJID;
+import tigase.xmpp.jid.JID;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+import static tigase.TestHelper.setField;
+import static tigase.TestHelper.stub;
+
+public class MsgBroadcastRepositoryTest {
+
+	private final List<List<BareJID>> batches = Collections.synchronizedList(new ArrayList<>());
+	private final Map<BareJID, AtomicInteger> lookups = new ConcurrentHashMap<>();
+	private final Element msg = new Element("message");
+	private final Date expire = new Date(System.currentTimeMillis() + 60 * 1000);
+	private volatile CountDownLatch storing = null;
+	private volatile CountDownLatch stored = null;
+	private MsgBroadcastRepository<Long, DataSource> repo;
+
+	@Before
+	public void setUp() throws Exception {
+		repo = new MsgBroadcastRepository<Long, DataSource>() {
+			@Override
+			public void loadMessagesToBroadcast() {
+			}
+
+			@Override
+			public void setDataSource(DataSource dataSource) {
+			}
+
+			@Override
+			protected void ensureBroadcastMessageRecipient(String id, BareJID recipient) {
+				ensureBroadcastMessageRecipients(id, Collections.singletonList(recipient));
+			}
+
+			@Override
+			protected void ensureBroadcastMessageRecipients(String id, List<BareJID> recipients) {
+				batches.add(new ArrayList<>(recipients));
+				if (storing != null) {
+					storing.countDown();
+					try {
+						stored.await(10, TimeUnit.SECONDS);
+					} catch (InterruptedException ex) {
+						throw new RuntimeException(ex);
+					}
+				}
+			}
+
+			@Override
+			protected void insertBroadcastMessage(String id, Element msg, Date expire, BareJID recipient) {
+			}
+		};
+		setField(repo, "userRepository", stub(UserRepository.class, (proxy, method, args) -> {
+			if ("getUserUID".equals(method.getName())) {
+				BareJID jid = (BareJID) args[0];
+				lookups.computeIfAbsent(jid, k -> new AtomicInteger()).incrementAndGet();
+				return jid.getLocalpart().startsWith("user") ? Long.parseLong(jid.getLocalpart().substring(4)) : -1L;
+			}
+			return null;
+		}));
+	}
+
+	@Test
+	public void testRecipients() {
+		BareJID local = BareJID.bareJIDInstanceNS("user1@example.com");
+		BareJID remote = BareJID.bareJIDInstanceNS("remote@example.net");
+		BareJID other = BareJID.bareJIDInstanceNS("user2@example.com");
+
+		assertTrue(repo.updateBroadcastMessage("msg1", msg, expire, local));
+		assertFalse(repo.updateBroadcastMessage("msg1", msg, expire, remote));
+		MsgBroadcastRepository.BroadcastMsg bmsg = repo.getBroadcastMsg("msg1");
+		assertEquals(2, bmsg.getRecipientsCount());
+
+		assertTrue(bmsg.needToSend(JID.jidInstance(local, "res1")));
+		assertTrue(bmsg.needToSend(JID.jidInstance(remote, "res1")));
+		assertFalse(bmsg.needToSend(JID.jidInstance(other, "res1")));
+
+		bmsg.markAsSent(JID.jidInstance(local, "res1"));
+		bmsg.markAsSent(JID.jidInstance(remote, "res1"));
+		assertFalse(bmsg.needToSend(JID.jidInstance(local, "res1")));
+		assertTrue(bmsg.needToSend(JID.jidInstance(local, "res2")));
+		assertFalse(bmsg.needToSend(JID.jidInstance(remote, "res1")));
+		assertTrue(bmsg.needToSend(JID.jidInstance(remote, "res2")));
+
+		// adding the same recipient again does not store it again
+		assertFalse(repo.updateBroadcastMessage("msg1", msg, expire, local));
+		assertEquals(2, bmsg.getRecipientsCount());
+		assertEquals(2, batches.size());
+
+		// every user is looked up only once
+		assertEquals(1, lookups.get(local).get());
+		assertEquals(1, lookups.get(remote).get());
+		assertEquals(1, lookups.get(other).get());
+	}
+
+	@Test
+	public void testRecipientUIDsSharedBetweenMessages() {
+		BareJID local = BareJID.bareJIDInstanceNS("user1@example.com");
+		repo.updateBroadcastMessage("msg1", msg, expire, local);
+		repo.updateBroadcastMessage("msg2", msg, expire, local);
+		assertTrue(repo.getBroadcastMsg("msg2").needToSend(JID.jidInstance(local, "res1")));
+		assertEquals(1, repo.getRecipientUID(local));
+		assertEquals(1, lookups.get(local).get());
+	}
+
+	@Test
+	public void testRemoteRecipientsNotLookedUp() throws Exception {
+		setField(repo, "vHostManager", stub(VHostManagerIfc.class, (proxy, method, args) -> {
+			if ("isLocalDomain".equals(method.getName())) {
+				return "example.com".equals(args[0]);
+			}
+			return null;
+		}));
+
+		BareJID remote = BareJID.bareJIDInstanceNS("user3@example.net");
+		repo.updateBroadcastMessage("msg1", msg, expire, remote);
+		assertTrue(repo.getBroadcastMsg("msg1").needToSend(JID.jidInstance(remote, "res1")));
+		assertEquals(-1, repo.getRecipientUID(remote));
+		assertNull(lookups.get(remote));
+	}
+
+	@Test
+	public void testMarkAsSentManyResources() {
+		BareJID local = BareJID.bareJIDInstanceNS("user1@example.com");
+		repo.updateBroadcastMessage("msg1", msg, expire, local);
+		MsgBroadcastRepository.BroadcastMsg bmsg = repo.getBroadcastMsg("msg1");
+		// enough resources to resize the set of hashes a few times
+		for (int i = 0; i < 1000; i++) {
+			bmsg.markAsSent(JID.jidInstance(local, "res" + i));
+		}
+		for (int i = 0; i < 1000; i++) {
+			assertFalse(bmsg.needToSend(JID.jidInstance(local, "res" + i)));
+		}
+		for (int i = 1000; i < 2000; i++) {
+			assertTrue(bmsg.needToSend(JID.jidInstance(local, "res" + i)));
+		}
+		// message to bare JID is always sent to a recipient
+		assertTrue(bmsg.needToSend(JID.jidInstance(local)));
+	}
+
+	@Test
+	public void testRecipientsStoredInBatches() throws Exception {
+		repo.updateBroadcastMessage("msg1", msg, expire, BareJID.bareJIDInstanceNS("user0@example.com"));
+		batches.clear();
+
+		storing = new CountDownLatch(1);
+		stored = new CountDownLatch(1);
+		Thread thread = new Thread(() -> repo.updateBroadcastMessage("msg1", msg, expire,
+																	 BareJID.bareJIDInstanceNS("user1@example.com")));
+		thread.start();
+		assertTrue(storing.await(10, TimeUnit.SECONDS));
+
+		// recipients added while other thread is storing are queued and stored by that thread
+		for (int i = 2; i < 12; i++) {
+			repo.updateBroadcastMessage("msg1", msg, expire, BareJID.bareJIDInstanceNS("user" + i + "@example.com"));
+		}
+		assertEquals(1, batches.size());
+		storing = null;
+		stored.countDown();
+		thread.join(10000);
+
+		assertEquals(2, batches.size());
+		assertEquals(1, batches.get(0).size());
+		assertEquals(10, batches.get(1).size());
+		assertEquals(12, repo.getBroadcastMsg("msg1").getRecipientsCount());
+	}
+}
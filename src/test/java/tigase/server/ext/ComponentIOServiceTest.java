@@ -0,0 +1,66 @@
+/*
+ * Tigase XMPP Server - The instant messaging server
+ * Copyright (C) 2004 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.server.ext;
+
+import org.junit.Test;
+import tigase.server.Packet;
+import tigase.xml.Element;
+
+import static org.junit.Assert.*;
+
+public class ComponentIOServiceTest {
+
+	@Test
+	public void testQueueCapacity() throws Exception {
+		ComponentIOService serv = new ComponentIOService();
+		serv.setMaxQueueSize(2);
+		assertTrue(serv.hasQueueCapacity());
+
+		serv.addPacketToSend(packet());
+		assertTrue(serv.hasQueueCapacity());
+		serv.addPacketToSend(packet());
+		assertEquals(2, serv.getWaitingPacketsSize());
+		assertTrue(serv.isQueueFull());
+		assertFalse(serv.hasQueueCapacity());
+		assertFalse(serv.hasQueueCapacity());
+		assertEquals(2, serv.getQueueOverflows());
+
+		serv.clearWaitingPackets();
+		assertEquals(0, serv.getWaitingPacketsSize());
+		assertTrue(serv.hasQueueCapacity());
+		assertEquals(2, serv.getQueueOverflows());
+	}
+
+	@Test
+	public void testUnlimitedQueue() throws Exception {
+		ComponentIOService serv = new ComponentIOService();
+		serv.setMaxQueueSize(0);
+		for (int i = 0; i < 100; i++) {
+			serv.addPacketToSend(packet());
+		}
+		assertFalse(serv.isQueueFull());
+		assertTrue(serv.hasQueueCapacity());
+		assertEquals(0, serv.getQueueOverflows());
+	}
+
+	private static Packet packet() throws Exception {
+		Element elem = new Element("message", new String[]{"from", "to"},
+								   new String[]{"romeo@example.net", "juliet@component.example.com"});
+		return Packet.packetInstance(elem);
+	}
+}
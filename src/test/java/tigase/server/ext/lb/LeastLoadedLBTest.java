@@ -0,0 +1,126 @@
+/*
+ * Tigase XMPP Server - The instant messaging server
+ * Copyright (C) 2004 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.server.ext.lb;
+
+import org.junit.Test;
+import tigase.server.Packet;
+import tigase.server.ext.ComponentConnection;
+import tigase.server.ext.ComponentIOService;
+import tigase.xml.Element;
+import tigase.xmpp.jid.BareJID;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertSame;
+
+public class LeastLoadedLBTest {
+
+	@Test
+	public void testLeastLoaded() throws Exception {
+		TestIOService serv1 = new TestIOService(TimeUnit.MILLISECONDS.toNanos(5));
+		TestIOService serv2 = new TestIOService(TimeUnit.MILLISECONDS.toNanos(2));
+		TestIOService serv3 = new TestIOService(TimeUnit.MILLISECONDS.toNanos(3));
+		List<ComponentConnection> conns = connections(serv1, serv2, serv3);
+
+		LeastLoadedLB lb = new LeastLoadedLB();
+		assertSame(serv2, lb.selectConnection(packet("juliet@example.com"), conns));
+
+		serv2.queueFull = true;
+		assertSame(serv3, lb.selectConnection(packet("juliet@example.com"), conns));
+
+		serv3.connected = false;
+		assertSame(serv1, lb.selectConnection(packet("juliet@example.com"), conns));
+
+		serv1.queueFull = true;
+		assertSame(null, lb.selectConnection(packet("juliet@example.com"), conns));
+	}
+
+	@Test
+	public void testStickyConnection() throws Exception {
+		TestIOService serv1 = new TestIOService(TimeUnit.MILLISECONDS.toNanos(2));
+		TestIOService serv2 = new TestIOService(TimeUnit.MILLISECONDS.toNanos(1));
+		List<ComponentConnection> conns = connections(serv1, serv2);
+		String jid = jidHashedTo(0, conns.size());
+
+		LeastLoadedLB lb = new ReceiverBareJidLeastLoadedLB();
+		// connection selected by hash is used while it is not much more loaded than the least loaded one
+		assertSame(serv1, lb.selectConnection(packet(jid + "/resource"), conns));
+
+		serv1.load = TimeUnit.MILLISECONDS.toNanos(5);
+		assertSame(serv2, lb.selectConnection(packet(jid + "/resource"), conns));
+
+		// low load is never considered as skewed
+		serv1.load = LeastLoadedLB.MIN_SKEWED_LOAD - 1;
+		serv2.load = 1;
+		assertSame(serv1, lb.selectConnection(packet(jid), conns));
+
+		serv1.queueFull = true;
+		assertSame(serv2, lb.selectConnection(packet(jid), conns));
+	}
+
+	private static List<ComponentConnection> connections(ComponentIOService... services) {
+		ComponentConnection[] conns = new ComponentConnection[services.length];
+		for (int i = 0; i < services.length; i++) {
+			conns[i] = new ComponentConnection("component.example.com", services[i]);
+		}
+		return Arrays.asList(conns);
+	}
+
+	private static String jidHashedTo(int idx, int size) {
+		for (int i = 0; ; i++) {
+			String jid = "user" + i + "@example.com";
+			if (Math.abs(BareJID.bareJIDInstanceNS(jid).hashCode() % size) == idx) {
+				return jid;
+			}
+		}
+	}
+
+	private static Packet packet(String to) throws Exception {
+		Element elem = new Element("message", new String[]{"from", "to"}, new String[]{"romeo@example.net", to});
+		return Packet.packetInstance(elem);
+	}
+
+	private static class TestIOService
+			extends ComponentIOService {
+
+		private boolean connected = true;
+		private long load;
+		private boolean queueFull = false;
+
+		private TestIOService(long load) {
+			this.load = load;
+		}
+
+		@Override
+		public long getLoad() {
+			return load;
+		}
+
+		@Override
+		public boolean isConnected() {
+			return connected;
+		}
+
+		@Override
+		public boolean isQueueFull() {
+			return queueFull;
+		}
+	}
+}
@@ -31,6 +31,9 @@ import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.Optional;
+import java.util.zip.Deflater;
+
+import static tigase.TestHelper.setField;
 
 /**
  * @author andrzej
@@ -70,7 +73,32 @@ public class WebSocketHybiTest
 		ByteBuffer tmp1 = maskFrame(tmp);
 		ByteBuffer decoded = impl.decodeFrame(io, tmp1);
 		Assert.assertArrayEquals("Data before encoding do not match data after decoding", input.getBytes(),
-								 decoded.array());
+								 toBytes(decoded));
+	}
+
+	@Test
+	public void testMaskedFrameDecoding() throws Exception {
+		// From RFC 6455, single-frame masked text message
+		ByteBuffer frame = ByteBuffer.wrap(
+				new byte[]{(byte) 0x81, (byte) 0x85, 0x37, (byte) 0xfa, 0x21, 0x3d, 0x7f, (byte) 0x9f, 0x4d, 0x51,
+						   0x58});
+		WebSocketXMPPIOService<Object> io = new WebSocketXMPPIOService<Object>(
+				new WebSocketProtocolIfc[]{new WebSocketHybi()});
+		io.maskingKey = new byte[4];
+		Assert.assertArrayEquals("Hello".getBytes(), toBytes(impl.decodeFrame(io, frame)));
+
+		byte[] maskingKey = new byte[]{0x12, (byte) 0x9a, 0x7f, (byte) 0xe3};
+		byte[] input = "<message to='user@example.com'><body>unmasked in place</body></message>".getBytes();
+		ByteBuffer masked = ByteBuffer.allocate(input.length + 8);
+		masked.put((byte) 0x81).put((byte) (0x80 | input.length)).put(maskingKey);
+		for (int i = 0; i < input.length; i++) {
+			masked.put((byte) (input[i] ^ maskingKey[i % 4]));
+		}
+		masked.put((byte) 0x81).put((byte) 0x80);
+		masked.flip();
+		Assert.assertArrayEquals(input, toBytes(impl.decodeFrame(io, masked)));
+		assertEquals("Remaining data of the next frame was modified", 2, masked.remaining());
+		assertEquals((byte) 0x81, masked.get(masked.position()));
 	}
 
 	@Test
@@ -164,10 +192,10 @@ public class WebSocketHybiTest
 		io.maskingKey = new byte[4];
 		ByteBuffer decoded = impl.decodeFrame(io, tmp);
 		Assert.assertArrayEquals("Data of first frame before encoding do not match data after decoding",
-								 input1.getBytes(), decoded.array());
+								 input1.getBytes(), toBytes(decoded));
 		decoded = impl.decodeFrame(io, tmp);
 		Assert.assertArrayEquals("Data of second frame before encoding do not match data after decoding",
-								 input2.getBytes(), decoded.array());
+								 input2.getBytes(), toBytes(decoded));
 	}
 
 	@Test
@@ -198,17 +226,141 @@ public class WebSocketHybiTest
 		ByteBuffer decoded = impl.decodeFrame(io, tmp);
 		Assert.assertNotNull(decoded);
 		Assert.assertArrayEquals("Data of first frame before encoding do not match data after decoding", new byte[0],
-								 decoded.array());
+								 toBytes(decoded));
 		tmp2.flip();
 		Assert.assertNotEquals("PONG frame not sent!", 0, tmp2.remaining());
 		assertEquals("PONG frame not sent!", (byte) 0x8A, tmp2.get(0));
 
 		decoded = impl.decodeFrame(io, tmp);
 		Assert.assertArrayEquals("Data of second frame before encoding do not match data after decoding",
-								 input2.getBytes(), decoded.array());
+								 input2.getBytes(), toBytes(decoded));
 
 	}
 
+	@Test
+	public void testPerMessageDeflateNegotiation() throws Exception {
+		String offer = "permessage-deflate; server_max_window_bits=10, permessage-deflate; client_max_window_bits";
+
+		// extension is disabled by default
+		StringBuilder response = new StringBuilder();
+		WebSocketXMPPIOService<Object> io = handshake(offer, response);
+		Assert.assertNull(io.perMessageDeflate);
+		Assert.assertFalse(response.toString().contains("Sec-WebSocket-Extensions"));
+
+		setField(impl, "permessageDeflate", true);
+		response = new StringBuilder();
+		io = handshake(offer, response);
+		Assert.assertNotNull(io.perMessageDeflate);
+		Assert.assertTrue(response.toString(),
+						  response.toString().contains("Sec-WebSocket-Extensions: permessage-deflate\r\n"));
+
+		// window smaller than 15 bits is not supported
+		response = new StringBuilder();
+		io = handshake("permessage-deflate; server_max_window_bits=10", response);
+		Assert.assertNull(io.perMessageDeflate);
+		Assert.assertFalse(response.toString().contains("Sec-WebSocket-Extensions"));
+
+		response = new StringBuilder();
+		io = handshake("permessage-deflate; server_no_context_takeover; client_no_context_takeover", response);
+		Assert.assertNotNull(io.perMessageDeflate);
+		Assert.assertTrue(response.toString(), response.toString()
+				.contains("Sec-WebSocket-Extensions: permessage-deflate; server_no_context_takeover; " +
+								  "client_no_context_takeover\r\n"));
+	}
+
+	@Test
+	public void testPerMessageDeflateRoundTrip() throws Exception {
+		PerMessageDeflate.Statistics statistics = new PerMessageDeflate.Statistics();
+		PerMessageDeflate.DeflaterPool pool = new PerMessageDeflate.DeflaterPool(1);
+		final ByteBuffer tmp = ByteBuffer.allocate(1024);
+		WebSocketXMPPIOService<Object> sender = new WebSocketXMPPIOService<Object>(
+				new WebSocketProtocolIfc[]{new WebSocketHybi()}) {
+
+			@Override
+			protected void writeBytes(ByteBuffer data) {
+				tmp.put(data);
+			}
+
+		};
+		sender.perMessageDeflate = new PerMessageDeflate(6, false, false, 1024 * 1024, pool, statistics);
+		WebSocketXMPPIOService<Object> receiver = new WebSocketXMPPIOService<Object>(
+				new WebSocketProtocolIfc[]{new WebSocketHybi()});
+		receiver.maskingKey = new byte[4];
+		receiver.perMessageDeflate = new PerMessageDeflate(6, false, false, 1024 * 1024, pool, statistics);
+
+		for (int i = 0; i < 3; i++) {
+			StringBuilder sb = new StringBuilder("<message to='juliet@example.com' id='" + i + "'><body>");
+			for (int j = 0; j < 20; j++) {
+				sb.append("Wherefore art thou Romeo? ");
+			}
+			byte[] input = sb.append("</body></message>").toString().getBytes();
+
+			tmp.clear();
+			impl.encodeFrameAndWrite(sender, ByteBuffer.wrap(input));
+			tmp.flip();
+			assertEquals("Compressed frame should have RSV1 bit set", (byte) 0xC1, tmp.get(0));
+			Assert.assertTrue(tmp.remaining() < input.length);
+
+			ByteBuffer decoded = impl.decodeFrame(receiver, maskFrame(tmp));
+			Assert.assertArrayEquals(input, toBytes(decoded));
+		}
+
+		// short messages are sent uncompressed
+		tmp.clear();
+		impl.encodeFrameAndWrite(sender, ByteBuffer.wrap("<r/>".getBytes()));
+		tmp.flip();
+		assertEquals((byte) 0x81, tmp.get(0));
+		Assert.assertArrayEquals("<r/>".getBytes(), toBytes(impl.decodeFrame(receiver, maskFrame(tmp))));
+	}
+
+	@Test
+	public void testPerMessageDeflateAfterEnd() throws Exception {
+		PerMessageDeflate deflate = new PerMessageDeflate(6, false, false, 1024 * 1024,
+														  new PerMessageDeflate.DeflaterPool(1),
+														  new PerMessageDeflate.Statistics());
+		byte[] input = "<message><body>Hello</body></message>".getBytes();
+		ByteBuffer compressed = deflate.compress(ByteBuffer.wrap(input));
+		Assert.assertNotNull(compressed);
+		Assert.assertArrayEquals(input, toBytes(deflate.decompress(compressed, true)));
+
+		deflate.end();
+		Assert.assertNull(deflate.compress(ByteBuffer.wrap(input)));
+		ByteBuffer data = ByteBuffer.wrap(new byte[]{0x01, 0x02});
+		Assert.assertNull(deflate.decompress(data, true));
+		Assert.assertFalse(data.hasRemaining());
+	}
+
+	@Test
+	public void testPerMessageDeflaterPool() throws Exception {
+		PerMessageDeflate.DeflaterPool pool = new PerMessageDeflate.DeflaterPool(1);
+		PerMessageDeflate.Statistics statistics = new PerMessageDeflate.Statistics();
+		PerMessageDeflate deflate1 = new PerMessageDeflate(6, false, true, 1024 * 1024, pool, statistics);
+		PerMessageDeflate deflate2 = new PerMessageDeflate(6, false, true, 1024 * 1024, pool, statistics);
+		PerMessageDeflate inflate = new PerMessageDeflate(6, false, false, 1024 * 1024, pool, statistics);
+
+		// deflater is returned to the pool after every message, so it does not keep context of previous message
+		byte[] input = "<message><body>Hello</body></message>".getBytes();
+		ByteBuffer first = deflate1.compress(ByteBuffer.wrap(input));
+		byte[] compressed = toBytes(first);
+		Assert.assertEquals(1, pool.getIdleCount());
+		Assert.assertArrayEquals(compressed, toBytes(deflate2.compress(ByteBuffer.wrap(input))));
+		Assert.assertEquals(1, pool.getIdleCount());
+		Assert.assertArrayEquals(input, toBytes(inflate.decompress(first, true)));
+
+		// deflaters over the limit of idle deflaters are released
+		Deflater d1 = pool.acquire(6);
+		Deflater d2 = pool.acquire(6);
+		Assert.assertEquals(0, pool.getIdleCount());
+		pool.release(d1);
+		pool.release(d2);
+		Assert.assertEquals(1, pool.getIdleCount());
+
+		pool.end();
+		Assert.assertEquals(0, pool.getIdleCount());
+		Assert.assertArrayEquals(compressed, toBytes(deflate1.compress(ByteBuffer.wrap(input))));
+		Assert.assertEquals(0, pool.getIdleCount());
+	}
+
 	@Override
 	protected void setUp() throws Exception {
 		impl = new WebSocketHybi();
@@ -219,6 +371,40 @@ public class WebSocketHybiTest
 		impl = null;
 	}
 
+	private WebSocketXMPPIOService<Object> handshake(String extensions, final StringBuilder response)
+			throws Exception {
+		WebSocketXMPPIOService<Object> io = new WebSocketXMPPIOService<Object>(
+				new WebSocketProtocolIfc[]{impl}) {
+
+			@Override
+			public int getLocalPort() {
+				return 80;
+			}
+
+			@Override
+			protected void writeData(String data) {
+				response.append(data);
+			}
+
+		};
+		Map<String, String> params = new HashMap<String, String>();
+		params.put("Sec-WebSocket-Version".toUpperCase(), "13");
+		params.put("Sec-WebSocket-Key".toUpperCase(), "some random data as a key");
+		params.put("Sec-WebSocket-Protocol".toUpperCase(), "xmpp");
+		params.put("Sec-WebSocket-Extensions".toUpperCase(), extensions);
+		byte[] bytes = new byte[10];
+		bytes[0] = '\r';
+		bytes[1] = '\n';
+		Assert.assertTrue("Handshake failed", impl.handshake(io, params, bytes));
+		return io;
+	}
+
+	private byte[] toBytes(ByteBuffer data) {
+		byte[] bytes = new byte[data.remaining()];
+		data.duplicate().get(bytes);
+		return bytes;
+	}
+
 	private ByteBuffer maskFrame(ByteBuffer data) {
 		ByteBuffer tmp = ByteBuffer.allocate(1024);
 		byte[] header = new byte[2];
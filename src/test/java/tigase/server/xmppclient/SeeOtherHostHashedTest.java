@@ -0,0 +1,62 @@
+/*
+ * Tigase XMPP Server - The instant messaging server
+ * Copyright (C) 2004 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.server.xmppclient;
+
+import org.junit.Test;
+import tigase.xmpp.jid.BareJID;
+import tigase.xmpp.jid.JID;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class SeeOtherHostHashedTest {
+
+	@Test
+	public void testNodeJoin() {
+		SeeOtherHostHashed seeOtherHost = new SeeOtherHostHashed();
+		List<JID> nodes = new ArrayList<>();
+		for (int i = 1; i <= 3; i++) {
+			nodes.add(JID.jidInstanceNS("sess-man", "node" + i + ".example.com", null));
+		}
+		seeOtherHost.setNodes(nodes);
+
+		BareJID local = BareJID.bareJIDInstanceNS("node1.example.com");
+		BareJID[] before = new BareJID[3000];
+		for (int i = 0; i < before.length; i++) {
+			before[i] = seeOtherHost.findHostForJID(BareJID.bareJIDInstanceNS("user" + i + "@example.com"), local);
+		}
+
+		nodes.add(JID.jidInstanceNS("sess-man", "node4.example.com", null));
+		seeOtherHost.setNodes(nodes);
+
+		int moved = 0;
+		for (int i = 0; i < before.length; i++) {
+			BareJID host = seeOtherHost.findHostForJID(BareJID.bareJIDInstanceNS("user" + i + "@example.com"), local);
+			if (!host.equals(before[i])) {
+				assertEquals("node4.example.com", host.getDomain());
+				moved++;
+			}
+		}
+		// about 1/4 of users should be moved to the new node
+		assertTrue("Moved " + moved + " users", moved > 600 && moved < 900);
+	}
+
+}
@@ -0,0 +1,65 @@
+/*
+ * Tigase XMPP Server - The instant messaging server
+ * Copyright (C) 2004 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.util;
+
+import org.junit.Test;
+import tigase.util.common.CompressedBitmap;
+
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+import static org.junit.Assert.*;
+
+public class CompressedBitmapTest {
+
+	@Test
+	public void testAddContainsRemove() {
+		CompressedBitmap bitmap = new CompressedBitmap();
+		Set<Long> expected = new HashSet<>();
+		Random random = new Random(1);
+		for (int i = 0; i < 50000; i++) {
+			// mix of dense and sparse values
+			long value = i % 2 == 0 ? random.nextInt(20000) : Math.abs(random.nextLong() >>> 8);
+			assertEquals(expected.add(value), bitmap.add(value));
+		}
+		for (int i = 0; i < 10000; i++) {
+			long value = random.nextInt(20000);
+			assertEquals(expected.remove(value), bitmap.remove(value));
+		}
+		assertEquals(expected.size(), bitmap.getCardinality());
+		for (long value : expected) {
+			assertTrue(bitmap.contains(value));
+		}
+		for (int i = 0; i < 20000; i++) {
+			assertEquals(expected.contains((long) i), bitmap.contains(i));
+		}
+		assertFalse(bitmap.contains(-1));
+	}
+
+	@Test
+	public void testDenseValuesAreCompact() {
+		CompressedBitmap bitmap = new CompressedBitmap();
+		for (long i = 1; i <= 1000000; i++) {
+			bitmap.add(i);
+		}
+		assertEquals(1000000, bitmap.getCardinality());
+		assertTrue(bitmap.getSizeInBytes() < 200 * 1024);
+	}
+
+}
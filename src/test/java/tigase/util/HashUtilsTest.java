@@ -0,0 +1,50 @@
+/*
+ * Tigase XMPP Server - The instant messaging server
+ * Copyright (C) 2004 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.util;
+
+import org.junit.Test;
+import tigase.util.common.HashUtils;
+
+import static org.junit.Assert.*;
+
+public class HashUtilsTest {
+
+	@Test
+	public void testHashIsStable() {
+		// hashes are used to find owners of keys by all cluster nodes, so they may not change between versions
+		assertEquals(0x7c75b6d597c84c28L, HashUtils.hash64("juliet@example.com"));
+		assertEquals(HashUtils.mix64(0xcbf29ce484222325L), HashUtils.hash64(""));
+	}
+
+	@Test
+	public void testSeed() {
+		assertEquals(HashUtils.hash64("juliet@example.com"), HashUtils.hash64("juliet@example.com", 0xcbf29ce484222325L));
+		assertNotEquals(HashUtils.hash64("juliet@example.com"), HashUtils.hash64("juliet@example.com", 0x84222325cbf29ce4L));
+	}
+
+	@Test
+	public void testHighBitsOfShortStrings() {
+		int highBitSet = 0;
+		for (int i = 0; i < 1000; i++) {
+			if (HashUtils.hash64(String.valueOf(i)) < 0) {
+				highBitSet++;
+			}
+		}
+		assertTrue(String.valueOf(highBitSet), highBitSet > 400 && highBitSet < 600);
+	}
+}
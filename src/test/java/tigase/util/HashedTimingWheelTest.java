@@ -0,0 +1,112 @@
+/*
+ * Tigase XMPP Server - The instant messaging server
+ * Copyright (C) 2004 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.util;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import tigase.util.common.HashedTimingWheel;
+import tigase.util.common.TimerTask;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class HashedTimingWheelTest {
+
+	private HashedTimingWheel wheel;
+
+	@Before
+	public void setUp() {
+		wheel = new HashedTimingWheel("test-wheel", 10, TimeUnit.MILLISECONDS, 8);
+		wheel.start();
+	}
+
+	@After
+	public void tearDown() {
+		wheel.stop();
+	}
+
+	@Test
+	public void testExpiration() throws InterruptedException {
+		CountDownLatch latch = new CountDownLatch(2);
+		long start = System.nanoTime();
+		wheel.schedule(latch::countDown, 20, TimeUnit.MILLISECONDS);
+		// longer than a single round of the wheel
+		wheel.schedule(latch::countDown, 150, TimeUnit.MILLISECONDS);
+
+		assertTrue(latch.await(5, TimeUnit.SECONDS));
+		assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) >= 150);
+		assertEquals(2, wheel.getExpiredCount());
+		assertEquals(0, wheel.getScheduledCount());
+	}
+
+	@Test
+	public void testCancellation() throws InterruptedException {
+		AtomicInteger executed = new AtomicInteger();
+		TimerTask task = new TimerTask() {
+			@Override
+			public void run() {
+				executed.incrementAndGet();
+			}
+		};
+		wheel.schedule(task, 50);
+		assertTrue(task.isScheduled());
+		task.cancel();
+
+		CountDownLatch latch = new CountDownLatch(1);
+		wheel.schedule(latch::countDown, 100, TimeUnit.MILLISECONDS);
+		assertTrue(latch.await(5, TimeUnit.SECONDS));
+
+		assertEquals(0, executed.get());
+		assertEquals(0, wheel.getScheduledCount());
+		assertNull(wheel.schedule(task, 10));
+	}
+
+	@Test
+	public void testCancellationDuringScheduling() throws InterruptedException {
+		AtomicInteger executed = new AtomicInteger();
+		TimerTask task = new TimerTask() {
+			@Override
+			public void run() {
+				executed.incrementAndGet();
+			}
+
+			@Override
+			public void setScheduledFuture(ScheduledFuture<?> future) {
+				// cancelled by other thread after wheel checked the task, before the new future is set
+				if (future != null) {
+					cancel();
+				}
+				super.setScheduledFuture(future);
+			}
+		};
+		assertNull(wheel.schedule(task, 20));
+		assertFalse(task.isScheduled());
+
+		CountDownLatch latch = new CountDownLatch(1);
+		wheel.schedule(latch::countDown, 100, TimeUnit.MILLISECONDS);
+		assertTrue(latch.await(5, TimeUnit.SECONDS));
+
+		assertEquals(0, executed.get());
+		assertEquals(0, wheel.getScheduledCount());
+	}
+}
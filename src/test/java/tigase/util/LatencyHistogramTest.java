@@ -0,0 +1,43 @@
+/*
+ * Tigase XMPP Server - The instant messaging server
+ * Copyright (C) 2004 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.util;
+
+import org.junit.Test;
+import tigase.util.common.LatencyHistogram;
+
+import static org.junit.Assert.*;
+
+public class LatencyHistogramTest {
+
+	@Test
+	public void testPercentiles() {
+		LatencyHistogram histogram = new LatencyHistogram();
+		assertEquals(0, histogram.getPercentile(99));
+		for (int i = 0; i < 990; i++) {
+			histogram.record(1000);
+		}
+		for (int i = 0; i < 10; i++) {
+			histogram.record(1000000);
+		}
+		assertEquals(1000, histogram.getCount());
+		assertEquals(1023, histogram.getPercentile(50));
+		assertEquals(1023, histogram.getPercentile(99));
+		assertEquals((1 << 20) - 1, histogram.getPercentile(99.9));
+		assertEquals((990 * 1000 + 10 * 1000000) / 1000, histogram.getAverage());
+	}
+}
@@ -0,0 +1,143 @@
+/*
+ * Tigase XMPP Server - The instant messaging server
+ * Copyright (C) 2004 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.util;
+
+import org.junit.Test;
+import tigase.util.common.OffHeapStore;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class OffHeapStoreTest {
+
+	@Test
+	public void testPutGetRemove() {
+		OffHeapStore store = new OffHeapStore(64, 1024);
+		long h1 = store.put(bytes("first"));
+		long h2 = store.put(bytes("second"));
+		assertEquals("first", string(store.get(h1)));
+		assertEquals("second", string(store.get(h2)));
+		assertEquals(2, store.getEntries());
+		assertEquals(64, store.getAllocatedBytes());
+
+		store.remove(h1);
+		store.remove(h2);
+		assertEquals(0, store.getEntries());
+		assertEquals(0, store.getUsedBytes());
+	}
+
+	@Test
+	public void testSegmentsReuse() {
+		OffHeapStore store = new OffHeapStore(64, 256);
+		List<Long> handles = new ArrayList<>();
+		for (int i = 0; i < 1000; i++) {
+			handles.add(store.put(bytes("item-" + i)));
+			if (handles.size() > 10) {
+				long handle = handles.remove(0);
+				assertNotEquals(OffHeapStore.NO_HANDLE, handle);
+				assertEquals("item-" + (i - 10), string(store.get(handle)));
+				store.remove(handle);
+			}
+		}
+		assertEquals(0, store.getRejected());
+		assertTrue(store.getAllocatedBytes() <= 256);
+	}
+
+	@Test
+	public void testLimits() {
+		OffHeapStore store = new OffHeapStore(16, 64);
+		byte[] large = new byte[100];
+		assertEquals(OffHeapStore.NO_HANDLE, store.put(large));
+
+		long handle = store.put(new byte[40]);
+		assertNotEquals(OffHeapStore.NO_HANDLE, handle);
+		assertEquals(48, store.getAllocatedBytes());
+		assertEquals(OffHeapStore.NO_HANDLE, store.put(new byte[30]));
+		assertEquals(2, store.getRejected());
+
+		store.remove(handle);
+		assertEquals(0, store.getAllocatedBytes());
+		assertNotEquals(OffHeapStore.NO_HANDLE, store.put(new byte[30]));
+	}
+
+	@Test
+	public void testCompaction() {
+		// 4 entries of 28 bytes (including header) fit in a segment
+		OffHeapStore store = new OffHeapStore(128, 384);
+		List<Long> handles = new ArrayList<>();
+		for (int i = 0; i < 8; i++) {
+			handles.add(store.put(bytes(String.format("entry-%014d", i))));
+		}
+		assertEquals(256, store.getAllocatedBytes());
+
+		// less than half of the first segment is used, so it is reused before a new segment is allocated
+		store.remove(handles.get(0));
+		store.remove(handles.get(1));
+		for (int i = 0; i < 2; i++) {
+			assertNotEquals(OffHeapStore.NO_HANDLE, store.put(bytes(String.format("other-%014d", i))));
+		}
+		assertEquals(1, store.getCompactions());
+		assertEquals(256, store.getAllocatedBytes());
+		for (int i = 2; i < 8; i++) {
+			assertEquals(String.format("entry-%014d", i), string(store.get(handles.get(i))));
+		}
+
+		for (int i = 2; i < 6; i++) {
+			assertNotEquals(OffHeapStore.NO_HANDLE, store.put(bytes(String.format("other-%014d", i))));
+		}
+		assertEquals(384, store.getAllocatedBytes());
+		assertEquals(0, store.getRejected());
+	}
+
+	@Test
+	public void testOutOfOrderRemoval() {
+		OffHeapStore store = new OffHeapStore(128, 512);
+		List<Long> kept = new ArrayList<>();
+		for (int i = 0; i < 100; i++) {
+			List<Long> handles = new ArrayList<>();
+			for (int j = 0; j < 4; j++) {
+				long handle = store.put(bytes(String.format("entry-%07d-%06d", i, j)));
+				assertNotEquals(OffHeapStore.NO_HANDLE, handle);
+				handles.add(handle);
+			}
+			// one entry of each segment stays for longer, without compaction it would keep the whole segment
+			kept.add(handles.remove(0));
+			for (long handle : handles) {
+				store.remove(handle);
+			}
+			if (kept.size() > 8) {
+				store.remove(kept.remove(0));
+			}
+		}
+		assertEquals(0, store.getRejected());
+		for (int i = 0; i < kept.size(); i++) {
+			assertEquals(String.format("entry-%07d-%06d", 100 - kept.size() + i, 0), string(store.get(kept.get(i))));
+		}
+	}
+
+	private static byte[] bytes(String str) {
+		return str.getBytes(StandardCharsets.UTF_8);
+	}
+
+	private static String string(byte[] data) {
+		return new String(data, StandardCharsets.UTF_8);
+	}
+}
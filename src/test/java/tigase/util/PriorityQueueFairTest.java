@@ -0,0 +1,83 @@
+/*
+ * Tigase XMPP Server - The instant messaging server
+ * Copyright (C) 2004 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.util;
+
+import org.junit.Test;
+import tigase.util.workqueue.PriorityQueueFair;
+
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+public class PriorityQueueFairTest {
+
+	@Test
+	public void testRoundRobinBetweenFlows() throws InterruptedException {
+		PriorityQueueFair<String> queue = createQueue(100);
+		queue.setQuantum(2);
+		for (int i = 0; i < 6; i++) {
+			assertTrue(queue.offer("bulk:" + i, 1));
+		}
+		assertTrue(queue.offer("user:0", 1));
+		assertTrue(queue.offer("user:1", 1));
+
+		assertEquals("bulk:0", queue.take());
+		assertEquals("bulk:1", queue.take());
+		assertEquals("user:0", queue.take());
+		assertEquals("user:1", queue.take());
+		assertEquals("bulk:2", queue.take());
+		assertEquals(3, queue.totalSize());
+	}
+
+	@Test
+	public void testPriorities() throws InterruptedException {
+		PriorityQueueFair<String> queue = createQueue(100);
+		assertTrue(queue.offer("bulk:low", 2));
+		assertTrue(queue.offer("user:high", 0));
+
+		assertEquals("user:high", queue.take());
+		assertEquals("bulk:low", queue.take());
+		assertEquals(0, queue.totalSize());
+	}
+
+	@Test
+	public void testFlowLimit() throws InterruptedException {
+		PriorityQueueFair<String> queue = createQueue(100);
+		queue.setMaxFlowSize(3);
+		for (int i = 0; i < 5; i++) {
+			queue.offer("bulk:" + i, 1);
+		}
+		assertTrue(queue.offer("user:0", 1));
+		assertEquals(2, queue.getRejected());
+		assertArrayEquals(new int[]{0, 4, 0}, queue.size());
+
+		Map<Object, Integer> top = queue.getTopFlows(1);
+		assertEquals(1, top.size());
+		assertEquals(Integer.valueOf(3), top.get("bulk"));
+
+		queue.put("bulk:5", 1);
+		assertEquals(5, queue.totalSize());
+	}
+
+	private static PriorityQueueFair<String> createQueue(int maxSize) {
+		PriorityQueueFair<String> queue = new PriorityQueueFair<>();
+		queue.init(3, maxSize);
+		queue.setFlowKey(element -> element.substring(0, element.indexOf(':')));
+		return queue;
+	}
+}
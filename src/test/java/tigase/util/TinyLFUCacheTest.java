@@ -0,0 +1,78 @@
+/*
+ * Tigase XMPP Server - The instant messaging server
+ * Copyright (C) 2004 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.util;
+
+import org.junit.Test;
+import tigase.util.common.TinyLFUCache;
+
+import static org.junit.Assert.*;
+
+public class TinyLFUCacheTest {
+
+	@Test
+	public void testLimit() {
+		TinyLFUCache<Integer, String> cache = new TinyLFUCache<>(160);
+		for (int i = 0; i < 10000; i++) {
+			cache.get(i);
+			cache.put(i, String.valueOf(i));
+		}
+		assertTrue(cache.size() <= 160);
+	}
+
+	@Test
+	public void testFrequentlyUsedEntriesSurviveScan() {
+		TinyLFUCache<Integer, String> cache = new TinyLFUCache<>(160);
+		for (int round = 0; round < 5; round++) {
+			for (int i = 0; i < 100; i++) {
+				if (cache.get(i) == null) {
+					cache.put(i, String.valueOf(i));
+				}
+			}
+		}
+		// keys requested only once should not evict popular ones
+		for (int i = 1000; i < 2000; i++) {
+			if (cache.get(i) == null) {
+				cache.put(i, String.valueOf(i));
+			}
+		}
+
+		int hits = 0;
+		for (int i = 0; i < 100; i++) {
+			if (cache.get(i) != null) {
+				hits++;
+			}
+		}
+		assertTrue("hits: " + hits, hits > 90);
+		assertTrue(cache.getRejected() > 0);
+	}
+
+	@Test
+	public void testRemove() {
+		TinyLFUCache<String, String> cache = new TinyLFUCache<>(100);
+		cache.put("a/1", "1");
+		cache.put("a/2", "2");
+		cache.put("b/1", "3");
+		assertEquals("1", cache.remove("a/1"));
+		assertNull(cache.get("a/1"));
+		cache.removeIf(key -> key.startsWith("a/"));
+		assertNull(cache.get("a/2"));
+		assertEquals("3", cache.get("b/1"));
+		cache.clear();
+		assertEquals(0, cache.size());
+	}
+}
@@ -0,0 +1,210 @@
+/*
+ * Tigase XMPP Server - The instant messaging server
+ * Copyright (C) 2004 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.vhosts;
+
+import org.junit.Before;
+import org.junit.Test;
+import tigase.db.UserRepository;
+import tigase.db.comp.RepositoryChangeListenerIfc;
+import tigase.db.xml.XMLRepository;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+import static tigase.TestHelper.setField;
+import static tigase.TestHelper.stub;
+
+public class VHostLazyJDBCRepositoryTest {
+
+	private Runnable afterNamesRead;
+	private AtomicInteger itemReads;
+	private UserRepository repository;
+
+	@Before
+	public void setUp() throws Exception {
+		XMLRepository xmlRepository = new XMLRepository();
+		xmlRepository.initRepository("memory://xmlRepo?autoCreateUser=true", null);
+		afterNamesRead = null;
+		itemReads = new AtomicInteger();
+		// counts reads of single virtual hosts to check which lookups hit the database
+		repository = stub(UserRepository.class, (proxy, method, args) -> {
+			if (method.getName().equals("getData") && args.length == 3 && "vhost-items".equals(args[1])) {
+				itemReads.incrementAndGet();
+			}
+			Object result = method.invoke(xmlRepository, args);
+			if (method.getName().equals("getKeys") && afterNamesRead != null && "vhost-items".equals(args[1])) {
+				afterNamesRead.run();
+			}
+			return result;
+		});
+	}
+
+	@Test
+	public void testImportOfOldFormat() throws Exception {
+		VHostJDBCRepository oldRepository = new VHostJDBCRepository();
+		oldRepository.setRepo(repository);
+		oldRepository.addItem(new VHostItemImpl("a.example.com"));
+		oldRepository.addItem(new VHostItemImpl("b.example.com"));
+
+		VHostLazyJDBCRepository lazyRepository = createRepository();
+		assertEquals(2, lazyRepository.size());
+		assertNotNull(repository.getData(oldRepository.getRepoUser(), "vhost-items", "a.example.com"));
+		assertEquals("a.example.com", lazyRepository.getItem("A.example.com").getKey());
+		assertTrue(lazyRepository.contains("b.example.com"));
+		assertEquals(2, lazyRepository.allItems().size());
+
+		// items are imported only once
+		lazyRepository.removeItem("b.example.com");
+		assertEquals(1, createRepository().size());
+	}
+
+	@Test
+	public void testImportAfterItemStoredInNewFormat() throws Exception {
+		VHostJDBCRepository oldRepository = new VHostJDBCRepository();
+		oldRepository.setRepo(repository);
+		oldRepository.addItem(new VHostItemImpl("a.example.com"));
+		oldRepository.addItem(new VHostItemImpl("b.example.com"));
+		// virtual host stored in the new format before the first load of the repository
+		VHostItemImpl item = new VHostItemImpl("b.example.com");
+		item.setEnabled(false);
+		repository.setData(oldRepository.getRepoUser(), "vhost-items", "b.example.com", item.toElement().toString());
+
+		VHostLazyJDBCRepository lazyRepository = createRepository();
+		assertEquals(2, lazyRepository.size());
+		assertTrue(lazyRepository.contains("a.example.com"));
+		assertFalse(lazyRepository.getItem("b.example.com").isEnabled());
+	}
+
+	@Test
+	public void testDomainAddedDuringFilterRebuild() throws Exception {
+		VHostLazyJDBCRepository lazyRepository = createRepository();
+		lazyRepository.addItem(new VHostItemImpl("a.example.com"));
+		setField(lazyRepository, "filterRebuildInterval", 0L);
+
+		afterNamesRead = () -> {
+			afterNamesRead = null;
+			lazyRepository.addItem(new VHostItemImpl("b.example.com"));
+		};
+		lazyRepository.loadItems();
+		assertNull(afterNamesRead);
+		assertTrue(lazyRepository.contains("a.example.com"));
+		assertTrue(lazyRepository.contains("b.example.com"));
+	}
+
+	@Test
+	public void testLookupOfUnknownDomain() throws Exception {
+		VHostLazyJDBCRepository lazyRepository = createRepository();
+		lazyRepository.addItem(new VHostItemImpl("example.com"));
+		itemReads.set(0);
+
+		for (int i = 0; i < 100; i++) {
+			assertFalse(lazyRepository.contains("unknown" + i + ".example.net"));
+		}
+		// filter may give false positives, so only most of lookups need to skip the database
+		assertTrue(String.valueOf(itemReads.get()), itemReads.get() < 10);
+
+		VHostLazyJDBCRepository otherRepository = createRepository();
+		itemReads.set(0);
+		assertNotNull(otherRepository.getItem("example.com"));
+		assertNotNull(otherRepository.getItem("example.com"));
+		assertEquals(1, itemReads.get());
+	}
+
+	@Test
+	public void testChangesOfOtherNode() throws Exception {
+		VHostLazyJDBCRepository node1 = createRepository();
+		VHostLazyJDBCRepository node2 = createRepository();
+		ChangesListener listener = new ChangesListener();
+		node2.addRepoChangeListener(listener);
+
+		node1.addItem(new VHostItemImpl("example.com"));
+		node2.loadItems();
+		assertEquals(1, listener.added.size());
+		assertTrue(node2.contains("example.com"));
+
+		// changes are recorded with millisecond precision
+		Thread.sleep(2);
+		VHostItemImpl item = new VHostItemImpl("example.com");
+		item.setEnabled(false);
+		node1.addItem(item);
+		// cached item is used until the list of changes is read
+		assertTrue(node2.getItem("example.com").isEnabled());
+		node2.loadItems();
+		assertEquals(1, listener.updated.size());
+		assertFalse(node2.getItem("example.com").isEnabled());
+
+		// reading the same changes again does not notify about them
+		node2.loadItems();
+		assertEquals(1, listener.added.size());
+		assertEquals(1, listener.updated.size());
+
+		Thread.sleep(2);
+		node1.removeItem("example.com");
+		node2.loadItems();
+		assertEquals(1, listener.removed.size());
+		assertFalse(node2.contains("example.com"));
+	}
+
+	@Test
+	public void testOwnChangesAreNotReported() throws Exception {
+		VHostLazyJDBCRepository lazyRepository = createRepository();
+		ChangesListener listener = new ChangesListener();
+		lazyRepository.addRepoChangeListener(listener);
+
+		lazyRepository.addItem(new VHostItemImpl("example.com"));
+		VHostItem item = lazyRepository.getItem("example.com");
+		assertEquals(1, listener.added.size());
+
+		lazyRepository.loadItems();
+		assertEquals(1, listener.added.size());
+		assertEquals(0, listener.updated.size());
+		assertSame(item, lazyRepository.getItem("example.com"));
+	}
+
+	private VHostLazyJDBCRepository createRepository() {
+		VHostLazyJDBCRepository lazyRepository = new VHostLazyJDBCRepository();
+		lazyRepository.setRepo(repository);
+		lazyRepository.loadItems();
+		return lazyRepository;
+	}
+
+	private static class ChangesListener
+			implements RepositoryChangeListenerIfc<VHostItem> {
+
+		private final List<VHostItem> added = new CopyOnWriteArrayList<>();
+		private final List<VHostItem> removed = new CopyOnWriteArrayList<>();
+		private final List<VHostItem> updated = new CopyOnWriteArrayList<>();
+
+		@Override
+		public void itemAdded(VHostItem item) {
+			added.add(item);
+		}
+
+		@Override
+		public void itemRemoved(VHostItem item) {
+			removed.add(item);
+		}
+
+		@Override
+		public void itemUpdated(VHostItem item) {
+			updated.add(item);
+		}
+	}
+}
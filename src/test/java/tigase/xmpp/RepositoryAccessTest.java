@@ -0,0 +1,70 @@
+/*
+ * Tigase XMPP Server - The instant messaging server
+ * Copyright (C) 2004 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.xmpp;
+
+import org.junit.Test;
+import tigase.xmpp.impl.ProcessorTestCase;
+import tigase.xmpp.jid.BareJID;
+import tigase.xmpp.jid.JID;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.UUID;
+
+import static org.junit.Assert.*;
+
+public class RepositoryAccessTest
+		extends ProcessorTestCase {
+
+	@Test
+	public void testPreloadedDataInvalidatedByOtherSession() throws Exception {
+		BareJID userJid = BareJID.bareJIDInstance("user1@example.com");
+		XMPPResourceConnection conn1 = getSession(JID.jidInstance("c2s@example.com/" + UUID.randomUUID().toString()),
+												  JID.jidInstance(userJid, "res1"));
+		XMPPResourceConnection conn2 = getSession(JID.jidInstance("c2s@example.com/" + UUID.randomUUID().toString()),
+												  JID.jidInstance(userJid, "res2"));
+		conn1.setData("roster", "key", "value1");
+		conn1.setData("privacy", "key", "value1");
+		conn1.preloadData(Arrays.asList("roster", "privacy"), 60 * 1000);
+
+		// data preloaded on login is used instead of the repository
+		getUserRepository().setData(userJid, "roster", "key", "value2");
+		assertEquals("value1", conn1.getData("roster", "key", null));
+
+		// modification made by other session of the same user
+		conn2.setData("roster", "key", "value3");
+		assertEquals("value3", conn1.getData("roster", "key", null));
+		assertEquals("value1", conn1.getData("privacy", "key", null));
+
+		conn2.removeDataGroup("privacy");
+		assertNull(conn1.getData("privacy", "key", null));
+	}
+
+	@Test
+	public void testPreloadedDataExpired() throws Exception {
+		BareJID userJid = BareJID.bareJIDInstance("user2@example.com");
+		XMPPResourceConnection conn = getSession(JID.jidInstance("c2s@example.com/" + UUID.randomUUID().toString()),
+												 JID.jidInstance(userJid, "res1"));
+		conn.setData("roster", "key", "value1");
+		conn.preloadData(Collections.singleton("roster"), 1);
+
+		getUserRepository().setData(userJid, "roster", "key", "value2");
+		Thread.sleep(20);
+		assertEquals("value2", conn.getData("roster", "key", null));
+	}
+}
@@ -0,0 +1,94 @@
+/*
+ * Tigase XMPP Server - The instant messaging server
+ * Copyright (C) 2004 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.xmpp;
+
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class SessionDataTest {
+
+	@Test
+	public void testPutGetRemove() {
+		int slot = SessionData.registerSlot("test-slot");
+		assertEquals(slot, SessionData.registerSlot("test-slot"));
+
+		SessionData data = new SessionData();
+		assertNull(data.put("test-slot", "value1"));
+		assertNull(data.put("test-other", "value2"));
+		assertEquals("value1", data.get("test-slot"));
+		assertEquals("value2", data.get("test-other"));
+		assertEquals(2, data.size());
+
+		assertEquals("value1", data.put("test-slot", "value3"));
+		assertEquals("value2", data.putIfAbsent("test-other", "value4"));
+		assertEquals("value2", data.get("test-other"));
+		assertEquals("value5", data.computeIfAbsent("test-new", key -> "value5"));
+		assertEquals("value5", data.computeIfAbsent("test-new", key -> "value6"));
+
+		Map<String, Object> entries = new HashMap<>();
+		data.forEach(entries::put);
+		assertEquals(3, entries.size());
+		assertEquals("value3", entries.get("test-slot"));
+
+		assertEquals("value3", data.remove("test-slot"));
+		assertNull(data.get("test-slot"));
+		assertEquals("value2", data.put("test-other", null));
+		assertNull(data.get("test-other"));
+		assertEquals(1, data.size());
+	}
+
+	@Test
+	public void testSlotRegisteredAfterPut() {
+		SessionData data = new SessionData();
+		data.put("test-late-slot", "value1");
+		SessionData.registerSlot("test-late-slot");
+
+		assertEquals("value1", data.get("test-late-slot"));
+		assertEquals("value1", data.put("test-late-slot", "value2"));
+		assertEquals(1, data.size());
+		assertEquals("value2", data.remove("test-late-slot"));
+		assertEquals(0, data.size());
+	}
+
+	@Test
+	public void testReplacedSlotValueIsAlwaysVisible() throws Exception {
+		SessionData.registerSlot("test-replaced-slot");
+		SessionData data = new SessionData();
+		data.put("test-replaced-slot", 0);
+
+		AtomicInteger missing = new AtomicInteger();
+		Thread reader = new Thread(() -> {
+			for (int i = 0; i < 10000000; i++) {
+				if (data.get("test-replaced-slot") == null) {
+					missing.incrementAndGet();
+				}
+			}
+		});
+		reader.start();
+		for (int i = 1; reader.isAlive(); i++) {
+			data.put("test-replaced-slot", i);
+		}
+		reader.join();
+		assertEquals(0, missing.get());
+	}
+}
@@ -0,0 +1,124 @@
+/*
+ * Tigase XMPP Server - The instant messaging server
+ * Copyright (C) 2004 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.xmpp;
+
+import org.junit.Before;
+import org.junit.Test;
+import tigase.server.Packet;
+import tigase.xml.Element;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class XMPPIOServiceTest {
+
+	private int failAfter;
+	private List<String> packets;
+	private XMPPIOService<Object> service;
+	private List<String> written;
+
+	@Before
+	public void setUp() {
+		failAfter = Integer.MAX_VALUE;
+		packets = new ArrayList<>();
+		written = new ArrayList<>();
+		service = new XMPPIOService<Object>() {
+			@Override
+			public void writeRawData(String data) throws IOException {
+				if (written.size() >= failAfter) {
+					throw new IOException("Write failed!");
+				}
+				written.add(data);
+			}
+		};
+	}
+
+	@Test
+	public void testFullBatches() throws Exception {
+		addPackets(6);
+		assertEquals(6, service.processWaitingPackets(batchSize(3)));
+
+		assertEquals(2, written.size());
+		assertEquals(expected(0, 3), written.get(0));
+		assertEquals(expected(3, 6), written.get(1));
+		assertEquals(0, service.getWaitingPacketsSize());
+		assertTrue(service.getWaitingPackets().isEmpty());
+	}
+
+	@Test
+	public void testPartialBatch() throws Exception {
+		addPackets(5);
+		assertEquals(5, service.processWaitingPackets(batchSize(3)));
+
+		// last packets which do not fill the batch are written as well
+		assertEquals(2, written.size());
+		assertEquals(expected(0, 3), written.get(0));
+		assertEquals(expected(3, 5), written.get(1));
+		assertEquals(0, service.getWaitingPacketsSize());
+	}
+
+	@Test
+	public void testPacketsRemovedOnlyAfterWrite() throws Exception {
+		addPackets(5);
+		failAfter = 1;
+		try {
+			service.processWaitingPackets(batchSize(2));
+			fail("Write should fail");
+		} catch (IOException ex) {
+			// expected
+		}
+
+		// packets of the failed batch are still waiting to be sent
+		assertEquals(1, written.size());
+		assertEquals(expected(0, 2), written.get(0));
+		assertEquals(3, service.getWaitingPacketsSize());
+		assertEquals(3, service.getWaitingPackets().size());
+
+		failAfter = Integer.MAX_VALUE;
+		assertEquals(3, service.processWaitingPackets(batchSize(2)));
+		assertEquals(expected(2, 4), written.get(1));
+		assertEquals(expected(4, 5), written.get(2));
+		assertEquals(0, service.getWaitingPacketsSize());
+	}
+
+	@Test
+	public void testEmptyQueue() throws Exception {
+		assertEquals(0, service.processWaitingPackets(1024));
+		assertTrue(written.isEmpty());
+	}
+
+	private void addPackets(int count) throws Exception {
+		for (int i = 0; i < count; i++) {
+			Element elem = new Element("message", new String[]{"to", "id"},
+									   new String[]{"juliet@example.com", String.valueOf(i)});
+			packets.add(elem.toString());
+			service.addPacketToSend(Packet.packetInstance(elem));
+		}
+	}
+
+	private int batchSize(int packetsInBatch) {
+		return packets.get(0).length() * packetsInBatch;
+	}
+
+	private String expected(int from, int to) {
+		return String.join("", packets.subList(from, to));
+	}
+}
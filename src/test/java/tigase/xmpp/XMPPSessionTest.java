@@ -0,0 +1,63 @@
+/*
+ * Tigase XMPP Server - The instant messaging server
+ * Copyright (C) 2004 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.xmpp;
+
+import org.junit.Test;
+import tigase.xmpp.impl.ProcessorTestCase;
+import tigase.xmpp.jid.BareJID;
+import tigase.xmpp.jid.JID;
+
+import java.util.UUID;
+
+import static org.junit.Assert.*;
+
+public class XMPPSessionTest
+		extends ProcessorTestCase {
+
+	@Test
+	public void testGetResourceConnection() throws Exception {
+		BareJID userJid = BareJID.bareJIDInstance("user1@example.com");
+		XMPPResourceConnection conn1 = getSession(JID.jidInstance("c2s@example.com/" + UUID.randomUUID().toString()),
+												  JID.jidInstance(userJid, "res1"));
+		XMPPResourceConnection conn2 = getSession(JID.jidInstance("c2s@example.com/" + UUID.randomUUID().toString()),
+												  JID.jidInstance(userJid, "res2"));
+		XMPPSession session = conn1.getParentSession();
+
+		assertSame(session, conn2.getParentSession());
+		assertEquals(2, session.getActiveResourcesSize());
+		assertSame(conn1, session.getResourceConnection(JID.jidInstance(userJid, "RES1")));
+		assertSame(conn2, session.getResourceForResource("res2"));
+		assertNull(session.getResourceConnection(JID.jidInstance(userJid, "res3")));
+
+		// no presence was sent, so there is no resource with not negative priority
+		assertNull(session.getResourceConnection(JID.jidInstance(userJid)));
+
+		conn1.setPriority(5);
+		conn2.setPriority(1);
+		assertSame(conn1, session.getResourceConnection(JID.jidInstance(userJid)));
+
+		conn2.setPriority(10);
+		assertSame(conn2, session.getResourceConnection(JID.jidInstance(userJid)));
+
+		session.removeResourceConnection(conn2);
+		assertNull(conn2.getParentSession());
+		assertEquals(1, session.getActiveResources().size());
+		assertNull(session.getResourceForResource("res2"));
+		assertSame(conn1, session.getResourceConnection(JID.jidInstance(userJid)));
+	}
+}
@@ -0,0 +1,98 @@
+/*
+ * Tigase XMPP Server - The instant messaging server
+ * Copyright (C) 2004 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.xmpp.impl;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import tigase.server.Packet;
+import tigase.xml.Element;
+import tigase.xmpp.XMPPResourceConnection;
+import tigase.xmpp.jid.BareJID;
+import tigase.xmpp.jid.JID;
+
+import java.util.ArrayDeque;
+import java.util.UUID;
+
+import static org.junit.Assert.*;
+
+public class LastActivityMarkerTest
+		extends ProcessorTestCase {
+
+	private LastActivityMarker marker;
+
+	@Before
+	@Override
+	public void setUp() throws Exception {
+		marker = new LastActivityMarker();
+		// default interval is long enough, so only explicit flushes persist updates during the test
+		marker.initialize();
+		super.setUp();
+	}
+
+	@After
+	@Override
+	public void tearDown() throws Exception {
+		marker.beforeUnregister();
+		marker = null;
+		super.tearDown();
+	}
+
+	@Test
+	public void testUpdatesCoalescedUntilFlush() throws Exception {
+		BareJID userJid = BareJID.bareJIDInstance("user-" + UUID.randomUUID() + "@example.com");
+		getUserRepository().addUser(userJid);
+		JID res = JID.jidInstance(userJid, "res1");
+		XMPPResourceConnection session = getSession(JID.jidInstance("c2s@example.com/" + UUID.randomUUID()), res);
+
+		for (int i = 0; i < 3; i++) {
+			marker.process(presence(res), session, null, new ArrayDeque<>(), null);
+		}
+		assertNull(session.getPublicData(LastActivityAbstract.XMLNS, LastActivityAbstract.LAST_ACTIVITY_KEY, null));
+
+		marker.flush();
+		String persisted = session.getPublicData(LastActivityAbstract.XMLNS, LastActivityAbstract.LAST_ACTIVITY_KEY,
+												 null);
+		assertEquals(String.valueOf(LastActivityAbstract.getLastActivity(session, false)), persisted);
+	}
+
+	@Test
+	public void testPendingUpdatePersistedOnStop() throws Exception {
+		BareJID userJid = BareJID.bareJIDInstance("user-" + UUID.randomUUID() + "@example.com");
+		getUserRepository().addUser(userJid);
+		JID res = JID.jidInstance(userJid, "res1");
+		XMPPResourceConnection session = getSession(JID.jidInstance("c2s@example.com/" + UUID.randomUUID()), res);
+
+		marker.process(presence(res), session, null, new ArrayDeque<>(), null);
+		assertNull(session.getPublicData(LastActivityAbstract.XMLNS, LastActivityAbstract.LAST_ACTIVITY_KEY, null));
+
+		marker.stopped(session, new ArrayDeque<>(), null);
+		String persisted = session.getPublicData(LastActivityAbstract.XMLNS, LastActivityAbstract.LAST_ACTIVITY_KEY,
+												 null);
+		assertEquals(String.valueOf(LastActivityAbstract.getLastActivity(session, false)), persisted);
+
+		// update was removed from pending updates when it was persisted on stop
+		session.removePublicData(LastActivityAbstract.XMLNS, LastActivityAbstract.LAST_ACTIVITY_KEY);
+		marker.flush();
+		assertNull(session.getPublicData(LastActivityAbstract.XMLNS, LastActivityAbstract.LAST_ACTIVITY_KEY, null));
+	}
+
+	private static Packet presence(JID from) throws Exception {
+		return Packet.packetInstance(new Element("presence", new String[]{"from"}, new String[]{from.toString()}));
+	}
+}
@@ -0,0 +1,161 @@
+/*
+ * Tigase XMPP Server - The instant messaging server
+ * Copyright (C) 2004 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.xmpp.impl;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import tigase.server.Packet;
+import tigase.stats.StatisticsList;
+import tigase.util.stringprep.TigaseStringprepException;
+import tigase.xml.Element;
+import tigase.xmpp.StanzaType;
+import tigase.xmpp.jid.JID;
+
+import java.util.Map;
+import java.util.Queue;
+import java.util.logging.Level;
+
+public class PacketHibernationStoreTest {
+
+	private static final String NAME = "mobile";
+
+	private PacketHibernationStore store;
+
+	@Before
+	public void setUp() {
+		store = new PacketHibernationStore(4096, 64 * 1024);
+	}
+
+	@Test
+	public void testRoundTrip() throws TigaseStringprepException {
+		Packet packet = message("juliet@example.com/balcony", "romeo@example.net/orchard", "Wherefore art thou?");
+		packet.setPacketFrom(JID.jidInstanceNS("sess-man@node.example.com"));
+		packet.setPacketTo(JID.jidInstanceNS("c2s@node.example.com/127.0.0.1_5222_10.0.0.1_40000"));
+
+		Queue<Packet> queue = store.createQueue();
+		queue.offer(packet);
+		Assert.assertEquals(1, getValue("Hibernated packets"));
+
+		Packet restored = queue.poll();
+		Assert.assertNotNull(restored);
+		Assert.assertEquals(packet.getElement().toString(), restored.getElement().toString());
+		Assert.assertEquals(packet.getStanzaFrom(), restored.getStanzaFrom());
+		Assert.assertEquals(packet.getStanzaTo(), restored.getStanzaTo());
+		Assert.assertEquals(packet.getPacketFrom(), restored.getPacketFrom());
+		Assert.assertEquals(packet.getPacketTo(), restored.getPacketTo());
+		Assert.assertEquals(0, getValue("Hibernated packets"));
+
+		Packet withoutAddresses = message("juliet@example.com", "romeo@example.net", "Hi");
+		queue.offer(withoutAddresses);
+		restored = queue.poll();
+		Assert.assertEquals(withoutAddresses.getElement().toString(), restored.getElement().toString());
+		Assert.assertNull(restored.getPacketFrom());
+		Assert.assertNull(restored.getPacketTo());
+	}
+
+	@Test
+	public void testMapReplaceAndRemove() throws TigaseStringprepException {
+		JID romeo = JID.jidInstanceNS("romeo@example.net/orchard");
+		JID nurse = JID.jidInstanceNS("nurse@example.com/chamber");
+		Map<JID, Packet> map = store.createMap();
+
+		Assert.assertNull(map.put(romeo, presence(romeo, "away")));
+		Assert.assertNull(map.put(romeo, presence(romeo, "dnd")));
+		Assert.assertNull(map.put(nurse, presence(nurse, "xa")));
+		Assert.assertEquals(2, map.size());
+		// replaced presence is released from the store
+		Assert.assertEquals(2, getValue("Hibernated packets"));
+		Assert.assertEquals("dnd", map.get(romeo).getElement().getChildCData(new String[]{"presence", "show"}));
+
+		Assert.assertNull(map.remove(romeo));
+		Assert.assertFalse(map.containsKey(romeo));
+		Assert.assertNull(map.get(romeo));
+		Assert.assertEquals(1, map.size());
+		Assert.assertEquals(1, getValue("Hibernated packets"));
+
+		map.clear();
+		Assert.assertTrue(map.isEmpty());
+		Assert.assertEquals(0, getValue("Hibernated packets"));
+	}
+
+	@Test
+	public void testQueueOrder() throws TigaseStringprepException {
+		Queue<Packet> queue = store.createQueue();
+		for (int i = 0; i < 10; i++) {
+			queue.offer(message("juliet@example.com", "romeo@example.net", "msg-" + i));
+		}
+		Assert.assertEquals(10, queue.size());
+		Assert.assertEquals("msg-0", body(queue.peek()));
+
+		int i = 0;
+		for (Packet packet : queue) {
+			Assert.assertEquals("msg-" + (i++), body(packet));
+		}
+		Assert.assertEquals(10, queue.size());
+
+		for (i = 0; i < 10; i++) {
+			Assert.assertEquals("msg-" + i, body(queue.poll()));
+		}
+		Assert.assertNull(queue.poll());
+		Assert.assertEquals(0, getValue("Hibernated packets"));
+	}
+
+	@Test
+	public void testReleasedAfterQueueDropped() throws Exception {
+		Queue<Packet> queue = store.createQueue();
+		for (int i = 0; i < 10; i++) {
+			queue.offer(message("juliet@example.com", "romeo@example.net", "msg-" + i));
+		}
+		Assert.assertEquals(10, getValue("Hibernated packets"));
+
+		queue = null;
+		long entries = 10;
+		for (int i = 0; i < 50 && entries > 0; i++) {
+			System.gc();
+			Thread.sleep(20);
+			entries = getValue("Hibernated packets");
+		}
+		Assert.assertEquals(0, entries);
+		Assert.assertEquals(0, getValue("Hibernated packets size [B]"));
+	}
+
+	private long getValue(String description) {
+		StatisticsList list = new StatisticsList(Level.ALL);
+		store.getStatistics(NAME, list);
+		return list.getValue(NAME, description, -1L);
+	}
+
+	private static String body(Packet packet) {
+		return packet.getElement().getChildCData(new String[]{"message", "body"});
+	}
+
+	private static Packet message(String from, String to, String body) throws TigaseStringprepException {
+		Element elem = new Element("message", new String[]{"from", "to", "type"},
+								   new String[]{from, to, StanzaType.chat.name()});
+		elem.addChild(new Element("body", body));
+		return Packet.packetInstance(elem);
+	}
+
+	private static Packet presence(JID from, String show) throws TigaseStringprepException {
+		Element elem = new Element("presence", new String[]{"from", "to"},
+								   new String[]{from.toString(), "juliet@example.com"});
+		elem.addChild(new Element("show", show));
+		return Packet.packetInstance(elem);
+	}
+}
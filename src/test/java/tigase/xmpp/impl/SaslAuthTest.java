@@ -39,8 +39,10 @@ import tigase.xmpp.jid.BareJID;
 import tigase.xmpp.jid.JID;
 
 import java.util.*;
+import java.util.concurrent.TimeUnit;
 
 import static tigase.xmpp.impl.SaslAuth.ALLOWED_SASL_MECHANISMS_KEY;
+import static tigase.xmpp.impl.SaslAuth.QUEUED_AT_KEY;
 
 public class SaslAuthTest
 		extends ProcessorTestCase {
@@ -128,6 +130,32 @@ public class SaslAuthTest
 		Assert.assertEquals("success", result.getElemName());
 	}
 
+	@Test
+	public void testAuthenticationRejectedWhenOverloaded() throws Exception {
+		Queue<Packet> results = new ArrayDeque<>();
+		// request waited in the queue longer than max-queue-wait (5s by default)
+		final XMPPResourceConnection session = authenticateSession(AuthRepository.AccountStatus.active,
+																   System.nanoTime() - TimeUnit.SECONDS.toNanos(10),
+																   results);
+		Assert.assertFalse(session.isAuthorized());
+		Packet result = results.poll();
+		Assert.assertNotNull(result);
+		Assert.assertEquals("failure", result.getElemName());
+		Assert.assertNotNull(result.getElement().getChild("temporary-auth-failure"));
+	}
+
+	@Test
+	public void testAuthenticationAcceptedAfterShortQueueWait() throws Exception {
+		Queue<Packet> results = new ArrayDeque<>();
+		final XMPPResourceConnection session = authenticateSession(AuthRepository.AccountStatus.active,
+																   System.nanoTime() - TimeUnit.MILLISECONDS.toNanos(10),
+																   results);
+		Assert.assertTrue(session.isAuthorized());
+		Packet result = results.poll();
+		Assert.assertNotNull(result);
+		Assert.assertEquals("success", result.getElemName());
+	}
+
 	@Override
 	protected void registerBeans(Kernel kernel) {
 		super.registerBeans(kernel);
@@ -141,6 +169,12 @@ public class SaslAuthTest
 	private XMPPResourceConnection authenticateSession(AuthRepository.AccountStatus accountStatus,
 													   Queue<Packet> results)
 			throws TigaseDBException, TigaseStringprepException, NotAuthorizedException {
+		return authenticateSession(accountStatus, null, results);
+	}
+
+	private XMPPResourceConnection authenticateSession(AuthRepository.AccountStatus accountStatus, Long queuedAt,
+													   Queue<Packet> results)
+			throws TigaseDBException, TigaseStringprepException, NotAuthorizedException {
 		final BareJID user = BareJID.bareJIDInstanceNS("user@example.com");
 		getUserRepository().addUser(user);
 		getAuthRepository().updateCredential(user, null, "password");
@@ -149,6 +183,9 @@ public class SaslAuthTest
 		XMPPResourceConnection session = getSession(JID.jidInstance("c2s@example.com/" + UUID.randomUUID().toString()),
 													res, false);
 		session.putSessionData(ALLOWED_SASL_MECHANISMS_KEY, Collections.singletonList("PLAIN"));
+		if (queuedAt != null) {
+			session.putSessionData(QUEUED_AT_KEY, queuedAt);
+		}
 
 		Packet packet = getPlainSaslPacket();
 		saslAuth.process(packet, session, null, results, null);
@@ -145,6 +145,27 @@ public class PushNotificationsTest
 							settings.get(pushServiceJid + "/push-node"));
 	}
 
+	@Test
+	public void test_cachedPushServices() throws Exception {
+		Map<String, Element> settings = pushNotifications.getPushServices(recipientJid.getBareJID());
+		assertNotNull(settings);
+		assertEquals(0, settings.size());
+
+		XMPPResourceConnection session = getSession(
+				JID.jidInstanceNS("c2s@example.com/" + UUID.randomUUID().toString()), recipientJid);
+		enable(session, null);
+
+		// settings should be served from the cache without reaching the repository
+		getInstance(UserRepository.class).removeData(recipientJid.getBareJID(), "urn:xmpp:push:0",
+													 pushServiceJid + "/push-node");
+		settings = pushNotifications.getPushServices(recipientJid.getBareJID());
+		assertEquals(1, settings.size());
+
+		pushNotifications.disableNotifications(session, pushServiceJid, "push-node");
+		settings = pushNotifications.getPushServices(recipientJid.getBareJID());
+		assertEquals(0, settings.size());
+	}
+
 	@Test
 	public void test_disable() throws Exception {
 		Element iqEl = new Element("iq", new Element[]{new Element("disable", new String[]{"xmlns", "jid", "node"},
@@ -0,0 +1,96 @@
+/*
+ * Tigase XMPP Server - The instant messaging server
+ * Copyright (C) 2004 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.xmpp.impl.push;
+
+import org.junit.Before;
+import org.junit.Test;
+import tigase.xml.Element;
+import tigase.xmpp.jid.BareJID;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+import static tigase.TestHelper.eventBus;
+import static tigase.TestHelper.setField;
+
+public class PushServicesCacheTest {
+
+	private static final BareJID JULIET = BareJID.bareJIDInstanceNS("juliet@example.com");
+
+	private PushServicesCache cache;
+	private AtomicInteger loads;
+
+	@Before
+	public void setUp() throws Exception {
+		cache = new PushServicesCache();
+		loads = new AtomicInteger();
+		setField(cache, "eventBus", eventBus(event -> {}));
+	}
+
+	@Test
+	public void testLoadedServicesAreCached() throws Exception {
+		assertEquals(1, cache.get(JULIET, this::load).size());
+		assertEquals(1, cache.get(JULIET, this::load).size());
+		assertEquals(1, loads.get());
+	}
+
+	@Test
+	public void testInvalidationDuringLoad() throws Exception {
+		// services changed on other node after they were read from the repository
+		assertEquals(1, cache.get(JULIET, jid -> {
+			Map<String, Element> services = load(jid);
+			cache.onPushServicesChanged(new PushServicesCache.PushServicesChangedEvent(jid));
+			return services;
+		}).size());
+
+		assertEquals(1, cache.get(JULIET, this::load).size());
+		assertEquals(2, loads.get());
+	}
+
+	@Test
+	public void testRemovalDuringLoad() throws Exception {
+		// services disabled locally after they were read from the repository
+		assertEquals(1, cache.get(JULIET, jid -> {
+			Map<String, Element> services = load(jid);
+			cache.remove(jid, "push.example.com");
+			return services;
+		}).size());
+
+		assertEquals(1, cache.get(JULIET, this::load).size());
+		assertEquals(2, loads.get());
+	}
+
+	@Test
+	public void testLocalChangesOfCachedServices() throws Exception {
+		cache.get(JULIET, this::load);
+		cache.put(JULIET, "push2.example.com", new Element("settings"));
+		assertEquals(2, cache.get(JULIET, this::load).size());
+
+		cache.remove(JULIET, "push.example.com");
+		cache.remove(JULIET, "push2.example.com");
+		assertTrue(cache.get(JULIET, this::load).isEmpty());
+		assertEquals(1, loads.get());
+	}
+
+	private Map<String, Element> load(BareJID jid) {
+		loads.incrementAndGet();
+		return Collections.singletonMap("push.example.com", new Element("settings"));
+	}
+}